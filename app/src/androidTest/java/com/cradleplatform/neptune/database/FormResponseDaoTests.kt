@@ -16,9 +16,11 @@ import com.cradleplatform.neptune.utilities.Weeks
 import com.cradleplatform.neptune.model.GestationalAgeWeeks
 import com.cradleplatform.neptune.model.Answer
 import com.cradleplatform.neptune.model.FormResponse
+import com.cradleplatform.neptune.manager.FormResponseManager
 import kotlinx.coroutines.runBlocking
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
@@ -252,6 +254,34 @@ class FormResponseDaoTests {
         }
     }
 
+    /**
+     * test that a form submitted from this device and then downloaded by the next sync replaces
+     * the local copy instead of being listed twice, and that syncing it again changes nothing
+     */
+    @Test
+    fun formResponseManagerMergeSyncedFormAfterSubmit() {
+        runBlocking {
+            val db = getDatabase()
+            val manager = FormResponseManager(db.formResponseDao(), db.formClassificationDao())
+            db.patientDao().insert(createTestPatient())
+            manager.updateOrInsertIfNotExistsFormResponse(createFormResponse())
+
+            val synced = createFormResponse().apply { serverFormId = "server-form-001" }
+            assertTrue(manager.mergeSyncedFormResponse(synced))
+
+            val submitted = db.formResponseDao().getSubmittedForms(PATIENT_ID)
+            assertEquals(1, submitted.size)
+            assertEquals("server-form-001", submitted.first().serverFormId)
+
+            val syncedAgain = createFormResponse().apply {
+                serverFormId = "server-form-001"
+                dateEdited = synced.dateEdited
+            }
+            assertFalse(manager.mergeSyncedFormResponse(syncedAgain))
+            assertEquals(1, db.formResponseDao().getSubmittedForms(PATIENT_ID).size)
+        }
+    }
+
     /**
      * test that inserts a form response into the db and then deletes the patient that it is associated with
      * then tests that the form response can no longer be retrieved since it should have been deleted
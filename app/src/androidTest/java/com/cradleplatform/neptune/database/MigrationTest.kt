@@ -16,6 +16,7 @@ import com.cradleplatform.neptune.model.GestationalAgeMonths
 import com.cradleplatform.neptune.model.GestationalAgeWeeks
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.ReadingAnalysis
 import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.Sex
 import com.cradleplatform.neptune.model.UrineTest
@@ -26,6 +27,7 @@ import com.cradleplatform.neptune.utilities.Months
 import com.cradleplatform.neptune.utilities.Weeks
 import kotlinx.coroutines.runBlocking
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
 import org.junit.Rule
 import org.junit.Test
 import java.util.UUID
@@ -397,6 +399,419 @@ class MigrationTests {
         }
     }
 
+    /**
+     * Tests that the migration from version 2 to 3 starts the existing patients and readings with
+     * no locally edited fields.
+     */
+    @Test
+    fun migrateFromVersion2To3AddsEmptyDirtyFields() {
+        val patientId = "3453455"
+        val reading = createFirstAndRecentVersionReading(patientId = patientId)
+
+        helper.createDatabase(TEST_DB, 2).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = reading.firstVerObj)
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 3, true, *Migrations.ALL_MIGRATIONS)
+
+        listOf("Patient", "Reading").forEach { table ->
+            database.query("SELECT dirtyFields FROM $table").use { cursor ->
+                assertTrue(cursor.moveToFirst())
+                assertEquals("[]", cursor.getString(0))
+            }
+        }
+    }
+
+    /**
+     * Tests that the migration from version 3 to 4 leaves the template id and version of the
+     * stored form classifications unknown, so that their templates are downloaded once more.
+     */
+    @Test
+    fun migrateFromVersion3To4AddsUnknownTemplateVersions() {
+        helper.createDatabase(TEST_DB, 3).apply {
+            insert(
+                "FormClassification",
+                SQLiteDatabase.CONFLICT_NONE,
+                contentValuesOf(
+                    "formClassId" to "form-class-id",
+                    "formClassName" to "Referral form",
+                    "formTemplate" to "{}"
+                )
+            )
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 4, true, *Migrations.ALL_MIGRATIONS)
+
+        database.query("SELECT templateId, templateVersion FROM FormClassification").use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertTrue(cursor.isNull(0))
+            assertTrue(cursor.isNull(1))
+        }
+    }
+
+    /**
+     * Tests that the migration from version 4 to 5 deletes the submitted form responses, which
+     * were stored without server ids, and keeps the drafts.
+     */
+    @Test
+    fun migrateFromVersion4To5DropsSubmittedFormResponses() {
+        val patientId = "3453455"
+
+        helper.createDatabase(TEST_DB, 4).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            listOf(true, false).forEach { isDraft ->
+                insert(
+                    "FormResponse",
+                    SQLiteDatabase.CONFLICT_NONE,
+                    contentValuesOf(
+                        "formTemplate" to "{}",
+                        "answers" to "{}",
+                        "saveResponseToSendLater" to isDraft,
+                        "archived" to false,
+                        "formClassificationId" to "form-class-id",
+                        "dateCreated" to 1595645893L,
+                        "language" to "English",
+                        "questionResponses" to "[]",
+                        "patientId" to patientId,
+                        "dateEdited" to 1595645893000L
+                    )
+                )
+            }
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 5, true, *Migrations.ALL_MIGRATIONS)
+
+        database.query("SELECT saveResponseToSendLater, serverFormId FROM FormResponse").use { cursor ->
+            assertEquals(1, cursor.count)
+            assertTrue(cursor.moveToFirst())
+            assertEquals(1, cursor.getInt(0))
+            assertTrue(cursor.isNull(1))
+        }
+    }
+
+    /**
+     * Tests that the migration from version 5 to 6 adds the entities that are waiting to be
+     * uploaded to the outbox, and that the outbox is kept up to date afterwards.
+     */
+    @Test
+    fun migrateFromVersion5To6EnqueuesPendingUploads() {
+        val patientId = "3453455"
+        val reading = createFirstAndRecentVersionReading(patientId = patientId)
+
+        helper.createDatabase(TEST_DB, 5).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = reading.firstVerObj)
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 6, true, *Migrations.ALL_MIGRATIONS)
+
+        val entityIdsByType = {
+            database.query("SELECT entityType, entityId FROM OutboxEntry").use { cursor ->
+                buildMap {
+                    while (cursor.moveToNext()) {
+                        put(cursor.getString(0), cursor.getString(1))
+                    }
+                }
+            }
+        }
+        assertEquals(mapOf("PATIENT" to patientId, "READING" to reading.firstVerObj.id), entityIdsByType())
+
+        database.execSQL("UPDATE Reading SET isUploadedToServer = 1")
+        assertEquals(mapOf("PATIENT" to patientId), entityIdsByType())
+    }
+
+    /**
+     * Tests that the migration from version 6 to 7 keeps the outbox entries and leaves them
+     * unquarantined, without an error.
+     */
+    @Test
+    fun migrateFromVersion6To7KeepsOutboxEntriesRetryable() {
+        val patientId = "3453455"
+
+        helper.createDatabase(TEST_DB, 6).apply {
+            insert(
+                "OutboxEntry",
+                SQLiteDatabase.CONFLICT_NONE,
+                contentValuesOf(
+                    "entityType" to "PATIENT",
+                    "entityId" to patientId,
+                    "operation" to "UPDATE",
+                    "attemptCount" to 3,
+                    "nextAttemptAt" to 1595645893000L,
+                    "enqueuedAt" to 1595645893000L
+                )
+            )
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 7, true, *Migrations.ALL_MIGRATIONS)
+
+        database.query("SELECT entityId, attemptCount, isQuarantined, lastError FROM OutboxEntry").use { cursor ->
+            assertEquals(1, cursor.count)
+            assertTrue(cursor.moveToFirst())
+            assertEquals(patientId, cursor.getString(0))
+            assertEquals(3, cursor.getInt(1))
+            assertEquals(0, cursor.getInt(2))
+            assertTrue(cursor.isNull(3))
+        }
+    }
+
+    /**
+     * Tests that the migration from version 7 to 8 creates an empty PatientSummary table that
+     * prefetched patients can be stored in.
+     */
+    @Test
+    fun migrateFromVersion7To8CreatesPatientSummaryTable() {
+        helper.createDatabase(TEST_DB, 7).close()
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 8, true, *Migrations.ALL_MIGRATIONS)
+
+        database.query("SELECT COUNT(*) FROM PatientSummary").use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals(0, cursor.getInt(0))
+        }
+        database.insert(
+            "PatientSummary",
+            SQLiteDatabase.CONFLICT_NONE,
+            contentValuesOf("id" to "3453455", "name" to "Prefetched", "sex" to "FEMALE", "isPregnant" to false)
+        )
+        database.query("SELECT name FROM PatientSummary WHERE id = ?", arrayOf("3453455")).use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals("Prefetched", cursor.getString(0))
+        }
+    }
+
+    /**
+     * Tests that the migration from version 8 to 9 indexes the patient summaries that were already
+     * prefetched, and keeps the index up to date afterwards.
+     */
+    @Test
+    fun migrateFromVersion8To9IndexesPatientSummaries() {
+        helper.createDatabase(TEST_DB, 8).apply {
+            insert(
+                "PatientSummary",
+                SQLiteDatabase.CONFLICT_NONE,
+                contentValuesOf("id" to "3453455", "name" to "Prefetched", "sex" to "FEMALE", "isPregnant" to false)
+            )
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 9, true, *Migrations.ALL_MIGRATIONS)
+
+        val searchIds = { query: String ->
+            database.query("SELECT id FROM PatientSummaryFts WHERE PatientSummaryFts MATCH ?", arrayOf(query))
+                .use { cursor ->
+                    buildList {
+                        while (cursor.moveToNext()) {
+                            add(cursor.getString(0))
+                        }
+                    }
+                }
+        }
+        assertEquals(listOf("3453455"), searchIds("prefetch*"))
+
+        database.execSQL("UPDATE PatientSummary SET name = 'Renamed' WHERE id = '3453455'")
+        assertEquals(emptyList<String>(), searchIds("prefetch*"))
+        assertEquals(listOf("3453455"), searchIds("renamed"))
+    }
+
+    /**
+     * Tests that the migration from version 9 to 10 starts the existing patients and readings
+     * without base values for their edited fields, and creates an empty SyncConflict queue.
+     */
+    @Test
+    fun migrateFromVersion9To10AddsEmptyDirtyFieldBase() {
+        val patientId = "3453455"
+        val reading = createFirstAndRecentVersionReading(patientId = patientId)
+
+        helper.createDatabase(TEST_DB, 9).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = reading.firstVerObj)
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 10, true, *Migrations.ALL_MIGRATIONS)
+
+        listOf("Patient", "Reading").forEach { table ->
+            database.query("SELECT dirtyFieldBase FROM $table").use { cursor ->
+                assertTrue(cursor.moveToFirst())
+                assertEquals("{}", cursor.getString(0))
+            }
+        }
+        database.query("SELECT COUNT(*) FROM SyncConflict").use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals(0, cursor.getInt(0))
+        }
+    }
+
+    /**
+     * Tests that the migration from version 10 to 11 rewrites the JSON stored in [Reading]
+     * columns in [CompactColumnEncoding], and that the values read back the same.
+     */
+    @Test
+    fun migrateFromVersion10To11RewritesColumnsInCompactEncoding() {
+        val patientId = "3453455"
+        val reading = createFirstAndRecentVersionReading(patientId = patientId)
+
+        helper.createDatabase(TEST_DB, 10).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = reading.firstVerObj)
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 11, true, *Migrations.ALL_MIGRATIONS)
+
+        val converters = DatabaseTypeConverters()
+        database.query(
+            "SELECT bloodPressure, symptoms, previousReadingIds FROM Reading WHERE id = ?",
+            arrayOf(reading.firstVerObj.id)
+        ).use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            val bloodPressure = cursor.getString(0)
+            assertTrue(CompactColumnEncoding.isEncoded(bloodPressure))
+            assertEquals(reading.expectedRecentVerObj.bloodPressure, converters.toBloodPressure(bloodPressure))
+            assertEquals(reading.expectedRecentVerObj.symptoms, converters.toStringList(cursor.getString(1)))
+            assertEquals(
+                reading.expectedRecentVerObj.previousReadingIds,
+                converters.toStringList(cursor.getString(2))
+            )
+        }
+    }
+
+    /**
+     * Tests that the migration from version 11 to 12 copies the bloodPressure column into the
+     * systolic, diastolic, heartRate and analysis columns, whether it was still JSON or already in
+     * [CompactColumnEncoding].
+     */
+    @Test
+    fun migrateFromVersion11To12CopiesBloodPressureIntoColumns() {
+        val patientId = "3453455"
+        val jsonReading = createFirstAndRecentVersionReading(patientId = patientId)
+        val compactReading = createFirstAndRecentVersionReading(patientId = patientId)
+        val compactBloodPressure = BloodPressure(systolic = 150, diastolic = 95, heartRate = 80)
+
+        helper.createDatabase(TEST_DB, 11).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = jsonReading.firstVerObj)
+            insertFirstVersionReading(database = this, reading = compactReading.firstVerObj)
+            update(
+                "Reading",
+                SQLiteDatabase.CONFLICT_NONE,
+                contentValuesOf(
+                    "bloodPressure" to DatabaseTypeConverters().fromBloodPressure(compactBloodPressure)
+                ),
+                "id = ?",
+                arrayOf(compactReading.firstVerObj.id)
+            )
+            close()
+        }
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 12, true, *Migrations.ALL_MIGRATIONS)
+
+        val expected = mapOf(
+            jsonReading.firstVerObj.id to jsonReading.expectedRecentVerObj.bloodPressure,
+            compactReading.firstVerObj.id to compactBloodPressure
+        )
+        expected.forEach { (id, bloodPressure) ->
+            database.query(
+                "SELECT systolic, diastolic, heartRate, analysis FROM Reading WHERE id = ?",
+                arrayOf(id)
+            ).use { cursor ->
+                assertTrue(cursor.moveToFirst())
+                assertEquals(bloodPressure.systolic, cursor.getInt(0))
+                assertEquals(bloodPressure.diastolic, cursor.getInt(1))
+                assertEquals(bloodPressure.heartRate, cursor.getInt(2))
+                assertEquals(bloodPressure.analysis.name, cursor.getString(3))
+            }
+        }
+        assertEquals(ReadingAnalysis.YELLOW_UP, compactBloodPressure.analysis)
+    }
+
+    /**
+     * Tests that the migration from version 11 to 12 fails on a blood pressure that can't be read,
+     * and leaves the database at version 11 with the original value instead of making one up.
+     */
+    @Test
+    fun migrateFromVersion11To12KeepsUnreadableBloodPressure() {
+        val patientId = "3453455"
+        val reading = createFirstAndRecentVersionReading(patientId = patientId)
+
+        helper.createDatabase(TEST_DB, 11).apply {
+            insertFirstVersionPatient(database = this, patient = createFirstVersionPatient(patientId))
+            insertFirstVersionReading(database = this, reading = reading.firstVerObj)
+            update(
+                "Reading",
+                SQLiteDatabase.CONFLICT_NONE,
+                contentValuesOf("bloodPressure" to "garbage"),
+                "id = ?",
+                arrayOf(reading.firstVerObj.id)
+            )
+            close()
+        }
+
+        assertThrows<IllegalStateException> {
+            helper.runMigrationsAndValidate(TEST_DB, 12, true, *Migrations.ALL_MIGRATIONS)
+        }
+
+        val path = InstrumentationRegistry.getInstrumentation().targetContext.getDatabasePath(TEST_DB).path
+        SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY).use { database ->
+            assertEquals(11, database.version)
+            database.rawQuery("SELECT bloodPressure FROM Reading WHERE id = ?", arrayOf(reading.firstVerObj.id))
+                .use { cursor ->
+                    assertTrue(cursor.moveToFirst())
+                    assertEquals("garbage", cursor.getString(0))
+                }
+        }
+    }
+
+    /**
+     * Tests that after the migration from version 12 to 13, editing a patient whose upload was
+     * quarantined lets its outbox entry start over.
+     */
+    @Test
+    fun migrateFromVersion12To13ResetsOutboxEntryOnEdit() {
+        val patientId = "3453455"
+        helper.createDatabase(TEST_DB, 12).close()
+
+        val database = helper.runMigrationsAndValidate(TEST_DB, 13, true, *Migrations.ALL_MIGRATIONS)
+        insertFirstVersionPatient(database = database, patient = createFirstVersionPatient(patientId))
+        database.execSQL("UPDATE OutboxEntry SET attemptCount = 5, isQuarantined = 1, lastError = 'rejected'")
+        database.execSQL("UPDATE Patient SET name = 'Edited' WHERE id = ?", arrayOf(patientId))
+
+        database.query(
+            "SELECT entityId, attemptCount, isQuarantined, lastError FROM OutboxEntry WHERE entityType = 'PATIENT'"
+        ).use { cursor ->
+            assertEquals(1, cursor.count)
+            assertTrue(cursor.moveToFirst())
+            assertEquals(patientId, cursor.getString(0))
+            assertEquals(0, cursor.getInt(1))
+            assertEquals(0, cursor.getInt(2))
+            assertTrue(cursor.isNull(3))
+        }
+    }
+
+    private fun createFirstVersionPatient(
+        patientId: String
+    ) = com.cradleplatform.neptune.database.firstversiondata.model.Patient(
+        id = patientId,
+        name = "Exact dob",
+        dateOfBirth = "1989-10-24",
+        isExactDateOfBirth = true,
+        gestationalAge = com.cradleplatform.neptune.database.firstversiondata.model.GestationalAgeWeeks(Weeks(20L)),
+        sex = com.cradleplatform.neptune.database.firstversiondata.model.Sex.FEMALE,
+        isPregnant = true,
+        zone = null,
+        villageNumber = null,
+        drugHistory = "",
+        medicalHistory = "abc",
+        allergy = ""
+    )
+
     private fun createFirstAndRecentVersionReading(
         patientId: String
     ) : FirstVersionAndRecentVersion<com.cradleplatform.neptune.database.firstversiondata.model.Reading, Reading> {
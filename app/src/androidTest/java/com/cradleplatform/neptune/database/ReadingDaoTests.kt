@@ -1,23 +1,39 @@
 package com.cradleplatform.neptune.database
 
 import androidx.room.Room
+import androidx.room.RoomDatabase
 import androidx.room.testing.MigrationTestHelper
 import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.platform.app.InstrumentationRegistry
+import com.cradleplatform.neptune.ext.consumeInBatchesInTransaction
+import com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource
+import com.cradleplatform.neptune.http_sms_service.http.buildJsonRequestBody
 import com.cradleplatform.neptune.model.Assessment
 import com.cradleplatform.neptune.model.BloodPressure
 import com.cradleplatform.neptune.model.GestationalAgeWeeks
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.OutboxOperation
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.ReadingAnalysis
 import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.Sex
 import com.cradleplatform.neptune.model.UrineTest
+import com.cradleplatform.neptune.sync.workers.UrgentUploads
 import com.cradleplatform.neptune.utilities.Weeks
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import okio.Buffer
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Rule
@@ -29,6 +45,8 @@ class ReadingDaoTests {
     companion object {
         private const val DATABASE = "reading-dao-test"
         private const val PATIENT_ID = "test-patient-001"
+        private const val SINGLE_CONNECTION_DATABASE = "reading-dao-test-single-connection"
+        private const val WRITER_START_DELAY_MILLIS = 500L
     }
 
     @Rule
@@ -44,7 +62,7 @@ class ReadingDaoTests {
             ApplicationProvider.getApplicationContext(),
             CradleDatabase::class.java,
             DATABASE
-        ).fallbackToDestructiveMigration().build()
+        ).fallbackToDestructiveMigration().addCallback(Outbox.TriggersCallback).build()
         helper.closeWhenFinished(db)
         return db
     }
@@ -224,4 +242,274 @@ class ReadingDaoTests {
             assertTrue(db.readingDao().getReadingById(reading.id).isFlaggedForFollowUp)
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * test to make sure the outbox follows the upload state of the readings: un-uploaded readings
+     * are added to it, and they are removed once they are marked as uploaded or deleted
+     */
+    @Test
+    fun readingDaoOutboxFollowsUploadState() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val pending = createReading(uploaded = false)
+            val uploaded = createReading(uploaded = true)
+            db.readingDao().insert(pending)
+            db.readingDao().insert(uploaded)
+
+            val entries = db.outboxDao().getEntries(OutboxEntityType.READING)
+            assertEquals(listOf(pending.id), entries.map { it.entityId })
+            assertEquals(OutboxOperation.CREATE, entries.single().operation)
+            assertEquals(listOf(pending.id), db.readingDao().getUnUploadedReadingsPage("", 10).map { it.id })
+
+            db.readingDao().update(uploaded.copy(isUploadedToServer = false))
+            assertEquals(OutboxOperation.UPDATE, db.outboxDao().getEntries(OutboxEntityType.READING)
+                .single { it.entityId == uploaded.id }.operation)
+
+            db.readingDao().markAllAsUploadedToServer()
+            assertEquals(0, db.readingDao().getNumberOfUnUploadedReadings())
+
+            db.readingDao().setIsUploadedToServerToZero(pending.id)
+            assertEquals(1, db.readingDao().getNumberOfUnUploadedReadings())
+            db.readingDao().delete(pending)
+            assertEquals(0, db.outboxDao().count(OutboxEntityType.READING))
+        }
+    }
+
+    /**
+     * test to make sure editing a reading whose upload was quarantined lets it start over: its
+     * outbox entry is due again, with no failed attempts and no error
+     */
+    @Test
+    fun readingDaoEditAfterQuarantineRetriesNow() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val reading = createReading(uploaded = false)
+            db.readingDao().insert(reading)
+
+            val attemptStartedAt = db.outboxDao().getEntries(OutboxEntityType.READING).single().enqueuedAt
+            db.outboxDao().recordFailedAttempt(
+                OutboxEntityType.READING,
+                attemptStartedAt,
+                baseDelaySeconds = 60L,
+                maxDelaySeconds = 3600L,
+                maxAttempts = 1
+            )
+            db.outboxDao().setLastError(OutboxEntityType.READING, reading.id, "rejected")
+            assertTrue(db.outboxDao().getEntries(OutboxEntityType.READING).single().isQuarantined)
+            assertEquals(0, db.readingDao().getNumberOfReadingsDueForUpload())
+
+            db.readingDao().update(reading.copy(symptoms = listOf("headache", "blurred vision")))
+
+            val entry = db.outboxDao().getEntries(OutboxEntityType.READING).single()
+            assertFalse(entry.isQuarantined)
+            assertEquals(0, entry.attemptCount)
+            assertNull(entry.lastError)
+            assertTrue(entry.nextAttemptAt <= System.currentTimeMillis() / 1000)
+            assertEquals(1, db.readingDao().getNumberOfReadingsDueForUpload())
+        }
+    }
+
+    /**
+     * test to make sure only the urgent readings that are due for upload are read for the urgent
+     * lane of a sync, and that they are the ones UrgentUploads considers urgent
+     */
+    @Test
+    fun readingDaoGetUrgentReadingsDueForUpload() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val now = 1_700_000_000L
+            val window = 3600L
+            val green = createReading().copy(referral = null, dateRetestNeeded = null)
+            val red = green.copy(id = UUID.randomUUID().toString(), bloodPressure = BloodPressure(170, 115, 80))
+            val referred = createReading().copy(dateRetestNeeded = null)
+            val recheckDue = green.copy(id = UUID.randomUUID().toString(), dateRetestNeeded = now + window)
+            val recheckLater = green.copy(id = UUID.randomUUID().toString(), dateRetestNeeded = now + window + 1)
+            val uploadedRed = red.copy(id = UUID.randomUUID().toString(), isUploadedToServer = true)
+            listOf(green, red, referred, recheckDue, recheckLater, uploadedRed).forEach {
+                db.readingDao().insert(it)
+            }
+
+            val urgent = db.readingDao().getUrgentReadingsDueForUpload(now, window)
+
+            assertEquals(setOf(red.id, referred.id, recheckDue.id), urgent.map { it.id }.toSet())
+            val due = listOf(green, red, referred, recheckDue, recheckLater)
+            assertEquals(
+                due.filter { UrgentUploads.isUrgent(it, now, window) }.map { it.id }.toSet(),
+                urgent.map { it.id }.toSet()
+            )
+        }
+    }
+
+    /**
+     * test to make sure releasing the quarantined entries makes them due again, with no failed
+     * attempts and no error, as the retry action in the sync screen expects
+     */
+    @Test
+    fun outboxDaoReleaseQuarantinedRetriesNow() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val reading = createReading(uploaded = false)
+            db.readingDao().insert(reading)
+            db.outboxDao().recordFailedAttempt(
+                OutboxEntityType.READING,
+                db.outboxDao().getEntries(OutboxEntityType.READING).single().enqueuedAt,
+                baseDelaySeconds = 60L,
+                maxDelaySeconds = 3600L,
+                maxAttempts = 1
+            )
+            db.outboxDao().setLastError(OutboxEntityType.READING, reading.id, "rejected")
+            assertEquals(1, db.outboxDao().countQuarantined())
+
+            assertEquals(1, db.outboxDao().releaseQuarantined())
+
+            val entry = db.outboxDao().getEntries(OutboxEntityType.READING).single()
+            assertFalse(entry.isQuarantined)
+            assertEquals(0, entry.attemptCount)
+            assertNull(entry.lastError)
+            assertEquals(0, db.outboxDao().countQuarantined())
+            assertEquals(1, db.readingDao().getNumberOfReadingsDueForUpload())
+            assertEquals(0, db.outboxDao().releaseQuarantined())
+        }
+    }
+
+    /**
+     * test to make sure only the readings an upload attempt sent, i.e., the ones that were due,
+     * are counted as not uploaded after it; quarantined readings weren't sent
+     */
+    @Test
+    fun readingDaoCountNotUploadedSkipsQuarantinedReadings() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val quarantined = createReading(uploaded = false)
+            db.readingDao().insert(quarantined)
+            db.outboxDao().recordFailedAttempt(
+                OutboxEntityType.READING,
+                db.outboxDao().getEntries(OutboxEntityType.READING).single().enqueuedAt,
+                baseDelaySeconds = 60L,
+                maxDelaySeconds = 3600L,
+                maxAttempts = 1
+            )
+            val pending = createReading(uploaded = false)
+            db.readingDao().insert(pending)
+            val attemptStartedAt = db.outboxDao().getEntries(OutboxEntityType.READING)
+                .single { it.entityId == pending.id }.enqueuedAt
+
+            assertEquals(2, db.readingDao().getNumberOfUnUploadedReadings())
+            assertEquals(1, db.outboxDao().countNotUploaded(OutboxEntityType.READING, attemptStartedAt))
+
+            db.readingDao().update(pending.copy(isUploadedToServer = true))
+            assertEquals(0, db.outboxDao().countNotUploaded(OutboxEntityType.READING, attemptStartedAt))
+        }
+    }
+
+    /**
+     * test to make sure the sync backlog counts readings that are waiting for a retry, but not
+     * quarantined ones, since no sync uploads them
+     */
+    @Test
+    fun outboxCountRetryableSkipsQuarantinedReadings() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val reading = createReading(uploaded = false)
+            db.readingDao().insert(reading)
+            val attemptStartedAt = db.outboxDao().getEntries(OutboxEntityType.READING).single().enqueuedAt
+            val recordFailedAttempt: suspend (Int) -> Unit = { maxAttempts ->
+                db.outboxDao().recordFailedAttempt(
+                    OutboxEntityType.READING,
+                    attemptStartedAt,
+                    baseDelaySeconds = 0L,
+                    maxDelaySeconds = 0L,
+                    maxAttempts = maxAttempts
+                )
+            }
+
+            recordFailedAttempt(2)
+            assertEquals(1, db.outboxDao().countRetryable())
+
+            recordFailedAttempt(2)
+            assertEquals(0, db.outboxDao().countRetryable())
+            assertEquals(1, db.outboxDao().countQuarantined())
+        }
+    }
+
+    /**
+     * test to make sure the blood pressure analysis is stored with the reading, so that readings
+     * can be counted by analysis in SQL
+     */
+    @Test
+    fun readingDaoCountsReadingsByAnalysis() {
+        runBlocking {
+            val db = getDatabase()
+            db.patientDao().insert(createPatient())
+            val green = createReading()
+            val redUp = createReading().apply { bloodPressure = BloodPressure(170, 100, 80) }
+            val earlier = createReading(dateTaken = 1500000000L)
+            db.readingDao().insertAll(listOf(green, redUp, earlier))
+
+            assertEquals(
+                mapOf(ReadingAnalysis.GREEN to 1, ReadingAnalysis.RED_UP to 1),
+                db.readingDao().countReadingsByAnalysis(1595645893L, 1595645893L)
+            )
+            assertEquals(ReadingAnalysis.RED_UP, db.readingDao().getReadingById(redUp.id)?.bloodPressure?.analysis)
+        }
+    }
+
+    /**
+     * test to make sure a reading upload can be streamed from the database while the download
+     * writer for the same sync is waiting, when Room has a single connection (TRUNCATE journal
+     * mode, as on low-RAM devices). The writer must not hold its transaction open before the
+     * first downloaded reading arrives, or reading the upload pages deadlocks.
+     */
+    @Test(timeout = 20_000)
+    fun readingUploadStreamsWhileDownloadWriterWaits() {
+        val db = Room.databaseBuilder(
+            ApplicationProvider.getApplicationContext(),
+            CradleDatabase::class.java,
+            SINGLE_CONNECTION_DATABASE
+        ).fallbackToDestructiveMigration()
+            .addCallback(Outbox.TriggersCallback)
+            .setJournalMode(RoomDatabase.JournalMode.TRUNCATE)
+            .build()
+        helper.closeWhenFinished(db)
+        runBlocking {
+            db.clearAllTables()
+            db.patientDao().insert(createPatient())
+            val pending = List(5) { createReading() }
+            db.readingDao().insertAll(pending)
+            val upload = SyncUploadSource(
+                size = pending.size,
+                pageSize = 2,
+                idOf = { it.id },
+                readPage = { afterId, limit -> db.readingDao().getUnUploadedReadingsPage(afterId, limit) }
+            )
+
+            val channel = Channel<Reading>(Channel.BUFFERED)
+            val writer = launch(Dispatchers.Default) {
+                channel.consumeInBatchesInTransaction(db, batchSize = 2) { db.readingDao().insertAll(it) }
+            }
+            // Give the writer time to open its transaction, if it were going to.
+            delay(WRITER_START_DELAY_MILLIS)
+
+            // Written like OkHttp writes a sync request body, blocking on each page.
+            val uploadedIds = mutableListOf<String>()
+            withContext(Dispatchers.IO) {
+                buildJsonRequestBody { _ -> upload.forEach { reading -> uploadedIds.add(reading.id) } }
+                    .writeTo(Buffer())
+            }
+            assertEquals(pending.map { it.id }.sorted(), uploadedIds)
+
+            val downloaded = List(3) { createReading(uploaded = true) }
+            downloaded.forEach { channel.send(it) }
+            channel.close()
+            writer.join()
+            downloaded.forEach { assertNotNull(db.readingDao().getReadingById(it.id)) }
+            db.clearAllTables()
+        }
+    }
+}
@@ -409,7 +409,7 @@ class ReadingActivity : AppCompatActivity(), ReferralDialogFragment.OnReadingSen
 
                     val newReadingIntent = makeIntentForNewReadingExistingPatient(
                         context = this@ReadingActivity,
-                        patientId = result.value.patient.id
+                        patientId = result.value.id
                     )
                     startActivity(newReadingIntent)
                     finish()
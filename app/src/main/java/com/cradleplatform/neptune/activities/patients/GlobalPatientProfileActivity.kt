@@ -18,6 +18,7 @@ import androidx.recyclerview.widget.RecyclerView
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.ext.isConnected
 import com.cradleplatform.neptune.model.GlobalPatient
+import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.adapters.patients.ReadingRecyclerViewAdapter
 import com.cradleplatform.neptune.adapters.patients.ReadingRecyclerViewAdapter.OnClickElement
@@ -142,7 +143,16 @@ class GlobalPatientProfileActivity : PatientProfileActivity() {
         )
         progressDialog.show()
         lifecycleScope.launch {
-            val result = patientManager.downloadPatientAndReading(globalPatient.id)
+            // A prefetched summary can be shown right away, while the full record is downloading.
+            patientManager.getPatientSummary(globalPatient.id)?.let { summary ->
+                showPatientHeader(summary.toPatient(), progressDialog)
+            }
+            // Show the patient as soon as it is parsed, while its readings are still downloading.
+            val result = patientManager.downloadPatientAndReadingsStreaming(globalPatient.id) { patient ->
+                withContext(Dispatchers.Main) {
+                    showPatientHeader(patient, progressDialog)
+                }
+            }
             if (result !is NetworkResult.Success) {
                 progressDialog.cancel()
                 Snackbar.make(
@@ -164,6 +174,13 @@ class GlobalPatientProfileActivity : PatientProfileActivity() {
         }
     }
 
+    private fun showPatientHeader(patient: Patient, progressDialog: ProgressDialog) {
+        currPatient = patient
+        setupToolBar()
+        populatePatientInfo(patient)
+        progressDialog.cancel()
+    }
+
     /**
      * Should always return false here since we dont have any local patient
      */
@@ -30,6 +30,7 @@ import com.google.android.material.snackbar.Snackbar
 import dagger.hilt.android.AndroidEntryPoint
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.async
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
@@ -60,6 +61,9 @@ class GlobalPatientSearchActivity : AppCompatActivity() {
 
     private var connectivityManager: ConnectivityManager? = null
 
+    // the search being answered, cancelled when a new search is made
+    private var searchJob: Job? = null
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         connectivityManager = ContextCompat.getSystemService(this, ConnectivityManager::class.java)
@@ -94,7 +98,7 @@ class GlobalPatientSearchActivity : AppCompatActivity() {
                     if (query == "") {
                         return false
                     }
-                    searchServerForThePatients(query.trim())
+                    searchForThePatients(query.trim())
                     return true
                 }
             }
@@ -102,32 +106,56 @@ class GlobalPatientSearchActivity : AppCompatActivity() {
     }
 
     /**
-     * Makes an api call to fetch for a list of patients based on the query
+     * Answers the search from the offline index of prefetched patients right away, then makes an
+     * api call to fetch the list of patients matching the query and shows the server's results
+     * instead. A progress dialog is only shown when there is nothing to show in the meantime.
      */
-    private fun searchServerForThePatients(searchUrl: String) {
-        if (!isThereInternet(R.string.global_patient_search_no_internet_available_to_search)) {
-            return
+    private fun searchForThePatients(query: String) {
+        searchJob?.cancel()
+        searchJob = lifecycleScope.launch {
+            val indexedPatients = patientManager.searchPatientSummaries(query)
+            if (indexedPatients.isNotEmpty()) {
+                searchView.hideKeyboard()
+                setupPatientsRecycler(indexedPatients)
+                if (connectivityManager?.isConnected() == false) {
+                    return@launch
+                }
+            } else if (!isThereInternet(R.string.global_patient_search_no_internet_available_to_search)) {
+                return@launch
+            }
+
+            searchServerForThePatients(query, hasIndexedResults = indexedPatients.isNotEmpty())
         }
+    }
 
-        val progressDialog = getProgressDialog(
-            getString(R.string.global_patient_search_fetching_the_patients)
-        )
-        progressDialog.show()
+    /**
+     * Makes an api call to fetch for a list of patients based on the query. If the results from
+     * the offline index are already shown, they are kept when the call fails.
+     */
+    private suspend fun searchServerForThePatients(searchUrl: String, hasIndexedResults: Boolean) {
+        val progressDialog = if (hasIndexedResults) {
+            null
+        } else {
+            getProgressDialog(getString(R.string.global_patient_search_fetching_the_patients)).also { it.show() }
+        }
 
-        lifecycleScope.launch {
+        try {
             val result = restApi.searchForPatient(searchUrl, Protocol.HTTP)
-            progressDialog.cancel()
             searchView.hideKeyboard()
             if (result is NetworkResult.Success) {
                 setupPatientsRecycler(result.value)
             } else {
-                setupPatientsRecycler(null)
+                if (!hasIndexedResults) {
+                    setupPatientsRecycler(null)
+                }
                 Snackbar.make(
                     searchView,
                     R.string.global_patient_search_unable_to_fetch,
                     Snackbar.LENGTH_LONG
                 ).show()
             }
+        } finally {
+            progressDialog?.cancel()
         }
     }
 
@@ -209,15 +237,21 @@ class GlobalPatientSearchActivity : AppCompatActivity() {
                 }
             }
         } else {
-            if (!isThereInternet(R.string.global_patient_search_no_internet_available_to_get_info)) {
-                return
-            }
+            lifecycleScope.launch {
+                // A prefetched patient can be shown without internet; its full record is loaded
+                // once there is a connection.
+                if (patientManager.getPatientSummary(patient.id) == null &&
+                    !isThereInternet(R.string.global_patient_search_no_internet_available_to_get_info)
+                ) {
+                    return@launch
+                }
 
-            val intent = GlobalPatientProfileActivity.makeIntent(
-                this@GlobalPatientSearchActivity,
-                patient
-            )
-            startActivity(intent)
+                val intent = GlobalPatientProfileActivity.makeIntent(
+                    this@GlobalPatientSearchActivity,
+                    patient
+                )
+                startActivity(intent)
+            }
         }
     }
 
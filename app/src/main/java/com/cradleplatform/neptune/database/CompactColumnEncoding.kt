@@ -0,0 +1,85 @@
+package com.cradleplatform.neptune.database
+
+/**
+ * A compact encoding for the objects that [DatabaseTypeConverters] stores in a single column, so
+ * that loading a row doesn't have to run Jackson on every one of those columns.
+ *
+ * An encoded value starts with [MARKER], which JSON text can't start with, so that values that
+ * older versions of the app wrote as JSON can still be told apart and read. The marker is followed
+ * by the fields of the object in a fixed order for each type, each written either as [NULL] or as
+ * its length in chars, [LENGTH_END] and its text, so nothing needs escaping. Fields that are
+ * missing at the end of a value are read as null, so that new fields can be added at the end of a
+ * type without rewriting the values that are already stored.
+ */
+internal object CompactColumnEncoding {
+    const val MARKER = '\u0001'
+    private const val NULL = '~'
+    private const val LENGTH_END = ':'
+    private const val TRUE = "1"
+    private const val FALSE = "0"
+    private const val DECIMAL = 10
+
+    fun isEncoded(value: String) = value.isNotEmpty() && value[0] == MARKER
+
+    class Writer {
+        private val builder = StringBuilder().append(MARKER)
+
+        fun string(value: String?): Writer = apply {
+            if (value == null) {
+                builder.append(NULL)
+            } else {
+                builder.append(value.length).append(LENGTH_END).append(value)
+            }
+        }
+
+        fun int(value: Int?): Writer = string(value?.toString())
+
+        fun long(value: Long?): Writer = string(value?.toString())
+
+        fun boolean(value: Boolean?): Writer = string(value?.let { if (it) TRUE else FALSE })
+
+        fun stringList(value: List<String>): Writer = apply {
+            int(value.size)
+            value.forEach { string(it) }
+        }
+
+        override fun toString() = builder.toString()
+    }
+
+    /**
+     * Reads the fields of an encoded [value] in the order they were written.
+     */
+    class Reader(private val value: String) {
+        private var position = 1
+
+        init {
+            require(isEncoded(value)) { "not a compact column value" }
+        }
+
+        fun string(): String? {
+            if (position >= value.length || value[position] == NULL) {
+                position++
+                return null
+            }
+            var length = 0
+            while (value[position] != LENGTH_END) {
+                length = length * DECIMAL + (value[position] - '0')
+                position++
+            }
+            val start = position + 1
+            position = start + length
+            return value.substring(start, position)
+        }
+
+        fun int(): Int? = string()?.toInt()
+
+        fun long(): Long? = string()?.toLong()
+
+        fun boolean(): Boolean? = string()?.let { it == TRUE }
+
+        fun stringList(): List<String> {
+            val size = int() ?: return emptyList()
+            return List(size) { string()!! }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.cradleplatform.neptune.database
 
+import android.content.ContentValues
 import android.content.Context
+import android.database.sqlite.SQLiteDatabase
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
@@ -11,19 +13,27 @@ import com.cradleplatform.neptune.database.daos.AssessmentDao
 import com.cradleplatform.neptune.database.daos.FormClassificationDao
 import com.cradleplatform.neptune.database.daos.FormResponseDao
 import com.cradleplatform.neptune.database.daos.HealthFacilityDao
+import com.cradleplatform.neptune.database.daos.OutboxDao
 import com.cradleplatform.neptune.database.daos.PatientDao
+import com.cradleplatform.neptune.database.daos.PatientSummaryDao
 import com.cradleplatform.neptune.database.daos.ReadingDao
 import com.cradleplatform.neptune.database.daos.ReferralDao
+import com.cradleplatform.neptune.database.daos.SyncConflictDao
 import com.cradleplatform.neptune.database.views.LocalSearchPatient
 import com.cradleplatform.neptune.model.Assessment
 import com.cradleplatform.neptune.model.FormClassification
 import com.cradleplatform.neptune.model.FormResponse
 import com.cradleplatform.neptune.model.HealthFacility
+import com.cradleplatform.neptune.model.OutboxEntry
 import com.cradleplatform.neptune.model.Patient
+import com.cradleplatform.neptune.model.PatientSummary
+import com.cradleplatform.neptune.model.PatientSummaryFts
 import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.model.SyncConflict
+import java.io.IOException
 
-const val CURRENT_DATABASE_VERSION = 2
+const val CURRENT_DATABASE_VERSION = 13
 
 /**
  * An interface for the local CRADLE database.
@@ -41,7 +51,11 @@ const val CURRENT_DATABASE_VERSION = 2
         Referral::class,
         Assessment::class,
         FormClassification::class,
-        FormResponse::class
+        FormResponse::class,
+        OutboxEntry::class,
+        PatientSummary::class,
+        PatientSummaryFts::class,
+        SyncConflict::class
     ],
     views = [LocalSearchPatient::class],
     version = CURRENT_DATABASE_VERSION,
@@ -56,6 +70,9 @@ abstract class CradleDatabase : RoomDatabase() {
     abstract fun assessmentDao(): AssessmentDao
     abstract fun formClassificationDao(): FormClassificationDao
     abstract fun formResponseDao(): FormResponseDao
+    abstract fun outboxDao(): OutboxDao
+    abstract fun patientSummaryDao(): PatientSummaryDao
+    abstract fun syncConflictDao(): SyncConflictDao
 
     companion object {
         private const val DATABASE_NAME = "room-readingDB"
@@ -82,6 +99,7 @@ abstract class CradleDatabase : RoomDatabase() {
             Room.databaseBuilder(context, CradleDatabase::class.java, DATABASE_NAME)
                 .addMigrations(*Migrations.ALL_MIGRATIONS)
                 .fallbackToDestructiveMigrationOnDowngrade()
+                .addCallback(Outbox.TriggersCallback)
                 .build()
     }
 }
@@ -93,7 +111,11 @@ abstract class CradleDatabase : RoomDatabase() {
 @Suppress("MagicNumber", "NestedBlockDepth", "ObjectPropertyNaming")
 internal object Migrations {
     val ALL_MIGRATIONS: Array<Migration> by lazy {
-        arrayOf(MIGRATION_1_2)
+        arrayOf(
+            MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6,
+            MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9, MIGRATION_9_10,
+            MIGRATION_10_11, MIGRATION_11_12, MIGRATION_12_13
+        )
     }
 
     /**
@@ -166,4 +188,368 @@ internal object Migrations {
             }
         }
     }
+
+    /**
+     * Version 3:
+     * Add dirtyFields to Patient, Reading and Referral for field-level change tracking
+     */
+    private val MIGRATION_2_3 = object : Migration(2, 3) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL("ALTER TABLE Patient ADD COLUMN `dirtyFields` TEXT NOT NULL DEFAULT '[]'")
+                execSQL("ALTER TABLE Reading ADD COLUMN `dirtyFields` TEXT NOT NULL DEFAULT '[]'")
+                execSQL("ALTER TABLE Referral ADD COLUMN `dirtyFields` TEXT NOT NULL DEFAULT '[]'")
+            }
+        }
+    }
+
+    /**
+     * Version 4:
+     * Add templateId and templateVersion to FormClassification for incremental template sync.
+     * They are left null for existing rows, so those templates are downloaded once more.
+     */
+    private val MIGRATION_3_4 = object : Migration(3, 4) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL("ALTER TABLE FormClassification ADD COLUMN `templateId` TEXT")
+                execSQL("ALTER TABLE FormClassification ADD COLUMN `templateVersion` TEXT")
+            }
+        }
+    }
+
+    /**
+     * Version 5:
+     * Add serverFormId to FormResponse, so that synced form responses can be merged instead of
+     * replaced. The submitted form responses stored so far came from the server without an id, so
+     * they are deleted; they are downloaded again with their ids by the next sync.
+     */
+    private val MIGRATION_4_5 = object : Migration(4, 5) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL("ALTER TABLE FormResponse ADD COLUMN `serverFormId` TEXT")
+                execSQL(
+                    "CREATE UNIQUE INDEX IF NOT EXISTS `index_FormResponse_serverFormId` " +
+                        "ON `FormResponse` (`serverFormId`)"
+                )
+                execSQL("DELETE FROM FormResponse WHERE saveResponseToSendLater = 0")
+            }
+        }
+    }
+
+    /**
+     * Version 6:
+     * Add the OutboxEntry table and the triggers that keep it up to date, and add the entities that
+     * are waiting to be uploaded to it.
+     */
+    private val MIGRATION_5_6 = object : Migration(5, 6) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS `OutboxEntry` (
+                        `entityType` TEXT NOT NULL,
+                        `entityId` TEXT NOT NULL,
+                        `operation` TEXT NOT NULL,
+                        `attemptCount` INTEGER NOT NULL,
+                        `nextAttemptAt` INTEGER NOT NULL,
+                        `enqueuedAt` INTEGER NOT NULL,
+                        PRIMARY KEY(`entityType`, `entityId`)
+                    )
+                    """.trimIndent()
+                )
+                execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_OutboxEntry_entityType_nextAttemptAt` " +
+                        "ON `OutboxEntry` (`entityType`, `nextAttemptAt`)"
+                )
+                Outbox.createTriggers(this)
+                Outbox.enqueueExisting(this)
+            }
+        }
+    }
+
+    /**
+     * Version 7:
+     * Add isQuarantined and lastError to OutboxEntry for retrying failed uploads with backoff.
+     */
+    private val MIGRATION_6_7 = object : Migration(6, 7) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL("ALTER TABLE OutboxEntry ADD COLUMN `isQuarantined` INTEGER NOT NULL DEFAULT 0")
+                execSQL("ALTER TABLE OutboxEntry ADD COLUMN `lastError` TEXT")
+            }
+        }
+    }
+
+    /**
+     * Version 8:
+     * Create the PatientSummary table for prefetching patients in the user's facilities and villages.
+     */
+    private val MIGRATION_7_8 = object : Migration(7, 8) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS `PatientSummary` (
+                        `id` TEXT NOT NULL,
+                        `name` TEXT NOT NULL,
+                        `dateOfBirth` TEXT,
+                        `isExactDateOfBirth` INTEGER,
+                        `gestationalAge` TEXT,
+                        `sex` TEXT NOT NULL,
+                        `isPregnant` INTEGER NOT NULL,
+                        `zone` TEXT,
+                        `villageNumber` TEXT,
+                        `householdNumber` TEXT,
+                        `healthFacilityName` TEXT,
+                        `lastEdited` INTEGER,
+                        PRIMARY KEY(`id`)
+                    )
+                    """.trimIndent()
+                )
+                execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_PatientSummary_villageNumber` " +
+                        "ON `PatientSummary` (`villageNumber`)"
+                )
+                execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_PatientSummary_healthFacilityName` " +
+                        "ON `PatientSummary` (`healthFacilityName`)"
+                )
+            }
+        }
+    }
+
+    /**
+     * Version 9:
+     * Create the PatientSummaryFts full-text index over PatientSummary for offline global search.
+     * The triggers are the ones Room creates to keep an external content FTS table in sync.
+     */
+    private val MIGRATION_8_9 = object : Migration(8, 9) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL(
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS `PatientSummaryFts` USING FTS4(" +
+                        "`id` TEXT NOT NULL, `name` TEXT NOT NULL, `villageNumber` TEXT, " +
+                        "`healthFacilityName` TEXT, tokenize=unicode61, content=`PatientSummary`)"
+                )
+                listOf("UPDATE", "DELETE").forEach { event ->
+                    execSQL(
+                        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PatientSummaryFts_BEFORE_$event " +
+                            "BEFORE $event ON `PatientSummary` " +
+                            "BEGIN DELETE FROM `PatientSummaryFts` WHERE `docid`=OLD.`rowid`; END"
+                    )
+                }
+                listOf("UPDATE", "INSERT").forEach { event ->
+                    execSQL(
+                        "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_PatientSummaryFts_AFTER_$event " +
+                            "AFTER $event ON `PatientSummary` " +
+                            "BEGIN INSERT INTO `PatientSummaryFts`" +
+                            "(`docid`, `id`, `name`, `villageNumber`, `healthFacilityName`) " +
+                            "VALUES (NEW.`rowid`, NEW.`id`, NEW.`name`, NEW.`villageNumber`, " +
+                            "NEW.`healthFacilityName`); END"
+                    )
+                }
+                execSQL("INSERT INTO `PatientSummaryFts`(`PatientSummaryFts`) VALUES ('rebuild')")
+            }
+        }
+    }
+
+    /**
+     * Version 10:
+     * Add the SyncConflict queue, and dirtyFieldBase to Patient, Reading and Referral for merging
+     * downloaded entities into local edits field by field.
+     */
+    private val MIGRATION_9_10 = object : Migration(9, 10) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS `SyncConflict` (
+                        `entityType` TEXT NOT NULL,
+                        `entityId` TEXT NOT NULL,
+                        `field` TEXT NOT NULL,
+                        `localValue` TEXT NOT NULL,
+                        `serverValue` TEXT NOT NULL,
+                        `detectedAt` INTEGER NOT NULL,
+                        PRIMARY KEY(`entityType`, `entityId`, `field`)
+                    )
+                    """.trimIndent()
+                )
+                execSQL("ALTER TABLE Patient ADD COLUMN `dirtyFieldBase` TEXT NOT NULL DEFAULT '{}'")
+                execSQL("ALTER TABLE Reading ADD COLUMN `dirtyFieldBase` TEXT NOT NULL DEFAULT '{}'")
+                execSQL("ALTER TABLE Referral ADD COLUMN `dirtyFieldBase` TEXT NOT NULL DEFAULT '{}'")
+            }
+        }
+    }
+
+    /**
+     * Version 11:
+     * Rewrite the objects stored in Reading, Patient, Referral and PatientSummary columns from
+     * JSON into [CompactColumnEncoding]. The converters can still read JSON, so a value that can't
+     * be rewritten is left as it is.
+     */
+    private val MIGRATION_10_11 = object : Migration(10, 11) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            val converters = DatabaseTypeConverters()
+            val stringList: (String) -> String? = { converters.fromStringList(converters.toStringList(it)) }
+            val gestationalAge: (String) -> String? = {
+                converters.gestationalAgeToString(converters.stringToGestationalAge(it))
+            }
+            database.reencodeColumns(
+                "Reading",
+                mapOf<String, (String) -> String?>(
+                    "bloodPressure" to { converters.fromBloodPressure(converters.toBloodPressure(it)) },
+                    "urineTest" to { converters.fromUrineTest(converters.toUrineTest(it)) },
+                    "referral" to { converters.fromReferral(converters.toReferral(it)) },
+                    "followUp" to { converters.fromFollowUp(converters.toFollowUp(it)) },
+                    "symptoms" to stringList,
+                    "previousReadingIds" to stringList,
+                    "dirtyFields" to stringList
+                )
+            )
+            database.reencodeColumns(
+                "Patient",
+                mapOf("gestationalAge" to gestationalAge, "dirtyFields" to stringList)
+            )
+            database.reencodeColumns("Referral", mapOf("dirtyFields" to stringList))
+            database.reencodeColumns("PatientSummary", mapOf("gestationalAge" to gestationalAge))
+        }
+
+        /**
+         * Rewrites the non-null values of the [columns] of every row of the [table] with the
+         * function given for the column. The row's outbox triggers run, but since the values
+         * don't change, neither does the outbox.
+         */
+        private fun SupportSQLiteDatabase.reencodeColumns(
+            table: String,
+            columns: Map<String, (String) -> String?>
+        ) {
+            val names = columns.keys.toList()
+            query("SELECT rowid, ${names.joinToString { "`$it`" }} FROM `$table` ORDER BY rowid").use { cursor ->
+                while (cursor.moveToNext()) {
+                    val values = ContentValues()
+                    names.forEachIndexed { i, name ->
+                        val value = cursor.getString(i + 1) ?: return@forEachIndexed
+                        if (CompactColumnEncoding.isEncoded(value)) return@forEachIndexed
+                        try {
+                            columns.getValue(name)(value)?.let { values.put(name, it) }
+                        } catch (ignored: IOException) {
+                            // Still readable as JSON, if it ever was.
+                        }
+                    }
+                    if (values.size() > 0) {
+                        update(table, SQLiteDatabase.CONFLICT_NONE, values, "rowid = ?", arrayOf(cursor.getLong(0)))
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Version 12:
+     * Store Reading.bloodPressure in the systolic, diastolic, heartRate and analysis columns
+     * instead of the bloodPressure converter column. SQLite can't drop a column, so the Reading
+     * table is rebuilt, along with its indices, its outbox triggers and the LocalSearchPatient view
+     * that reads from it. A blood pressure that can't be read fails the migration instead of being
+     * replaced with made-up values; the migration's transaction is then rolled back, so the
+     * original column is kept.
+     */
+    private val MIGRATION_11_12 = object : Migration(11, 12) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            // Kept by the columns that aren't blood pressure values, in the order of the table.
+            val columns = listOf(
+                "id", "patientId", "dateTaken", "urineTest", "symptoms", "referral", "followUp",
+                "dateRetestNeeded", "isFlaggedForFollowUp", "previousReadingIds", "isUploadedToServer",
+                "lastEdited", "userId", "dirtyFields", "dirtyFieldBase"
+            ).joinToString { "`$it`" }
+
+            database.apply {
+                execSQL("DROP VIEW IF EXISTS `LocalSearchPatient`")
+                execSQL(
+                    """
+                    CREATE TABLE IF NOT EXISTS `Reading_new` (
+                        `id` TEXT NOT NULL,
+                        `patientId` TEXT NOT NULL,
+                        `dateTaken` INTEGER NOT NULL,
+                        `urineTest` TEXT,
+                        `symptoms` TEXT NOT NULL,
+                        `referral` TEXT,
+                        `followUp` TEXT,
+                        `dateRetestNeeded` INTEGER,
+                        `isFlaggedForFollowUp` INTEGER NOT NULL,
+                        `previousReadingIds` TEXT NOT NULL,
+                        `isUploadedToServer` INTEGER NOT NULL,
+                        `lastEdited` INTEGER NOT NULL,
+                        `userId` INTEGER,
+                        `dirtyFields` TEXT NOT NULL DEFAULT '[]',
+                        `dirtyFieldBase` TEXT NOT NULL DEFAULT '{}',
+                        `systolic` INTEGER NOT NULL,
+                        `diastolic` INTEGER NOT NULL,
+                        `heartRate` INTEGER NOT NULL,
+                        `analysis` TEXT NOT NULL,
+                        PRIMARY KEY(`id`),
+                        FOREIGN KEY(`patientId`) REFERENCES `Patient`(`id`) ON UPDATE CASCADE ON DELETE CASCADE
+                    )
+                    """.trimIndent()
+                )
+                copyReadings(columns)
+                execSQL("DROP TABLE `Reading`")
+                execSQL("ALTER TABLE `Reading_new` RENAME TO `Reading`")
+
+                execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_Reading_id` ON `Reading` (`id`)")
+                execSQL("CREATE INDEX IF NOT EXISTS `index_Reading_patientId` ON `Reading` (`patientId`)")
+                execSQL("CREATE INDEX IF NOT EXISTS `index_Reading_analysis` ON `Reading` (`analysis`)")
+                Outbox.createTriggers(this)
+                execSQL("CREATE VIEW `LocalSearchPatient` AS ${LocalSearchPatient.QUERY.trim()}")
+            }
+        }
+
+        /**
+         * Copies each reading into Reading_new, reading the old bloodPressure column (JSON, or
+         * [CompactColumnEncoding] since version 11) into the new columns.
+         *
+         * @throws IllegalStateException if a blood pressure can't be read
+         */
+        private fun SupportSQLiteDatabase.copyReadings(columns: String) {
+            val converters = DatabaseTypeConverters()
+            query("SELECT `id`, `bloodPressure` FROM `Reading`").use { cursor ->
+                while (cursor.moveToNext()) {
+                    val id = cursor.getString(0)
+                    val bloodPressure = try {
+                        converters.toBloodPressure(cursor.getString(1))
+                    } catch (e: IOException) {
+                        throw IllegalStateException("can't read the blood pressure of reading $id", e)
+                    } ?: error("reading $id has no blood pressure")
+                    execSQL(
+                        """
+                        INSERT INTO `Reading_new` ($columns, `systolic`, `diastolic`, `heartRate`, `analysis`)
+                        SELECT $columns, ?, ?, ?, ? FROM `Reading` WHERE `id` = ?
+                        """.trimIndent(),
+                        arrayOf(
+                            bloodPressure.systolic,
+                            bloodPressure.diastolic,
+                            bloodPressure.heartRate,
+                            bloodPressure.analysis.name,
+                            id
+                        )
+                    )
+                }
+            }
+        }
+    }
+
+    /**
+     * Version 13:
+     * Recreate the outbox update triggers, so that editing an entity that is waiting to be uploaded
+     * lets its outbox entry start over instead of keeping its failed attempts and quarantine.
+     */
+    private val MIGRATION_12_13 = object : Migration(12, 13) {
+        override fun migrate(database: SupportSQLiteDatabase) {
+            database.apply {
+                listOf("Patient", "Reading", "Referral", "Assessment").forEach { table ->
+                    execSQL("DROP TRIGGER IF EXISTS `outbox_${table}_update`")
+                }
+                Outbox.createTriggers(this)
+            }
+        }
+    }
 }
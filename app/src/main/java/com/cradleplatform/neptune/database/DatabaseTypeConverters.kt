@@ -6,30 +6,55 @@ import com.cradleplatform.neptune.model.Assessment
 import com.cradleplatform.neptune.model.BloodPressure
 import com.cradleplatform.neptune.model.FormTemplate
 import com.cradleplatform.neptune.model.GestationalAge
+import com.cradleplatform.neptune.model.GestationalAgeMonths
+import com.cradleplatform.neptune.model.GestationalAgeWeeks
+import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.QuestionResponse
+import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.Sex
 import com.cradleplatform.neptune.model.UrineTest
 import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.module.kotlin.readValue
-import com.google.gson.Gson
-import com.google.gson.reflect.TypeToken
+import java.math.BigInteger
 
 /**
  * A list of [TypeConverter] to save objects into room database
+ *
+ * The objects stored in the [Reading] and [Patient] rows are written with [CompactColumnEncoding]
+ * instead of JSON, since they are decoded for every row that is loaded. Values written as JSON by
+ * older versions of the app are still read with Jackson.
  */
 class DatabaseTypeConverters {
     private inline fun <reified T> readStringValueByJackson(string: String?): T? =
         string?.let { JacksonMapper.mapper.readValue<T>(it) }
 
-    private inline fun <reified T> writeStringByJackson(instance: T?): String? =
-        instance?.let { JacksonMapper.mapper.writeValueAsString(it) }
+    private inline fun <reified T> readCompact(
+        string: String?,
+        decode: CompactColumnEncoding.Reader.() -> T
+    ): T? = when {
+        string == null -> null
+        CompactColumnEncoding.isEncoded(string) -> CompactColumnEncoding.Reader(string).decode()
+        else -> readStringValueByJackson<T>(string)
+    }
 
+    private inline fun <T> writeCompact(
+        instance: T?,
+        encode: CompactColumnEncoding.Writer.(T) -> Unit
+    ): String? = instance?.let { CompactColumnEncoding.Writer().apply { encode(it) }.toString() }
+
+    /**
+     * Only the timestamp is stored, like in the JSON, so a [GestationalAgeMonths] is read back as
+     * a [GestationalAgeWeeks].
+     */
     @TypeConverter
-    fun gestationalAgeToString(gestationalAge: GestationalAge?): String? = writeStringByJackson(gestationalAge)
+    fun gestationalAgeToString(gestationalAge: GestationalAge?): String? =
+        writeCompact(gestationalAge) { string(it.timestamp.toString()) }
 
     @TypeConverter
-    fun stringToGestationalAge(string: String?): GestationalAge? = readStringValueByJackson(string)
+    fun stringToGestationalAge(string: String?): GestationalAge? =
+        readCompact(string) { GestationalAgeWeeks(BigInteger(string()!!)) }
 
     @TypeConverter
     fun stringToSex(string: String): Sex = enumValueOf(string)
@@ -38,55 +63,143 @@ class DatabaseTypeConverters {
     fun sexToString(sex: Sex): String = sex.name
 
     @TypeConverter
-    fun fromStringList(list: List<String>?): String? = writeStringByJackson(list)
-
-    @TypeConverter
-    fun toStringList(string: String?): List<String>? = readStringValueByJackson(string)
-
-    @TypeConverter
-    fun toBloodPressure(string: String?): BloodPressure? = readStringValueByJackson(string)
-
-    @TypeConverter
-    fun fromBloodPressure(bloodPressure: BloodPressure?): String? = writeStringByJackson(bloodPressure)
-
-    @TypeConverter
-    fun toUrineTest(string: String?): UrineTest? = readStringValueByJackson(string)
-
-    @TypeConverter
-    fun fromUrineTest(urineTest: UrineTest?): String? = writeStringByJackson(urineTest)
-
-    @TypeConverter
-    fun toReferral(string: String?): Referral? = readStringValueByJackson(string)
-
-    @TypeConverter
-    fun fromReferral(referral: Referral?): String? = writeStringByJackson(referral)
-
-    @TypeConverter
-    fun toFollowUp(string: String?): Assessment? = readStringValueByJackson(string)
-
-    @TypeConverter
-    fun fromFollowUp(assessment: Assessment?): String? = writeStringByJackson(assessment)
+    fun objectNodeToString(objectNode: ObjectNode): String = JacksonMapper.mapper.writeValueAsString(objectNode)
+
+    @TypeConverter
+    fun stringToObjectNode(string: String): ObjectNode = JacksonMapper.mapper.readTree(string) as ObjectNode
+
+    @TypeConverter
+    fun fromStringList(list: List<String>?): String? = writeCompact(list) { stringList(it) }
+
+    @TypeConverter
+    fun toStringList(string: String?): List<String>? = readCompact(string) { stringList() }
+
+    /**
+     * [BloodPressure] is stored in its own columns of [Reading] now, so this and
+     * [fromBloodPressure] aren't type converters anymore; they are kept for the migrations that
+     * read and rewrite the old `bloodPressure` column.
+     */
+    fun toBloodPressure(string: String?): BloodPressure? = readCompact(string) {
+        BloodPressure(systolic = int()!!, diastolic = int()!!, heartRate = int()!!)
+    }
+
+    fun fromBloodPressure(bloodPressure: BloodPressure?): String? = writeCompact(bloodPressure) {
+        int(it.systolic).int(it.diastolic).int(it.heartRate)
+    }
+
+    @TypeConverter
+    fun toUrineTest(string: String?): UrineTest? = readCompact(string) {
+        UrineTest(
+            leukocytes = string()!!,
+            nitrites = string()!!,
+            protein = string()!!,
+            blood = string()!!,
+            glucose = string()!!
+        )
+    }
+
+    @TypeConverter
+    fun fromUrineTest(urineTest: UrineTest?): String? = writeCompact(urineTest) {
+        string(it.leukocytes).string(it.nitrites).string(it.protein).string(it.blood).string(it.glucose)
+    }
+
+    @TypeConverter
+    fun toReferral(string: String?): Referral? = readCompact(string) {
+        Referral(
+            id = string()!!,
+            comment = string(),
+            healthFacilityName = string()!!,
+            dateReferred = long()!!,
+            userId = int(),
+            patientId = string()!!,
+            actionTaken = string(),
+            cancelReason = string(),
+            notAttendReason = string(),
+            isAssessed = boolean()!!,
+            isCancelled = boolean()!!,
+            notAttended = boolean()!!,
+            lastEdited = long()!!,
+            lastServerUpdate = long(),
+            isUploadedToServer = boolean() ?: false
+        )
+    }
+
+    @TypeConverter
+    fun fromReferral(referral: Referral?): String? = writeCompact(referral) {
+        string(it.id)
+            .string(it.comment)
+            .string(it.healthFacilityName)
+            .long(it.dateReferred)
+            .int(it.userId)
+            .string(it.patientId)
+            .string(it.actionTaken)
+            .string(it.cancelReason)
+            .string(it.notAttendReason)
+            .boolean(it.isAssessed)
+            .boolean(it.isCancelled)
+            .boolean(it.notAttended)
+            .long(it.lastEdited)
+            .long(it.lastServerUpdate)
+            .boolean(it.isUploadedToServer)
+    }
+
+    @TypeConverter
+    fun toFollowUp(string: String?): Assessment? = readCompact(string) {
+        Assessment(
+            id = string()!!,
+            dateAssessed = long()!!,
+            healthcareWorkerId = int()!!,
+            patientId = string()!!,
+            diagnosis = string(),
+            treatment = string(),
+            medicationPrescribed = string(),
+            specialInvestigations = string(),
+            followUpNeeded = boolean(),
+            followUpInstructions = string(),
+            lastEdited = long(),
+            lastServerUpdate = long(),
+            isUploadedToServer = boolean() ?: false
+        )
+    }
+
+    @TypeConverter
+    fun fromFollowUp(assessment: Assessment?): String? = writeCompact(assessment) {
+        string(it.id)
+            .long(it.dateAssessed)
+            .int(it.healthcareWorkerId)
+            .string(it.patientId)
+            .string(it.diagnosis)
+            .string(it.treatment)
+            .string(it.medicationPrescribed)
+            .string(it.specialInvestigations)
+            .boolean(it.followUpNeeded)
+            .string(it.followUpInstructions)
+            .long(it.lastEdited)
+            .long(it.lastServerUpdate)
+            .boolean(it.isUploadedToServer)
+    }
 
     @TypeConverter
     fun fromFormTemplate(formTemplate: FormTemplate?): String? =
-        formTemplate?.let { Gson().toJson(formTemplate) }
+        formTemplate?.let { JacksonMapper.writerForm.writeValueAsString(it) }
 
     @TypeConverter
     fun toFormTemplate(string: String?): FormTemplate? =
-        string?.let { Gson().fromJson(string, FormTemplate::class.java) }
+        string?.let { JacksonMapper.readerForm.readValue<FormTemplate>(it) }
 
     @TypeConverter
     fun fromFormResponseAnswers(answers: Map<String, Answer>?): String? =
-        answers?.let { Gson().toJson(answers) }
+        answers?.let { JacksonMapper.writerForAnswers.writeValueAsString(it) }
 
     @TypeConverter
     fun toFormResponseAnswers(string: String?): Map<String, Answer>? =
-        string?.let { Gson().fromJson(string, object : TypeToken<Map<String, Answer>>() {}.type) }
+        string?.let { JacksonMapper.readerForAnswers.readValue<Map<String, Answer>>(it) }
+
     @TypeConverter
     fun fromQuestionResponseList(list: List<QuestionResponse>?): String? =
-        list?.let { Gson().toJson(list) }
+        list?.let { JacksonMapper.writerForQuestionResponses.writeValueAsString(it) }
 
     @TypeConverter
     fun toQuestionResponseList(string: String?): List<QuestionResponse>? =
-        string?.let { Gson().fromJson(string, object : TypeToken<List<QuestionResponse>>() {}.type) }
+        string?.let { JacksonMapper.readerForQuestionResponses.readValue<List<QuestionResponse>>(it) }
 }
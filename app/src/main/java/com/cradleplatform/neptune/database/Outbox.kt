@@ -0,0 +1,145 @@
+package com.cradleplatform.neptune.database
+
+import androidx.room.RoomDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.OutboxEntry
+import com.cradleplatform.neptune.model.OutboxOperation
+
+/**
+ * Keeps the [OutboxEntry] table in step with the entity tables.
+ *
+ * Every entity table gets triggers that add an entry when a row is inserted or updated into a
+ * state that needs uploading, and remove it when the row no longer needs uploading (e.g., because
+ * the server's copy was saved over it) or is deleted. Since SQLite runs the triggers as part of the
+ * statement that changed the row, the outbox is always written in the same transaction as the
+ * entity, whichever DAO method made the change.
+ *
+ * The triggers aren't part of the schema that Room manages, so they are created by [createTriggers]
+ * in the migration that added the outbox, and by [TriggersCallback] whenever Room creates the
+ * tables itself.
+ */
+internal object Outbox {
+    /** The current Unix timestamp (seconds), as the outbox stores it. */
+    const val NOW = "CAST(strftime('%s', 'now') AS INTEGER)"
+
+    /**
+     * Query criteria for the outbox entries, aliased as `o`, that are due to be uploaded now.
+     * Quarantined entries are never due.
+     */
+    const val IS_DUE = "o.isQuarantined = 0 AND o.nextAttemptAt <= $NOW"
+
+    private class Table(
+        val name: String,
+        val type: OutboxEntityType,
+        /** Whether the row [row] (NEW, OLD or the table name itself) needs uploading. */
+        val needsUpload: (row: String) -> String
+    )
+
+    private val tables = listOf(
+        Table("Patient", OutboxEntityType.PATIENT) { row ->
+            """
+            ($row.lastServerUpdate IS NULL
+                OR $row.lastServerUpdate < $row.lastEdited
+                OR $row.prevPregnancyEndDate IS NOT NULL
+                OR $row.medicalLastEdited IS NOT NULL
+                OR $row.drugLastEdited IS NOT NULL
+                OR ($row.gestationalAge IS NOT NULL AND $row.pregnancyId IS NULL))
+            """.trimIndent()
+        },
+        Table("Reading", OutboxEntityType.READING) { row -> "($row.isUploadedToServer = 0)" },
+        Table("Referral", OutboxEntityType.REFERRAL) { row -> "($row.isUploadedToServer = 0)" },
+        Table("Assessment", OutboxEntityType.ASSESSMENT) { row -> "($row.isUploadedToServer = 0)" },
+    )
+
+    /**
+     * Creates the triggers when Room creates the tables of a new database, or recreates them after
+     * a destructive migration (which drops the triggers along with the tables).
+     */
+    object TriggersCallback : RoomDatabase.Callback() {
+        override fun onCreate(db: SupportSQLiteDatabase) {
+            createTriggers(db)
+        }
+
+        override fun onDestructiveMigration(db: SupportSQLiteDatabase) {
+            createTriggers(db)
+        }
+    }
+
+    fun createTriggers(database: SupportSQLiteDatabase) {
+        tables.forEach { table ->
+            database.execSQL(
+                """
+                CREATE TRIGGER IF NOT EXISTS `outbox_${table.name}_insert` AFTER INSERT ON `${table.name}`
+                BEGIN
+                    ${enqueueOrRemove(table, OutboxOperation.CREATE)}
+                END
+                """.trimIndent()
+            )
+            database.execSQL(
+                """
+                CREATE TRIGGER IF NOT EXISTS `outbox_${table.name}_update` AFTER UPDATE ON `${table.name}`
+                BEGIN
+                    DELETE FROM OutboxEntry
+                    WHERE entityType = '${table.type.name}' AND entityId = OLD.id AND OLD.id <> NEW.id;
+                    ${enqueueOrRemove(table, OutboxOperation.UPDATE)}
+                    ${retryNow(table)}
+                END
+                """.trimIndent()
+            )
+            database.execSQL(
+                """
+                CREATE TRIGGER IF NOT EXISTS `outbox_${table.name}_delete` AFTER DELETE ON `${table.name}`
+                BEGIN
+                    DELETE FROM OutboxEntry WHERE entityType = '${table.type.name}' AND entityId = OLD.id;
+                END
+                """.trimIndent()
+            )
+        }
+    }
+
+    /**
+     * Adds every entity that needs uploading to the outbox. Used when the outbox is first created,
+     * to carry over the entities that were pending before it existed.
+     */
+    fun enqueueExisting(database: SupportSQLiteDatabase) {
+        tables.forEach { table ->
+            database.execSQL(
+                """
+                INSERT OR IGNORE INTO OutboxEntry
+                    (entityType, entityId, operation, attemptCount, nextAttemptAt, enqueuedAt)
+                SELECT '${table.type.name}', id, '${OutboxOperation.UPDATE.name}', 0, $NOW, $NOW
+                FROM `${table.name}`
+                WHERE ${table.needsUpload(table.name)}
+                """.trimIndent()
+            )
+        }
+    }
+
+    /**
+     * Statements that add the NEW row to the outbox if it needs uploading, or remove it otherwise.
+     * An entity that is already in the outbox keeps its original [operation].
+     */
+    private fun enqueueOrRemove(table: Table, operation: OutboxOperation) =
+        """
+        DELETE FROM OutboxEntry
+        WHERE entityType = '${table.type.name}' AND entityId = NEW.id AND NOT ${table.needsUpload("NEW")};
+        INSERT OR IGNORE INTO OutboxEntry
+            (entityType, entityId, operation, attemptCount, nextAttemptAt, enqueuedAt)
+        SELECT '${table.type.name}', NEW.id, '${operation.name}', 0, $NOW, $NOW
+        WHERE ${table.needsUpload("NEW")};
+        """.trimIndent()
+
+    /**
+     * Statement that lets the NEW row's outbox entry, if it has one, start over after the row is
+     * changed: the failed attempts were for the old values, so the entry is due right away, is no
+     * longer quarantined, and counts as enqueued now so that an upload that was already running
+     * isn't recorded against it.
+     */
+    private fun retryNow(table: Table) =
+        """
+        UPDATE OutboxEntry
+        SET attemptCount = 0, nextAttemptAt = $NOW, enqueuedAt = $NOW, isQuarantined = 0, lastError = NULL
+        WHERE entityType = '${table.type.name}' AND entityId = NEW.id;
+        """.trimIndent()
+}
@@ -6,8 +6,10 @@ import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.RewriteQueriesToDropUnusedColumns
 import androidx.room.Transaction
 import androidx.room.Update
+import com.cradleplatform.neptune.database.Outbox
 import com.cradleplatform.neptune.model.Assessment
 
 /**
@@ -25,6 +27,20 @@ interface AssessmentDao {
         }
     }
 
+    /**
+     * Bulk version of [updateOrInsertIfNotExists]. All of the [assessments] are inserted with
+     * [insertAllIfNotExists], and the ones that already existed (rowId of -1) are then updated
+     * with a single [updateAll] call.
+     */
+    @Transaction
+    suspend fun updateOrInsertAll(assessments: List<Assessment>) {
+        val rowIds = insertAllIfNotExists(assessments)
+        val existingAssessments = assessments.filterIndexed { index, _ -> rowIds[index] == -1L }
+        if (existingAssessments.isNotEmpty()) {
+            updateAll(existingAssessments)
+        }
+    }
+
     /**
      * Inserts a new assessment into the database.
      *
@@ -57,6 +73,21 @@ interface AssessmentDao {
     @Update
     suspend fun update(assessment: Assessment): Int
 
+    /**
+     * Inserts each assessment in the supplied list that isn't already in the database.
+     *
+     * @return the SQLite rowIds for the inserted assessments, where -1 means the assessment at that
+     * position already existed and was not inserted.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertAllIfNotExists(assessments: List<Assessment>): LongArray
+
+    /**
+     * @return the number of rows updated
+     */
+    @Update
+    suspend fun updateAll(assessments: List<Assessment>): Int
+
     /**
      * Removes an entity from the database.
      *
@@ -82,15 +113,23 @@ interface AssessmentDao {
     suspend fun getAllAssessmentByPatientId(id: String): List<Assessment>?
 
     /**
-     * Query the database for all the assessments that have been created or edited offline
+     * Query the database for all the assessments in the outbox that are due to be uploaded
      */
-    @Query("SELECT * FROM Assessment WHERE isUploadedToServer = 0")
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT a.* FROM Assessment a
+        JOIN OutboxEntry o ON o.entityType = 'ASSESSMENT' AND o.entityId = a.id
+        WHERE ${Outbox.IS_DUE}
+    """
+    )
     suspend fun assessmentsToUpload(): List<Assessment>
 
     /**
-     * Query the database for the number of assessments that have been created or edited offline
+     * Query the database for the number of assessments that have been created or edited offline,
+     * including the ones in the outbox that are waiting for their next attempt
      */
-    @Query("SELECT COUNT(id) FROM Assessment WHERE isUploadedToServer = 0")
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE entityType = 'ASSESSMENT'")
     suspend fun countAssessmentsToUpload(): Int
 
     /**
@@ -7,6 +7,7 @@ import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import com.cradleplatform.neptune.model.FormClassification
 import com.cradleplatform.neptune.model.FormTemplate
+import com.cradleplatform.neptune.model.FormTemplateVersion
 
 @Dao
 interface FormClassificationDao {
@@ -25,6 +26,12 @@ interface FormClassificationDao {
     @Query("SELECT * FROM FormClassification ORDER BY formClassName ASC")
     fun getAllFormClassifications(): LiveData<List<FormClassification>>
 
+    /**
+     * The [FormTemplateVersion] of every stored [FormClassification], without reading the templates
+     */
+    @Query("SELECT formClassId, templateId, templateVersion FROM FormClassification")
+    suspend fun getFormTemplateVersions(): List<FormTemplateVersion>
+
     /**
      * All [FormTemplate]s in the table as LiveData List
      */
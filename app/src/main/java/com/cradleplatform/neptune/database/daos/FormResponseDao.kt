@@ -10,6 +10,11 @@ import androidx.room.Transaction
 import androidx.room.Update
 import com.cradleplatform.neptune.model.FormResponse
 
+/**
+ * The local id and edit time of a [FormResponse] that was downloaded from the server.
+ */
+data class SyncedFormResponseVersion(val formResponseId: Long, val dateEdited: Long)
+
 /**
  * Data Access Object (DAO) for [FormResponse] entities.
  *
@@ -93,6 +98,34 @@ interface FormResponseDao {
     @Query("SELECT * FROM FormResponse WHERE formResponseId = :id")
     suspend fun getFormResponseById(id: Long): FormResponse?
 
+    /**
+     * Returns the local id and edit time of the form response with the server id [serverFormId],
+     * without reading the rest of the form response.
+     */
+    @Query("SELECT formResponseId, dateEdited FROM FormResponse WHERE serverFormId = :serverFormId")
+    suspend fun getSyncedFormResponseVersion(serverFormId: String): SyncedFormResponseVersion?
+
+    /**
+     * Returns the local id of the oldest form response submitted from this device for the patient
+     * [patientId] and form classification [formClassificationId] that hasn't been matched to a
+     * form response from the server yet (i.e., it has no serverFormId).
+     */
+    @Query(
+        "SELECT formResponseId FROM FormResponse " +
+            "WHERE serverFormId IS NULL AND saveResponseToSendLater = 0 " +
+            "AND patientId = :patientId AND formClassificationId = :formClassificationId " +
+            "ORDER BY formResponseId LIMIT 1"
+    )
+    suspend fun getUnmatchedSubmittedFormResponseId(patientId: String, formClassificationId: String): Long?
+
+    /**
+     * Deletes the form response with the server id [serverFormId].
+     *
+     * @return The number of rows deleted (0 or 1)
+     */
+    @Query("DELETE FROM FormResponse WHERE serverFormId = :serverFormId")
+    suspend fun deleteByServerFormId(serverFormId: String): Int
+
     /**
      * Returns all of the formResponses associated with a specified patient.
      *
@@ -0,0 +1,125 @@
+package com.cradleplatform.neptune.database.daos
+
+import androidx.lifecycle.LiveData
+import androidx.room.Dao
+import androidx.room.Query
+import com.cradleplatform.neptune.database.Outbox
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.OutboxEntry
+
+/**
+ * Data Access Object (DAO) for [OutboxEntry] entities.
+ *
+ * Entries are added and removed by the outbox triggers (see
+ * [com.cradleplatform.neptune.database.Outbox]), so there are no insert or delete methods here.
+ * The entities in the outbox are read through the `toUpload` queries of their own DAOs.
+ */
+@Dao
+interface OutboxDao {
+    /**
+     * Returns the outbox entries for entities of the given [type].
+     */
+    @Query("SELECT * FROM OutboxEntry WHERE entityType = :type ORDER BY entityId")
+    suspend fun getEntries(type: OutboxEntityType): List<OutboxEntry>
+
+    /**
+     * Returns the number of entities of the given [type] in the outbox, including the ones that
+     * are waiting for their next attempt.
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE entityType = :type")
+    suspend fun count(type: OutboxEntityType): Int
+
+    /**
+     * Returns the number of entities that syncing will upload, either now or once their next
+     * attempt is due, i.e., every entity in the outbox that isn't quarantined.
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE isQuarantined = 0")
+    suspend fun countRetryable(): Int
+
+    /**
+     * Returns the number of quarantined entities, i.e., the ones that failed to upload too many
+     * times to be uploaded again.
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE isQuarantined = 1")
+    suspend fun countQuarantined(): Int
+
+    /**
+     * Returns the quarantined entries, the one that failed most recently first, so that the user
+     * can see what failed to upload and why.
+     */
+    @Query("SELECT * FROM OutboxEntry WHERE isQuarantined = 1 ORDER BY nextAttemptAt DESC, entityType, entityId")
+    fun getQuarantinedLiveData(): LiveData<List<OutboxEntry>>
+
+    /**
+     * Lets every quarantined entry start over, the same way editing its entity does: the entry is
+     * due right away, with no failed attempts and no error, so the next sync uploads it again.
+     *
+     * @return the number of entries released
+     */
+    @Query(
+        """
+UPDATE OutboxEntry
+SET attemptCount = 0,
+    nextAttemptAt = ${Outbox.NOW},
+    enqueuedAt = ${Outbox.NOW},
+    isQuarantined = 0,
+    lastError = NULL
+WHERE isQuarantined = 1
+"""
+    )
+    suspend fun releaseQuarantined(): Int
+
+    /**
+     * Returns the number of entities of the given [type] that were due when an upload attempt
+     * started at [attemptStartedAt] and are still in the outbox, i.e., the ones the attempt sent
+     * that haven't been uploaded. These are the entries that [recordFailedAttempt] updates.
+     */
+    @Query(
+        """
+SELECT COUNT(*) FROM OutboxEntry
+WHERE entityType = :type
+    AND isQuarantined = 0
+    AND nextAttemptAt <= :attemptStartedAt
+    AND enqueuedAt <= :attemptStartedAt
+"""
+    )
+    suspend fun countNotUploaded(type: OutboxEntityType, attemptStartedAt: Long): Int
+
+    /**
+     * Records a failed attempt to upload the entities of the given [type]: every entry that was
+     * due when the attempt started at [attemptStartedAt] and is still in the outbox has its
+     * attempt count increased. It is not uploaded again for [baseDelaySeconds], doubled for every
+     * earlier failure and capped at [maxDelaySeconds], and it is quarantined once it has failed
+     * [maxAttempts] times. Entries added after the attempt started weren't part of it and are
+     * left alone.
+     *
+     * The doubling stops at 2^30, so that the shift can't overflow.
+     *
+     * @return the number of entries updated
+     */
+    @Query(
+        """
+UPDATE OutboxEntry
+SET attemptCount = attemptCount + 1,
+    nextAttemptAt = :attemptStartedAt + min(:maxDelaySeconds, :baseDelaySeconds << min(attemptCount, 30)),
+    isQuarantined = attemptCount + 1 >= :maxAttempts
+WHERE entityType = :type
+    AND isQuarantined = 0
+    AND nextAttemptAt <= :attemptStartedAt
+    AND enqueuedAt <= :attemptStartedAt
+"""
+    )
+    suspend fun recordFailedAttempt(
+        type: OutboxEntityType,
+        attemptStartedAt: Long,
+        baseDelaySeconds: Long,
+        maxDelaySeconds: Long,
+        maxAttempts: Int
+    ): Int
+
+    /**
+     * Stores the reason the server gave for not accepting the entity of the given [type] and [id].
+     */
+    @Query("UPDATE OutboxEntry SET lastError = :message WHERE entityType = :type AND entityId = :id")
+    suspend fun setLastError(type: OutboxEntityType, id: String, message: String)
+}
@@ -7,8 +7,10 @@ import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.RewriteQueriesToDropUnusedColumns
 import androidx.room.Transaction
 import androidx.room.Update
+import com.cradleplatform.neptune.database.Outbox
 import com.cradleplatform.neptune.database.views.LocalSearchPatient
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.PatientAndReadings
@@ -22,6 +24,21 @@ interface PatientDao {
         }
     }
 
+    /**
+     * Bulk version of [updateOrInsertIfNotExists]. All of the [patients] are inserted with
+     * [insertAll], and the ones that already existed (rowId of -1) are then updated with a
+     * single [updateAll] call. Like [updateOrInsertIfNotExists], this never uses REPLACE, so
+     * Readings pointing to existing patients are not cascade deleted.
+     */
+    @Transaction
+    suspend fun updateOrInsertAll(patients: List<Patient>) {
+        val rowIds = insertAll(patients)
+        val existingPatients = patients.filterIndexed { index, _ -> rowIds[index] == -1L }
+        if (existingPatients.isNotEmpty()) {
+            updateAll(existingPatients)
+        }
+    }
+
     /**
      * Inserts [patient] into the [Patient] table.
      *
@@ -44,6 +61,12 @@ interface PatientDao {
     @Update
     suspend fun update(patient: Patient): Int
 
+    /**
+     * @return the number of rows updated
+     */
+    @Update
+    suspend fun updateAll(patients: List<Patient>): Int
+
     /**
      * Insert a list of [Patient]s into the [Patient] table. This is meant for
      * NEW patients. It will not update patients that already exist in the database.
@@ -115,15 +138,47 @@ ORDER BY latestReadingDate DESC, name COLLATE NOCASE ASC
     fun localSearchPatientsByNameOrId(query: String): PagingSource<Int, LocalSearchPatient>
 
     /**
-     * Query the database for all the patients that have been created or edited offline
+     * Query the database for all the patients in the outbox that are due to be uploaded
      */
-    @Query("SELECT * FROM Patient WHERE $patientsToUploadQueryCriteria")
+    @RewriteQueriesToDropUnusedColumns
+    @Query("SELECT p.* FROM $patientsInOutbox WHERE ${Outbox.IS_DUE}")
     suspend fun readPatientsToUpload(): List<Patient>
 
     /**
-     * Query the database for the number of patients that have been created or edited offline
+     * A page of at most [limit] patients in the outbox that are due to be uploaded, ordered by id
+     * and starting after the patient with id [afterId].
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+SELECT p.* FROM $patientsInOutbox
+WHERE ${Outbox.IS_DUE} AND p.id > :afterId
+ORDER BY p.id
+LIMIT :limit
+"""
+    )
+    suspend fun readPatientsToUploadPage(afterId: String, limit: Int): List<Patient>
+
+    /**
+     * Query the database for the patients with the given [ids] that are in the outbox and due to
+     * be uploaded
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query("SELECT p.* FROM $patientsInOutbox WHERE p.id IN (:ids) AND ${Outbox.IS_DUE}")
+    suspend fun readPatientsToUploadByIds(ids: List<String>): List<Patient>
+
+    /**
+     * Query the database for the number of patients in the outbox that are due to be uploaded,
+     * i.e., the number of patients returned by [readPatientsToUpload]
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry o WHERE o.entityType = 'PATIENT' AND ${Outbox.IS_DUE}")
+    suspend fun countPatientsDueForUpload(): Int
+
+    /**
+     * Query the database for the number of patients that have been created or edited offline,
+     * including the ones in the outbox that are waiting for their next attempt
      */
-    @Query("SELECT COUNT(id) FROM Patient WHERE $patientsToUploadQueryCriteria")
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE entityType = 'PATIENT'")
     suspend fun countPatientsToUpload(): Int
 
     /**
@@ -132,12 +187,26 @@ ORDER BY latestReadingDate DESC, name COLLATE NOCASE ASC
     @Query("SELECT id FROM Patient")
     suspend fun getPatientIdsList(): List<String>
 
+    /**
+     * get the distinct, non-blank village numbers of the local patients
+     */
+    @Query("SELECT DISTINCT villageNumber FROM Patient WHERE villageNumber IS NOT NULL AND villageNumber <> ''")
+    suspend fun getVillageNumbers(): List<String>
+
     /**
      * get a single patient by id if exists
      */
     @Query("SELECT * FROM Patient WHERE id = :id")
     suspend fun getPatientById(id: String): Patient?
 
+    /**
+     * get the patients among [ids] that are in the outbox, i.e., that have changes waiting to be
+     * uploaded, whether or not they are due. Used to merge downloaded patients into them.
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query("SELECT p.* FROM $patientsInOutbox WHERE p.id IN (:ids)")
+    suspend fun getPatientsInOutbox(ids: List<String>): List<Patient>
+
     /**
      * Gets the patient along with all of its readings if it exists.
      */
@@ -152,13 +221,7 @@ ORDER BY latestReadingDate DESC, name COLLATE NOCASE ASC
     suspend fun deleteAllPatients()
 
     companion object {
-        private const val patientsToUploadQueryCriteria = """
-            lastServerUpdate IS NULL
-            OR lastServerUpdate < lastEdited
-            OR prevPregnancyEndDate IS NOT NULL
-            OR medicalLastEdited IS NOT NULL
-            OR drugLastEdited IS NOT NULL
-            OR (gestationalAge IS NOT NULL AND pregnancyId IS NULL)
-        """
+        private const val patientsInOutbox =
+            "Patient p JOIN OutboxEntry o ON o.entityType = 'PATIENT' AND o.entityId = p.id"
     }
 }
@@ -0,0 +1,63 @@
+package com.cradleplatform.neptune.database.daos
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import androidx.room.Transaction
+import com.cradleplatform.neptune.model.PatientSummary
+
+/**
+ * Data Access Object (DAO) for the prefetched [PatientSummary] cache.
+ */
+@Dao
+interface PatientSummaryDao {
+    /**
+     * Replaces the whole cache with [summaries], so that patients that are no longer in the
+     * user's health facilities or villages are dropped.
+     */
+    @Transaction
+    suspend fun replaceAll(summaries: List<PatientSummary>) {
+        deleteAll()
+        insertAll(summaries)
+    }
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertAll(summaries: List<PatientSummary>)
+
+    @Query("DELETE FROM PatientSummary")
+    suspend fun deleteAll()
+
+    /**
+     * Returns the summary of the patient with the given [id], if it was prefetched.
+     */
+    @Query("SELECT * FROM PatientSummary WHERE id = :id")
+    suspend fun getById(id: String): PatientSummary?
+
+    /**
+     * Returns the ids of every prefetched patient.
+     */
+    @Query("SELECT id FROM PatientSummary")
+    suspend fun getIds(): List<String>
+
+    @Query("SELECT COUNT(*) FROM PatientSummary")
+    suspend fun count(): Int
+
+    /**
+     * Searches the prefetched summaries through [com.cradleplatform.neptune.model.PatientSummaryFts].
+     *
+     * @param match an FTS MATCH expression, see
+     * [com.cradleplatform.neptune.model.PatientSummaryFts.matchQuery]
+     * @param limit the maximum number of summaries to return
+     */
+    @Query(
+        """
+SELECT s.* FROM PatientSummary AS s
+JOIN PatientSummaryFts ON s.rowid = PatientSummaryFts.rowid
+WHERE PatientSummaryFts MATCH :match
+ORDER BY s.name COLLATE NOCASE ASC
+LIMIT :limit
+"""
+    )
+    suspend fun search(match: String, limit: Int): List<PatientSummary>
+}
@@ -4,12 +4,15 @@ import androidx.annotation.VisibleForTesting
 import androidx.room.Dao
 import androidx.room.Delete
 import androidx.room.Insert
+import androidx.room.MapColumn
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.RewriteQueriesToDropUnusedColumns
 import androidx.room.Transaction
 import androidx.room.Update
+import com.cradleplatform.neptune.database.Outbox
 import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.ReadingAnalysis
 
 /**
  * Data Access Object (DAO) for [Reading] entities.
@@ -26,6 +29,20 @@ interface ReadingDao {
         }
     }
 
+    /**
+     * Bulk version of [updateOrInsertIfNotExists]. All of the [readings] are inserted with
+     * [insertAllIfNotExists], and the ones that already existed (rowId of -1) are then updated
+     * with a single [updateAll] call.
+     */
+    @Transaction
+    suspend fun updateOrInsertAll(readings: List<Reading>) {
+        val rowIds = insertAllIfNotExists(readings)
+        val existingReadings = readings.filterIndexed { index, _ -> rowIds[index] == -1L }
+        if (existingReadings.isNotEmpty()) {
+            updateAll(existingReadings)
+        }
+    }
+
     /**
      * Inserts a new reading into the database.
      *
@@ -58,6 +75,21 @@ interface ReadingDao {
     @Update
     suspend fun update(reading: Reading): Int
 
+    /**
+     * Inserts each reading in the supplied list that isn't already in the database.
+     *
+     * @return the SQLite rowIds for the inserted readings, where -1 means the reading at that
+     * position already existed and was not inserted.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertAllIfNotExists(readings: List<Reading>): LongArray
+
+    /**
+     * @return the number of rows updated
+     */
+    @Update
+    suspend fun updateAll(readings: List<Reading>): Int
+
     /**
      * Removes an entity from the database.
      *
@@ -95,11 +127,82 @@ interface ReadingDao {
     suspend fun getAllUnUploadedReadings(): List<Reading>
 
     /**
-     * Number of readings which have not yet been uploaded to the server.
+     * A page of at most [limit] readings in the outbox that are due to be uploaded to the server,
+     * ordered by id and starting after the reading with id [afterId].
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT r.* FROM Reading r
+        JOIN OutboxEntry o ON o.entityType = 'READING' AND o.entityId = r.id
+        WHERE ${Outbox.IS_DUE} AND r.id > :afterId
+        ORDER BY r.id
+        LIMIT :limit
+    """
+    )
+    suspend fun getUnUploadedReadingsPage(afterId: String, limit: Int): List<Reading>
+
+    /**
+     * The readings in the outbox that are due to be uploaded to the server and are urgent: their
+     * vitals are in the red, they refer the patient to a health facility, or their vitals recheck
+     * is due within [recheckWindowSeconds] of [nowSeconds]. This matches
+     * [com.cradleplatform.neptune.sync.workers.UrgentUploads.isUrgent], so that the urgent lane of
+     * a sync doesn't read the rest of the backlog.
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT r.* FROM Reading r
+        JOIN OutboxEntry o ON o.entityType = 'READING' AND o.entityId = r.id
+        WHERE ${Outbox.IS_DUE}
+            AND (r.analysis IN ('RED_UP', 'RED_DOWN')
+                OR r.referral IS NOT NULL
+                OR r.dateRetestNeeded - :nowSeconds <= :recheckWindowSeconds)
+    """
+    )
+    suspend fun getUrgentReadingsDueForUpload(nowSeconds: Long, recheckWindowSeconds: Long): List<Reading>
+
+    /**
+     * The readings among [ids] that are in the outbox, i.e., that have changes waiting to be
+     * uploaded, whether or not they are due. Used to merge downloaded readings into them.
      */
-    @Query("SELECT COUNT(id) FROM Reading WHERE isUploadedToServer = 0")
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT r.* FROM Reading r
+        JOIN OutboxEntry o ON o.entityType = 'READING' AND o.entityId = r.id
+        WHERE r.id IN (:ids)
+    """
+    )
+    suspend fun getReadingsInOutbox(ids: List<String>): List<Reading>
+
+    /**
+     * Number of readings in the outbox that are due to be uploaded to the server, i.e., the
+     * number of readings returned by [getUnUploadedReadingsPage].
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry o WHERE o.entityType = 'READING' AND ${Outbox.IS_DUE}")
+    suspend fun getNumberOfReadingsDueForUpload(): Int
+
+    /**
+     * Number of readings which have not yet been uploaded to the server, including the ones in
+     * the outbox that are waiting for their next attempt.
+     */
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE entityType = 'READING'")
     suspend fun getNumberOfUnUploadedReadings(): Int
 
+    /**
+     * Number of readings taken between [from] and [to] (Unix timestamps, in seconds) for each
+     * blood pressure analysis, counted in SQL on the stored analysis column.
+     */
+    @Query(
+        "SELECT analysis, COUNT(*) AS readingCount FROM Reading " +
+            "WHERE dateTaken BETWEEN :from AND :to GROUP BY analysis"
+    )
+    suspend fun countReadingsByAnalysis(
+        from: Long,
+        to: Long
+    ): Map<@MapColumn(columnName = "analysis") ReadingAnalysis, @MapColumn(columnName = "readingCount") Int>
+
     /**
      * Returns number of readings that were marked as uploaded
      */
@@ -6,8 +6,10 @@ import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.RewriteQueriesToDropUnusedColumns
 import androidx.room.Transaction
 import androidx.room.Update
+import com.cradleplatform.neptune.database.Outbox
 import com.cradleplatform.neptune.model.Referral
 
 /**
@@ -25,6 +27,20 @@ interface ReferralDao {
         }
     }
 
+    /**
+     * Bulk version of [updateOrInsertIfNotExists]. All of the [referrals] are inserted with
+     * [insertAllIfNotExists], and the ones that already existed (rowId of -1) are then updated
+     * with a single [updateAll] call.
+     */
+    @Transaction
+    suspend fun updateOrInsertAll(referrals: List<Referral>) {
+        val rowIds = insertAllIfNotExists(referrals)
+        val existingReferrals = referrals.filterIndexed { index, _ -> rowIds[index] == -1L }
+        if (existingReferrals.isNotEmpty()) {
+            updateAll(existingReferrals)
+        }
+    }
+
     /**
      * Inserts a new referral into the database.
      *
@@ -57,6 +73,21 @@ interface ReferralDao {
     @Update
     suspend fun update(referral: Referral): Int
 
+    /**
+     * Inserts each referral in the supplied list that isn't already in the database.
+     *
+     * @return the SQLite rowIds for the inserted referrals, where -1 means the referral at that
+     * position already existed and was not inserted.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertAllIfNotExists(referrals: List<Referral>): LongArray
+
+    /**
+     * @return the number of rows updated
+     */
+    @Update
+    suspend fun updateAll(referrals: List<Referral>): Int
+
     /**
      * Removes an entity from the database.
      *
@@ -73,6 +104,26 @@ interface ReferralDao {
     @Query("SELECT * FROM Referral WHERE id = :id")
     suspend fun getReferralById(id: Int): Referral?
 
+    /**
+     * Returns the referral whose ID is equal to [id], or null if there is none.
+     */
+    @Query("SELECT * FROM Referral WHERE id = :id")
+    suspend fun getReferralByReferralId(id: String): Referral?
+
+    /**
+     * The referrals among [ids] that are in the outbox, i.e., that have changes waiting to be
+     * uploaded, whether or not they are due. Used to merge downloaded referrals into them.
+     */
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT r.* FROM Referral r
+        JOIN OutboxEntry o ON o.entityType = 'REFERRAL' AND o.entityId = r.id
+        WHERE r.id IN (:ids)
+    """
+    )
+    suspend fun getReferralsInOutbox(ids: List<String>): List<Referral>
+
     /**
      * Returns all of the referrals associated with a specified patient.
      *
@@ -82,15 +133,23 @@ interface ReferralDao {
     suspend fun getAllReferralByPatientId(id: String): List<Referral>?
 
     /**
-     * Query the database for all the referrals that have been created or edited offline
+     * Query the database for all the referrals in the outbox that are due to be uploaded
      */
-    @Query("SELECT * FROM Referral WHERE isUploadedToServer = 0")
+    @RewriteQueriesToDropUnusedColumns
+    @Query(
+        """
+        SELECT r.* FROM Referral r
+        JOIN OutboxEntry o ON o.entityType = 'REFERRAL' AND o.entityId = r.id
+        WHERE ${Outbox.IS_DUE}
+    """
+    )
     suspend fun referralsToUpload(): List<Referral>
 
     /**
-     * Query the database for the number of referrals that have been created or edited offline
+     * Query the database for the number of referrals that have been created or edited offline,
+     * including the ones in the outbox that are waiting for their next attempt
      */
-    @Query("SELECT COUNT(id) FROM Referral WHERE isUploadedToServer = 0")
+    @Query("SELECT COUNT(*) FROM OutboxEntry WHERE entityType = 'REFERRAL'")
     suspend fun countReferralsToUpload(): Int
 
     /**
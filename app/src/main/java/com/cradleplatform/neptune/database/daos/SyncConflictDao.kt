@@ -0,0 +1,35 @@
+package com.cradleplatform.neptune.database.daos
+
+import androidx.lifecycle.LiveData
+import androidx.room.Dao
+import androidx.room.Delete
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.SyncConflict
+
+/**
+ * Data Access Object (DAO) for the [SyncConflict]s waiting for the user.
+ */
+@Dao
+interface SyncConflictDao {
+    /**
+     * Queues the [conflicts]. A newer conflict on the same field replaces the older one, since
+     * the entity now holds the newer server value.
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertAll(conflicts: List<SyncConflict>)
+
+    @Delete
+    suspend fun delete(conflict: SyncConflict)
+
+    @Query("SELECT * FROM SyncConflict ORDER BY detectedAt, entityType, entityId, field")
+    suspend fun getAll(): List<SyncConflict>
+
+    @Query("SELECT * FROM SyncConflict WHERE entityType = :type AND entityId = :id ORDER BY field")
+    suspend fun getForEntity(type: OutboxEntityType, id: String): List<SyncConflict>
+
+    @Query("SELECT COUNT(*) FROM SyncConflict")
+    fun countLiveData(): LiveData<Int>
+}
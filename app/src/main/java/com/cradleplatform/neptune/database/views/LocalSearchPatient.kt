@@ -1,6 +1,7 @@
 package com.cradleplatform.neptune.database.views
 
 import androidx.room.DatabaseView
+import androidx.room.Embedded
 import com.cradleplatform.neptune.model.BloodPressure
 import com.cradleplatform.neptune.model.ReadingAnalysis
 import com.cradleplatform.neptune.model.Referral
@@ -10,13 +11,32 @@ import com.cradleplatform.neptune.model.Referral
  * of information to save memory. We left join on the Reading table to cover
  * the case where there is a patient without a reading.
  */
-@DatabaseView(
-    value = """
+@DatabaseView(value = LocalSearchPatient.QUERY)
+data class LocalSearchPatient(
+    val name: String,
+    val id: String,
+    val villageNumber: String?,
+    @Embedded val latestBloodPressure: BloodPressure?,
+    val latestReadingDate: Long?,
+    val lastEdited: Long?,
+    val referral: Referral?,
+    val dateRetestNeeded: Long?
+) {
+    fun getLatestRetestAnalysis(): ReadingAnalysis? = latestBloodPressure?.analysis
+
+    companion object {
+        /**
+         * The query for the view, which migrations need to create it again.
+         */
+        const val QUERY = """
 SELECT
   p.name,
   p.id,
   p.villageNumber,
-  r.bloodPressure as latestBloodPressure,
+  r.systolic,
+  r.diastolic,
+  r.heartRate,
+  r.analysis,
   MAX(r.dateTaken) as latestReadingDate,
   p.lastEdited,
   r.referral,
@@ -24,19 +44,8 @@ SELECT
 FROM
   Patient as p
   LEFT JOIN Reading AS r ON p.id = r.patientId
-GROUP BY 
+GROUP BY
   IFNULL(r.patientId, p.id)
 """
-)
-data class LocalSearchPatient(
-    val name: String,
-    val id: String,
-    val villageNumber: String?,
-    val latestBloodPressure: BloodPressure?,
-    val latestReadingDate: Long?,
-    val lastEdited: Long?,
-    val referral: Referral?,
-    val dateRetestNeeded: Long?
-) {
-    fun getLatestRetestAnalysis(): ReadingAnalysis? = latestBloodPressure?.analysis
+    }
 }
@@ -4,11 +4,13 @@ import android.content.Context
 import android.content.SharedPreferences
 import androidx.security.crypto.EncryptedSharedPreferences
 import androidx.security.crypto.MasterKey
+import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.CradleDatabase
 import com.cradleplatform.neptune.database.daos.AssessmentDao
 import com.cradleplatform.neptune.database.daos.FormClassificationDao
 import com.cradleplatform.neptune.database.daos.FormResponseDao
 import com.cradleplatform.neptune.database.daos.HealthFacilityDao
+import com.cradleplatform.neptune.database.daos.OutboxDao
 import com.cradleplatform.neptune.database.daos.PatientDao
 import com.cradleplatform.neptune.database.daos.ReadingDao
 import com.cradleplatform.neptune.database.daos.ReferralDao
@@ -28,6 +30,7 @@ import com.cradleplatform.neptune.manager.ReferralManager
 import com.cradleplatform.neptune.manager.ReferralUploadManager
 import com.cradleplatform.neptune.manager.UrlManager
 import com.cradleplatform.neptune.model.Settings
+import com.cradleplatform.neptune.sync.PeriodicSyncer
 import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
@@ -49,8 +52,9 @@ class DataModule {
         database: CradleDatabase,
         patientDao: PatientDao,
         readingDao: ReadingDao,
-        restApi: RestApi
-    ) = PatientManager(database, patientDao, readingDao, restApi)
+        restApi: RestApi,
+        @ApplicationContext context: Context
+    ) = PatientManager(database, patientDao, readingDao, restApi, context)
 
     @Provides
     @Singleton
@@ -118,6 +122,9 @@ class DataModule {
     fun provideFormResponseDao(database: CradleDatabase): FormResponseDao =
         database.formResponseDao()
 
+    @Provides
+    fun provideOutboxDao(database: CradleDatabase): OutboxDao = database.outboxDao()
+
     @Provides
     @Singleton
     fun provideHealthCentreService(database: CradleDatabase): HealthFacilityManager {
@@ -148,8 +155,16 @@ class DataModule {
     @Provides
     @Singleton
     fun providesHttp(
+        @ApplicationContext context: Context,
         sharedPreferences: SharedPreferences
-    ): Http = Http(sharedPreferences)
+    ): Http {
+        val gzipRequestThreshold = if (context.resources.getBoolean(R.bool.settings_gzip_request_bodies)) {
+            context.resources.getInteger(R.integer.settings_gzip_request_min_bytes).toLong()
+        } else {
+            null
+        }
+        return Http(sharedPreferences, gzipRequestThreshold)
+    }
 
     @Provides
     @Singleton
@@ -189,6 +204,7 @@ class DataModule {
     fun provideReferralUploadManager(
         restApi: RestApi,
         referralManager: ReferralManager,
-        patientManager: PatientManager
-    ) = ReferralUploadManager(restApi, referralManager, patientManager)
+        patientManager: PatientManager,
+        periodicSyncer: PeriodicSyncer
+    ) = ReferralUploadManager(restApi, referralManager, patientManager, periodicSyncer)
 }
@@ -0,0 +1,58 @@
+package com.cradleplatform.neptune.ext
+
+import androidx.room.RoomDatabase
+import androidx.room.withTransaction
+import kotlinx.coroutines.channels.ReceiveChannel
+
+/**
+ * Consumes the channel until it is closed, handing elements to [onBatch] in chunks of at most
+ * [batchSize] elements. The final chunk may be smaller than [batchSize], and [onBatch] is never
+ * called with an empty list.
+ *
+ * If the channel is closed with a cause, that cause is rethrown and any partially filled chunk
+ * is dropped.
+ *
+ * @throws IllegalArgumentException if [batchSize] is not positive
+ */
+suspend inline fun <T> ReceiveChannel<T>.consumeInBatches(
+    batchSize: Int,
+    onBatch: (List<T>) -> Unit
+) {
+    require(batchSize > 0) { "batchSize must be positive, but was $batchSize" }
+
+    var batch = ArrayList<T>(batchSize)
+    for (element in this) {
+        batch.add(element)
+        if (batch.size >= batchSize) {
+            onBatch(batch)
+            batch = ArrayList(batchSize)
+        }
+    }
+    if (batch.isNotEmpty()) {
+        onBatch(batch)
+    }
+}
+
+/**
+ * Consumes the channel in batches like [consumeInBatches], handing each batch to [onBatch] in its
+ * own [database] transaction. A transaction is only opened once a batch is ready, so nothing is
+ * written, and no transaction is opened, if the channel is closed without any elements.
+ *
+ * Sync downloads are written while the request is still uploading local changes, which are read
+ * from the database page by page (see
+ * [com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource]). The first element only
+ * arrives with the response, once the upload is written, so the transactions can't block those
+ * page reads. Where Room has a single connection (e.g. low-RAM devices, which use TRUNCATE
+ * journal mode), a transaction opened earlier deadlocks: the page reads wait for the transaction,
+ * which waits for elements that only come after the upload.
+ *
+ * If the channel is closed with a cause, the batches written before are kept. A failed sync doesn't
+ * advance its last sync time, so the next sync downloads them again.
+ *
+ * @throws IllegalArgumentException if [batchSize] is not positive
+ */
+suspend fun <T> ReceiveChannel<T>.consumeInBatchesInTransaction(
+    database: RoomDatabase,
+    batchSize: Int,
+    onBatch: suspend (List<T>) -> Unit
+) = consumeInBatches(batchSize) { batch -> database.withTransaction { onBatch(batch) } }
@@ -2,12 +2,9 @@
 
 package com.cradleplatform.neptune.ext
 
-import org.json.JSONArray
-import org.json.JSONObject
-
 /**
  * Describes types which may be used as fields for retrieving and storing
- * values in a [JSONObject].
+ * values in a JSON object.
  *
  * The common use case for this interface is using an enumeration to represent
  * JSON fields instead of having to use strings all the time which are prone
@@ -28,7 +25,7 @@ interface Field {
          * [string].
          *
          * This method is intended for testing purposes or one-off uses of
-         * [JSONObject]'s `field` methods. It is strongly encouraged to define
+         * JSON objects' `field` methods. It is strongly encouraged to define
          * an enumeration which implements this interface instead of using this
          * method.
          */
@@ -37,25 +34,3 @@ interface Field {
         }
     }
 }
-
-/**
- * Converts this JSON array into a list.
- *
- * Since the element type of [JSONArray] is unknown at compile time, a
- * producer is required to extract elements from the array. Usually this
- * takes the form of a method reference.
- *
- * ## Example
- *
- * To convert a [JSONArray] into a list of [Long]s, one can simply do:
- *
- * ```
- * val l = array.toList(JSONArray::getLong)
- * ```
- *
- * @param producer takes a reference to the wrapped [JSONArray] and an index
- *  and produces a value which will be appended to the list
- * @return the JSON array as a list of elements of type [T]
- */
-inline fun <T> JSONArray.toList(producer: (JSONArray, Int) -> T): List<T> =
-    (0 until length()).map { producer(this, it) }
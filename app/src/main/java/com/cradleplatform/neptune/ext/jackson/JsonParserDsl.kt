@@ -1,7 +1,10 @@
 package com.cradleplatform.neptune.ext.jackson
 
+import com.cradleplatform.neptune.ext.Field
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.JsonDeserializer
 import com.fasterxml.jackson.databind.ObjectReader
 import java.io.IOException
 
@@ -62,3 +65,71 @@ inline fun <T> JsonParser.parseObjectArray(
         iterator.forEachJackson { onEachObject(it) }
     }
 }
+
+/**
+ * Calls [onField] with the name of each field of the object that is being deserialized, with the
+ * parser on the field's value. [onField] must consume the whole value, e.g. with
+ * [JsonParser.skipChildren] for fields it doesn't know.
+ *
+ * Meant for streaming deserializers, which start on the [JsonToken.START_OBJECT] token of the
+ * object (or on its first [JsonToken.FIELD_NAME], when Jackson has buffered the object).
+ */
+inline fun JsonParser.forEachObjectField(onField: JsonParser.(name: String) -> Unit) {
+    var token = if (currentToken == JsonToken.START_OBJECT) nextToken() else currentToken
+    while (token == JsonToken.FIELD_NAME) {
+        val name = currentName
+        nextToken()
+        onField(name)
+        token = nextToken()
+    }
+    if (token != JsonToken.END_OBJECT) {
+        throw IOException("expected JSON object input")
+    }
+}
+
+/**
+ * The current string value, or null if the value is null or isn't a string, like
+ * [com.fasterxml.jackson.databind.JsonNode.textValue].
+ */
+fun JsonParser.textValueOrNull(): String? =
+    if (currentToken == JsonToken.VALUE_STRING) text else null
+
+/**
+ * The current value as a [Long], or null if the value is null.
+ */
+fun JsonParser.longValueOrNull(): Long? =
+    if (currentToken == JsonToken.VALUE_NULL) null else valueAsLong
+
+/**
+ * Reads the current value as a [T] with the deserializer registered for it, or returns null if the
+ * value is null.
+ */
+fun <T> JsonParser.readOptValue(ctxt: DeserializationContext, type: Class<T>): T? =
+    if (currentToken == JsonToken.VALUE_NULL) null else ctxt.readValue(this, type)
+
+/**
+ * Reads the current value as an array of [T]s, or skips it and returns null if it isn't an array.
+ */
+fun <T> JsonParser.readOptArray(ctxt: DeserializationContext, type: Class<T>): List<T>? {
+    if (currentToken != JsonToken.START_ARRAY) {
+        skipChildren()
+        return null
+    }
+    val list = ArrayList<T>()
+    while (nextToken() != JsonToken.END_ARRAY) {
+        list.add(ctxt.readValue(this, type))
+    }
+    return list
+}
+
+/**
+ * Returns the [value] read for a required [field], or fails the way Jackson does for a missing
+ * constructor parameter, with an [IOException] (a
+ * [com.fasterxml.jackson.databind.exc.MismatchedInputException]) instead of a
+ * [NullPointerException], since callers only expect [IOException]s from parsing.
+ */
+fun <T : Any> DeserializationContext.requireField(
+    deserializer: JsonDeserializer<*>,
+    field: Field,
+    value: T?
+): T = value ?: reportInputMismatch(deserializer, "missing required field '%s'", field.text)
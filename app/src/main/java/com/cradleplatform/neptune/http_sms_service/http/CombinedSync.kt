@@ -0,0 +1,57 @@
+package com.cradleplatform.neptune.http_sms_service.http
+
+import com.cradleplatform.neptune.model.Assessment
+import com.cradleplatform.neptune.model.HealthFacility
+import com.cradleplatform.neptune.model.Patient
+import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.Referral
+import kotlinx.coroutines.channels.SendChannel
+
+/**
+ * The entities uploaded by a combined sync (see [RestApi.syncCombined]).
+ */
+class CombinedSyncUpload(
+    val patients: SyncUploadSource<Patient>,
+    val readings: SyncUploadSource<Reading>,
+    val referrals: List<Referral>,
+    val assessments: List<Assessment>,
+)
+
+/**
+ * The channels that the sections of a combined sync response are sent through (see
+ * [RestApi.syncCombined]). The sections are received in the order of the properties, and each
+ * channel is closed before the next one receives anything, so a single consumer can drain them
+ * one after the other.
+ */
+class CombinedSyncChannels(
+    val healthFacilities: SendChannel<HealthFacility>,
+    val patients: SendChannel<Patient>,
+    val readings: SendChannel<Reading>,
+    val referrals: SendChannel<Referral>,
+    val assessments: SendChannel<Assessment>,
+) {
+    fun closeAll(cause: Throwable? = null) {
+        healthFacilities.close(cause)
+        patients.close(cause)
+        readings.close(cause)
+        referrals.close(cause)
+        assessments.close(cause)
+    }
+}
+
+/**
+ * Result of a combined sync. The counts are keyed by the types in [SyncChangeCounts]; types that
+ * weren't uploaded or downloaded are absent. The [itemErrors] of every type are in a single list,
+ * since the server reports them in a single array.
+ */
+data class CombinedSyncResult(
+    val networkResult: NetworkResult<Unit>,
+    val totalUploaded: Map<String, Int>,
+    val totalDownloaded: Map<String, Int>,
+    var errors: String?,
+    val itemErrors: List<SyncItemError> = emptyList(),
+) {
+    fun uploaded(type: String) = totalUploaded[type] ?: 0
+
+    fun downloaded(type: String) = totalDownloaded[type] ?: 0
+}
@@ -0,0 +1,87 @@
+package com.cradleplatform.neptune.http_sms_service.http
+
+import android.util.Log
+import okhttp3.Interceptor
+import okhttp3.Request
+import okhttp3.RequestBody
+import okhttp3.Response
+import okio.BufferedSink
+import okio.GzipSink
+import okio.buffer
+import java.net.HttpURLConnection
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Compresses JSON request bodies with gzip and sets the `Content-Encoding` header. OkHttp already
+ * decodes gzip responses transparently, but it never compresses what it sends, so without this,
+ * large sync uploads go out as plain JSON.
+ *
+ * Only bodies of at least [minimumSize] bytes are compressed, since gzip doesn't pay off for small
+ * bodies. Streamed bodies (see [buildJsonRequestBody]) have an unknown size and are always
+ * compressed, since streaming is only used for large uploads.
+ *
+ * A server that doesn't support compressed request bodies should respond with
+ * 415 Unsupported Media Type (RFC 7694). The request is then sent again uncompressed, and later
+ * requests to that host aren't compressed.
+ *
+ * This must be added as an application interceptor (not a network interceptor), since it may
+ * proceed with the request more than once.
+ */
+class GzipRequestInterceptor(private val minimumSize: Long) : Interceptor {
+
+    private val hostsRejectingGzip: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        val body = request.body
+        if (body == null || !shouldCompress(request, body)) {
+            return chain.proceed(request)
+        }
+
+        val compressedRequest = request.newBuilder()
+            .header(CONTENT_ENCODING, GZIP)
+            .method(request.method, body.gzip())
+            .build()
+        val response = chain.proceed(compressedRequest)
+        if (response.code != HttpURLConnection.HTTP_UNSUPPORTED_TYPE || body.isOneShot()) {
+            return response
+        }
+
+        Log.i(TAG, "${request.url.host} rejected a gzip request body; resending it uncompressed")
+        hostsRejectingGzip.add(request.url.host)
+        response.close()
+        return chain.proceed(request)
+    }
+
+    private fun shouldCompress(request: Request, body: RequestBody): Boolean {
+        if (request.header(CONTENT_ENCODING) != null || request.url.host in hostsRejectingGzip) {
+            return false
+        }
+        if (body.contentType()?.subtype != JSON_MEDIA_TYPE.subtype) {
+            return false
+        }
+        val contentLength = body.contentLength()
+        return contentLength == UNKNOWN_LENGTH || contentLength >= minimumSize
+    }
+
+    private fun RequestBody.gzip(): RequestBody {
+        val uncompressed = this
+        return object : RequestBody() {
+            override fun contentType() = uncompressed.contentType()
+
+            // The compressed size is only known after compressing.
+            override fun contentLength() = UNKNOWN_LENGTH
+
+            override fun writeTo(sink: BufferedSink) {
+                GzipSink(sink).buffer().use { uncompressed.writeTo(it) }
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "GzipRequestInterceptor"
+        private const val CONTENT_ENCODING = "Content-Encoding"
+        private const val GZIP = "gzip"
+        private const val UNKNOWN_LENGTH = -1L
+    }
+}
@@ -27,9 +27,14 @@ import java.util.concurrent.TimeUnit
  *
  * When communicating with the CRADLE server, the [com.cradleplatform.neptune.http_sms_service.RestApi]
  * class should be used instead of this one.
+ *
+ * @param gzipRequestThreshold If not null, JSON request bodies of at least this many bytes are
+ * gzip compressed (see [GzipRequestInterceptor]). The server has to accept compressed bodies, so
+ * this is off by default.
  */
 class Http(
     private val sharedPreferences: SharedPreferences,
+    private val gzipRequestThreshold: Long? = null,
 ) {
     /**
      * Enumeration of common HTTP method request types.
@@ -74,6 +79,10 @@ class Http(
                 .build()
         )
         .cookieJar(CradleCookieJar(sharedPreferences))
+        .eventListenerFactory(TrafficCounter.eventListenerFactory)
+        .apply {
+            gzipRequestThreshold?.let { addInterceptor(GzipRequestInterceptor(minimumSize = it)) }
+        }
         .build()
 
     /**
@@ -128,8 +137,9 @@ class Http(
                 if (it.isSuccessful) {
                     Log.i(TAG, "$message - Success ${it.code}")
                     // The byte stream is closed by the `use` function above.
+                    val byteStream = it.body!!.byteStream()
                     return@use NetworkResult.Success(
-                        inputStreamReader(it.body!!.byteStream()),
+                        inputStreamReader(TrafficCounter.current()?.meterReads(byteStream) ?: byteStream),
                         it.code
                     )
                 } else {
@@ -14,7 +14,6 @@ val JSON_MEDIA_TYPE = "application/json; charset=utf-8".toMediaType()
  *
  * Use this if the body to send is too big to store in memory at once.
  */
-@Suppress("unused")
 inline fun buildJsonRequestBody(crossinline outputStreamWriter: suspend (OutputStream) -> Unit) =
     object : RequestBody() {
         override fun contentType() = JSON_MEDIA_TYPE
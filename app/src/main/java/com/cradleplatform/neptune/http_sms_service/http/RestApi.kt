@@ -22,16 +22,20 @@ import com.cradleplatform.neptune.model.Assessment
 import com.cradleplatform.neptune.model.FormClassification
 import com.cradleplatform.neptune.model.FormResponse
 import com.cradleplatform.neptune.model.FormTemplate
+import com.cradleplatform.neptune.model.FormTemplateVersion
 import com.cradleplatform.neptune.model.GlobalPatient
 import com.cradleplatform.neptune.model.HealthFacility
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.PatientAndReadings
 import com.cradleplatform.neptune.model.PatientAndReferrals
+import com.cradleplatform.neptune.model.PatientField
+import com.cradleplatform.neptune.model.PatientSummary
 import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.RelayPhoneNumberResponse
 import com.cradleplatform.neptune.model.Statistics
 import com.cradleplatform.neptune.sync.workers.AssessmentSyncField
+import com.cradleplatform.neptune.sync.workers.CombinedSyncField
 import com.cradleplatform.neptune.sync.workers.PatientSyncField
 import com.cradleplatform.neptune.sync.workers.ReadingSyncField
 import com.cradleplatform.neptune.sync.workers.ReferralSyncField
@@ -39,13 +43,16 @@ import com.cradleplatform.neptune.sync.workers.SyncAllWorker
 import com.cradleplatform.neptune.utilities.Protocol
 import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import com.cradleplatform.neptune.utilities.jackson.JacksonMapper.createWriter
+import com.cradleplatform.neptune.utilities.jackson.JsonMergePatch
 import com.cradleplatform.neptune.viewmodel.UserViewModel
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.type.TypeReference
 import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectReader
 import com.fasterxml.jackson.module.kotlin.readValue
-import com.google.gson.Gson
-import com.google.gson.GsonBuilder
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.channels.Channel
@@ -53,8 +60,8 @@ import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.RequestBody
 import okhttp3.RequestBody.Companion.toRequestBody
-import org.json.JSONObject
 import java.io.IOException
 import java.io.InputStream
 import java.math.BigInteger
@@ -90,6 +97,15 @@ class RestApi(
 ) {
     companion object {
         private const val TAG = "RestApi"
+
+        private val EMPTY_JSON_OBJECT = "{}".toByteArray()
+
+        /**
+         * A JSON object of the non-null [fields], for small request bodies. Null fields are left
+         * out, as org.json's JSONObject did when these bodies were built with it.
+         */
+        private fun jsonObjectOf(vararg fields: Pair<String, Any?>): String =
+            JacksonMapper.mapper.writeValueAsString(fields.filter { it.second != null }.toMap())
     }
 
     private fun setupSmsReceiver() {
@@ -107,7 +123,7 @@ class RestApi(
         method: Http.Method,
         url: String,
         headers: Map<String, String> = mapOf(),
-        body: ByteArray = Gson().toJson(JsonObject()).toByteArray(),
+        body: ByteArray = EMPTY_JSON_OBJECT,
     ): NetworkResult<T> = withContext(IO) {
         val channel = Channel<NetworkResult<T>>()
         setupSmsReceiver()
@@ -221,8 +237,7 @@ class RestApi(
         email: String,
         password: String,
     ): NetworkResult<LoginResponse> = withContext(IO) {
-        val body = JSONObject().put("username", email).put("password", password).toString()
-            .encodeToByteArray()
+        val body = jsonObjectOf("username" to email, "password" to password).encodeToByteArray()
 
         val method = Http.Method.POST
         val url = urlManager.authentication
@@ -251,8 +266,7 @@ class RestApi(
         val username = sharedPreferences.getString(UserViewModel.USERNAME, null)
 
         // Must send username in body of request.
-        val body = JSONObject().put("username", username).toString()
-            .encodeToByteArray()
+        val body = jsonObjectOf("username" to username).encodeToByteArray()
 
         val headers = mapOf("Authorization" to "Bearer $accessToken")
 
@@ -635,6 +649,63 @@ class RestApi(
             }
         }
 
+    /**
+     * Streaming variant of [getPatient] for patients with long histories: the readings are parsed
+     * one at a time and sent through [readingChannel] instead of being read into memory together.
+     *
+     * [onPatientHeader] is called with the patient as soon as its fields have been parsed, i.e.,
+     * when the readings start (the server sends them after the patient's fields), so that it can
+     * be shown before the readings are downloaded. If the response has no readings, it is called at
+     * the end. The patient in the returned [NetworkResult.Success] is parsed from every field of the
+     * response, in case the server sent some of them after the readings.
+     *
+     * The [readingChannel] is closed once the response has been parsed, with a [SyncException] if
+     * the request or the parsing failed.
+     *
+     * @param id patient id to get information for
+     */
+    suspend fun getPatientStreaming(
+        id: String,
+        readingChannel: SendChannel<Reading>,
+        onPatientHeader: suspend (Patient) -> Unit
+    ): NetworkResult<Patient> = withContext(IO) {
+        http.makeRequest(
+            method = Http.Method.GET,
+            url = urlManager.getPatient(id),
+            headers = makeAuthorizationHeader(),
+        ) { inputStream ->
+            val patientFields = JacksonMapper.mapper.createObjectNode()
+            var isHeaderSent = false
+            JacksonMapper.mapper.createParser(inputStream).use { parser ->
+                parser.parseObject {
+                    val fieldName = currentName
+                    if (fieldName == PatientField.READINGS.text) {
+                        if (!isHeaderSent) {
+                            onPatientHeader(JacksonMapper.readerForPatient.readValue(patientFields))
+                            isHeaderSent = true
+                        }
+                        parseObjectArray<Reading>(JacksonMapper.readerForReading, throwIfNotArray = false) {
+                            readingChannel.send(it)
+                        }
+                    } else {
+                        nextToken()
+                        patientFields.set<JsonNode>(fieldName, readValueAsTree<JsonNode>())
+                    }
+                }
+            }
+            JacksonMapper.readerForPatient.readValue<Patient>(patientFields).also {
+                if (!isHeaderSent) onPatientHeader(it)
+            }
+        }.also {
+            if (it is NetworkResult.Success) {
+                readingChannel.close()
+            } else {
+                Log.e(TAG, "Patient download failed: ${it.getStatusMessage(context)}")
+                readingChannel.close(SyncException("patient download wasn't done properly"))
+            }
+        }
+    }
+
     /**
      * Requests only a patient's demographic data without any of its associated
      * readings. This is usually significantly less data then [getPatient]
@@ -699,6 +770,25 @@ class RestApi(
         }
     }
 
+    /**
+     * Downloads the summaries of the patients in any of the given [healthFacilities] or
+     * [villageNumbers], whether or not they are the user's patients. Used for prefetching patients
+     * the user is likely to open.
+     *
+     * @return the summaries of the matching patients
+     */
+    suspend fun getPatientSummaries(
+        healthFacilities: Collection<String>,
+        villageNumbers: Collection<String>
+    ): NetworkResult<List<PatientSummary>> = withContext(IO) {
+        http.makeRequest(
+            method = Http.Method.GET,
+            url = urlManager.getPatientSummaries(healthFacilities, villageNumbers),
+            headers = makeAuthorizationHeader(),
+            inputStreamReader = { JacksonMapper.readerForPatientSummaryList.readValue(it) }
+        )
+    }
+
     /**
      * Requests a specific reading with a given [id] from the server.
      *
@@ -967,8 +1057,7 @@ class RestApi(
         mFormResponse: FormResponse,
         protocol: Protocol
     ): NetworkResult<Unit> = withContext(IO) {
-        val gson = GsonBuilder().excludeFieldsWithoutExposeAnnotation().create()
-        val body = gson.toJson(mFormResponse).toByteArray()
+        val body = JacksonMapper.writerForFormResponse.writeValueAsBytes(mFormResponse)
         val method = Http.Method.POST
         val url = urlManager.uploadFormResponse
 
@@ -1004,19 +1093,19 @@ class RestApi(
      */
     suspend fun putPatient(patient: Patient, protocol: Protocol): NetworkResult<Unit> =
         withContext(IO) {
-            val jsonObject = JSONObject()
-            jsonObject.put("id", patient.id)
-            jsonObject.put("name", patient.name)
-            jsonObject.put("sex", patient.sex.name)
-            jsonObject.put("date_of_birth", patient.dateOfBirth)
-            jsonObject.put("is_exact_date_of_birth", patient.isExactDateOfBirth)
-            jsonObject.put("is_pregnant", patient.isPregnant)
-            jsonObject.put("household_number", patient.householdNumber)
-            jsonObject.put("zone", patient.zone)
-            jsonObject.put("village_number", patient.villageNumber)
-            jsonObject.put("is_archived", patient.isArchived)
-            jsonObject.put("allergy", patient.allergy)
-            val body = jsonObject.toString().toByteArray()
+            val body = jsonObjectOf(
+                "id" to patient.id,
+                "name" to patient.name,
+                "sex" to patient.sex.name,
+                "date_of_birth" to patient.dateOfBirth,
+                "is_exact_date_of_birth" to patient.isExactDateOfBirth,
+                "is_pregnant" to patient.isPregnant,
+                "household_number" to patient.householdNumber,
+                "zone" to patient.zone,
+                "village_number" to patient.villageNumber,
+                "is_archived" to patient.isArchived,
+                "allergy" to patient.allergy
+            ).toByteArray()
             val method = Http.Method.PUT
             val url = urlManager.getPatientInfoOnly(patient.id)
 
@@ -1054,17 +1143,14 @@ class RestApi(
         isDrugRecord: Boolean,
         protocol: Protocol
     ): NetworkResult<Unit> = withContext(IO) {
-        val jsonObject = JSONObject()
-
-        jsonObject.put("patient_id", patient.id)
-        jsonObject.put("is_drug_record", isDrugRecord)
-        jsonObject.put(
-            "information",
-            if (isDrugRecord) patient.drugHistory else patient.medicalHistory
+        val jsonObject = jsonObjectOf(
+            "patient_id" to patient.id,
+            "is_drug_record" to isDrugRecord,
+            "information" to if (isDrugRecord) patient.drugHistory else patient.medicalHistory
         )
 
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = jsonObject.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val body = buffer.readByteArray()
@@ -1230,13 +1316,13 @@ class RestApi(
         patient: Patient,
         protocol: Protocol
     ): NetworkResult<PregnancyResponse> = withContext(IO) {
-        val jsonObject = JSONObject()
-
-        jsonObject.put("patient_id", patient.id)
-        jsonObject.put("start_date", patient.gestationalAge?.timestamp)
+        val jsonObject = jsonObjectOf(
+            "patient_id" to patient.id,
+            "start_date" to patient.gestationalAge?.timestamp
+        )
 
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = jsonObject.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val body = buffer.readByteArray()
@@ -1268,16 +1354,16 @@ class RestApi(
         startDate: BigInteger?,
         protocol: Protocol
     ): NetworkResult<PregnancyResponse> = withContext(IO) {
-        val jsonObject = JSONObject()
-
-        jsonObject.put("id", patient.pregnancyId)
-        jsonObject.put("patient_id", patient.id)
-        jsonObject.put("start_date", startDate)
-        jsonObject.put("end_date", patient.prevPregnancyEndDate)
-        jsonObject.put("outcome", patient.prevPregnancyOutcome ?: "")
+        val jsonObject = jsonObjectOf(
+            "id" to patient.pregnancyId,
+            "patient_id" to patient.id,
+            "start_date" to startDate,
+            "end_date" to patient.prevPregnancyEndDate,
+            "outcome" to (patient.prevPregnancyOutcome ?: "")
+        )
 
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = jsonObject.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val body = buffer.readByteArray()
@@ -1310,14 +1396,14 @@ class RestApi(
         phoneNumber: String,
         protocol: Protocol
     ): NetworkResult<Unit> = withContext(IO) {
-        val jsonObject = JSONObject()
-
-        jsonObject.put("newPhoneNumber", phoneNumber)
-        jsonObject.put("currentPhoneNumber", "")
-        jsonObject.put("oldPhoneNumber", "")
+        val jsonObject = jsonObjectOf(
+            "newPhoneNumber" to phoneNumber,
+            "currentPhoneNumber" to "",
+            "oldPhoneNumber" to ""
+        )
 
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = jsonObject.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val body = buffer.readByteArray()
@@ -1383,10 +1469,8 @@ class RestApi(
     }
 
     suspend fun refreshSmsKey(userID: Int): NetworkResult<SmsKey> = withContext(IO) {
-        val jsonObject = JSONObject()
-
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = EMPTY_JSON_OBJECT.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val method = Http.Method.PUT
@@ -1402,10 +1486,8 @@ class RestApi(
     }
 
     suspend fun getNewSmsKey(userID: Int): NetworkResult<SmsKey?> = withContext(IO) {
-        val jsonObject = JSONObject()
-
         val mediaType = "application/json; charset=utf-8".toMediaType()
-        val requestBody = jsonObject.toString().toRequestBody(mediaType)
+        val requestBody = EMPTY_JSON_OBJECT.toRequestBody(mediaType)
         val buffer = okio.Buffer()
         requestBody.writeTo(buffer)
         val method = Http.Method.POST
@@ -1499,6 +1581,69 @@ class RestApi(
         }
     }
 
+    /**
+     * Asks the server how many entities of each type changed since the timestamps in
+     * [sinceByType] (keyed by the types in [SyncChangeCounts]), without downloading them. This
+     * is a cheap way to find sync phases that have nothing to download.
+     *
+     * Older servers don't have this endpoint and respond with a [Failure]; callers should then
+     * sync everything.
+     */
+    suspend fun getSyncChangeCounts(
+        sinceByType: Map<String, BigInteger>
+    ): NetworkResult<SyncChangeCounts> = withContext(IO) {
+        http.makeRequest(
+            method = Http.Method.GET,
+            url = urlManager.getSyncChanges(sinceByType),
+            headers = makeAuthorizationHeader(),
+            inputStreamReader = { SyncChangeCounts(JacksonMapper.mapper.readValue(it)) }
+        )
+    }
+
+    /**
+     * Builds the body of a sync request that uploads [entitiesToUpload] as a JSON array. The body
+     * is streamed: entities are read from [entitiesToUpload] and written to the connection one at a
+     * time, so the serialized upload is never held in memory.
+     *
+     * Normally every entity is uploaded in full. If [useDeltaUpload] is set, each entity that has
+     * dirty fields (given by [dirtyFieldsOf]) is instead uploaded as a JSON merge patch containing
+     * only those fields and its [keyFields] (see [JsonMergePatch.createPatch]). The server must be
+     * told about this, since it can't otherwise distinguish a patch from an entity with missing
+     * fields.
+     */
+    private fun <T : Any> createSyncUploadBody(
+        entitiesToUpload: SyncUploadSource<T>,
+        useDeltaUpload: Boolean,
+        keyFields: List<String>,
+        dirtyFieldsOf: (T) -> List<String>
+    ): RequestBody = buildJsonRequestBody { outputStream ->
+        // OkHttp closes the connection's stream itself after writing the body.
+        JacksonMapper.mapper.createGenerator(outputStream)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .use { gen -> gen.writeSyncUploadArray(entitiesToUpload, useDeltaUpload, keyFields, dirtyFieldsOf) }
+    }
+
+    /**
+     * Writes [entitiesToUpload] as a JSON array; see [createSyncUploadBody].
+     */
+    private suspend fun <T : Any> JsonGenerator.writeSyncUploadArray(
+        entitiesToUpload: SyncUploadSource<T>,
+        useDeltaUpload: Boolean,
+        keyFields: List<String>,
+        dirtyFieldsOf: (T) -> List<String>
+    ) {
+        writeStartArray()
+        entitiesToUpload.forEach { entity ->
+            val dirtyFields = if (useDeltaUpload) dirtyFieldsOf(entity) else emptyList()
+            if (dirtyFields.isEmpty()) {
+                JacksonMapper.mapper.writeValue(this, entity)
+            } else {
+                writeTree(JsonMergePatch.createPatch(entity, dirtyFields, keyFields))
+            }
+        }
+        writeEndArray()
+    }
+
     /**
      * Syncs the patients on the device with the server, where [lastSyncTimestamp] is the last time
      * the patients have been synced with the server. The given [patientsToUpload] should be
@@ -1518,21 +1663,30 @@ class RestApi(
      * [NetworkException] is returned, so using any of the Channels can result in a [SyncException]
      * that should be caught by anything handling the Channels.
      *
+     * If [useDeltaUpload] is set, patients that were edited after they were synced are uploaded
+     * as merge patches of their [Patient.dirtyFields]; see [createSyncUploadBody].
+     *
      * @sample SyncAllWorker.syncPatients
      */
     suspend fun syncPatients(
-        patientsToUpload: List<Patient>,
+        patientsToUpload: SyncUploadSource<Patient>,
         lastSyncTimestamp: BigInteger = BigInteger.valueOf(1L),
         patientChannel: SendChannel<Patient>,
         protocol: Protocol,
+        useDeltaUpload: Boolean = false,
         reportProgressBlock: suspend (Int, Int) -> Unit
     ): PatientSyncResult = withContext(IO) {
-        val body = createWriter<List<Patient>>().writeValueAsBytes(patientsToUpload)
+        val body = createSyncUploadBody(
+            patientsToUpload,
+            useDeltaUpload,
+            Patient.MERGE_PATCH_KEY_FIELDS
+        ) { it.dirtyFields }
         val method = Http.Method.POST
-        val url = urlManager.getPatientsSync(lastSyncTimestamp)
+        val url = urlManager.getPatientsSync(lastSyncTimestamp, useDeltaUpload)
 
         var totalPatientsDownloaded = 0
         var errors: String? = null
+        var itemErrors = emptyList<SyncItemError>()
 
         val result = when (protocol) {
             Protocol.HTTP -> {
@@ -1541,7 +1695,7 @@ class RestApi(
                     method = method,
                     url = url,
                     headers = makeAuthorizationHeader(),
-                    requestBody = buildJsonRequestBody(body),
+                    requestBody = body,
                 ) { inputStream ->
                     try {
                         val reader = JacksonMapper.readerForPatient
@@ -1560,9 +1714,10 @@ class RestApi(
                                     }
 
                                     PatientSyncField.ERRORS.text -> {
-                                        // TODO: Parse array of objects (refer to issue #62)
                                         nextToken()
-                                        errors = readValueAsTree<JsonNode>().toPrettyString()
+                                        val errorsTree = readValueAsTree<JsonNode>()
+                                        errors = errorsTree.toPrettyString()
+                                        itemErrors = SyncItemError.listFrom(errorsTree)
                                     }
                                 }
                             }
@@ -1637,7 +1792,7 @@ class RestApi(
                 }
             }
         }
-        PatientSyncResult(result, patientsToUpload.size, totalPatientsDownloaded, errors)
+        PatientSyncResult(result, patientsToUpload.size, totalPatientsDownloaded, errors, itemErrors)
     }
 
     /**
@@ -1669,15 +1824,20 @@ class RestApi(
      * @sample SyncAllWorker.syncReadings
      */
     suspend fun syncReadings(
-        readingsToUpload: List<Reading>,
+        readingsToUpload: SyncUploadSource<Reading>,
         lastSyncTimestamp: BigInteger = BigInteger.valueOf(1L),
         readingChannel: SendChannel<Reading>,
         protocol: Protocol,
+        useDeltaUpload: Boolean = false,
         reportProgressBlock: suspend (Int, Int) -> Unit
     ): ReadingSyncResult = withContext(IO) {
-        val body = createWriter<List<Reading>>().writeValueAsBytes(readingsToUpload)
+        val body = createSyncUploadBody(
+            readingsToUpload,
+            useDeltaUpload,
+            Reading.MERGE_PATCH_KEY_FIELDS
+        ) { it.dirtyFields }
         val method = Http.Method.POST
-        val url = urlManager.getReadingsSync(lastSyncTimestamp)
+        val url = urlManager.getReadingsSync(lastSyncTimestamp, useDeltaUpload)
 
         var totalReadingsDownloaded = 0
 
@@ -1688,7 +1848,7 @@ class RestApi(
                     method = method,
                     url = url,
                     headers = makeAuthorizationHeader(),
-                    requestBody = buildJsonRequestBody(body)
+                    requestBody = body
                 ) { inputStream ->
                     Log.d(TAG, "Parsing readings now")
 
@@ -1785,6 +1945,103 @@ class RestApi(
         )
     }
 
+    /**
+     * Paged variant of [syncReadings] used for resumable syncing. Uploads [readingsToUpload] and
+     * downloads at most [pageSize] readings edited since [lastSyncTimestamp], starting right after
+     * the reading described by [after] (or from the beginning if [after] is null).
+     *
+     * Parsed readings are sent through [readingChannel], which is closed when the page has been
+     * parsed, or failed with a [SyncException] if the request or the parsing fails. Unlike
+     * [syncReadings], a parsing failure is reported as a [NetworkResult.NetworkException] so that
+     * the caller never advances its checkpoint past a page that wasn't fully received.
+     *
+     * The returned [ReadingPageSyncResult.lastReading] is the cursor to pass as [after] for the
+     * next page. The page is treated as the last one if it has fewer than [pageSize] readings, or
+     * if the server ignored the paging parameters (more than [pageSize] readings, or the cursor did
+     * not move past [after]).
+     *
+     * Only [Protocol.HTTP] is supported, since SMS replies aren't paged.
+     */
+    suspend fun syncReadingsPage(
+        readingsToUpload: SyncUploadSource<Reading>,
+        lastSyncTimestamp: BigInteger,
+        after: SyncCursor?,
+        pageSize: Int,
+        readingChannel: SendChannel<Reading>,
+        useDeltaUpload: Boolean = false,
+        reportProgressBlock: suspend (Int, Int) -> Unit
+    ): ReadingPageSyncResult = withContext(IO) {
+        val body = createSyncUploadBody(
+            readingsToUpload,
+            useDeltaUpload,
+            Reading.MERGE_PATCH_KEY_FIELDS
+        ) { it.dirtyFields }
+        val url = urlManager.getReadingsSyncPage(lastSyncTimestamp, pageSize, after, useDeltaUpload)
+
+        var totalReadingsDownloaded = 0
+        var lastReading: SyncCursor? = null
+        var failedParse = false
+
+        val result: NetworkResult<Unit> = http.makeRequest(
+            method = Http.Method.POST,
+            url = url,
+            headers = makeAuthorizationHeader(),
+            requestBody = body
+        ) { inputStream ->
+            try {
+                JacksonMapper.mapper.createParser(inputStream).use { parser ->
+                    parser.parseObject {
+                        when (currentName) {
+                            ReadingSyncField.READINGS.text -> {
+                                parseObjectArray<Reading>(JacksonMapper.readerForReading) {
+                                    readingChannel.send(it)
+                                    totalReadingsDownloaded++
+                                    lastReading = SyncCursor(it.lastEdited, it.id)
+                                    reportProgressBlock(
+                                        totalReadingsDownloaded,
+                                        totalReadingsDownloaded
+                                    )
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, e.toString())
+                failedParse = true
+            }
+            Unit
+        }.let {
+            when {
+                it !is NetworkResult.Success -> {
+                    readingChannel.close(SyncException("failed to sync readings page"))
+                    it
+                }
+                failedParse -> {
+                    val syncException = SyncException("readings page parsing had failure(s)")
+                    readingChannel.close(syncException)
+                    NetworkResult.NetworkException<Unit>(syncException)
+                }
+                else -> {
+                    readingChannel.close()
+                    it
+                }
+            }
+        }
+
+        val isLastPage = totalReadingsDownloaded < pageSize ||
+            totalReadingsDownloaded > pageSize ||
+            lastReading == after
+
+        ReadingPageSyncResult(
+            result,
+            readingsToUpload.size,
+            totalReadingsDownloaded,
+            lastReading ?: after,
+            isLastPage
+        )
+    }
+
     /**
      * Syncs the referrals on the device with the server, where [lastSyncTimestamp] is the last time
      * the referrals have been synced with the server. The given [referralsToUpload] should be
@@ -1810,14 +2067,20 @@ class RestApi(
         lastSyncTimestamp: BigInteger = BigInteger.valueOf(1L),
         referralChannel: SendChannel<Referral>,
         protocol: Protocol,
+        useDeltaUpload: Boolean = false,
         reportProgressBlock: suspend (Int, Int) -> Unit
     ): ReferralSyncResult = withContext(IO) {
-        val body = createWriter<List<Referral>>().writeValueAsBytes(referralsToUpload)
+        val body = createSyncUploadBody(
+            SyncUploadSource.of(referralsToUpload),
+            useDeltaUpload,
+            Referral.MERGE_PATCH_KEY_FIELDS
+        ) { it.dirtyFields }
         val method = Http.Method.POST
-        val url = urlManager.getReferralsSync(lastSyncTimestamp)
+        val url = urlManager.getReferralsSync(lastSyncTimestamp, useDeltaUpload)
 
         var totalReferralsDownloaded = 0
         var errors: String? = null
+        var itemErrors = emptyList<SyncItemError>()
 
         val result = when (protocol) {
             Protocol.HTTP -> {
@@ -1826,7 +2089,7 @@ class RestApi(
                     method = method,
                     url = url,
                     headers = makeAuthorizationHeader(),
-                    requestBody = buildJsonRequestBody(body),
+                    requestBody = body,
                 ) { inputStream ->
 
                     try {
@@ -1846,9 +2109,10 @@ class RestApi(
                                     }
 
                                     ReferralSyncField.ERRORS.text -> {
-                                        // TODO: Parse array of objects (refer to issue #62)
                                         nextToken()
-                                        errors = readValueAsTree<JsonNode>().toPrettyString()
+                                        val errorsTree = readValueAsTree<JsonNode>()
+                                        errors = errorsTree.toPrettyString()
+                                        itemErrors = SyncItemError.listFrom(errorsTree)
                                     }
                                 }
                             }
@@ -1918,7 +2182,7 @@ class RestApi(
             }
         }
 
-        ReferralSyncResult(result, referralsToUpload.size, totalReferralsDownloaded, errors)
+        ReferralSyncResult(result, referralsToUpload.size, totalReferralsDownloaded, errors, itemErrors)
     }
 
     /**
@@ -1954,6 +2218,7 @@ class RestApi(
 
         var totalAssessmentsDownloaded = 0
         var errors: String? = null
+        var itemErrors = emptyList<SyncItemError>()
 
         val result = when (protocol) {
             Protocol.HTTP -> {
@@ -1983,9 +2248,10 @@ class RestApi(
                                     }
 
                                     AssessmentSyncField.ERRORS.text -> {
-                                        // TODO: Parse array of objects (refer to issue #62)
                                         nextToken()
-                                        errors = readValueAsTree<JsonNode>().toPrettyString()
+                                        val errorsTree = readValueAsTree<JsonNode>()
+                                        errors = errorsTree.toPrettyString()
+                                        itemErrors = SyncItemError.listFrom(errorsTree)
                                     }
                                 }
                             }
@@ -2056,7 +2322,7 @@ class RestApi(
         }
 
         AssessmentSyncResult(
-            result, assessmentsToUpload.size, totalAssessmentsDownloaded, errors
+            result, assessmentsToUpload.size, totalAssessmentsDownloaded, errors, itemErrors
         )
     }
 
@@ -2175,6 +2441,174 @@ class RestApi(
         HealthFacilitySyncResult(result, totalHealthFacilitiesDownloaded)
     }
 
+    /**
+     * Syncs patients, readings, referrals and assessments, and downloads health facilities, in a
+     * single request instead of one request per type. [lastSyncTimestamps] is keyed by the types
+     * in [SyncChangeCounts].
+     *
+     * The request body is a JSON object with an array for each type in [upload], written the same
+     * way as the bodies of the per-type requests (see [createSyncUploadBody]). The response is a
+     * JSON object with a section for each type, in the order of [CombinedSyncField]. It is parsed
+     * as it streams in, and each section is sent through its channel in [channels]. A channel is
+     * closed when its section ends, or as soon as a later section starts if the server left its
+     * section out. A section that arrives out of order fails the parse, since its channel may
+     * already be closed.
+     *
+     * Every channel in [channels] will be failed (see [SendChannel.close]) if [Failure] or
+     * [NetworkException] is returned, or if parsing fails.
+     *
+     * Only [Protocol.HTTP] is supported; over SMS, each type has to be synced on its own.
+     */
+    suspend fun syncCombined(
+        upload: CombinedSyncUpload,
+        lastSyncTimestamps: Map<String, BigInteger>,
+        channels: CombinedSyncChannels,
+        useDeltaUpload: Boolean = false,
+        reportProgressBlock: suspend (Int, Int) -> Unit
+    ): CombinedSyncResult = withContext(IO) {
+        val body = buildJsonRequestBody { outputStream ->
+            JacksonMapper.mapper.createGenerator(outputStream)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .use { gen ->
+                    gen.writeStartObject()
+                    gen.writeFieldName(CombinedSyncField.PATIENTS.text)
+                    gen.writeSyncUploadArray(
+                        upload.patients, useDeltaUpload, Patient.MERGE_PATCH_KEY_FIELDS
+                    ) { it.dirtyFields }
+                    gen.writeFieldName(CombinedSyncField.READINGS.text)
+                    gen.writeSyncUploadArray(
+                        upload.readings, useDeltaUpload, Reading.MERGE_PATCH_KEY_FIELDS
+                    ) { it.dirtyFields }
+                    gen.writeFieldName(CombinedSyncField.REFERRALS.text)
+                    gen.writeSyncUploadArray(
+                        SyncUploadSource.of(upload.referrals), useDeltaUpload, Referral.MERGE_PATCH_KEY_FIELDS
+                    ) { it.dirtyFields }
+                    gen.writeFieldName(CombinedSyncField.ASSESSMENTS.text)
+                    gen.writeSyncUploadArray(
+                        SyncUploadSource.of(upload.assessments), useDeltaUpload = false, emptyList()
+                    ) { emptyList() }
+                    gen.writeEndObject()
+                }
+        }
+        val url = urlManager.getCombinedSync(lastSyncTimestamps, useDeltaUpload)
+
+        val totalDownloaded = mutableMapOf<String, Int>()
+        var totalItemsDownloaded = 0
+        var errors: String? = null
+        var itemErrors = emptyList<SyncItemError>()
+        var failedParse = false
+
+        // Sends each item of the section that the parser is at through the channel.
+        suspend fun <T> JsonParser.sendSection(reader: ObjectReader, channel: SendChannel<T>, type: String) {
+            parseObjectArray<T>(reader) {
+                channel.send(it)
+                totalDownloaded[type] = (totalDownloaded[type] ?: 0) + 1
+                totalItemsDownloaded++
+                reportProgressBlock(totalItemsDownloaded, totalItemsDownloaded)
+            }
+            channel.close()
+        }
+
+        val result = http.makeRequest(
+            method = Http.Method.POST,
+            url = url,
+            headers = makeAuthorizationHeader(),
+            requestBody = body,
+        ) { inputStream ->
+            try {
+                JacksonMapper.mapper.createParser(inputStream).use { parser ->
+                    val sections = CombinedSyncField.SECTIONS
+                    var nextSection = 0
+                    parser.parseObject {
+                        val section = sections.indexOfFirst { it.text == currentName }
+                        if (section == -1) {
+                            if (currentName == CombinedSyncField.ERRORS.text) {
+                                nextToken()
+                                val errorsTree = readValueAsTree<JsonNode>()
+                                errors = errorsTree.toPrettyString()
+                                itemErrors = SyncItemError.listFrom(errorsTree)
+                            } else {
+                                nextToken()
+                                skipChildren()
+                            }
+                            return@parseObject
+                        }
+                        if (section < nextSection) {
+                            throw IOException("section $currentName is out of order")
+                        }
+                        // Sections that the server left out have nothing to download.
+                        for (skipped in nextSection until section) {
+                            channels.channelFor(sections[skipped]).close()
+                        }
+                        nextSection = section + 1
+                        when (sections[section]) {
+                            CombinedSyncField.HEALTH_FACILITIES -> sendSection(
+                                JacksonMapper.readerForHealthFacility,
+                                channels.healthFacilities,
+                                SyncChangeCounts.HEALTH_FACILITIES
+                            )
+                            CombinedSyncField.PATIENTS -> sendSection(
+                                JacksonMapper.readerForPatient, channels.patients, SyncChangeCounts.PATIENTS
+                            )
+                            CombinedSyncField.READINGS -> sendSection(
+                                JacksonMapper.readerForReading, channels.readings, SyncChangeCounts.READINGS
+                            )
+                            CombinedSyncField.REFERRALS -> sendSection(
+                                JacksonMapper.readerForReferral, channels.referrals, SyncChangeCounts.REFERRALS
+                            )
+                            CombinedSyncField.ASSESSMENTS -> sendSection(
+                                JacksonMapper.readerForAssessment,
+                                channels.assessments,
+                                SyncChangeCounts.ASSESSMENTS
+                            )
+                            CombinedSyncField.ERRORS -> error("errors is not a section")
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "combined sync response parsing failed", e)
+                failedParse = true
+            }
+        }.also {
+            when {
+                it !is NetworkResult.Success -> {
+                    Log.e(TAG, "Combined sync failed: ${it.getStatusMessage(context)}")
+                    channels.closeAll(SyncException("combined sync download wasn't done properly"))
+                }
+                failedParse -> channels.closeAll(SyncException("combined sync response parsing had failure(s)"))
+                // Closes the channels of any sections missing from the end of the response.
+                else -> channels.closeAll()
+            }
+        }
+
+        val totalUploaded = mapOf(
+            SyncChangeCounts.PATIENTS to upload.patients.size,
+            SyncChangeCounts.READINGS to upload.readings.size,
+            SyncChangeCounts.REFERRALS to upload.referrals.size,
+            SyncChangeCounts.ASSESSMENTS to upload.assessments.size,
+        )
+        CombinedSyncResult(
+            if (failedParse && result is NetworkResult.Success) {
+                NetworkResult.NetworkException(SyncException("combined sync response parsing had failure(s)"))
+            } else {
+                result
+            },
+            totalUploaded,
+            totalDownloaded,
+            errors,
+            itemErrors
+        )
+    }
+
+    private fun CombinedSyncChannels.channelFor(section: CombinedSyncField): SendChannel<*> = when (section) {
+        CombinedSyncField.HEALTH_FACILITIES -> healthFacilities
+        CombinedSyncField.PATIENTS -> patients
+        CombinedSyncField.READINGS -> readings
+        CombinedSyncField.REFERRALS -> referrals
+        CombinedSyncField.ASSESSMENTS -> assessments
+        CombinedSyncField.ERRORS -> error("errors is not a section")
+    }
+
     /**
      * Get all [FormTemplate]s from the server.
      * The parsed results will be sent in the resulting [formChannel].
@@ -2183,6 +2617,10 @@ class RestApi(
      * [NetworkException] is returned, so using any of the Channels can result in a [SyncException]
      * that should be caught by anything handling the Channels.
      *
+     * If [knownVersions] is given (HTTP only), the server is sent the versions of the templates
+     * stored locally, and only the templates that are new or have a different version are
+     * downloaded instead of all of them.
+     *
      * @return A [FormSyncResult] containing [Success] if the parsing succeeds,
      * otherwise a [Failure] or [NetworkException] if parsing or the connection fail,
      * with a number [FormSyncResult.totalFormsDownloaded] indicating
@@ -2191,6 +2629,7 @@ class RestApi(
     suspend fun getAllFormTemplates(
         formChannel: SendChannel<FormClassification>,
         protocol: Protocol,
+        knownVersions: List<FormTemplateVersion>? = null,
         reportProgressBlock: suspend (Int, Int) -> Unit
     ): FormSyncResult = withContext(IO) {
         val method = Http.Method.GET
@@ -2201,30 +2640,24 @@ class RestApi(
         val result = when (protocol) {
             Protocol.HTTP -> {
                 var failedParse = false
-                http.makeRequest(method = method,
-                    url = url,
+                http.makeRequest(
+                    method = if (knownVersions == null) method else Http.Method.POST,
+                    url = if (knownVersions == null) url else urlManager.getChangedFormsAsSummary,
                     headers = makeAuthorizationHeader(),
+                    requestBody = knownVersions?.let {
+                        buildJsonRequestBody(JacksonMapper.mapper.writeValueAsBytes(it))
+                    },
                     inputStreamReader = { inputStream ->
 
                         try {
-                            // Create Gson instance with custom deserializer
-                            val customGson = GsonBuilder().registerTypeAdapter(
-                                FormClassification::class.java,
-                                FormClassification.DeserializerFromFormTemplateStream()
-                            ).create()
-
-                            val reader = customGson.newJsonReader(inputStream.bufferedReader())
-                            reader.beginArray()
-                            while (reader.hasNext()) {
-                                val form = customGson.fromJson<FormClassification>(
-                                    reader, FormClassification::class.java
-                                )
-                                formChannel.send(form)
-                                totalClassifications++
-                                reportProgressBlock(totalClassifications, totalClassifications)
-                            }
-                            reader.endArray()
-                            reader.close()
+                            JacksonMapper.readerForFormClassification
+                                .readValues<FormClassification>(inputStream).use { forms ->
+                                    while (forms.hasNextValue()) {
+                                        formChannel.send(forms.nextValue())
+                                        totalClassifications++
+                                        reportProgressBlock(totalClassifications, totalClassifications)
+                                    }
+                                }
                         } catch (e: Exception) {
                             Log.e(TAG, e.toString())
                             failedParse = true
@@ -2291,12 +2724,12 @@ class RestApi(
     /**
      * Downloads all submitted form responses for the user's patients since [lastSyncTimestamp].
      * Parses each item into a [FormResponse] using a stub [FormTemplate] and sends it to
-     * [formResponseChannel]. Deletes all previously synced (submitted) form responses before
-     * inserting, so the local DB always reflects the server state.
+     * [formResponseChannel] as a [FormResponseSyncChange.Update]. Form responses deleted on the
+     * server are sent as a [FormResponseSyncChange.Deletion] if the server reports them.
      */
     suspend fun syncFormResponses(
         lastSyncTimestamp: BigInteger,
-        formResponseChannel: SendChannel<FormResponse>,
+        formResponseChannel: SendChannel<FormResponseSyncChange>,
         protocol: Protocol,
         reportProgressBlock: suspend (Int, Int) -> Unit
     ): FormResponseSyncResult = withContext(IO) {
@@ -2312,11 +2745,20 @@ class RestApi(
                     headers = makeAuthorizationHeader(),
                     inputStreamReader = { inputStream ->
                         try {
-                            val gson = Gson()
-                            val reader = gson.newJsonReader(inputStream.bufferedReader())
-                            reader.beginArray()
-                            while (reader.hasNext()) {
-                                val item = gson.fromJson<FormResponseSyncItem>(reader, FormResponseSyncItem::class.java)
+                            val items = JacksonMapper.createReader<FormResponseSyncItem>()
+                                .readValues<FormResponseSyncItem>(inputStream)
+                            while (items.hasNextValue()) {
+                                val item = items.nextValue()
+                                if (item.isDeleted == true) {
+                                    formResponseChannel.send(
+                                        FormResponseSyncChange.Deletion(
+                                            checkNotNull(item.id) { "form response tombstone without an id" }
+                                        )
+                                    )
+                                    totalDownloaded++
+                                    reportProgressBlock(totalDownloaded, totalDownloaded)
+                                    continue
+                                }
                                 val stubTemplate = FormTemplate(
                                     id = item.formClassificationId,
                                     version = "1",
@@ -2327,20 +2769,20 @@ class RestApi(
                                     questions = emptyList()
                                 )
                                 val formResponse = FormResponse(
-                                    patientId = item.patientId,
+                                    patientId = item.patientId!!,
                                     formTemplate = stubTemplate,
-                                    language = item.language,
+                                    language = item.language!!,
                                     answers = emptyMap(),
                                     saveResponseToSendLater = false
                                 )
                                 // Server timestamps are in seconds; dateEdited is stored in ms
-                                formResponse.dateEdited = item.lastEdited * 1000L
-                                formResponseChannel.send(formResponse)
+                                formResponse.dateEdited = item.lastEdited!! * 1000L
+                                formResponse.serverFormId = item.id
+                                formResponseChannel.send(FormResponseSyncChange.Update(formResponse))
                                 totalDownloaded++
                                 reportProgressBlock(totalDownloaded, totalDownloaded)
                             }
-                            reader.endArray()
-                            reader.close()
+                            items.close()
                         } catch (e: Exception) {
                             Log.e(TAG, "syncFormResponses parse error: $e")
                             failedParse = true
@@ -2369,20 +2811,28 @@ class RestApi(
         FormResponseSyncResult(result, totalDownloaded)
     }
 
+    /**
+     * A form response in the sync response. If [isDeleted] is set, it is a tombstone for a form
+     * response that was deleted on the server, and only [id] is given.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
     private data class FormResponseSyncItem(
-        @com.google.gson.annotations.SerializedName("patient_id") val patientId: String,
-        @com.google.gson.annotations.SerializedName("form_classification_id") val formClassificationId: String,
-        @com.google.gson.annotations.SerializedName("lang") val language: String,
-        @com.google.gson.annotations.SerializedName("last_edited") val lastEdited: Long,
-        @com.google.gson.annotations.SerializedName("date_created") val dateCreated: Long,
-        @com.google.gson.annotations.SerializedName("classification")
+        @JsonProperty("id") val id: String?,
+        @JsonProperty("deleted") val isDeleted: Boolean?,
+        @JsonProperty("patient_id") val patientId: String?,
+        @JsonProperty("form_classification_id") val formClassificationId: String?,
+        @JsonProperty("lang") val language: String?,
+        @JsonProperty("last_edited") val lastEdited: Long?,
+        @JsonProperty("date_created") val dateCreated: Long?,
+        @JsonProperty("classification")
         val classification: FormResponseSyncClassification?
     ) {
         val classificationName: String? get() = classification?.name
     }
 
+    @JsonIgnoreProperties(ignoreUnknown = true)
     private data class FormResponseSyncClassification(
-        @com.google.gson.annotations.SerializedName("name") val name: String?
+        @JsonProperty("name") val name: String?
     )
 
     /**
@@ -2394,8 +2844,7 @@ class RestApi(
         return try {
             val charset = charset("UTF-8")
             val payload = String(Base64.decode(sections[1].toByteArray(charset)), charset)
-            val payloadJson = JSONObject(payload)
-            payloadJson.getLong("exp")
+            JacksonMapper.mapper.readTree(payload).required("exp").asLong()
         } catch (e: Exception) {
             Log.e(TAG, "Error parsing JWT: $e")
             throw e
@@ -1,5 +1,8 @@
 package com.cradleplatform.neptune.http_sms_service.http
 
+import com.cradleplatform.neptune.model.FormResponse
+import com.fasterxml.jackson.databind.JsonNode
+
 data class HealthFacilitySyncResult(
     val networkResult: NetworkResult<Unit>,
     var totalHealthFacilitiesDownloaded: Int,
@@ -10,6 +13,7 @@ data class PatientSyncResult(
     var totalPatientsUploaded: Int,
     var totalPatientsDownloaded: Int,
     var errors: String?,
+    val itemErrors: List<SyncItemError> = emptyList(),
 )
 
 data class ReadingSyncResult(
@@ -18,11 +22,33 @@ data class ReadingSyncResult(
     var totalReadingsDownloaded: Int
 )
 
+/**
+ * Position in a paged sync download: the [lastEdited] time and [id] of the last entity that was
+ * received. The next page starts right after this entity.
+ */
+data class SyncCursor(
+    val lastEdited: Long,
+    val id: String,
+)
+
+/**
+ * Result of downloading one page of readings. [lastReading] is the cursor for the last reading
+ * in the page (null if the page was empty), and [isLastPage] is true when there are no more pages.
+ */
+data class ReadingPageSyncResult(
+    val networkResult: NetworkResult<Unit>,
+    var totalReadingsUploaded: Int,
+    var totalReadingsDownloaded: Int,
+    val lastReading: SyncCursor?,
+    val isLastPage: Boolean,
+)
+
 data class ReferralSyncResult(
     val networkResult: NetworkResult<Unit>,
     var totalReferralsUploaded: Int,
     var totalReferralsDownloaded: Int,
     var errors: String?,
+    val itemErrors: List<SyncItemError> = emptyList(),
 )
 
 data class AssessmentSyncResult(
@@ -30,8 +56,42 @@ data class AssessmentSyncResult(
     var totalAssessmentsUploaded: Int,
     var totalAssessmentsDownloaded: Int,
     var errors: String?,
+    val itemErrors: List<SyncItemError> = emptyList(),
 )
 
+/**
+ * An entry of the `errors` array of a sync response: the server rejected the uploaded entity with
+ * the given [id] (null if the server didn't say which one) because of [message].
+ */
+data class SyncItemError(val id: String?, val message: String) {
+    companion object {
+        /** Fields that the server may use for the id of the rejected entity, in order of preference. */
+        private val ID_FIELDS = listOf("id", "patientId", "readingId", "referralId", "assessmentId")
+
+        private val MESSAGE_FIELDS = listOf("message", "error", "errors")
+
+        /**
+         * Parses the `errors` array of a sync response. Entries can be objects that name the
+         * rejected entity, or plain messages; anything else is kept as a message without an id.
+         */
+        fun listFrom(errors: JsonNode): List<SyncItemError> =
+            if (errors.isArray) errors.map(::from) else emptyList()
+
+        private fun from(error: JsonNode): SyncItemError {
+            if (!error.isObject) {
+                return SyncItemError(null, if (error.isTextual) error.textValue() else error.toString())
+            }
+            val id = ID_FIELDS.firstNotNullOfOrNull { field ->
+                error.get(field)?.takeIf { it.isTextual || it.isNumber }?.asText()
+            }
+            val message = MESSAGE_FIELDS.firstNotNullOfOrNull { error.get(it) }
+                ?.let { if (it.isTextual) it.textValue() else it.toString() }
+                ?: error.toString()
+            return SyncItemError(id, message)
+        }
+    }
+}
+
 data class FormSyncResult(
     val networkResult: NetworkResult<Unit>,
     val totalFormClassDownloaded: Int
@@ -41,3 +101,35 @@ data class FormResponseSyncResult(
     val networkResult: NetworkResult<Unit>,
     val totalFormResponsesDownloaded: Int
 )
+
+/**
+ * An entry of the form response sync: a form response that is new or was edited on the server, or
+ * a tombstone for one that was deleted on the server.
+ */
+sealed interface FormResponseSyncChange {
+    data class Update(val formResponse: FormResponse) : FormResponseSyncChange
+
+    data class Deletion(val serverFormId: String) : FormResponseSyncChange
+}
+
+/**
+ * Response of the pre-flight sync probe: the number of entities of each type that changed on the
+ * server since the requested timestamps, keyed by the entity type constants below.
+ */
+data class SyncChangeCounts(val counts: Map<String, Int>) {
+    /**
+     * Whether the server has changes of the given entity [type]. A type that the server didn't
+     * report on is assumed to have changes, so that it is never skipped by mistake.
+     */
+    fun hasChanges(type: String): Boolean = (counts[type] ?: return true) > 0
+
+    companion object {
+        const val PATIENTS = "patients"
+        const val READINGS = "readings"
+        const val REFERRALS = "referrals"
+        const val ASSESSMENTS = "assessments"
+        const val HEALTH_FACILITIES = "healthFacilities"
+        const val FORM_TEMPLATES = "formTemplates"
+        const val FORM_RESPONSES = "forms"
+    }
+}
@@ -0,0 +1,56 @@
+package com.cradleplatform.neptune.http_sms_service.http
+
+/**
+ * Entities to upload in a sync request. Instead of being loaded into a list up front, the entities
+ * are read from the database a page at a time while the request body is being written (see
+ * [buildJsonRequestBody]), so memory use during an upload doesn't grow with the size of the
+ * backlog.
+ *
+ * Pages are read with keyset pagination: [readPage] is given the id of the last entity of the
+ * previous page (empty for the first page) and must return at most `limit` entities with a greater
+ * id, ordered by id. Reading by key instead of by offset keeps the pages correct even if the
+ * request is written more than once (e.g., when OkHttp retries it).
+ *
+ * @property size The number of entities that will be uploaded, used for reporting.
+ */
+class SyncUploadSource<T : Any>(
+    val size: Int,
+    private val pageSize: Int,
+    private val idOf: (T) -> String,
+    private val readPage: suspend (afterId: String, limit: Int) -> List<T>
+) {
+    init {
+        require(pageSize > 0) { "pageSize must be positive, but was $pageSize" }
+    }
+
+    fun isEmpty() = size == 0
+
+    /**
+     * Reads every entity page by page, calling [block] on each one in id order.
+     */
+    suspend fun forEach(block: suspend (T) -> Unit) {
+        var afterId = ""
+        while (true) {
+            val page = readPage(afterId, pageSize)
+            page.forEach { block(it) }
+            if (page.size < pageSize) {
+                return
+            }
+            afterId = idOf(page.last())
+        }
+    }
+
+    companion object {
+        /**
+         * Wraps entities that are already in memory, e.g. for small uploads.
+         */
+        fun <T : Any> of(entities: List<T>) = SyncUploadSource(
+            size = entities.size,
+            pageSize = entities.size + 1,
+            idOf = { "" },
+            readPage = { afterId, _ -> if (afterId.isEmpty()) entities else emptyList() }
+        )
+
+        fun <T : Any> empty() = of(emptyList<T>())
+    }
+}
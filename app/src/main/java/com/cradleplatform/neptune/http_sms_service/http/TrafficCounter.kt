@@ -0,0 +1,89 @@
+package com.cradleplatform.neptune.http_sms_service.http
+
+import kotlinx.coroutines.ThreadContextElement
+import kotlinx.coroutines.asContextElement
+import okhttp3.Call
+import okhttp3.EventListener
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts the HTTP traffic of the calls made by coroutines that have this counter in their context
+ * (see [asContextElement]): the bytes of request and response bodies as sent over the wire (i.e.,
+ * after compression), and how long reading the response bodies took.
+ *
+ * The counter is looked up when a call is made, so concurrent calls from coroutines with different
+ * counters are counted separately, e.g. for the concurrent phases of a sync.
+ */
+class TrafficCounter {
+    private val bytesSent = AtomicLong()
+    private val bytesReceived = AtomicLong()
+    private val responseBodyNanos = AtomicLong()
+    private val networkReadNanos = AtomicLong()
+
+    val totalBytesSent: Long get() = bytesSent.get()
+
+    val totalBytesReceived: Long get() = bytesReceived.get()
+
+    /**
+     * Total time from when response bodies became available until they were fully read. This
+     * includes the time spent processing the bodies while they were read.
+     */
+    val responseBodyMillis: Long get() = TimeUnit.NANOSECONDS.toMillis(responseBodyNanos.get())
+
+    /** The part of [responseBodyMillis] that was spent waiting on the network for response bytes. */
+    val networkReadMillis: Long get() = TimeUnit.NANOSECONDS.toMillis(networkReadNanos.get())
+
+    fun asContextElement(): ThreadContextElement<TrafficCounter?> = currentCounter.asContextElement(this)
+
+    /**
+     * Wraps a response body [inputStream] so that the time spent blocked in reads is counted in
+     * [networkReadMillis].
+     */
+    fun meterReads(inputStream: InputStream): InputStream = object : FilterInputStream(inputStream) {
+        override fun read(): Int = timedRead { super.read() }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int = timedRead { super.read(b, off, len) }
+    }
+
+    private inline fun timedRead(read: () -> Int): Int {
+        val startTime = System.nanoTime()
+        try {
+            return read()
+        } finally {
+            networkReadNanos.addAndGet(System.nanoTime() - startTime)
+        }
+    }
+
+    private fun createEventListener(): EventListener = object : EventListener() {
+        private var responseBodyStartTime = 0L
+
+        override fun requestBodyEnd(call: Call, byteCount: Long) {
+            bytesSent.addAndGet(byteCount)
+        }
+
+        override fun responseBodyStart(call: Call) {
+            responseBodyStartTime = System.nanoTime()
+        }
+
+        override fun responseBodyEnd(call: Call, byteCount: Long) {
+            bytesReceived.addAndGet(byteCount)
+            responseBodyNanos.addAndGet(System.nanoTime() - responseBodyStartTime)
+        }
+    }
+
+    companion object {
+        private val currentCounter = ThreadLocal<TrafficCounter?>()
+
+        /** The counter in the context of the coroutine running on the calling thread, if any. */
+        fun current(): TrafficCounter? = currentCounter.get()
+
+        /** Counts each call for the counter that is [current] when the call is created. */
+        val eventListenerFactory = object : EventListener.Factory {
+            override fun create(call: Call): EventListener =
+                current()?.createEventListener() ?: EventListener.NONE
+        }
+    }
+}
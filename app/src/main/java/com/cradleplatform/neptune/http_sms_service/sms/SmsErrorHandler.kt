@@ -4,7 +4,8 @@ import android.util.Log
 import com.cradleplatform.neptune.manager.SmsKeyManager
 import com.cradleplatform.neptune.model.SmsRelayErrorResponse425
 import com.cradleplatform.neptune.model.DecryptedSmsResponse
-import com.google.gson.Gson
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import javax.inject.Inject
 
 class SmsErrorHandler @Inject constructor(
@@ -32,9 +33,10 @@ class SmsErrorHandler @Inject constructor(
     private fun handleEncryptedRelayError(errCode: Int, encryptedMsg: String): String {
         val smsKey = smsKeyManager.retrieveSmsKey()!!
         val decodedMsg = SMSFormatter.decodeMsg(encryptedMsg, smsKey.key)
-        val decryptedSmsResponse = Gson().fromJson(decodedMsg, DecryptedSmsResponse::class.java)
-        val errorResponse =
-            Gson().fromJson(decryptedSmsResponse.body, SmsRelayErrorResponse425::class.java)
+        val decryptedSmsResponse =
+            JacksonMapper.readerForDecryptedSmsResponse.readValue<DecryptedSmsResponse>(decodedMsg)
+        val errorResponse = JacksonMapper.createReader<SmsRelayErrorResponse425>()
+            .readValue<SmsRelayErrorResponse425>(decryptedSmsResponse.body)
 
         Log.e(
             TAG,
@@ -61,13 +63,14 @@ class SmsErrorHandler @Inject constructor(
         return errorMsg
     }
 
+    @JsonIgnoreProperties(ignoreUnknown = true)
     data class InnerRequestError(
         val description: String?
     )
 
     fun handleInnerError(innerRequestResponse: DecryptedSmsResponse): String {
-        val innerRequestError =
-            Gson().fromJson(innerRequestResponse.body, InnerRequestError::class.java)
+        val innerRequestError = JacksonMapper.createReader<InnerRequestError>()
+            .readValue<InnerRequestError>(innerRequestResponse.body)
         val errorMsg = innerRequestError.description ?: "Unknown Error"
 
         Log.e(TAG, "Inner Error Code: ${innerRequestResponse.code}, Error Msg: $errorMsg")
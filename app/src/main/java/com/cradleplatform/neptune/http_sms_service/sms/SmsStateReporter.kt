@@ -5,7 +5,7 @@ import android.util.Log
 import androidx.lifecycle.MutableLiveData
 import com.cradleplatform.neptune.manager.SmsKeyManager
 import com.cradleplatform.neptune.model.DecryptedSmsResponse
-import com.google.gson.Gson
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -171,7 +171,7 @@ class SmsStateReporter @Inject constructor(
             val decodedMessage = SMSFormatter.decodeMsg(msg, smsKey.key)
 
             val innerRequestResponse =
-                Gson().fromJson(decodedMessage, DecryptedSmsResponse::class.java)
+                JacksonMapper.readerForDecryptedSmsResponse.readValue<DecryptedSmsResponse>(decodedMessage)
             if (SmsErrorHandler.isErrorCode(innerRequestResponse.code)) {
                 val errorMsg = smsErrorHandler.handleInnerError(innerRequestResponse)
                 setErrorStates(innerRequestResponse.code, errorMsg)
@@ -3,7 +3,7 @@ package com.cradleplatform.neptune.http_sms_service.sms.utils
 import android.net.Uri
 import com.cradleplatform.neptune.http_sms_service.http.Http
 import com.cradleplatform.neptune.http_sms_service.sms.SmsStateReporter
-import com.google.gson.Gson
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -24,7 +24,7 @@ class SMSDataProcessor @Inject constructor(
     ): String {
         val uri = Uri.parse(url)
         val endpoint = uri.path ?: throw Exception("URL path is null")
-        return Gson().toJson(
+        return JacksonMapper.writerForSmsJsonData.writeValueAsString(
             SmsJsonData(
                 requestNumber = smsStateReporter.getCurrentRequestNumber(),
                 method = method.name,
@@ -39,6 +39,15 @@ class AssessmentManager @Inject constructor(
         assessmentDao.updateOrInsertIfNotExists(assessment)
     }
 
+    /**
+     * Adds or updates a batch of assessments in the database.
+     * @param assessments the assessments to insert or update
+     */
+    suspend fun addAssessments(assessments: List<Assessment>, areAssessmentsFromServer: Boolean) {
+        if (areAssessmentsFromServer) assessments.forEach { it.isUploadedToServer = true }
+        assessmentDao.updateOrInsertAll(assessments)
+    }
+
     /**
      * Updates an existing assessment in the database.
      * of this class and make this a [suspend] function
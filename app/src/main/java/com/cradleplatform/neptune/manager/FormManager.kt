@@ -7,6 +7,7 @@ import com.cradleplatform.neptune.http_sms_service.http.RestApi
 import com.cradleplatform.neptune.model.FormClassification
 import com.cradleplatform.neptune.model.FormResponse
 import com.cradleplatform.neptune.model.FormTemplate
+import com.cradleplatform.neptune.model.FormTemplateVersion
 import com.cradleplatform.neptune.utilities.Protocol
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -39,6 +40,9 @@ class FormManager @Inject constructor(
     suspend fun addFormByClassification(formClass: FormClassification) =
         formClassDao.addOrUpdateFormClassification(formClass)
 
+    suspend fun getFormTemplateVersions(): List<FormTemplateVersion> =
+        formClassDao.getFormTemplateVersions()
+
     fun getLiveDataFormTemplates(): LiveData<List<FormTemplate>> =
         formClassDao.getAllFormTemplates()
 
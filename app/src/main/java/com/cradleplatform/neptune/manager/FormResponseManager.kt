@@ -52,6 +52,52 @@ class FormResponseManager @Inject constructor(
         formResponseDao.updateOrInsertIfNotExists(formResponse)
     }
 
+    /**
+     * Merges a [formResponse] downloaded from the server into the database, matching it to the one
+     * stored before by [FormResponse.serverFormId]. A form response with the same dateEdited as the
+     * stored one is left untouched, so that observers of the table aren't invalidated for nothing.
+     * A form response submitted from this device is stored without a server id, so a new
+     * [formResponse] replaces such a form response for the same patient and form classification
+     * instead of being added next to it.
+     *
+     * @return whether the database was changed
+     */
+    suspend fun mergeSyncedFormResponse(formResponse: FormResponse): Boolean {
+        val serverFormId = requireNotNull(formResponse.serverFormId) {
+            "only form responses from the server can be merged"
+        }
+        val stored = formResponseDao.getSyncedFormResponseVersion(serverFormId)
+        if (stored != null && stored.dateEdited == formResponse.dateEdited) {
+            return false
+        }
+        val storedId = stored?.formResponseId
+            ?: formResponseDao.getUnmatchedSubmittedFormResponseId(
+                formResponse.patientId,
+                formResponse.formClassificationId
+            )
+
+        if (formResponse.formTemplate.formClassName == null) {
+            formResponse.formTemplate.formClassName =
+                formClassificationDao.getFormClassNameById(formResponse.formClassificationId)
+        }
+        if (storedId == null) {
+            formResponseDao.insert(formResponse)
+        } else {
+            formResponse.formResponseId = storedId
+            formResponseDao.update(formResponse)
+        }
+        return true
+    }
+
+    /**
+     * Deletes the form response downloaded from the server with the id [serverFormId], e.g. when
+     * the server reports that it was deleted.
+     *
+     * @return whether there was such a form response
+     */
+    suspend fun deleteSyncedFormResponse(serverFormId: String): Boolean =
+        formResponseDao.deleteByServerFormId(serverFormId) > 0
+
     /**
      * Deletes a [FormResponse] with the [formResponseId].
      *
@@ -6,13 +6,24 @@ import android.util.Log
 import androidx.core.content.edit
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.CradleDatabase
+import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.readOptArray
+import com.cradleplatform.neptune.ext.jackson.readOptValue
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.cradleplatform.neptune.model.UserRole
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
 import com.cradleplatform.neptune.sync.PeriodicSyncer
+import com.cradleplatform.neptune.sync.SyncCheckpointStore
 import com.cradleplatform.neptune.sync.workers.SyncAllWorker
 import com.cradleplatform.neptune.utilities.SharedPreferencesMigration
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.sync.Mutex
@@ -44,6 +55,8 @@ class LoginManager @Inject constructor(
         // The current relay phone number - default in settings.xml - changeable from the settings
         const val RELAY_PHONE_NUMBER = "currentRelayPhoneNumbers"
         const val USER_ID_KEY = "userId"
+        // The health facility the user belongs to, if the server sent one
+        const val USER_HEALTH_FACILITY_KEY = "userHealthFacility"
     }
 
     fun isLoggedIn(): Boolean {
@@ -89,6 +102,7 @@ class LoginManager @Inject constructor(
                     putInt(USER_ID_KEY, loginResponse.user.id)
                     putString(EMAIL_KEY, loginResponse.user.email)
                     putString(USERNAME_KEY, loginResponse.user.username)
+                    putString(USER_HEALTH_FACILITY_KEY, loginResponse.user.healthFacilityName)
 
                     val phoneNumbersSerialized = loginResponse.user.phoneNumbers.joinToString(",")
                     putString(PHONE_NUMBERS, phoneNumbersSerialized)
@@ -150,6 +164,7 @@ class LoginManager @Inject constructor(
             remove(USER_ID_KEY)
             remove(EMAIL_KEY)
             remove(USERNAME_KEY)
+            remove(USER_HEALTH_FACILITY_KEY)
             remove(PHONE_NUMBERS)
 
             /* Need to do this because the database gets cleared.
@@ -159,7 +174,10 @@ class LoginManager @Inject constructor(
             remove(SyncAllWorker.LAST_REFERRAL_SYNC)
             remove(SyncAllWorker.LAST_ASSESSMENT_SYNC)
             remove(SyncAllWorker.LAST_HEALTH_FACILITIES_SYNC)
+            remove(SyncAllWorker.LAST_FORM_TEMPLATE_SYNC)
+            remove(SyncAllWorker.LAST_FORM_RESPONSE_SYNC)
         }
+        SyncCheckpointStore(sharedPreferences).clearAll()
         smsKeyManager.clearSmsKey()
     }
 }
@@ -168,12 +186,32 @@ class LoginManager @Inject constructor(
  * Models the response sent back by the server for /api/user/auth.
  * Not used outside of LoginManager.
  */
-@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonDeserialize(using = LoginResponse.Deserializer::class)
 data class LoginResponse(
     val accessToken: String,
     val user: LoginResponseUser
-)
+) {
+    /** Unknown fields are skipped. */
+    class Deserializer : StdDeserializer<LoginResponse>(LoginResponse::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): LoginResponse {
+            var accessToken: String? = null
+            var user: LoginResponseUser? = null
+            p.forEachObjectField { field ->
+                when (loginResponseFieldsByText[field]) {
+                    LoginResponseField.ACCESS_TOKEN -> accessToken = textValueOrNull()
+                    LoginResponseField.USER -> user = readOptValue(ctxt, LoginResponseUser::class.java)
+                    else -> skipChildren()
+                }
+            }
+            return LoginResponse(
+                accessToken = ctxt.requireField(this, LoginResponseField.ACCESS_TOKEN, accessToken),
+                user = ctxt.requireField(this, LoginResponseField.USER, user)
+            )
+        }
+    }
+}
 
+@JsonDeserialize(using = LoginResponseUser.Deserializer::class)
 data class LoginResponseUser(
     val id: Int,
     val username: String,
@@ -183,8 +221,80 @@ data class LoginResponseUser(
     val healthFacilityName: String?,
     val phoneNumbers: List<String>,
     val smsKey: SmsKey
-)
+) {
+    /** Unknown fields are skipped. */
+    class Deserializer : StdDeserializer<LoginResponseUser>(LoginResponseUser::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): LoginResponseUser {
+            var id: Int? = null
+            var username: String? = null
+            var email: String? = null
+            var role: String? = null
+            var name: String? = null
+            var healthFacilityName: String? = null
+            var phoneNumbers: List<String>? = null
+            var smsKey: SmsKey? = null
+            p.forEachObjectField { field ->
+                when (loginResponseFieldsByText[field]) {
+                    LoginResponseField.ID -> id = if (currentToken == JsonToken.VALUE_NULL) null else valueAsInt
+                    LoginResponseField.USERNAME -> username = textValueOrNull()
+                    LoginResponseField.EMAIL -> email = textValueOrNull()
+                    LoginResponseField.ROLE -> role = textValueOrNull()
+                    LoginResponseField.NAME -> name = textValueOrNull()
+                    LoginResponseField.HEALTH_FACILITY_NAME -> healthFacilityName = textValueOrNull()
+                    LoginResponseField.PHONE_NUMBERS -> phoneNumbers = readOptArray(ctxt, String::class.java)
+                    LoginResponseField.SMS_KEY -> smsKey = readOptValue(ctxt, SmsKey::class.java)
+                    else -> skipChildren()
+                }
+            }
+            return LoginResponseUser(
+                id = ctxt.requireField(this, LoginResponseField.ID, id),
+                username = ctxt.requireField(this, LoginResponseField.USERNAME, username),
+                email = ctxt.requireField(this, LoginResponseField.EMAIL, email),
+                role = ctxt.requireField(this, LoginResponseField.ROLE, role),
+                name = name,
+                healthFacilityName = healthFacilityName,
+                phoneNumbers = ctxt.requireField(this, LoginResponseField.PHONE_NUMBERS, phoneNumbers),
+                smsKey = ctxt.requireField(this, LoginResponseField.SMS_KEY, smsKey)
+            )
+        }
+    }
+}
 
+@JsonDeserialize(using = RefreshTokenResponse.Deserializer::class)
 data class RefreshTokenResponse(
     val accessToken: String
-)
+) {
+    class Deserializer : StdDeserializer<RefreshTokenResponse>(RefreshTokenResponse::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): RefreshTokenResponse {
+            var accessToken: String? = null
+            p.forEachObjectField { field ->
+                if (field == LoginResponseField.ACCESS_TOKEN.text) {
+                    accessToken = textValueOrNull()
+                } else {
+                    skipChildren()
+                }
+            }
+            return RefreshTokenResponse(
+                accessToken = ctxt.requireField(this, LoginResponseField.ACCESS_TOKEN, accessToken)
+            )
+        }
+    }
+}
+
+private val loginResponseFieldsByText = LoginResponseField.values().associateBy { it.text }
+
+/**
+ * The JSON fields of a [LoginResponse], its [LoginResponseUser] and a [RefreshTokenResponse].
+ */
+private enum class LoginResponseField(override val text: String) : Field {
+    ACCESS_TOKEN("accessToken"),
+    USER("user"),
+    ID("id"),
+    USERNAME("username"),
+    EMAIL("email"),
+    ROLE("role"),
+    NAME("name"),
+    HEALTH_FACILITY_NAME("healthFacilityName"),
+    PHONE_NUMBERS("phoneNumbers"),
+    SMS_KEY("smsKey")
+}
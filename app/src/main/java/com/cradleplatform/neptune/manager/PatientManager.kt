@@ -1,18 +1,36 @@
 package com.cradleplatform.neptune.manager
 
+import android.content.Context
 import androidx.room.withTransaction
+import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.CradleDatabase
 import com.cradleplatform.neptune.database.daos.PatientDao
 import com.cradleplatform.neptune.database.daos.ReadingDao
+import com.cradleplatform.neptune.ext.consumeInBatches
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
+import com.cradleplatform.neptune.http_sms_service.http.SyncException
+import com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource
 import com.cradleplatform.neptune.http_sms_service.http.map
+import com.cradleplatform.neptune.model.GlobalPatient
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.PatientAndReadings
+import com.cradleplatform.neptune.model.PatientSummary
+import com.cradleplatform.neptune.model.PatientSummaryFts
 import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.SyncConflict
+import com.cradleplatform.neptune.sync.SyncMerger
 import com.cradleplatform.neptune.utilities.Protocol
-import kotlinx.coroutines.yield
+import com.cradleplatform.neptune.utilities.UnixTimestamp
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.cradleplatform.neptune.utilities.jackson.JsonMergePatch
+import dagger.hilt.android.qualifiers.ApplicationContext
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
 import java.math.BigInteger
+import java.net.HttpURLConnection
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -25,7 +43,11 @@ class PatientManager @Inject constructor(
     private val patientDao: PatientDao,
     private val readingDao: ReadingDao,
     private val restApi: RestApi,
+    @ApplicationContext context: Context,
 ) {
+    /** The number of downloaded readings saved, or collected, at a time. */
+    private val batchSize = context.resources.getInteger(R.integer.settings_sync_batch_size)
+
     /**
      * add a single patient
      */
@@ -33,6 +55,50 @@ class PatientManager @Inject constructor(
         patientDao.updateOrInsertIfNotExists(patient)
     }
 
+    /**
+     * Saves a patient that was edited on this device but not uploaded, remembering which fields
+     * were changed so that sync only needs to upload those fields.
+     */
+    suspend fun saveLocalEdit(patient: Patient) {
+        database.withTransaction {
+            val stored = patientDao.getPatientById(patient.id)
+            patient.dirtyFields = JsonMergePatch.trackEdit(
+                stored = stored,
+                edited = patient,
+                storedDirtyFields = stored?.dirtyFields ?: emptyList(),
+                isStoredOnServer = stored?.lastServerUpdate != null
+            )
+            patient.dirtyFieldBase = JsonMergePatch.trackBase(
+                stored = stored,
+                dirtyFields = patient.dirtyFields,
+                storedBase = stored?.dirtyFieldBase ?: JacksonMapper.mapper.createObjectNode()
+            )
+            patientDao.updateOrInsertIfNotExists(patient)
+        }
+    }
+
+    /**
+     * add or update a batch of patients
+     */
+    suspend fun addAll(patients: List<Patient>) {
+        patientDao.updateOrInsertAll(patients)
+    }
+
+    /**
+     * Adds or updates a batch of patients downloaded from the server, merging them into the local
+     * patients that still have changes to upload instead of overwriting those changes. Edits that
+     * conflict with the server's are queued as [SyncConflict]s. See [SyncMerger].
+     */
+    suspend fun addAllFromServer(patients: List<Patient>) {
+        val merged = SyncMerger.PATIENTS.mergeBatch(patients, UnixTimestamp.now.toLong()) {
+            patientDao.getPatientsInOutbox(it)
+        }
+        patientDao.updateOrInsertAll(merged.entities)
+        if (merged.conflicts.isNotEmpty()) {
+            database.syncConflictDao().insertAll(merged.conflicts)
+        }
+    }
+
     /**
      * Adds a patient and its reading to the database in a single transaction.
      * The [reading] should be for the given [patient].
@@ -88,11 +154,67 @@ class PatientManager @Inject constructor(
      */
     suspend fun getPatientById(id: String): Patient? = patientDao.getPatientById(id)
 
+    /**
+     * get the prefetched summary of a patient by id if exists
+     */
+    suspend fun getPatientSummary(id: String): PatientSummary? =
+        database.patientSummaryDao().getById(id)
+
+    /**
+     * Downloads the summaries of the patients in the given [healthFacilities] and in the villages
+     * of the local patients, and replaces the prefetched summaries with them. The user's own
+     * patients are kept as well, so that the offline global search finds them too.
+     *
+     * @return the number of summaries saved
+     */
+    suspend fun prefetchPatientSummaries(healthFacilities: Collection<String>): NetworkResult<Int> {
+        val villageNumbers = patientDao.getVillageNumbers()
+        if (healthFacilities.isEmpty() && villageNumbers.isEmpty()) {
+            database.patientSummaryDao().deleteAll()
+            return NetworkResult.Success(0, HttpURLConnection.HTTP_OK)
+        }
+
+        return restApi.getPatientSummaries(healthFacilities, villageNumbers).map { summaries ->
+            database.patientSummaryDao().replaceAll(summaries)
+            summaries.size
+        }
+    }
+
+    /**
+     * Searches the prefetched patient summaries for patients with a name, id, village or health
+     * facility containing a word that starts with each word of the [query]. Answers the global
+     * search without a network connection; the server may know of more patients.
+     */
+    suspend fun searchPatientSummaries(query: String): List<GlobalPatient> {
+        val match = PatientSummaryFts.matchQuery(query) ?: return emptyList()
+        return database.patientSummaryDao().search(match, OFFLINE_SEARCH_LIMIT).map {
+            GlobalPatient(id = it.id, name = it.name, villageNum = it.villageNumber, isMyPatient = false, index = null)
+        }
+    }
+
     /**
      * Get all the patients that have been created or edited offline
      */
     suspend fun getPatientsToUpload(): List<Patient> = patientDao.readPatientsToUpload()
 
+    /**
+     * Get the patients with the given [ids] that have been created or edited offline
+     */
+    suspend fun getPatientsToUpload(ids: List<String>): List<Patient> =
+        patientDao.readPatientsToUploadByIds(ids)
+
+    /**
+     * Get the patients that have been created or edited offline, read from the database
+     * [pageSize] patients at a time while they are being uploaded.
+     */
+    suspend fun getPatientsToUploadSource(pageSize: Int): SyncUploadSource<Patient> =
+        SyncUploadSource(
+            size = patientDao.countPatientsDueForUpload(),
+            pageSize = pageSize,
+            idOf = { it.id },
+            readPage = { afterId, limit -> patientDao.readPatientsToUploadPage(afterId, limit) }
+        )
+
     /**
      * Get the number of patients that have been created or edited offline
      */
@@ -162,8 +284,10 @@ class PatientManager @Inject constructor(
         val result = restApi.putPatient(patient, Protocol.HTTP)
         if (result is NetworkResult.Success) {
             patient.lastServerUpdate = patient.lastEdited
+            add(patient)
+        } else {
+            saveLocalEdit(patient)
         }
-        add(patient)
         return result.map { }
     }
 
@@ -216,6 +340,36 @@ class PatientManager @Inject constructor(
     suspend fun downloadPatientAndReading(id: String): NetworkResult<PatientAndReadings> =
         restApi.getPatient(id, Protocol.HTTP)
 
+    /**
+     * Streaming variant of [downloadPatientAndReading]: [onPatientHeader] is called with the
+     * patient as soon as it has been parsed, before its readings are downloaded. See
+     * [RestApi.getPatientStreaming].
+     *
+     * The readings are collected [batchSize] at a time while they are being parsed, through a
+     * channel of the same capacity, so the parser never gets more than a batch ahead.
+     *
+     * @param id id of the patient to download
+     */
+    suspend fun downloadPatientAndReadingsStreaming(
+        id: String,
+        onPatientHeader: suspend (Patient) -> Unit
+    ): NetworkResult<PatientAndReadings> = coroutineScope {
+        val readingChannel = Channel<Reading>(batchSize)
+        val collector = async {
+            try {
+                ArrayList<Reading>().apply {
+                    readingChannel.consumeInBatches(batchSize) { addAll(it) }
+                }
+            } catch (e: SyncException) {
+                emptyList()
+            }
+        }
+
+        val downloadResult = restApi.getPatientStreaming(id, readingChannel, onPatientHeader)
+        val readings = collector.await()
+        downloadResult.map { patient -> PatientAndReadings(patient, readings) }
+    }
+
     /**
      * Associates a given patient to the active user.
      *
@@ -233,36 +387,69 @@ class PatientManager @Inject constructor(
      * associating a patient to a user means that the patient will be tracked when syncing with the
      * server.
      *
-     * The patient and readings will not be saved in the local database if association fails.
+     * The patient is associated first, and the response is then streamed into the database: the
+     * readings are saved [batchSize] at a time while they are being downloaded, so that a
+     * patient with a long history is never held in memory as a whole. Everything is saved in one
+     * transaction, so nothing is saved if the download fails; the patient is then still associated
+     * and is downloaded by the next sync.
      *
      * @param patientId id of the patient to download, associate, and save
-     * @return A [NetworkResult] of type [Success] for the download patient result if the patient
-     * was associated and saved successfully, else a [Failure] or [Exception] if either downloading
-     * or association failed.
+     * @param onPatientHeader called with the patient as soon as it has been parsed, before its
+     * readings are downloaded
+     * @return A [NetworkResult] of type [Success] with the downloaded patient if the patient was
+     * associated and saved successfully, else a [Failure] or [Exception] if either association or
+     * downloading failed.
      */
     suspend fun downloadAssociateAndSavePatient(
-        patientId: String
-    ): NetworkResult<PatientAndReadings> {
-        val downloadResult = downloadPatientAndReading(patientId)
-        if (downloadResult !is NetworkResult.Success) {
-            return downloadResult
+        patientId: String,
+        onPatientHeader: suspend (Patient) -> Unit = {}
+    ): NetworkResult<Patient> = coroutineScope {
+        val associateResult = associatePatientWithUser(patientId)
+        if (associateResult !is NetworkResult.Success) {
+            return@coroutineScope associateResult.cast()
         }
-        // Safe to cancel here since we only downloaded patients + readings
-        // After this point, we shouldn't have cancellation points, because we want the
-        // resulting operations to be atomic.
-        yield()
 
-        val downloadedPatient = downloadResult.value.patient
-        val associateResult = associatePatientWithUser(downloadedPatient.id)
-        if (associateResult !is NetworkResult.Success) {
-            // If association failed, we shouldn't add the patient and readings to our database.
-            return associateResult.cast()
+        // The readings reference the patient, so the patient header is saved before them, and the
+        // complete patient is saved over it once the whole response has been parsed.
+        val header = CompletableDeferred<Patient>()
+        val completePatient = CompletableDeferred<Patient>()
+        val readingChannel = Channel<Reading>(batchSize)
+        val writer = async {
+            try {
+                database.withTransaction {
+                    patientDao.updateOrInsertIfNotExists(header.await())
+                    readingChannel.consumeInBatches(batchSize) { readings ->
+                        readings.forEach { it.isUploadedToServer = true }
+                        readingDao.insertAll(readings)
+                    }
+                    patientDao.updateOrInsertIfNotExists(completePatient.await())
+                }
+                true
+            } catch (e: SyncException) {
+                false
+            }
         }
 
-        // Otherwise, association was successful, so add to the database
-        val downloadedReadings = downloadResult.value.readings
-        addPatientWithReadings(downloadedPatient, downloadedReadings, areReadingsFromServer = true)
+        val downloadResult = restApi.getPatientStreaming(patientId, readingChannel) { patient ->
+            header.complete(patient)
+            onPatientHeader(patient)
+        }
+        if (downloadResult is NetworkResult.Success) {
+            completePatient.complete(downloadResult.value)
+        } else {
+            val cause = SyncException("failed to download patient $patientId")
+            header.completeExceptionally(cause)
+            completePatient.completeExceptionally(cause)
+        }
+
+        if (!writer.await() && downloadResult is NetworkResult.Success) {
+            return@coroutineScope NetworkResult.NetworkException(SyncException("failed to save patient $patientId"))
+        }
+        downloadResult
+    }
 
-        return downloadResult
+    companion object {
+        /** The maximum number of patients the offline global search returns. */
+        private const val OFFLINE_SEARCH_LIMIT = 100
     }
 }
@@ -5,10 +5,15 @@ import com.cradleplatform.neptune.database.CradleDatabase
 import com.cradleplatform.neptune.database.daos.ReadingDao
 import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.RetestGroup
+import com.cradleplatform.neptune.model.SyncConflict
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
+import com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource
 import com.cradleplatform.neptune.http_sms_service.http.map
+import com.cradleplatform.neptune.sync.SyncMerger
 import com.cradleplatform.neptune.utilities.Protocol
+import com.cradleplatform.neptune.utilities.UnixTimestamp
+import com.cradleplatform.neptune.utilities.jackson.JsonMergePatch
 import kotlinx.coroutines.Dispatchers.Default
 import kotlinx.coroutines.withContext
 import javax.inject.Inject
@@ -44,6 +49,32 @@ class ReadingManager @Inject constructor(
         readingDao.updateOrInsertIfNotExists(reading)
     }
 
+    /**
+     * Adds or updates a batch of readings in the database.
+     * @param readings the readings to insert or update
+     */
+    suspend fun addReadings(readings: List<Reading>, areReadingsFromServer: Boolean) {
+        if (areReadingsFromServer) readings.forEach { it.isUploadedToServer = true }
+
+        readingDao.updateOrInsertAll(readings)
+    }
+
+    /**
+     * Adds or updates a batch of readings downloaded from the server, merging them into the local
+     * readings that still have changes to upload instead of overwriting those changes. Edits that
+     * conflict with the server's are queued as [SyncConflict]s. See [SyncMerger].
+     */
+    suspend fun addReadingsFromServer(readings: List<Reading>) {
+        readings.forEach { it.isUploadedToServer = true }
+        val merged = SyncMerger.READINGS.mergeBatch(readings, UnixTimestamp.now.toLong()) {
+            readingDao.getReadingsInOutbox(it)
+        }
+        readingDao.updateOrInsertAll(merged.entities)
+        if (merged.conflicts.isNotEmpty()) {
+            database.syncConflictDao().insertAll(merged.conflicts)
+        }
+    }
+
     /**
      * Get all the readings.
      */
@@ -73,6 +104,28 @@ class ReadingManager @Inject constructor(
      */
     suspend fun getUnUploadedReadings(): List<Reading> = readingDao.getAllUnUploadedReadings()
 
+    /**
+     * Returns the readings which have not been uploaded to the server yet, read from the database
+     * [pageSize] readings at a time while they are being uploaded.
+     */
+    suspend fun getUnUploadedReadingsSource(pageSize: Int): SyncUploadSource<Reading> =
+        SyncUploadSource(
+            size = readingDao.getNumberOfReadingsDueForUpload(),
+            pageSize = pageSize,
+            idOf = { it.id },
+            readPage = { afterId, limit -> readingDao.getUnUploadedReadingsPage(afterId, limit) }
+        )
+
+    /**
+     * Returns the urgent readings which are due to be uploaded to the server, i.e., the ones in
+     * the red, referred, or with a vitals recheck due within [recheckWindowSeconds] of
+     * [nowSeconds].
+     */
+    suspend fun getUrgentReadingsToUpload(nowSeconds: Long, recheckWindowSeconds: Long): List<Reading> =
+        readingDao.getUrgentReadingsDueForUpload(nowSeconds, recheckWindowSeconds)
+
+    suspend fun getNumberOfUnUploadedReadings(): Int = readingDao.getNumberOfUnUploadedReadings()
+
     suspend fun markAllReadingsAsUploaded() = readingDao.markAllAsUploadedToServer()
 
     /**
@@ -136,11 +189,47 @@ class ReadingManager @Inject constructor(
         lastEdited: Long? = null
     ) {
         database.withTransaction {
-            readingDao.apply {
-                lastEdited?.let { setLastEdited(readingId, it) }
-                setDateRecheckVitalsNeededToNull(readingId)
-                setIsUploadedToServerToZero(readingId)
-            }
+            val reading = readingDao.getReadingById(readingId)
+            val edited = reading.copy(
+                dateRetestNeeded = null,
+                isUploadedToServer = false,
+                lastEdited = lastEdited ?: reading.lastEdited
+            )
+            edited.dirtyFields = JsonMergePatch.trackEdit(
+                stored = reading,
+                edited = edited,
+                storedDirtyFields = reading.dirtyFields,
+                isStoredOnServer = reading.isUploadedToServer
+            )
+            edited.dirtyFieldBase = JsonMergePatch.trackBase(
+                stored = reading,
+                dirtyFields = edited.dirtyFields,
+                storedBase = reading.dirtyFieldBase
+            )
+            readingDao.update(edited)
+        }
+    }
+
+    /**
+     * Saves a reading that was edited on this device, marking it for upload and remembering which
+     * fields were changed so that sync only needs to upload those fields.
+     */
+    suspend fun saveLocalEdit(reading: Reading) {
+        database.withTransaction {
+            val stored = readingDao.getReadingById(reading.id)
+            reading.dirtyFields = JsonMergePatch.trackEdit(
+                stored = stored,
+                edited = reading,
+                storedDirtyFields = stored.dirtyFields,
+                isStoredOnServer = stored.isUploadedToServer
+            )
+            reading.dirtyFieldBase = JsonMergePatch.trackBase(
+                stored = stored,
+                dirtyFields = reading.dirtyFields,
+                storedBase = stored.dirtyFieldBase
+            )
+            reading.isUploadedToServer = false
+            readingDao.update(reading)
         }
     }
 }
@@ -15,6 +15,9 @@ import javax.inject.Inject
 /**
  * Manages uploading readings via HTTP.
  *
+ * Entities uploaded here leave the outbox (see [com.cradleplatform.neptune.model.OutboxEntry]) the
+ * same way as the ones uploaded by a sync: once the server's copies returned by these methods are
+ * saved locally as uploaded. Until then, the next sync uploads them.
  */
 class ReadingUploadManager @Inject constructor(private val restApi: RestApi) {
 
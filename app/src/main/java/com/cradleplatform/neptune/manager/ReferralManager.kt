@@ -1,12 +1,18 @@
 package com.cradleplatform.neptune.manager
 
+import androidx.room.withTransaction
 import com.cradleplatform.neptune.database.CradleDatabase
 import com.cradleplatform.neptune.database.daos.ReferralDao
 import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.model.SyncConflict
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
 import com.cradleplatform.neptune.http_sms_service.http.map
+import com.cradleplatform.neptune.sync.SyncMerger
 import com.cradleplatform.neptune.utilities.Protocol
+import com.cradleplatform.neptune.utilities.UnixTimestamp
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.cradleplatform.neptune.utilities.jackson.JsonMergePatch
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -40,11 +46,50 @@ class ReferralManager @Inject constructor(
     }
 
     /**
-     * Updates an existing referral in the database.
-     * of this class and make this a [suspend] function
+     * Adds or updates a batch of referrals in the database.
+     * @param referrals the referrals to insert or update
+     */
+    suspend fun addReferrals(referrals: List<Referral>, areReferralsFromServer: Boolean) {
+        if (areReferralsFromServer) referrals.forEach { it.isUploadedToServer = true }
+        referralDao.updateOrInsertAll(referrals)
+    }
+
+    /**
+     * Adds or updates a batch of referrals downloaded from the server, merging them into the local
+     * referrals that still have changes to upload instead of overwriting those changes. Edits that
+     * conflict with the server's are queued as [SyncConflict]s. See [SyncMerger].
+     */
+    suspend fun addReferralsFromServer(referrals: List<Referral>) {
+        referrals.forEach { it.isUploadedToServer = true }
+        val merged = SyncMerger.REFERRALS.mergeBatch(referrals, UnixTimestamp.now.toLong()) {
+            referralDao.getReferralsInOutbox(it)
+        }
+        referralDao.updateOrInsertAll(merged.entities)
+        if (merged.conflicts.isNotEmpty()) {
+            database.syncConflictDao().insertAll(merged.conflicts)
+        }
+    }
+
+    /**
+     * Updates an existing referral in the database, remembering which fields were changed so
+     * that sync only needs to upload those fields.
      * @param referral the referral to update
      */
-    suspend fun updateReferral(referral: Referral) = referralDao.update(referral)
+    suspend fun updateReferral(referral: Referral): Int = database.withTransaction {
+        val stored = referralDao.getReferralByReferralId(referral.id)
+        referral.dirtyFields = JsonMergePatch.trackEdit(
+            stored = stored,
+            edited = referral,
+            storedDirtyFields = stored?.dirtyFields ?: emptyList(),
+            isStoredOnServer = stored?.isUploadedToServer == true
+        )
+        referral.dirtyFieldBase = JsonMergePatch.trackBase(
+            stored = stored,
+            dirtyFields = referral.dirtyFields,
+            storedBase = stored?.dirtyFieldBase ?: JacksonMapper.mapper.createObjectNode()
+        )
+        referralDao.update(referral)
+    }
 
     /**
      * Returns the referral (and its associated patient) with a given [id] from
@@ -5,6 +5,7 @@ import com.cradleplatform.neptune.http_sms_service.http.RestApi
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.PatientAndReferrals
 import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.sync.PeriodicSyncer
 import com.cradleplatform.neptune.utilities.Protocol
 import com.cradleplatform.neptune.viewmodel.patients.ReferralFlowSaveResult
 import javax.inject.Inject
@@ -15,7 +16,8 @@ import javax.inject.Inject
 class ReferralUploadManager @Inject constructor(
     private val restApi: RestApi,
     private val referralManager: ReferralManager, // For the internal database.
-    private val patientManager: PatientManager
+    private val patientManager: PatientManager,
+    private val periodicSyncer: PeriodicSyncer
 ) {
 
     suspend fun uploadReferral(
@@ -55,7 +57,12 @@ class ReferralUploadManager @Inject constructor(
                 ReferralFlowSaveResult.SaveSuccessful.NoSmsNeeded
             }
 
-            is NetworkResult.NetworkException -> ReferralFlowSaveResult.NetworkError
+            is NetworkResult.NetworkException -> {
+                // The referral is saved locally, so get it to the server as soon as possible.
+                periodicSyncer.requestExpeditedSync()
+                ReferralFlowSaveResult.NetworkError
+            }
+
             else -> ReferralFlowSaveResult.ErrorUploadingReferral
         }
     }
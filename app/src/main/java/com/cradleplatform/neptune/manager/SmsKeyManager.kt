@@ -4,8 +4,21 @@ import android.content.Context
 import android.content.SharedPreferences
 import androidx.security.crypto.EncryptedSharedPreferences
 import androidx.security.crypto.MasterKey
+import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
+import com.cradleplatform.neptune.ext.jackson.writeStringField
 import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import com.cradleplatform.neptune.viewmodel.UserViewModel.Companion.SMS_SECRET_KEY
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import dagger.hilt.android.qualifiers.ApplicationContext
 import java.text.SimpleDateFormat
 import java.util.Calendar
@@ -118,9 +131,57 @@ class SmsKeyManager @Inject constructor(@ApplicationContext private val context:
     }
 }
 
+@JsonSerialize(using = SmsKey.Serializer::class)
+@JsonDeserialize(using = SmsKey.Deserializer::class)
 data class SmsKey(
     val key: String,
     val message: String,
     val expiryDate: String,
     val staleDate: String
-)
+) {
+    class Serializer : StdSerializer<SmsKey>(SmsKey::class.java) {
+        override fun serialize(smsKey: SmsKey, gen: JsonGenerator, provider: SerializerProvider) {
+            smsKey.run {
+                gen.writeStartObject()
+                gen.writeStringField(SmsKeyField.KEY, key)
+                gen.writeStringField(SmsKeyField.MESSAGE, message)
+                gen.writeStringField(SmsKeyField.EXPIRY_DATE, expiryDate)
+                gen.writeStringField(SmsKeyField.STALE_DATE, staleDate)
+                gen.writeEndObject()
+            }
+        }
+    }
+
+    class Deserializer : StdDeserializer<SmsKey>(SmsKey::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): SmsKey {
+            var key: String? = null
+            var message: String? = null
+            var expiryDate: String? = null
+            var staleDate: String? = null
+            p.forEachObjectField { field ->
+                when (smsKeyFieldsByText[field]) {
+                    SmsKeyField.KEY -> key = textValueOrNull()
+                    SmsKeyField.MESSAGE -> message = textValueOrNull()
+                    SmsKeyField.EXPIRY_DATE -> expiryDate = textValueOrNull()
+                    SmsKeyField.STALE_DATE -> staleDate = textValueOrNull()
+                    else -> skipChildren()
+                }
+            }
+            return SmsKey(
+                key = ctxt.requireField(this, SmsKeyField.KEY, key),
+                message = ctxt.requireField(this, SmsKeyField.MESSAGE, message),
+                expiryDate = ctxt.requireField(this, SmsKeyField.EXPIRY_DATE, expiryDate),
+                staleDate = ctxt.requireField(this, SmsKeyField.STALE_DATE, staleDate)
+            )
+        }
+    }
+}
+
+private val smsKeyFieldsByText = SmsKeyField.values().associateBy { it.text }
+
+private enum class SmsKeyField(override val text: String) : Field {
+    KEY("key"),
+    MESSAGE("message"),
+    EXPIRY_DATE("expiryDate"),
+    STALE_DATE("staleDate")
+}
@@ -0,0 +1,90 @@
+package com.cradleplatform.neptune.manager
+
+import androidx.lifecycle.LiveData
+import androidx.room.withTransaction
+import com.cradleplatform.neptune.database.CradleDatabase
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.SyncConflict
+import com.cradleplatform.neptune.sync.SyncMerger
+import com.cradleplatform.neptune.utilities.UnixTimestamp
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Manager for the [SyncConflict]s that sync found between edits made on this device and on the
+ * server, which are waiting for the user to decide which value to keep.
+ */
+@Singleton
+class SyncConflictManager @Inject constructor(
+    private val database: CradleDatabase,
+    private val patientManager: PatientManager,
+    private val readingManager: ReadingManager,
+    private val referralManager: ReferralManager
+) {
+    private val dao = database.syncConflictDao()
+
+    /**
+     * The number of conflicts waiting for the user.
+     */
+    val conflictCount: LiveData<Int> = dao.countLiveData()
+
+    suspend fun getConflicts(): List<SyncConflict> = dao.getAll()
+
+    suspend fun getConflicts(type: OutboxEntityType, id: String): List<SyncConflict> =
+        dao.getForEntity(type, id)
+
+    /**
+     * Resolves the [conflict] by keeping the server's value, which is the value already saved.
+     */
+    suspend fun keepServerValue(conflict: SyncConflict) {
+        dao.delete(conflict)
+    }
+
+    /**
+     * Resolves the [conflict] by keeping the value edited on this device. The value is saved as a
+     * new local edit, so that the next sync uploads it over the server's value.
+     *
+     * @return false if the value can't be applied to the entity (e.g., a patient that was deleted),
+     * in which case the conflict is dropped and the server's value is kept
+     */
+    suspend fun keepLocalValue(conflict: SyncConflict): Boolean = database.withTransaction {
+        val isApplied = when (conflict.entityType) {
+            OutboxEntityType.PATIENT -> {
+                val patient = patientManager.getPatientById(conflict.entityId)?.copy()
+                if (patient != null && SyncMerger.PATIENTS.applyValue(patient, conflict)) {
+                    patient.lastEdited = UnixTimestamp.now.toLong()
+                    patientManager.saveLocalEdit(patient)
+                    true
+                } else {
+                    false
+                }
+            }
+            OutboxEntityType.READING -> {
+                val reading = readingManager.getReadingById(conflict.entityId).copy()
+                if (SyncMerger.READINGS.applyValue(reading, conflict)) {
+                    reading.lastEdited = UnixTimestamp.now.toLong()
+                    readingManager.saveLocalEdit(reading)
+                    true
+                } else {
+                    false
+                }
+            }
+            OutboxEntityType.REFERRAL -> {
+                val referral = database.referralDao().getReferralByReferralId(conflict.entityId)?.copy()
+                if (referral != null && SyncMerger.REFERRALS.applyValue(referral, conflict)) {
+                    referral.isUploadedToServer = false
+                    referralManager.updateReferral(referral)
+                    true
+                } else {
+                    false
+                }
+            }
+            OutboxEntityType.ASSESSMENT -> false
+        }
+        dao.delete(conflict)
+        isApplied
+    }
+
+    private fun <T : Any> SyncMerger<T>.applyValue(entity: T, conflict: SyncConflict) =
+        applyValue(entity, conflict.field, conflict.localValue)
+}
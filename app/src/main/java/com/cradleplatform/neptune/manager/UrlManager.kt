@@ -1,8 +1,11 @@
 package com.cradleplatform.neptune.manager
 
 import android.util.Log
+import com.cradleplatform.neptune.http_sms_service.http.SyncChangeCounts
+import com.cradleplatform.neptune.http_sms_service.http.SyncCursor
 import com.cradleplatform.neptune.model.Settings
 import java.math.BigInteger
+import java.net.URLEncoder
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -59,6 +62,13 @@ class UrlManager @Inject constructor(val settings: Settings) {
     val getAllFormsAsSummary: String
         get() = "$base/forms/classifications/summary"
 
+    /**
+     * Endpoint for getting the FormTemplates (in the same format as [getAllFormsAsSummary]) that
+     * are new or differ from the template versions posted to it
+     */
+    val getChangedFormsAsSummary: String
+        get() = "$base/forms/classifications/summary/changes"
+
     /**
      * Endpoint for posting a new patient.
      */
@@ -156,20 +166,54 @@ class UrlManager @Inject constructor(val settings: Settings) {
      */
     fun getGlobalPatientSearch(query: String) = "$base/patient/global/$query"
 
+    /**
+     * Summaries of the patients in any of the given [healthFacilities] or [villageNumbers], for
+     * prefetching. The parameters are repeated for every facility and village.
+     */
+    fun getPatientSummaries(healthFacilities: Collection<String>, villageNumbers: Collection<String>): String =
+        "$base/patients/summaries?" + (
+            healthFacilities.map { "healthFacility=${URLEncoder.encode(it, "UTF-8")}" } +
+                villageNumbers.map { "villageNumber=${URLEncoder.encode(it, "UTF-8")}" }
+            ).joinToString("&")
+
     /**
      * provides all the updates related to the user since the [currTime] stamp
      */
     @Deprecated("use new sync function", ReplaceWith("getUpdatesNew()"))
     fun getUpdates(currTime: BigInteger): String = "$base/sync/updates?since=$currTime"
 
-    fun getPatientsSync(lastSyncTimestamp: BigInteger): String =
-        "$base/sync/patients?since=$lastSyncTimestamp"
+    /**
+     * @param isDeltaUpload whether the uploaded body may contain JSON merge patches for edited
+     * patients instead of only full patients
+     */
+    fun getPatientsSync(lastSyncTimestamp: BigInteger, isDeltaUpload: Boolean = false): String =
+        "$base/sync/patients?since=$lastSyncTimestamp" + deltaParam(isDeltaUpload)
+
+    fun getReadingsSync(lastSyncTimestamp: BigInteger, isDeltaUpload: Boolean = false): String =
+        "$base/sync/readings?since=$lastSyncTimestamp" + deltaParam(isDeltaUpload)
+
+    /**
+     * Paged variant of [getReadingsSync]. The server sends at most [limit] readings ordered by
+     * (lastEdited, id), starting right after the reading described by [after] if it is given.
+     */
+    fun getReadingsSyncPage(
+        lastSyncTimestamp: BigInteger,
+        limit: Int,
+        after: SyncCursor?,
+        isDeltaUpload: Boolean = false
+    ): String {
+        val url = "$base/sync/readings?since=$lastSyncTimestamp&limit=$limit" + deltaParam(isDeltaUpload)
+        return if (after == null) {
+            url
+        } else {
+            "$url&afterLastEdited=${after.lastEdited}&afterId=${URLEncoder.encode(after.id, "UTF-8")}"
+        }
+    }
 
-    fun getReadingsSync(lastSyncTimestamp: BigInteger): String =
-        "$base/sync/readings?since=$lastSyncTimestamp"
+    fun getReferralsSync(lastSyncTimestamp: BigInteger, isDeltaUpload: Boolean = false): String =
+        "$base/sync/referrals?since=$lastSyncTimestamp" + deltaParam(isDeltaUpload)
 
-    fun getReferralsSync(lastSyncTimestamp: BigInteger): String =
-        "$base/sync/referrals?since=$lastSyncTimestamp"
+    private fun deltaParam(isDeltaUpload: Boolean) = if (isDeltaUpload) "&delta=true" else ""
 
     fun getAssessmentsSync(lastSyncTimestamp: BigInteger): String =
         "$base/sync/assessments?since=$lastSyncTimestamp"
@@ -179,6 +223,21 @@ class UrlManager @Inject constructor(val settings: Settings) {
 
     fun getUpdatesNew(): String = "$base/sync/updates"
 
+    /**
+     * Syncs patients, readings, referrals and assessments, and downloads health facilities, in
+     * one request. [sinceByType] is keyed by the types in [SyncChangeCounts].
+     */
+    fun getCombinedSync(sinceByType: Map<String, BigInteger>, isDeltaUpload: Boolean = false): String =
+        "$base/sync/all?" + sinceByType.entries.joinToString("&") { (type, since) -> "$type=$since" } +
+            deltaParam(isDeltaUpload)
+
+    /**
+     * Pre-flight sync probe for the number of entities of each type that changed on the server
+     * since the given timestamps. [sinceByType] is keyed by the types in [SyncChangeCounts].
+     */
+    fun getSyncChanges(sinceByType: Map<String, BigInteger>): String =
+        "$base/sync/changes?" + sinceByType.entries.joinToString("&") { (type, since) -> "$type=$since" }
+
     /**
      * get a single reading by id
      */
@@ -6,7 +6,9 @@ import androidx.room.ForeignKey
 import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.cradleplatform.neptune.ext.Field
-import com.cradleplatform.neptune.ext.jackson.get
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.cradleplatform.neptune.ext.jackson.writeIntField
 import com.cradleplatform.neptune.ext.jackson.writeLongField
 import com.cradleplatform.neptune.ext.jackson.writeOptBooleanField
@@ -17,8 +19,8 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
-import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
@@ -129,36 +131,56 @@ data class Assessment(
     }
 
     class Deserializer : StdDeserializer<Assessment>(Assessment::class.java) {
-        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Assessment =
-            p.codec.readTree<JsonNode>(p)!!.run {
-                val id = get(AssessmentField.ID)!!.textValue()
-                val dateAssessed = get(AssessmentField.DATE_ASSESSED)!!.longValue()
-                val healthcareWorkerId = get(AssessmentField.HEALTHCARE_WORKER_ID)!!.intValue()
-                val patientId = get(AssessmentField.PATIENT_ID)!!.textValue()
-                val diagnosis = get(AssessmentField.DIAGNOSIS)?.textValue()
-                val treatment = get(AssessmentField.TREATMENT)?.textValue()
-                val medicationPrescribed = get(AssessmentField.MEDICATION_PRESCRIBED)?.textValue()
-                val specialInvestigations = get(AssessmentField.SPECIAL_INVESTIGATIONS)?.textValue()
-                val followUpNeeded = get(AssessmentField.FOLLOW_UP_NEEDED)?.booleanValue()
-                val followUpInstructions = get(AssessmentField.FOLLOW_UP_INSTRUCTIONS)?.textValue()
-                val lastEdited = get(AssessmentField.LAST_EDITED)?.longValue()
-                val lastServerUpdate = get(AssessmentField.LAST_SERVER_UPDATE)?.longValue()
-
-                return@run Assessment(
-                    id = id,
-                    dateAssessed = dateAssessed,
-                    healthcareWorkerId = healthcareWorkerId,
-                    patientId = patientId,
-                    diagnosis = diagnosis,
-                    treatment = treatment,
-                    medicationPrescribed = medicationPrescribed,
-                    specialInvestigations = specialInvestigations,
-                    followUpNeeded = followUpNeeded,
-                    followUpInstructions = followUpInstructions,
-                    lastEdited = lastEdited,
-                    lastServerUpdate = lastServerUpdate
-                )
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Assessment {
+            var id: String? = null
+            var dateAssessed: Long? = null
+            var healthcareWorkerId: Int? = null
+            var patientId: String? = null
+            var diagnosis: String? = null
+            var treatment: String? = null
+            var medicationPrescribed: String? = null
+            var specialInvestigations: String? = null
+            var followUpNeeded: Boolean? = null
+            var followUpInstructions: String? = null
+            var lastEdited: Long? = null
+            var lastServerUpdate: Long? = null
+            p.forEachObjectField { name ->
+                when (assessmentFieldsByText[name]) {
+                    AssessmentField.ID -> id = textValueOrNull()
+                    AssessmentField.DATE_ASSESSED -> dateAssessed = valueAsLong
+                    AssessmentField.HEALTHCARE_WORKER_ID -> healthcareWorkerId = valueAsInt
+                    AssessmentField.PATIENT_ID -> patientId = textValueOrNull()
+                    AssessmentField.DIAGNOSIS -> diagnosis = textValueOrNull()
+                    AssessmentField.TREATMENT -> treatment = textValueOrNull()
+                    AssessmentField.MEDICATION_PRESCRIBED -> medicationPrescribed = textValueOrNull()
+                    AssessmentField.SPECIAL_INVESTIGATIONS -> specialInvestigations = textValueOrNull()
+                    AssessmentField.FOLLOW_UP_NEEDED -> followUpNeeded = currentToken == JsonToken.VALUE_TRUE
+                    AssessmentField.FOLLOW_UP_INSTRUCTIONS -> followUpInstructions = textValueOrNull()
+                    AssessmentField.LAST_EDITED -> lastEdited = valueAsLong
+                    AssessmentField.LAST_SERVER_UPDATE -> lastServerUpdate = valueAsLong
+                    else -> skipChildren()
+                }
             }
+
+            return Assessment(
+                id = ctxt.requireField(this, AssessmentField.ID, id),
+                dateAssessed = ctxt.requireField(this, AssessmentField.DATE_ASSESSED, dateAssessed),
+                healthcareWorkerId = ctxt.requireField(
+                    this,
+                    AssessmentField.HEALTHCARE_WORKER_ID,
+                    healthcareWorkerId
+                ),
+                patientId = ctxt.requireField(this, AssessmentField.PATIENT_ID, patientId),
+                diagnosis = diagnosis,
+                treatment = treatment,
+                medicationPrescribed = medicationPrescribed,
+                specialInvestigations = specialInvestigations,
+                followUpNeeded = followUpNeeded,
+                followUpInstructions = followUpInstructions,
+                lastEdited = lastEdited,
+                lastServerUpdate = lastServerUpdate
+            )
+        }
     }
 
     object AscendingDataComparator : Comparator<Assessment> {
@@ -180,6 +202,8 @@ data class Assessment(
     }
 }
 
+private val assessmentFieldsByText = AssessmentField.values().associateBy { it.text }
+
 private enum class AssessmentField(override val text: String) : Field {
     ID("id"),
     DATE_ASSESSED("dateAssessed"),
@@ -1,5 +1,8 @@
 package com.cradleplatform.neptune.model
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+
+@JsonIgnoreProperties(ignoreUnknown = true)
 data class DecryptedSmsResponse(
     val code: Int,
     val body: String,
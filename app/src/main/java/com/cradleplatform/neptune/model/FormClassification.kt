@@ -2,11 +2,12 @@ package com.cradleplatform.neptune.model
 
 import android.util.Log
 import androidx.room.Entity
-import com.google.gson.Gson
-import com.google.gson.JsonDeserializationContext
-import com.google.gson.JsonDeserializer
-import com.google.gson.JsonElement
-import java.lang.reflect.Type
+import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 
 /**
  * Holds the latest version of [FormTemplate] for a [FormClassification]
@@ -17,52 +18,61 @@ import java.lang.reflect.Type
  * @property formClassId The unique ID for the form classification (auto-generated in the backend)
  * @property formClassName The name for the classification for the set of different versions for same form
  * @property formTemplate The Json String for a formTemplate, stores the latest version got from server
+ * @property templateId The id of [formTemplate], stored separately so that [FormTemplateVersion]s
+ * can be queried without reading every template
+ * @property templateVersion The version of [formTemplate]
  */
 @Entity(
     indices = [],
     primaryKeys = ["formClassId"]
 )
+@JsonDeserialize(using = FormClassification.DeserializerFromFormTemplateStream::class)
 class FormClassification(
     var formClassId: String,
 
     var formClassName: String,
 
-    var formTemplate: FormTemplate
+    var formTemplate: FormTemplate,
+
+    var templateId: String? = formTemplate.id,
+
+    var templateVersion: String? = formTemplate.version
 ) {
 
     /**
-     * A custom Gson Deserializer for Interpreting incoming
+     * A custom Deserializer for Interpreting incoming
      * backend FormTemplate(deep copy with Classification)
      * into Android FormClassification object
      */
-    class DeserializerFromFormTemplateStream : JsonDeserializer<FormClassification> {
-        override fun deserialize(
-            json: JsonElement?,
-            typeOfT: Type?,
-            context: JsonDeserializationContext?
-        ): FormClassification {
-
-            //printJson(json)
-            val formTemplate = Gson().fromJson(json, FormTemplate::class.java)
-            // Log.d("FormClassification", "FormTemplate: $formTemplate")
+    class DeserializerFromFormTemplateStream :
+        StdDeserializer<FormClassification>(FormClassification::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): FormClassification {
+            val json = p.codec.readTree<JsonNode>(p)
+            val formTemplate = p.codec.treeToValue(json, FormTemplate::class.java)
 
-            var className: String
-            var classId: String
-
-            json!!.asJsonObject.let { rootObject ->
-                rootObject!!.getAsJsonObject("classification").let {
-                        classification ->
-                    className = classification.get("name").asString
-                    classId = classification.get("id").asString
-                }
-            }
+            val classification = json.get("classification")!!
+            val className = classification.get("name")!!.asText()
+            val classId = classification.get("id")!!.asText()
 
             return FormClassification(classId, className, formTemplate)
         }
     }
 }
 
-fun printJson(json: JsonElement?) {
+/**
+ * Identifies the [FormTemplate] stored for a [FormClassification]. Sent to the server during sync so
+ * that only templates that are new or have changed since are downloaded.
+ */
+data class FormTemplateVersion(
+    @get:JsonProperty("classificationId")
+    val formClassId: String,
+    @get:JsonProperty("templateId")
+    val templateId: String?,
+    @get:JsonProperty("version")
+    val templateVersion: String?
+)
+
+fun printJson(json: JsonNode?) {
     var sb = json.toString()
     if (sb.length > 4000) {
         Log.v("WEST123", "sb.length = " + sb.length)
@@ -5,8 +5,10 @@ import androidx.room.Entity
 import androidx.room.ForeignKey
 import androidx.room.Index
 import androidx.room.PrimaryKey
-import com.google.gson.annotations.Expose
-import com.google.gson.annotations.SerializedName
+import com.fasterxml.jackson.annotation.JsonAutoDetect
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.annotation.JsonProperty
 import java.io.Serializable
 
 /**
@@ -29,7 +31,8 @@ import java.io.Serializable
 @Entity(
     indices = [
         Index(value = ["formResponseId"], unique = true),
-        Index(value = ["patientId"])
+        Index(value = ["patientId"]),
+        Index(value = ["serverFormId"], unique = true)
     ],
     foreignKeys = [
         ForeignKey(
@@ -41,6 +44,11 @@ import java.io.Serializable
         ),
     ],
 )
+@JsonAutoDetect(
+    getterVisibility = JsonAutoDetect.Visibility.NONE,
+    isGetterVisibility = JsonAutoDetect.Visibility.NONE
+)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 class FormResponse
 @Throws(IllegalArgumentException::class)
 constructor(
@@ -52,25 +60,25 @@ constructor(
     var answers: Map<String, Answer>,
     var saveResponseToSendLater: Boolean = false
 ) {
-    // Fields that should be exposed to GSON serialization (aka fields that are necessary for the
-    // form when being sent through Wifi) should be marked with @Expose.
-    // Fields that are only relevant locally (e.g. "formTemplate") should NOT be marked @Expose.
-    @Expose
+    // Fields that should be serialized (aka fields that are necessary for the form when being
+    // sent through Wifi) should be marked with @get:JsonProperty.
+    // Fields that are only relevant locally (e.g. "formTemplate") should NOT be marked.
+    @get:JsonProperty("archived")
     var archived: Boolean
-    @Expose
+    @get:JsonProperty("formClassificationId")
     var formClassificationId: String
     var formClassificationName: String?
-    @Expose
+    @get:JsonProperty("dateCreated")
     var dateCreated: Long
-    @Expose
-    @SerializedName("lang")
+    @get:JsonProperty("lang")
     var language: String = language
-    @Expose
-    @SerializedName("questions")
+    @get:JsonProperty("questions")
     var questionResponses: List<QuestionResponse>
-    @Expose
+    @get:JsonProperty("patientId")
     var patientId = patientId
     var dateEdited: Long
+    // The server's id for a form response downloaded during sync; null for local form responses.
+    var serverFormId: String? = null
 
     init {
 
@@ -189,15 +197,16 @@ constructor(
          "questionText":"Referred by"
       },
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
 class QuestionResponse(
-    @Expose @SerializedName("questionType") val questionType: QuestionTypeEnum,
-    @Expose @SerializedName("hasCommentAttached") val hasCommentAttached: Boolean,
-    @Expose @SerializedName("answers") var answers: Answer,
-    @Expose @SerializedName("required") val required: Boolean,
-    @Expose @SerializedName("visibleCondition") val visibleCondition: List<VisibleCondition>,
-    @Expose @SerializedName("isBlank") val isBlank: Boolean = false,
-    @Expose @SerializedName("formTemplateId") val formTemplateId: String,
-    @Expose @SerializedName("mcOptions") val mcOptions: List<McOption>,
-    @Expose @SerializedName("questionIndex") val questionIndex: Int,
-    @Expose @SerializedName("questionText") val languageSpecificText: String,
+    @JsonProperty("questionType") val questionType: QuestionTypeEnum,
+    @JsonProperty("hasCommentAttached") val hasCommentAttached: Boolean,
+    @JsonProperty("answers") var answers: Answer,
+    @JsonProperty("required") val required: Boolean,
+    @JsonProperty("visibleCondition") val visibleCondition: List<VisibleCondition>,
+    @JsonProperty("isBlank") @get:JsonProperty("isBlank") val isBlank: Boolean = false,
+    @JsonProperty("formTemplateId") val formTemplateId: String,
+    @JsonProperty("mcOptions") val mcOptions: List<McOption>,
+    @JsonProperty("questionIndex") val questionIndex: Int,
+    @JsonProperty("questionText") val languageSpecificText: String,
 ) : Serializable
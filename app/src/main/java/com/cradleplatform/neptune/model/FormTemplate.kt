@@ -1,33 +1,38 @@
 package com.cradleplatform.neptune.model
 
 import android.util.Log
-import com.google.gson.annotations.Expose
-import com.google.gson.annotations.SerializedName
+import com.fasterxml.jackson.annotation.JsonCreator
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.annotation.JsonProperty
 import java.io.Serializable
 
 /**
  *  [FormTemplate] stores the form templated that synced from backend.
  *  Dynamically implemented so that it can be updated for newer version of templates.
  *  'Answers' class could be any type of user input, just add String type for now.
- *  Currently using Gson, could use another library if needed.
+ *  Parsed and stored with Jackson, like the rest of the models. Null fields are left out when
+ *  written, and unknown fields are ignored when read.
  *
  *  !!Field Nullability!!
  *
- *  As it is possible that Gson bypasses non-null check when paring,
- *  (reference: https://stackoverflow.com/questions/71923931/null-safety-issues-with-gson-in-kotlin)
- *  every auto-parsed field is nullable, so that user requires to perform null-safety check
+ *  Fields missing from the backend's template are parsed as null instead of failing the parse,
+ *  so every auto-parsed field is nullable, and user requires to perform null-safety check
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class FormTemplate(
 
     // version (assigned by system admin to loosely track version. May be "Jan 2022", or "V1", ...)
-    @SerializedName("version") val version: String?,
-    @SerializedName("archived") val archived: Boolean?,
+    @JsonProperty("version") val version: String?,
+    @JsonProperty("archived") val archived: Boolean?,
     // timestamp (filled by server when created)
-    @SerializedName("dateCreated") val dateCreated: Long?,
-    @SerializedName("id") val id: String?,
-    @SerializedName("formClassificationId") val formClassId: String?,
-    @SerializedName("formClassificationName") var formClassName: String?,
-    @SerializedName("questions") val questions: List<Question>?,
+    @JsonProperty("dateCreated") val dateCreated: Long?,
+    @JsonProperty("id") val id: String?,
+    @JsonProperty("formClassificationId") val formClassId: String?,
+    @JsonProperty("formClassificationName") var formClassName: String?,
+    @JsonProperty("questions") val questions: List<Question>?,
 
 ) : Serializable {
 
@@ -116,22 +121,24 @@ enum class QuestionTypeEnum {
     CATEGORY,
 }
 
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class Question(
-    @SerializedName("id") var id: String?,
-    @SerializedName("allowPastDates") val allowPastDates: Boolean?,
-    @SerializedName("allowFutureDates") val allowFutureDates: Boolean?,
-    @SerializedName("visibleCondition") val visibleCondition: List<VisibleCondition>?,
-    @SerializedName("isBlank") val isBlank: Boolean?, // Should be true for FormTemplates
-    @SerializedName("formTemplateId") val formTemplateId: String?, // Backend-Nullable
-    @SerializedName("questionIndex") val questionIndex: Int?,
-    @SerializedName("numMin") val numMin: Double?, // Backend-Nullable
-    @SerializedName("numMax") val numMax: Double?, // Backend-Nullable
-    @SerializedName("stringMaxLength") val stringMaxLength: Int?, // Backend-Nullable
-    @SerializedName("stringMaxLines") val stringMaxLines: Int?, // Backend-Nullable
-    @SerializedName("questionType") val questionType: QuestionTypeEnum?,
-    @SerializedName("hasCommentAttached") val hasCommentAttached: Boolean?,
-    @SerializedName("required") val required: Boolean?,
-    @SerializedName("langVersions") val languageVersions: List<QuestionLangVersion>?
+    @JsonProperty("id") var id: String?,
+    @JsonProperty("allowPastDates") val allowPastDates: Boolean?,
+    @JsonProperty("allowFutureDates") val allowFutureDates: Boolean?,
+    @JsonProperty("visibleCondition") val visibleCondition: List<VisibleCondition>?,
+    @JsonProperty("isBlank") @get:JsonProperty("isBlank") val isBlank: Boolean?, // Should be true for FormTemplates
+    @JsonProperty("formTemplateId") val formTemplateId: String?, // Backend-Nullable
+    @JsonProperty("questionIndex") val questionIndex: Int?,
+    @JsonProperty("numMin") val numMin: Double?, // Backend-Nullable
+    @JsonProperty("numMax") val numMax: Double?, // Backend-Nullable
+    @JsonProperty("stringMaxLength") val stringMaxLength: Int?, // Backend-Nullable
+    @JsonProperty("stringMaxLines") val stringMaxLines: Int?, // Backend-Nullable
+    @JsonProperty("questionType") val questionType: QuestionTypeEnum?,
+    @JsonProperty("hasCommentAttached") val hasCommentAttached: Boolean?,
+    @JsonProperty("required") val required: Boolean?,
+    @JsonProperty("langVersions") val languageVersions: List<QuestionLangVersion>?
 ) : Serializable {
 
     override fun toString(): String {
@@ -208,12 +215,14 @@ data class Question(
     }
 }
 
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class QuestionLangVersion(
-    @SerializedName("lang") val language: String?,
-    @SerializedName("questionId") val parentId: String?,
-    @SerializedName("questionText") val questionText: String?,
-    @SerializedName("id") val questionTextId: Int?,
-    @SerializedName("mcOptions") val mcOptions: List<McOption>?
+    @JsonProperty("lang") val language: String?,
+    @JsonProperty("questionId") val parentId: String?,
+    @JsonProperty("questionText") val questionText: String?,
+    @JsonProperty("id") val questionTextId: Int?,
+    @JsonProperty("mcOptions") val mcOptions: List<McOption>?
 ) : Serializable {
 
     override fun toString(): String {
@@ -252,9 +261,11 @@ data class QuestionLangVersion(
     }
 }
 
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class McOption(
-    @Expose @SerializedName("mcId") val mcId: Int?,
-    @Expose @SerializedName("opt") val opt: String?
+    @JsonProperty("mcId") val mcId: Int?,
+    @JsonProperty("opt") val opt: String?
 ) : Serializable {
 
     fun verifyIntegrity(): Boolean {
@@ -277,10 +288,12 @@ data class McOption(
     }
 }
 
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class VisibleCondition(
-    @Expose @SerializedName("questionIndex") val questionIndex: Int?,
-    @Expose @SerializedName("relation") val relation: String?,
-    @Expose @SerializedName("answers") var answerCondition: Answer?
+    @JsonProperty("questionIndex") val questionIndex: Int?,
+    @JsonProperty("relation") val relation: String?,
+    @JsonProperty("answers") var answerCondition: Answer?
 ) : Serializable {
 
     fun verifyIntegrity(): Boolean {
@@ -324,13 +337,16 @@ data class VisibleCondition(
  *    only one type (or with comment) is in the Json object
  *
  */
-data class Answer private constructor(
-    @Expose @SerializedName("number") val numericAnswer: Number?,
-    @Expose @SerializedName("text") val textAnswer: String?,
-    @Expose @SerializedName("mcIdArray") val mcIdArrayAnswer: List<Int>?,
-    @Expose @SerializedName("comment") val comment: String?,
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class Answer @JsonCreator private constructor(
+    @JsonProperty("number") val numericAnswer: Number?,
+    @JsonProperty("text") val textAnswer: String?,
+    @JsonProperty("mcIdArray") val mcIdArrayAnswer: List<Int>?,
+    @JsonProperty("comment") val comment: String?,
 ) : Serializable {
 
+    @JsonIgnore
     fun isValidAnswer(): Boolean {
         if (numericAnswer != null) return true
         if (mcIdArrayAnswer != null && mcIdArrayAnswer.isNotEmpty()) return true
@@ -4,8 +4,15 @@ import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.PrimaryKey
 import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.fasterxml.jackson.annotation.JsonIgnore
 import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 
 /**
  * A health facility database entity.
@@ -20,6 +27,7 @@ import com.fasterxml.jackson.annotation.JsonProperty
  *
  */
 @Entity
+@JsonDeserialize(using = HealthFacility.Deserializer::class)
 data class HealthFacility(
     @PrimaryKey @ColumnInfo @JsonProperty("name")
     val name: String,
@@ -35,7 +43,43 @@ data class HealthFacility(
     val type: String = "",
     @ColumnInfo @JsonIgnore
     var isUserSelected: Boolean = false
-)
+) {
+    /**
+     * Health facilities are only downloaded, never uploaded. Fields that are missing or null are
+     * left empty.
+     */
+    class Deserializer : StdDeserializer<HealthFacility>(HealthFacility::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): HealthFacility {
+            var name: String? = null
+            var location: String? = null
+            var newReferrals: String? = null
+            var phoneNumber: String? = null
+            var about: String? = null
+            var type: String? = null
+            p.forEachObjectField { field ->
+                when (healthFacilityFieldsByText[field]) {
+                    HealthFacilityField.NAME -> name = textValueOrNull()
+                    HealthFacilityField.LOCATION -> location = textValueOrNull()
+                    HealthFacilityField.NEW_REFERRALS -> newReferrals = valueAsString
+                    HealthFacilityField.PHONE_NUMBER -> phoneNumber = textValueOrNull()
+                    HealthFacilityField.ABOUT -> about = textValueOrNull()
+                    HealthFacilityField.TYPE -> type = textValueOrNull()
+                    else -> skipChildren()
+                }
+            }
+            return HealthFacility(
+                name = ctxt.requireField(this, HealthFacilityField.NAME, name),
+                location = location ?: "",
+                newReferrals = newReferrals ?: "",
+                phoneNumber = phoneNumber ?: "",
+                about = about ?: "",
+                type = type ?: ""
+            )
+        }
+    }
+}
+
+private val healthFacilityFieldsByText = HealthFacilityField.values().associateBy { it.text }
 
 /**
  * The collection of JSON fields which make up a [HealthFacility] object.
@@ -48,7 +92,7 @@ private enum class HealthFacilityField(override val text: String) : Field {
     LOCATION("location"),
     ABOUT("about"),
     PHONE_NUMBER("phoneNumber"),
-    NewReferrals("newReferrals"),
+    NEW_REFERRALS("newReferrals"),
     NAME("name"),
     ID("id")
 }
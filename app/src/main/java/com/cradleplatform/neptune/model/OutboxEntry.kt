@@ -0,0 +1,48 @@
+package com.cradleplatform.neptune.model
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+
+/**
+ * An entity that was created or edited offline and still has to be uploaded to the server.
+ *
+ * Entries are not written by the app directly: triggers on the entity tables (see
+ * [com.cradleplatform.neptune.database.Outbox]) add an entry in the same transaction as the change
+ * that makes an entity need uploading, and remove it once the server's copy of the entity is saved
+ * or the entity is deleted. The sync then reads what to upload from the outbox instead of scanning
+ * the entity tables.
+ *
+ * @property entityType The table of the entity
+ * @property entityId The id of the entity
+ * @property operation Whether the entity was created offline or only edited
+ * @property attemptCount How many syncs have tried to upload the entity so far
+ * @property nextAttemptAt Unix timestamp (seconds) before which the entity isn't uploaded again
+ * @property enqueuedAt Unix timestamp (seconds) of when the entity was added to the outbox
+ * @property isQuarantined Whether the entity failed to upload too many times, and is no longer
+ * uploaded
+ * @property lastError The reason the server gave for not accepting the entity the last time, if any
+ */
+@Entity(
+    primaryKeys = ["entityType", "entityId"],
+    indices = [Index(value = ["entityType", "nextAttemptAt"])]
+)
+data class OutboxEntry(
+    val entityType: OutboxEntityType,
+    val entityId: String,
+    val operation: OutboxOperation,
+    val attemptCount: Int = 0,
+    val nextAttemptAt: Long,
+    val enqueuedAt: Long,
+    @ColumnInfo(defaultValue = "0")
+    val isQuarantined: Boolean = false,
+    val lastError: String? = null
+)
+
+/**
+ * The tables that have entries in the outbox. The names are stored as is, so they must match the
+ * literals used by the outbox triggers.
+ */
+enum class OutboxEntityType { PATIENT, READING, REFERRAL, ASSESSMENT }
+
+enum class OutboxOperation { CREATE, UPDATE }
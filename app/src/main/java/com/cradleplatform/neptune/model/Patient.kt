@@ -11,8 +11,11 @@ import androidx.room.PrimaryKey
 import androidx.room.Relation
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
 import com.cradleplatform.neptune.ext.jackson.get
-import com.cradleplatform.neptune.ext.jackson.getOptObjectArray
+import com.cradleplatform.neptune.ext.jackson.readOptArray
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.cradleplatform.neptune.ext.jackson.writeBooleanField
 import com.cradleplatform.neptune.ext.jackson.writeObjectField
 import com.cradleplatform.neptune.ext.jackson.writeOptIntField
@@ -24,14 +27,17 @@ import com.cradleplatform.neptune.utilities.Seconds
 import com.cradleplatform.neptune.utilities.UnixTimestamp
 import com.cradleplatform.neptune.utilities.Weeks
 import com.cradleplatform.neptune.utilities.WeeksAndDays
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import kotlinx.parcelize.Parcelize
 import java.io.IOException
@@ -43,6 +49,7 @@ import java.util.Calendar
 import java.util.Locale
 import java.util.TimeZone
 import kotlin.math.round
+import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.KProperty
 
 /**
@@ -105,6 +112,23 @@ data class Patient(
     @ColumnInfo var lastServerUpdate: Long? = null,
     @ColumnInfo var isArchived: Boolean = false
 ) : Serializable, Verifiable<Patient> {
+
+    /**
+     * JSON field names that were edited locally since this patient was last synced, if the
+     * patient already exists on the server. Used to upload a merge patch instead of the whole
+     * patient. Not serialized; downloading the patient again from the server clears it.
+     */
+    @ColumnInfo(defaultValue = "[]")
+    var dirtyFields: List<String> = emptyList()
+
+    /**
+     * The last synced values of the [dirtyFields], from before they were first edited, keyed by
+     * JSON field name. Used to merge a newer copy from the server field by field instead of
+     * overwriting the local edits. Not serialized.
+     */
+    @ColumnInfo(defaultValue = "{}")
+    var dirtyFieldBase: ObjectNode = JacksonMapper.mapper.createObjectNode()
+
     override fun isValueForPropertyValid(
         property: KProperty<*>,
         value: Any?,
@@ -114,6 +138,38 @@ data class Patient(
     companion object : Verifiable.Verifier<Patient> {
         const val ID_MAX_LENGTH = 14
 
+        /** Fields that are always part of a merge patch for a [Patient]. */
+        val MERGE_PATCH_KEY_FIELDS = listOf(
+            PatientField.ID.text,
+            PatientField.LAST_EDITED.text,
+            PatientField.LAST_SERVER_UPDATE.text
+        )
+
+        /**
+         * The properties of a [Patient] that are merged field by field with a newer copy from the
+         * server, keyed by the JSON fields they are serialized to.
+         */
+        internal val MERGE_FIELDS: Map<String, KMutableProperty1<Patient, *>> = mapOf(
+            PatientField.NAME.text to Patient::name,
+            PatientField.DOB.text to Patient::dateOfBirth,
+            PatientField.IS_EXACT_DOB.text to Patient::isExactDateOfBirth,
+            PatientField.SEX.text to Patient::sex,
+            PatientField.IS_PREGNANT.text to Patient::isPregnant,
+            PatientField.PREGNANCY_START_DATE.text to Patient::gestationalAge,
+            PatientField.PREGNANCY_ID.text to Patient::pregnancyId,
+            PatientField.PREGNANCY_END_DATE.text to Patient::prevPregnancyEndDate,
+            PatientField.PREGNANCY_OUTCOME.text to Patient::prevPregnancyOutcome,
+            PatientField.ZONE.text to Patient::zone,
+            PatientField.VILLAGE_NUMBER.text to Patient::villageNumber,
+            PatientField.HOUSEHOLD_NUMBER.text to Patient::householdNumber,
+            PatientField.DRUG_HISTORY.text to Patient::drugHistory,
+            PatientField.MEDICAL_HISTORY.text to Patient::medicalHistory,
+            PatientField.ALLERGY.text to Patient::allergy,
+            PatientField.DRUG_LAST_EDITED.text to Patient::drugLastEdited,
+            PatientField.MEDICAL_LAST_EDITED.text to Patient::medicalLastEdited,
+            PatientField.IS_ARCHIVED.text to Patient::isArchived,
+        )
+
         // This group of limits are derived from the backend database setup:
         // https://csil-git1.cs.surrey.sfu.ca/415-cradle/cradle-platform/-/blob/
         // 851d2dd02a1c7bd96e7aaf15737f801096774d4e/server/models.py#L170-197
@@ -456,62 +512,93 @@ data class Patient(
         }
     }
 
+    /**
+     * Streams the fields of a patient straight from the parser, without reading the patient into a
+     * [JsonNode] first, since sync parses a lot of patients. Unknown fields are skipped.
+     */
     object Deserializer : StdDeserializer<Patient>(Patient::class.java) {
-        fun get(jsonNode: JsonNode): Patient = jsonNode.run {
-            val id = get(PatientField.ID)!!.textValue()
-            val name = get(PatientField.NAME)!!.textValue()
-            // server seed data might have these as null
-            val dob = get(PatientField.DOB)?.textValue()
-            val isExactDob = get(PatientField.IS_EXACT_DOB)?.asBoolean(false)
-
-            // Some backend responses send gestationalTimestamp = null when not pregnant
-            val gestationalAge = if (
-                has(PatientField.PREGNANCY_START_DATE.text) &&
-                get(PatientField.PREGNANCY_START_DATE).toString() != "null"
-            ) {
-                GestationalAge.Deserializer.get(this)
-            } else {
-                null
-            }
+        override fun deserialize(parser: JsonParser, ctxt: DeserializationContext): Patient {
+            val fields = Fields()
+            parser.forEachObjectField { name -> if (!fields.read(this, name)) skipChildren() }
+            return fields.build()
+        }
 
-            val isPregnant = if (has(PatientField.IS_PREGNANT.text)) {
-                get(PatientField.IS_PREGNANT)!!.booleanValue()
-            } else {
-                gestationalAge != null
+        /**
+         * The fields of a patient read so far from a JSON object, which can also have fields that
+         * aren't the patient's (e.g., the readings of a [PatientAndReadings]).
+         */
+        internal class Fields {
+            private var id: String? = null
+            private var name: String? = null
+            private var dob: String? = null
+            private var isExactDob: Boolean? = null
+            private var gestationalAge: GestationalAge? = null
+            private var isPregnant: Boolean? = null
+            private var sex: String? = null
+            private var pregnancyId: Int? = null
+            private var zone: String? = null
+            private var villageNumber: String? = null
+            private var householdNumber: String? = null
+            private var drugHistory: String? = null
+            private var medicalHistory: String? = null
+            private var allergy: String? = null
+            private var lastEdited: Long? = null
+            private var lastServerUpdate: Long? = null
+            private var isArchived = false
+
+            /**
+             * Reads the value the [parser] is on, if [field] is one of the patient's fields.
+             *
+             * @return false if it isn't, in which case the value isn't consumed
+             */
+            fun read(parser: JsonParser, field: String): Boolean {
+                val isNull = parser.currentToken == JsonToken.VALUE_NULL
+                when (patientFieldsByText[field]) {
+                    PatientField.ID -> id = parser.textValueOrNull()
+                    PatientField.NAME -> name = parser.textValueOrNull()
+                    // server seed data might have these as null
+                    PatientField.DOB -> dob = parser.textValueOrNull()
+                    PatientField.IS_EXACT_DOB -> isExactDob = parser.getValueAsBoolean(false)
+                    // Some backend responses send gestationalTimestamp = null when not pregnant
+                    PatientField.PREGNANCY_START_DATE -> gestationalAge =
+                        if (isNull) null else GestationalAgeWeeks(BigInteger.valueOf(parser.valueAsLong))
+                    PatientField.IS_PREGNANT -> isPregnant = parser.currentToken == JsonToken.VALUE_TRUE
+                    PatientField.SEX -> sex = parser.textValueOrNull()
+                    PatientField.PREGNANCY_ID -> pregnancyId = parser.valueAsInt
+                    PatientField.ZONE -> zone = parser.textValueOrNull()
+                    PatientField.VILLAGE_NUMBER -> villageNumber = parser.textValueOrNull()
+                    PatientField.HOUSEHOLD_NUMBER -> householdNumber = parser.textValueOrNull()
+                    PatientField.DRUG_HISTORY -> drugHistory = parser.textValueOrNull()
+                    PatientField.MEDICAL_HISTORY -> medicalHistory = parser.textValueOrNull()
+                    PatientField.ALLERGY -> allergy = parser.textValueOrNull()
+                    PatientField.LAST_EDITED -> lastEdited = parser.valueAsLong
+                    PatientField.LAST_SERVER_UPDATE -> lastServerUpdate = parser.valueAsLong
+                    PatientField.IS_ARCHIVED -> isArchived = parser.currentToken == JsonToken.VALUE_TRUE
+                    else -> return false
+                }
+                return true
             }
 
-            val sex = Sex.valueOf(get(PatientField.SEX)!!.textValue())
-            val pregnancyId = get(PatientField.PREGNANCY_ID)?.asInt()
-            val zone = get(PatientField.ZONE)?.textValue()
-            val villageNumber = get(PatientField.VILLAGE_NUMBER)?.textValue()
-            val householdNumber = get(PatientField.HOUSEHOLD_NUMBER)?.textValue()
-            val drugHistory = get(PatientField.DRUG_HISTORY)?.textValue() ?: ""
-            val medicalHistory = get(PatientField.MEDICAL_HISTORY)?.textValue() ?: ""
-            val allergy = get(PatientField.ALLERGY)?.textValue() ?: ""
-            val lastEdited = get(PatientField.LAST_EDITED)?.asLong()
-            val lastServerUpdate = get(PatientField.LAST_SERVER_UPDATE)?.asLong()
-            val isArchived = get(PatientField.IS_ARCHIVED)?.booleanValue() ?: false
-
             // The following fields are set to null because if we are receiving patient information
             // from the server, it guarantees there are no un-uploaded edits on android
             // prevPregnancyEndDate, prevPregnancyOutcome, drugLastEdited, medicalLastEdited
-            return@run Patient(
-                id = id,
-                name = name,
+            fun build() = Patient(
+                id = id!!,
+                name = name!!,
                 dateOfBirth = dob,
                 isExactDateOfBirth = isExactDob,
                 gestationalAge = gestationalAge,
-                sex = sex,
-                isPregnant = isPregnant,
+                sex = Sex.valueOf(sex!!),
+                isPregnant = isPregnant ?: (gestationalAge != null),
                 pregnancyId = pregnancyId,
                 prevPregnancyEndDate = null,
                 prevPregnancyOutcome = null,
                 zone = zone,
                 villageNumber = villageNumber,
                 householdNumber = householdNumber,
-                drugHistory = drugHistory,
-                medicalHistory = medicalHistory,
-                allergy = allergy,
+                drugHistory = drugHistory ?: "",
+                medicalHistory = medicalHistory ?: "",
+                allergy = allergy ?: "",
                 lastEdited = lastEdited,
                 drugLastEdited = null,
                 medicalLastEdited = null,
@@ -519,11 +606,6 @@ data class Patient(
                 isArchived = isArchived
             )
         }
-
-        override fun deserialize(parser: JsonParser, ctxt: DeserializationContext): Patient =
-            parser.codec.readTree<JsonNode>(parser).run {
-                return get(this)
-            }
     }
 }
 
@@ -557,10 +639,17 @@ data class PatientAndReadings(
         override fun deserialize(
             p: JsonParser,
             ctxt: DeserializationContext
-        ): PatientAndReadings = p.codec.readTree<JsonNode>(p)!!.run {
-            val patient = Patient.Deserializer.get(this)
-            val readings = getOptObjectArray<Reading>(PatientField.READINGS, p.codec) ?: emptyList()
-            return PatientAndReadings(patient, readings)
+        ): PatientAndReadings {
+            val patient = Patient.Deserializer.Fields()
+            var readings: List<Reading> = emptyList()
+            p.forEachObjectField { name ->
+                if (name == PatientField.READINGS.text) {
+                    readings = readOptArray(ctxt, Reading::class.java) ?: emptyList()
+                } else if (!patient.read(this, name)) {
+                    skipChildren()
+                }
+            }
+            return PatientAndReadings(patient.build(), readings)
         }
     }
 
@@ -619,10 +708,17 @@ data class PatientAndReferrals(
         override fun deserialize(
             p: JsonParser,
             ctxt: DeserializationContext
-        ): PatientAndReferrals = p.codec.readTree<JsonNode>(p)!!.run {
-            val patient = Patient.Deserializer.get(this)
-            val referrals = getOptObjectArray<Referral>(PatientField.REFERRALS, p.codec) ?: emptyList()
-            return PatientAndReferrals(patient, referrals)
+        ): PatientAndReferrals {
+            val patient = Patient.Deserializer.Fields()
+            var referrals: List<Referral> = emptyList()
+            p.forEachObjectField { name ->
+                if (name == PatientField.REFERRALS.text) {
+                    referrals = readOptArray(ctxt, Referral::class.java) ?: emptyList()
+                } else if (!patient.read(this, name)) {
+                    skipChildren()
+                }
+            }
+            return PatientAndReferrals(patient.build(), referrals)
         }
     }
 
@@ -797,7 +893,7 @@ class GestationalAgeMonths(timestamp: BigInteger) : GestationalAge(timestamp), S
  * methods use the same field names.
  */
 
-private enum class PatientField(override val text: String) : Field {
+internal enum class PatientField(override val text: String) : Field {
     ID("id"),
     NAME("name"),
     DOB("dateOfBirth"),
@@ -823,6 +919,8 @@ private enum class PatientField(override val text: String) : Field {
     IS_ARCHIVED("isArchived")
 }
 
+private val patientFieldsByText = PatientField.values().associateBy { it.text }
+
 /**
  * data class for patient list we get on a global search
  *
@@ -839,18 +937,25 @@ data class GlobalPatient(
 ) : Parcelable {
     class Deserializer : StdDeserializer<GlobalPatient>(GlobalPatient::class.java) {
         override fun deserialize(p: JsonParser, ctxt: DeserializationContext): GlobalPatient {
-            p.codec.readTree<JsonNode>(p)!!.run {
-                return GlobalPatient(
-                    id = get(PatientField.ID)!!.textValue(),
-                    name = get(PatientField.NAME)!!.textValue(),
-                    villageNum = get(PatientField.VILLAGE_NUMBER)?.textValue()?.let {
-                        // server is ending back a null for this field for some patients
-                        if (it == "null") null else it
-                    },
-                    isMyPatient = false,
-                    index = null
-                )
+            var id: String? = null
+            var name: String? = null
+            var villageNum: String? = null
+            p.forEachObjectField { field ->
+                when (patientFieldsByText[field]) {
+                    PatientField.ID -> id = textValueOrNull()
+                    PatientField.NAME -> name = textValueOrNull()
+                    PatientField.VILLAGE_NUMBER -> villageNum = textValueOrNull()
+                    else -> skipChildren()
+                }
             }
+            return GlobalPatient(
+                id = ctxt.requireField(this, PatientField.ID, id),
+                name = ctxt.requireField(this, PatientField.NAME, name),
+                // server is ending back a null for this field for some patients
+                villageNum = villageNum?.takeUnless { it == "null" },
+                isMyPatient = false,
+                index = null
+            )
         }
     }
 }
@@ -0,0 +1,95 @@
+package com.cradleplatform.neptune.model
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+
+/**
+ * The demographic information of a patient in the user's health facilities or villages that
+ * isn't necessarily one of the user's patients. Summaries are prefetched in the background (see
+ * [com.cradleplatform.neptune.sync.workers.PatientPrefetchWorker]) into a cache that is separate
+ * from the [Patient] table, so that they are never uploaded or mistaken for the user's patients.
+ *
+ * Opening a patient from the global search shows its summary right away, if there is one, while
+ * the full record is downloaded.
+ *
+ * @property healthFacilityName The health facility the patient was prefetched for, if any
+ */
+@Entity(indices = [Index(value = ["villageNumber"]), Index(value = ["healthFacilityName"])])
+@JsonDeserialize(using = PatientSummary.Deserializer::class)
+data class PatientSummary(
+    @PrimaryKey
+    val id: String,
+    val name: String,
+    val dateOfBirth: String? = null,
+    val isExactDateOfBirth: Boolean? = null,
+    val gestationalAge: GestationalAge? = null,
+    val sex: Sex = Sex.OTHER,
+    val isPregnant: Boolean = false,
+    val zone: String? = null,
+    val villageNumber: String? = null,
+    val householdNumber: String? = null,
+    val healthFacilityName: String? = null,
+    val lastEdited: Long? = null
+) {
+    /**
+     * Returns a [Patient] with the demographic information of this summary, for displaying it
+     * until the full record is downloaded. The [Patient] must not be saved.
+     */
+    fun toPatient() = Patient(
+        id = id,
+        name = name,
+        dateOfBirth = dateOfBirth,
+        isExactDateOfBirth = isExactDateOfBirth,
+        gestationalAge = gestationalAge,
+        sex = sex,
+        isPregnant = isPregnant,
+        zone = zone,
+        villageNumber = villageNumber,
+        householdNumber = householdNumber,
+        lastEdited = lastEdited
+    )
+
+    /**
+     * Summaries are sent in the same format as the patient info from `/patients/<id>/info`, along
+     * with the patient's health facility.
+     */
+    class Deserializer : StdDeserializer<PatientSummary>(PatientSummary::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): PatientSummary {
+            val fields = Patient.Deserializer.Fields()
+            var healthFacilityName: String? = null
+            p.forEachObjectField { name ->
+                if (name == HEALTH_FACILITY_NAME) {
+                    healthFacilityName = textValueOrNull()
+                } else if (!fields.read(this, name)) {
+                    skipChildren()
+                }
+            }
+            val patient = fields.build()
+            return PatientSummary(
+                id = patient.id,
+                name = patient.name,
+                dateOfBirth = patient.dateOfBirth,
+                isExactDateOfBirth = patient.isExactDateOfBirth,
+                gestationalAge = patient.gestationalAge,
+                sex = patient.sex,
+                isPregnant = patient.isPregnant,
+                zone = patient.zone,
+                villageNumber = patient.villageNumber,
+                householdNumber = patient.householdNumber,
+                healthFacilityName = healthFacilityName,
+                lastEdited = patient.lastEdited
+            )
+        }
+    }
+
+    companion object {
+        private const val HEALTH_FACILITY_NAME = "healthFacilityName"
+    }
+}
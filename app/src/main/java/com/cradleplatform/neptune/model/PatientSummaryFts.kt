@@ -0,0 +1,41 @@
+package com.cradleplatform.neptune.model
+
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/**
+ * Full-text index over the searchable fields of the prefetched [PatientSummary]s, used to answer
+ * the global patient search offline. The index has no content of its own: Room keeps it in step
+ * with the [PatientSummary] table using triggers.
+ *
+ * The unicode61 tokenizer makes the search case-insensitive and ignore diacritics, and splits names
+ * into words so that every word of a name can be prefix matched (see [matchQuery]).
+ */
+@Fts4(contentEntity = PatientSummary::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity
+data class PatientSummaryFts(
+    val id: String,
+    val name: String,
+    val villageNumber: String?,
+    val healthFacilityName: String?
+) {
+    companion object {
+        private val NON_TOKEN_CHARACTERS = Regex("[^\\p{L}\\p{N}]+")
+
+        /**
+         * Turns a search typed by the user into an FTS MATCH expression that finds the summaries
+         * with a word starting with each of the words in the [query], e.g. "mar 12" becomes
+         * `mar* 12*`. Anything that isn't a letter or a digit only separates words, and the words
+         * are lowercased (the index is case-insensitive anyway), so the user can't write FTS
+         * operators such as OR by accident.
+         *
+         * @return the MATCH expression, or null if the [query] has no words to search for
+         */
+        fun matchQuery(query: String): String? =
+            query.split(NON_TOKEN_CHARACTERS)
+                .filter { it.isNotEmpty() }
+                .takeIf { it.isNotEmpty() }
+                ?.joinToString(" ") { "${it.lowercase()}*" }
+    }
+}
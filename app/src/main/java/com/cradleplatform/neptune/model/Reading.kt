@@ -3,15 +3,20 @@ package com.cradleplatform.neptune.model
 import android.content.Context
 import androidx.annotation.StringRes
 import androidx.room.ColumnInfo
+import androidx.room.Embedded
 import androidx.room.Entity
 import androidx.room.ForeignKey
+import androidx.room.Ignore
 import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
 import com.cradleplatform.neptune.ext.jackson.get
-import com.cradleplatform.neptune.ext.jackson.getOptObject
-import com.cradleplatform.neptune.ext.jackson.getOptObjectArray
+import com.cradleplatform.neptune.ext.jackson.longValueOrNull
+import com.cradleplatform.neptune.ext.jackson.readOptArray
+import com.cradleplatform.neptune.ext.jackson.readOptValue
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.cradleplatform.neptune.ext.jackson.writeBooleanField
 import com.cradleplatform.neptune.ext.jackson.writeIntField
 import com.cradleplatform.neptune.ext.jackson.writeLongField
@@ -20,21 +25,26 @@ import com.cradleplatform.neptune.ext.jackson.writeOptIntField
 import com.cradleplatform.neptune.ext.jackson.writeOptLongField
 import com.cradleplatform.neptune.ext.jackson.writeOptObjectField
 import com.cradleplatform.neptune.ext.jackson.writeStringField
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import com.cradleplatform.neptune.utilities.nullIfEmpty
+import com.fasterxml.jackson.annotation.JsonCreator
 import com.fasterxml.jackson.annotation.JsonIgnore
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import org.threeten.bp.ZonedDateTime
 import java.io.Serializable
 import java.util.UUID
+import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.KProperty
 
 const val RED_SYSTOLIC = 160
@@ -75,7 +85,8 @@ private const val SECONDS_IN_MIN = 60
 @Entity(
     indices = [
         Index(value = ["id"], unique = true),
-        Index(value = ["patientId"])
+        Index(value = ["patientId"]),
+        Index(value = ["analysis"])
     ],
     foreignKeys = [
         ForeignKey(
@@ -95,7 +106,7 @@ data class Reading(
     var id: String = UUID.randomUUID().toString(),
     @ColumnInfo var patientId: String,
     @ColumnInfo var dateTaken: Long,
-    @ColumnInfo var bloodPressure: BloodPressure,
+    @Embedded var bloodPressure: BloodPressure,
     @ColumnInfo var urineTest: UrineTest?,
     @ColumnInfo var symptoms: List<String>,
     @ColumnInfo var referral: Referral?,
@@ -108,6 +119,22 @@ data class Reading(
     @ColumnInfo var userId: Int?
 ) : Serializable, Verifiable<Reading> {
 
+    /**
+     * JSON field names that were edited locally since this reading was uploaded. Used to upload
+     * a merge patch instead of the whole reading. Not serialized; downloading the reading again
+     * from the server clears it.
+     */
+    @ColumnInfo(defaultValue = "[]")
+    var dirtyFields: List<String> = emptyList()
+
+    /**
+     * The last synced values of the [dirtyFields], from before they were first edited, keyed by
+     * JSON field name. Used to merge a newer copy from the server field by field instead of
+     * overwriting the local edits. Not serialized.
+     */
+    @ColumnInfo(defaultValue = "{}")
+    var dirtyFieldBase: ObjectNode = JacksonMapper.mapper.createObjectNode()
+
     /**
      * True if this reading has a referral attached to it.
      */
@@ -180,49 +207,95 @@ data class Reading(
         }
     }
 
+    /**
+     * Streams the fields of a reading straight from the parser, without reading the reading into
+     * a [JsonNode] first, since sync parses a lot of readings. Unknown fields are skipped.
+     */
     class Deserializer : StdDeserializer<Reading>(Reading::class.java) {
-        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Reading =
-            p.codec.readTree<JsonNode>(p)!!.run {
-                val readingId = get(ReadingField.ID)!!.textValue()
-                val patientId = get(ReadingField.PATIENT_ID)!!.textValue()
-                val dateTaken = get(ReadingField.DATE_TAKEN)!!.longValue()
-                val bloodPressure = BloodPressure.deserialize(this)
-                val urineTests = getOptObject<UrineTest>(ReadingField.URINE_TESTS, p.codec)
-                val symptoms = getOptObjectArray<String>(ReadingField.SYMPTOMS, p.codec)
-                    ?: emptyList()
-                val referral = getOptObject<Referral>(ReadingField.REFERRAL, p.codec)
-                val followUp = getOptObject<Assessment>(ReadingField.FOLLOW_UP, p.codec)
-                val dateRetestNeeded = get(ReadingField.DATE_RETEST_NEEDED)
-                    ?.longValue()
-                val isFlaggedForFollowUp = get(ReadingField.IS_FLAGGED_FOR_FOLLOW_UP)
-                    ?.booleanValue() ?: false
-                val previousReadingIds = get(ReadingField.PREVIOUS_READING_IDS)
-                    ?.textValue()
-                    ?.let { it.nullIfEmpty()?.split(",") }
-                    ?: emptyList()
-                val lastEdited = get(ReadingField.LAST_EDITED)!!.longValue()
-                val userId = get(ReadingField.USER_ID)?.intValue()
-
-                return@run Reading(
-                    id = readingId,
-                    patientId = patientId,
-                    dateTaken = dateTaken,
-                    lastEdited = lastEdited,
-                    bloodPressure = bloodPressure,
-                    urineTest = urineTests,
-                    symptoms = symptoms,
-                    referral = referral,
-                    followUp = followUp,
-                    dateRetestNeeded = dateRetestNeeded,
-                    isFlaggedForFollowUp = isFlaggedForFollowUp,
-                    previousReadingIds = previousReadingIds,
-                    userId = userId
-                )
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Reading {
+            var readingId: String? = null
+            var patientId: String? = null
+            var dateTaken: Long? = null
+            var systolic: Int? = null
+            var diastolic: Int? = null
+            var heartRate: Int? = null
+            var urineTests: UrineTest? = null
+            var symptoms: List<String> = emptyList()
+            var referral: Referral? = null
+            var followUp: Assessment? = null
+            var dateRetestNeeded: Long? = null
+            var isFlaggedForFollowUp = false
+            var previousReadingIds: List<String> = emptyList()
+            var lastEdited: Long? = null
+            var userId: Int? = null
+
+            p.forEachObjectField { name ->
+                when (readingFieldsByText[name]) {
+                    ReadingField.ID -> readingId = textValueOrNull()
+                    ReadingField.PATIENT_ID -> patientId = textValueOrNull()
+                    ReadingField.DATE_TAKEN -> dateTaken = valueAsLong
+                    BloodPressureField.SYSTOLIC -> systolic = valueAsInt
+                    BloodPressureField.DIASTOLIC -> diastolic = valueAsInt
+                    BloodPressureField.HEART_RATE -> heartRate = valueAsInt
+                    ReadingField.URINE_TESTS -> urineTests = readOptValue(ctxt, UrineTest::class.java)
+                    ReadingField.SYMPTOMS -> symptoms = readOptArray(ctxt, String::class.java) ?: emptyList()
+                    ReadingField.REFERRAL -> referral = readOptValue(ctxt, Referral::class.java)
+                    ReadingField.FOLLOW_UP -> followUp = readOptValue(ctxt, Assessment::class.java)
+                    ReadingField.DATE_RETEST_NEEDED -> dateRetestNeeded = longValueOrNull()
+                    ReadingField.IS_FLAGGED_FOR_FOLLOW_UP -> isFlaggedForFollowUp = currentToken == JsonToken.VALUE_TRUE
+                    ReadingField.PREVIOUS_READING_IDS -> previousReadingIds =
+                        textValueOrNull()?.let { it.nullIfEmpty()?.split(",") } ?: emptyList()
+                    ReadingField.LAST_EDITED -> lastEdited = valueAsLong
+                    ReadingField.USER_ID -> userId = if (currentToken == JsonToken.VALUE_NULL) null else valueAsInt
+                    else -> skipChildren()
+                }
             }
+
+            return Reading(
+                id = readingId!!,
+                patientId = patientId!!,
+                dateTaken = dateTaken!!,
+                lastEdited = lastEdited!!,
+                bloodPressure = BloodPressure(systolic!!, diastolic!!, heartRate!!),
+                urineTest = urineTests,
+                symptoms = symptoms,
+                referral = referral,
+                followUp = followUp,
+                dateRetestNeeded = dateRetestNeeded,
+                isFlaggedForFollowUp = isFlaggedForFollowUp,
+                previousReadingIds = previousReadingIds,
+                userId = userId
+            )
+        }
     }
 
     companion object : Verifiable.Verifier<Reading> {
 
+        /** Fields that are always part of a merge patch for a [Reading]. */
+        val MERGE_PATCH_KEY_FIELDS = listOf(
+            ReadingField.ID.text,
+            ReadingField.PATIENT_ID.text,
+            ReadingField.LAST_EDITED.text
+        )
+
+        /**
+         * The properties of a [Reading] that are merged field by field with a newer copy from the
+         * server, keyed by the JSON fields they are serialized to.
+         */
+        internal val MERGE_FIELDS: Map<String, KMutableProperty1<Reading, *>> = mapOf(
+            ReadingField.DATE_TAKEN.text to Reading::dateTaken,
+            BloodPressureField.SYSTOLIC.text to Reading::bloodPressure,
+            BloodPressureField.DIASTOLIC.text to Reading::bloodPressure,
+            BloodPressureField.HEART_RATE.text to Reading::bloodPressure,
+            ReadingField.URINE_TESTS.text to Reading::urineTest,
+            ReadingField.SYMPTOMS.text to Reading::symptoms,
+            ReadingField.REFERRAL.text to Reading::referral,
+            ReadingField.FOLLOW_UP.text to Reading::followUp,
+            ReadingField.DATE_RETEST_NEEDED.text to Reading::dateRetestNeeded,
+            ReadingField.IS_FLAGGED_FOR_FOLLOW_UP.text to Reading::isFlaggedForFollowUp,
+            ReadingField.PREVIOUS_READING_IDS.text to Reading::previousReadingIds,
+        )
+
         @Suppress("NestedBlockDepth")
         override fun isValueValid(
             property: KProperty<*>,
@@ -281,18 +354,30 @@ data class Reading(
 /**
  * Holds information about a blood pressure reading.
  *
+ * Stored in the `systolic`, `diastolic`, `heartRate` and `analysis` columns of the [Reading]
+ * table, so that readings can be filtered and aggregated on them in SQL.
+ *
  * @property systolic The systolic value (i.e., the first/top value).
  * @property diastolic The diastolic value (i.e., the second/bottom value).
  * @property heartRate The heart rate in beats per minute (BPM).
  */
-data class BloodPressure constructor(
-    @JsonProperty("systolicBloodPressure")
+data class BloodPressure @Ignore @JsonCreator constructor(
+    @ColumnInfo(name = "systolic") @JsonProperty("systolicBloodPressure")
     val systolic: Int,
-    @JsonProperty("diastolicBloodPressure")
+    @ColumnInfo(name = "diastolic") @JsonProperty("diastolicBloodPressure")
     val diastolic: Int,
-    @JsonProperty("heartRate")
+    @ColumnInfo(name = "heartRate") @JsonProperty("heartRate")
     val heartRate: Int
 ) : Serializable, Verifiable<BloodPressure> {
+
+    /**
+     * Constructor for Room. The stored [analysis] is only there for SQL queries; it is always
+     * computed again from the values.
+     */
+    @Suppress("UNUSED_PARAMETER")
+    constructor(systolic: Int, diastolic: Int, heartRate: Int, analysis: ReadingAnalysis) :
+        this(systolic, diastolic, heartRate)
+
     /**
      * The shock index for this blood pressure result.
      */
@@ -307,24 +392,24 @@ data class BloodPressure constructor(
     /**
      * The analysis for this blood pressure result.
      */
+    @ColumnInfo(name = "analysis")
     @get:JsonIgnore
-    val analysis: ReadingAnalysis
-        get() = when {
-            // In severe shock
-            shockIndex >= SHOCK_HIGH -> ReadingAnalysis.RED_DOWN
+    val analysis: ReadingAnalysis = when {
+        // In severe shock
+        shockIndex >= SHOCK_HIGH -> ReadingAnalysis.RED_DOWN
 
-            // Blood pressure is very high
-            systolic >= RED_SYSTOLIC || diastolic >= RED_DIASTOLIC -> ReadingAnalysis.RED_UP
+        // Blood pressure is very high
+        systolic >= RED_SYSTOLIC || diastolic >= RED_DIASTOLIC -> ReadingAnalysis.RED_UP
 
-            // In shock
-            shockIndex >= SHOCK_MEDIUM -> ReadingAnalysis.YELLOW_DOWN
+        // In shock
+        shockIndex >= SHOCK_MEDIUM -> ReadingAnalysis.YELLOW_DOWN
 
-            // Blood pressure is high
-            systolic >= YELLOW_SYSTOLIC || diastolic >= YELLOW_DIASTOLIC -> ReadingAnalysis.YELLOW_UP
+        // Blood pressure is high
+        systolic >= YELLOW_SYSTOLIC || diastolic >= YELLOW_DIASTOLIC -> ReadingAnalysis.YELLOW_UP
 
-            // All good
-            else -> ReadingAnalysis.GREEN
-        }
+        // All good
+        else -> ReadingAnalysis.GREEN
+    }
 
     fun serialize(gen: JsonGenerator) {
         gen.apply {
@@ -584,3 +669,6 @@ private enum class BloodPressureField(override val text: String) : Field {
     DIASTOLIC("diastolicBloodPressure"),
     HEART_RATE("heartRate"),
 }
+
+private val readingFieldsByText: Map<String, Field> =
+    (ReadingField.values().asList() + BloodPressureField.values()).associateBy { it.text }
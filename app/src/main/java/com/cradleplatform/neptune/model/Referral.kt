@@ -6,26 +6,31 @@ import androidx.room.ForeignKey
 import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.cradleplatform.neptune.ext.Field
-import com.cradleplatform.neptune.ext.jackson.get
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.requireField
+import com.cradleplatform.neptune.ext.jackson.textValueOrNull
 import com.cradleplatform.neptune.ext.jackson.writeBooleanField
 import com.cradleplatform.neptune.ext.jackson.writeLongField
 import com.cradleplatform.neptune.ext.jackson.writeOptIntField
 import com.cradleplatform.neptune.ext.jackson.writeOptLongField
 import com.cradleplatform.neptune.ext.jackson.writeOptStringField
 import com.cradleplatform.neptune.ext.jackson.writeStringField
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
-import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import java.io.Serializable
 import java.util.UUID
+import kotlin.reflect.KMutableProperty1
 
 /**
  * Holds information about a referral.
@@ -118,6 +123,23 @@ data class Referral(
 
     @ColumnInfo var isUploadedToServer: Boolean = false
 ) : Serializable {
+
+    /**
+     * JSON field names that were edited locally since this referral was uploaded. Used to upload
+     * a merge patch instead of the whole referral. Not serialized; downloading the referral again
+     * from the server clears it.
+     */
+    @ColumnInfo(defaultValue = "[]")
+    var dirtyFields: List<String> = emptyList()
+
+    /**
+     * The last synced values of the [dirtyFields], from before they were first edited, keyed by
+     * JSON field name. Used to merge a newer copy from the server field by field instead of
+     * overwriting the local edits. Not serialized.
+     */
+    @ColumnInfo(defaultValue = "{}")
+    var dirtyFieldBase: ObjectNode = JacksonMapper.mapper.createObjectNode()
+
     class Serializer : StdSerializer<Referral>(Referral::class.java) {
         override fun serialize(
             referral: Referral,
@@ -148,40 +170,58 @@ data class Referral(
     }
 
     class Deserializer : StdDeserializer<Referral>(Referral::class.java) {
-        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Referral =
-            p.codec.readTree<JsonNode>(p)!!.run {
-                val id = get(ReferralField.ID)!!.textValue()
-                val comment = get(ReferralField.COMMENT)?.textValue()
-                val healthFacilityName = get(ReferralField.HEALTH_FACILITY_NAME)!!.textValue()
-                val dateReferred = get(ReferralField.DATE_REFERRED)!!.longValue()
-                val userId = get(ReferralField.USER_ID)?.intValue()
-                val patientId = get(ReferralField.PATIENT_ID)!!.textValue()
-                val actionTaken = get(ReferralField.ACTION_TAKEN)?.textValue()
-                val cancelReason = get(ReferralField.CANCEL_REASON)?.textValue()
-                val notAttendReason = get(ReferralField.NOT_ATTEND_REASON)?.textValue()
-                val isAssessed = get(ReferralField.IS_ASSESSED)?.booleanValue() ?: false
-                val isCancelled = get(ReferralField.IS_CANCELLED)?.booleanValue() ?: false
-                val notAttended = get(ReferralField.NOT_ATTENDED)?.booleanValue() ?: false
-                val lastEdited = get(ReferralField.LAST_EDITED)?.longValue() ?: System.currentTimeMillis()
-                val lastServerUpdate = get(ReferralField.LAST_SERVER_UPDATE)?.longValue()
-
-                return@run Referral(
-                    id = id,
-                    comment = comment,
-                    healthFacilityName = healthFacilityName,
-                    dateReferred = dateReferred,
-                    userId = userId,
-                    patientId = patientId,
-                    actionTaken = actionTaken,
-                    cancelReason = cancelReason,
-                    notAttendReason = notAttendReason,
-                    isAssessed = isAssessed,
-                    isCancelled = isCancelled,
-                    notAttended = notAttended,
-                    lastEdited = lastEdited,
-                    lastServerUpdate = lastServerUpdate
-                )
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): Referral {
+            var id: String? = null
+            var comment: String? = null
+            var healthFacilityName: String? = null
+            var dateReferred: Long? = null
+            var userId: Int? = null
+            var patientId: String? = null
+            var actionTaken: String? = null
+            var cancelReason: String? = null
+            var notAttendReason: String? = null
+            var isAssessed = false
+            var isCancelled = false
+            var notAttended = false
+            var lastEdited: Long? = null
+            var lastServerUpdate: Long? = null
+            p.forEachObjectField { name ->
+                when (referralFieldsByText[name]) {
+                    ReferralField.ID -> id = textValueOrNull()
+                    ReferralField.COMMENT -> comment = textValueOrNull()
+                    ReferralField.HEALTH_FACILITY_NAME -> healthFacilityName = textValueOrNull()
+                    ReferralField.DATE_REFERRED -> dateReferred = valueAsLong
+                    ReferralField.USER_ID -> userId = valueAsInt
+                    ReferralField.PATIENT_ID -> patientId = textValueOrNull()
+                    ReferralField.ACTION_TAKEN -> actionTaken = textValueOrNull()
+                    ReferralField.CANCEL_REASON -> cancelReason = textValueOrNull()
+                    ReferralField.NOT_ATTEND_REASON -> notAttendReason = textValueOrNull()
+                    ReferralField.IS_ASSESSED -> isAssessed = currentToken == JsonToken.VALUE_TRUE
+                    ReferralField.IS_CANCELLED -> isCancelled = currentToken == JsonToken.VALUE_TRUE
+                    ReferralField.NOT_ATTENDED -> notAttended = currentToken == JsonToken.VALUE_TRUE
+                    ReferralField.LAST_EDITED -> lastEdited = valueAsLong
+                    ReferralField.LAST_SERVER_UPDATE -> lastServerUpdate = valueAsLong
+                    else -> skipChildren()
+                }
             }
+
+            return Referral(
+                id = ctxt.requireField(this, ReferralField.ID, id),
+                comment = comment,
+                healthFacilityName = ctxt.requireField(this, ReferralField.HEALTH_FACILITY_NAME, healthFacilityName),
+                dateReferred = ctxt.requireField(this, ReferralField.DATE_REFERRED, dateReferred),
+                userId = userId,
+                patientId = ctxt.requireField(this, ReferralField.PATIENT_ID, patientId),
+                actionTaken = actionTaken,
+                cancelReason = cancelReason,
+                notAttendReason = notAttendReason,
+                isAssessed = isAssessed,
+                isCancelled = isCancelled,
+                notAttended = notAttended,
+                lastEdited = lastEdited ?: System.currentTimeMillis(),
+                lastServerUpdate = lastServerUpdate
+            )
+        }
     }
 
     object AscendingDataComparator : Comparator<Referral> {
@@ -201,6 +241,32 @@ data class Referral(
         override fun compare(o1: Referral?, o2: Referral?): Int =
             -AscendingDataComparator.compare(o1, o2)
     }
+
+    companion object {
+        /** Fields that are always part of a merge patch for a [Referral]. */
+        val MERGE_PATCH_KEY_FIELDS = listOf(
+            ReferralField.ID.text,
+            ReferralField.PATIENT_ID.text,
+            ReferralField.LAST_EDITED.text,
+            ReferralField.LAST_SERVER_UPDATE.text
+        )
+
+        /**
+         * The properties of a [Referral] that are merged field by field with a newer copy from the
+         * server, keyed by the JSON fields they are serialized to.
+         */
+        internal val MERGE_FIELDS: Map<String, KMutableProperty1<Referral, *>> = mapOf(
+            ReferralField.DATE_REFERRED.text to Referral::dateReferred,
+            ReferralField.COMMENT.text to Referral::comment,
+            ReferralField.HEALTH_FACILITY_NAME.text to Referral::healthFacilityName,
+            ReferralField.ACTION_TAKEN.text to Referral::actionTaken,
+            ReferralField.CANCEL_REASON.text to Referral::cancelReason,
+            ReferralField.NOT_ATTEND_REASON.text to Referral::notAttendReason,
+            ReferralField.IS_ASSESSED.text to Referral::isAssessed,
+            ReferralField.IS_CANCELLED.text to Referral::isCancelled,
+            ReferralField.NOT_ATTENDED.text to Referral::notAttended,
+        )
+    }
 }
 
 data class SmsReadingWithReferral(
@@ -216,6 +282,8 @@ data class SmsReferral(val patient: PatientAndReferrals)
 /**
  * JSON keys for [Referral] fields.
  */
+private val referralFieldsByText = ReferralField.values().associateBy { it.text }
+
 private enum class ReferralField(override val text: String) : Field {
     ID("id"),
     DATE_REFERRED("dateReferred"),
@@ -1,8 +1,37 @@
 package com.cradleplatform.neptune.model
 
+import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.jackson.forEachObjectField
+import com.cradleplatform.neptune.ext.jackson.readOptArray
+import com.cradleplatform.neptune.ext.jackson.requireField
 import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 
+@JsonDeserialize(using = RelayPhoneNumberResponse.Deserializer::class)
 data class RelayPhoneNumberResponse(
     @JsonProperty("relayPhoneNumbers")
     val relayPhoneNumbers: List<String>
-)
+) {
+    class Deserializer : StdDeserializer<RelayPhoneNumberResponse>(RelayPhoneNumberResponse::class.java) {
+        override fun deserialize(p: JsonParser, ctxt: DeserializationContext): RelayPhoneNumberResponse {
+            var relayPhoneNumbers: List<String>? = null
+            p.forEachObjectField { field ->
+                if (field == RelayPhoneNumberField.RELAY_PHONE_NUMBERS.text) {
+                    relayPhoneNumbers = readOptArray(ctxt, String::class.java)
+                } else {
+                    skipChildren()
+                }
+            }
+            return RelayPhoneNumberResponse(
+                ctxt.requireField(this, RelayPhoneNumberField.RELAY_PHONE_NUMBERS, relayPhoneNumbers)
+            )
+        }
+    }
+}
+
+private enum class RelayPhoneNumberField(override val text: String) : Field {
+    RELAY_PHONE_NUMBERS("relayPhoneNumbers")
+}
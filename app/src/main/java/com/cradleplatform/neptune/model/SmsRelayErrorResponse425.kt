@@ -1,11 +1,13 @@
 package com.cradleplatform.neptune.model
 
-import com.google.gson.annotations.SerializedName
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.annotation.JsonProperty
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 data class SmsRelayErrorResponse425(
-    @SerializedName("message")
+    @JsonProperty("message")
     val message: String,
 
-    @SerializedName("expected_request_number")
+    @JsonProperty("expected_request_number")
     val expectedRequestNumber: Int?
 )
@@ -0,0 +1,28 @@
+package com.cradleplatform.neptune.model
+
+import androidx.room.Entity
+
+/**
+ * A field that was edited both on this device and on the server since the last sync, to different
+ * values, so that neither edit can be kept automatically. Found while merging downloaded entities
+ * (see [com.cradleplatform.neptune.sync.SyncMerger]).
+ *
+ * The entity is saved with the server's value, which is what the server will keep unless the user
+ * decides otherwise, and the local value is kept here until the user resolves the conflict.
+ *
+ * @property entityType The table of the entity
+ * @property entityId The id of the entity
+ * @property field The JSON name of the field
+ * @property localValue The JSON value edited on this device
+ * @property serverValue The JSON value edited on the server
+ * @property detectedAt Unix timestamp (seconds) of the sync that found the conflict
+ */
+@Entity(primaryKeys = ["entityType", "entityId", "field"])
+data class SyncConflict(
+    val entityType: OutboxEntityType,
+    val entityId: String,
+    val field: String,
+    val localValue: String,
+    val serverValue: String,
+    val detectedAt: Long
+)
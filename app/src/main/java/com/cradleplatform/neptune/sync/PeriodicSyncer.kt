@@ -2,12 +2,20 @@ package com.cradleplatform.neptune.sync
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.os.Build
 import android.util.Log
 import androidx.core.content.edit
+import androidx.work.Constraints
 import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.OutOfQuotaPolicy
+import androidx.work.PeriodicWorkRequest
 import androidx.work.PeriodicWorkRequestBuilder
 import androidx.work.WorkManager
 import com.cradleplatform.neptune.R
+import com.cradleplatform.neptune.sync.workers.PatientPrefetchWorker
 import com.cradleplatform.neptune.sync.workers.SyncAllWorker
 import dagger.hilt.android.qualifiers.ApplicationContext
 import java.util.concurrent.TimeUnit
@@ -16,7 +24,10 @@ import javax.inject.Singleton
 
 /**
  * Service for periodically syncing with server.
- * TODO: Add unit test for PeriodicSyncer.
+ *
+ * The interval adapts to the local backlog: it is shortened while there are unsynced changes
+ * waiting to be uploaded, and stretched while neither side has anything new (see [computeSchedule]).
+ * The backlog is reported by [SyncStatusManager] through [onBacklogChanged].
  */
 @Singleton
 class PeriodicSyncer @Inject constructor(
@@ -28,26 +39,63 @@ class PeriodicSyncer @Inject constructor(
      * Used in two cases:
      * - In CradleApplication.kt, when app starts and user is already logged in
      * - In LoginManager.kt, when user logs in
+     *
+     * An already scheduled periodic sync with the same schedule is kept as is, so that restarting
+     * the app doesn't reset the time until the next sync. The same goes for the patient prefetch,
+     * which is scheduled alongside it.
      */
     fun startPeriodicSync() {
-        val hours = context.resources.getInteger(R.integer.settings_periodic_sync_hours)
+        startPatientPrefetch()
 
-        // For testing: Android's minimum allowable interval is 15 minutes
-        // For production: user picks time interval (default 24 hours)
-        val workRequest = PeriodicWorkRequestBuilder<SyncAllWorker>(
-            hours.toLong(), TimeUnit.HOURS
+        val schedule = currentSchedule(sharedPreferences.getInt(LAST_KNOWN_BACKLOG, 0))
+        val scheduled = sharedPreferences.getString(SCHEDULED_PERIODIC_SYNC, null)
+        enqueue(
+            schedule,
+            if (schedule.toPreferenceString() == scheduled) {
+                ExistingPeriodicWorkPolicy.KEEP
+            } else {
+                ExistingPeriodicWorkPolicy.UPDATE
+            }
         )
-            .addTag(PERIODIC_WORK_TAG)
-            .build()
+    }
 
-        sharedPreferences.edit {
-            putString(LAST_SYNC_JOB_UUID, workRequest.id.toString())
+    /**
+     * Reschedules the periodic sync if the number of local changes waiting to be uploaded,
+     * [unsyncedCount], calls for a different interval or different constraints. Does nothing if
+     * periodic sync isn't running. Quarantined changes aren't part of [unsyncedCount], since no
+     * sync uploads them.
+     */
+    fun onBacklogChanged(unsyncedCount: Int) {
+        sharedPreferences.edit { putInt(LAST_KNOWN_BACKLOG, unsyncedCount) }
+        val scheduled = sharedPreferences.getString(SCHEDULED_PERIODIC_SYNC, null) ?: return
+
+        val schedule = currentSchedule(unsyncedCount)
+        if (schedule.toPreferenceString() != scheduled) {
+            enqueue(schedule, ExistingPeriodicWorkPolicy.UPDATE)
         }
+    }
 
-        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
-            PERIODIC_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, workRequest
+    /**
+     * Enqueues a one-off sync that runs as soon as there is a network connection, e.g. after a
+     * referral could only be saved locally. Requests made while one is already pending are merged
+     * into it.
+     */
+    fun requestExpeditedSync() {
+        val builder = OneTimeWorkRequestBuilder<SyncAllWorker>()
+            .setConstraints(
+                Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build()
+            )
+        // Before Android 12, expedited work runs as a foreground service, which SyncAllWorker
+        // doesn't provide a notification for.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            builder.setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+        }
+        val workRequest = builder.build()
+
+        WorkManager.getInstance(context).enqueueUniqueWork(
+            EXPEDITED_WORK_NAME, ExistingWorkPolicy.KEEP, workRequest
         )
-        Log.d(TAG, "Unique periodic work ${workRequest.id} enqueued")
+        Log.d(TAG, "Expedited sync ${workRequest.id} requested")
     }
 
     /**
@@ -59,14 +107,136 @@ class PeriodicSyncer @Inject constructor(
     fun endPeriodicSync() {
         WorkManager.getInstance(context)
             .cancelAllWorkByTag(PERIODIC_WORK_TAG)
+        WorkManager.getInstance(context)
+            .cancelUniqueWork(PATIENT_PREFETCH_WORK_NAME)
+        sharedPreferences.edit {
+            remove(SCHEDULED_PERIODIC_SYNC)
+            remove(LAST_KNOWN_BACKLOG)
+        }
         Log.d(TAG, "Unique periodic work cancelled")
     }
 
+    /**
+     * Schedules [PatientPrefetchWorker] to run periodically on an unmetered network. The
+     * summaries are only a convenience, so they are never downloaded over mobile data.
+     */
+    private fun startPatientPrefetch() {
+        val workRequest = PeriodicWorkRequestBuilder<PatientPrefetchWorker>(
+            context.resources.getInteger(R.integer.settings_patient_prefetch_hours).toLong(),
+            TimeUnit.HOURS
+        )
+            .setConstraints(
+                Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.UNMETERED)
+                    .setRequiresBatteryNotLow(true)
+                    .build()
+            )
+            .build()
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+            PATIENT_PREFETCH_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, workRequest
+        )
+    }
+
+    private fun currentSchedule(unsyncedCount: Int): SyncSchedule {
+        val resources = context.resources
+        return computeSchedule(
+            baseIntervalMinutes = TimeUnit.HOURS.toMinutes(
+                resources.getInteger(R.integer.settings_periodic_sync_hours).toLong()
+            ),
+            unsyncedCount = unsyncedCount,
+            backlogThreshold = resources.getInteger(R.integer.settings_sync_backlog_threshold),
+            lastDownloadedRows = sharedPreferences.getLong(SyncAllWorker.LAST_SYNC_DOWNLOADED_ROWS, -1L),
+            largeDownloadRows = resources.getInteger(R.integer.settings_sync_large_download_rows)
+        )
+    }
+
+    private fun enqueue(schedule: SyncSchedule, policy: ExistingPeriodicWorkPolicy) {
+        val constraints = Constraints.Builder()
+            .setRequiredNetworkType(
+                if (schedule.requiresUnmeteredAndCharging) NetworkType.UNMETERED else NetworkType.CONNECTED
+            )
+            .setRequiresCharging(schedule.requiresUnmeteredAndCharging)
+            .build()
+
+        // Android's minimum allowable interval is 15 minutes; computeSchedule never goes below it.
+        val workRequest = PeriodicWorkRequestBuilder<SyncAllWorker>(
+            schedule.intervalMinutes, TimeUnit.MINUTES
+        )
+            .setConstraints(constraints)
+            .addTag(PERIODIC_WORK_TAG)
+            .build()
+
+        sharedPreferences.edit {
+            putString(LAST_SYNC_JOB_UUID, workRequest.id.toString())
+            putString(SCHEDULED_PERIODIC_SYNC, schedule.toPreferenceString())
+        }
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+            PERIODIC_WORK_NAME, policy, workRequest
+        )
+        Log.d(TAG, "Unique periodic work ${workRequest.id} enqueued with $schedule ($policy)")
+    }
+
+    /**
+     * How often the periodic sync runs, and whether it waits for an unmetered network and a
+     * charger.
+     */
+    internal data class SyncSchedule(
+        val intervalMinutes: Long,
+        val requiresUnmeteredAndCharging: Boolean
+    ) {
+        fun toPreferenceString() = "$intervalMinutes,$requiresUnmeteredAndCharging"
+    }
+
     companion object {
         private const val TAG = "PeriodicSync"
         private const val PERIODIC_WORK_TAG =
             "Sync-PeriodicPatientsReadingsAssessmentsReferralsFacilitiesForms"
         private const val PERIODIC_WORK_NAME = "PeriodicSync"
+        private const val EXPEDITED_WORK_NAME = "ExpeditedSync"
+        private const val PATIENT_PREFETCH_WORK_NAME = "PatientPrefetch"
         private const val LAST_SYNC_JOB_UUID = "lastSyncJobUuid"
+
+        /** SharedPreferences key for the [SyncSchedule] of the enqueued periodic sync */
+        private const val SCHEDULED_PERIODIC_SYNC = "scheduledPeriodicSync"
+
+        /** SharedPreferences key for the last unsynced count passed to [onBacklogChanged] */
+        private const val LAST_KNOWN_BACKLOG = "lastKnownSyncBacklog"
+
+        private val MIN_INTERVAL_MINUTES =
+            TimeUnit.MILLISECONDS.toMinutes(PeriodicWorkRequest.MIN_PERIODIC_INTERVAL_MILLIS)
+
+        /**
+         * Computes the periodic sync schedule from the configured [baseIntervalMinutes]:
+         * - a backlog of at least [backlogThreshold] unsynced changes syncs 4 times as often;
+         * - any smaller backlog syncs twice as often;
+         * - no backlog, after a sync that downloaded nothing, syncs half as often;
+         * - otherwise the base interval is used.
+         *
+         * Without a backlog to upload, there is no hurry, so if the last sync downloaded at least
+         * [largeDownloadRows] rows the next one waits for an unmetered network and a charger.
+         *
+         * @param lastDownloadedRows Rows downloaded by the last successful sync, or a negative
+         * number if there hasn't been one.
+         */
+        internal fun computeSchedule(
+            baseIntervalMinutes: Long,
+            unsyncedCount: Int,
+            backlogThreshold: Int,
+            lastDownloadedRows: Long,
+            largeDownloadRows: Int
+        ): SyncSchedule {
+            val intervalMinutes = when {
+                unsyncedCount > 0 && unsyncedCount >= backlogThreshold -> baseIntervalMinutes / 4
+                unsyncedCount > 0 -> baseIntervalMinutes / 2
+                lastDownloadedRows == 0L -> baseIntervalMinutes * 2
+                else -> baseIntervalMinutes
+            }
+            return SyncSchedule(
+                intervalMinutes = intervalMinutes.coerceAtLeast(MIN_INTERVAL_MINUTES),
+                requiresUnmeteredAndCharging = unsyncedCount == 0 && lastDownloadedRows >= largeDownloadRows
+            )
+        }
     }
 }
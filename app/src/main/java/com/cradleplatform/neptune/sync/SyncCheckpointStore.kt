@@ -0,0 +1,68 @@
+package com.cradleplatform.neptune.sync
+
+import android.content.SharedPreferences
+import androidx.core.content.edit
+import com.cradleplatform.neptune.http_sms_service.http.SyncCursor
+import java.math.BigInteger
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Persists the progress of paged sync downloads, so that a sync which is interrupted halfway (e.g.
+ * the connection drops) resumes from the last page committed to the database instead of
+ * downloading everything again.
+ *
+ * A checkpoint should only be saved after the page it describes has been committed.
+ */
+@Singleton
+class SyncCheckpointStore @Inject constructor(private val sharedPreferences: SharedPreferences) {
+
+    /**
+     * @property since The `since` timestamp that the interrupted sync was downloading from. A
+     * checkpoint is only valid for a sync that is downloading from the same timestamp.
+     * @property cursor The last entity that was committed to the database.
+     */
+    data class Checkpoint(
+        val since: BigInteger,
+        val cursor: SyncCursor,
+    )
+
+    fun get(entityType: String): Checkpoint? {
+        val since = sharedPreferences.getString(sinceKey(entityType), null) ?: return null
+        val cursorId = sharedPreferences.getString(cursorIdKey(entityType), null) ?: return null
+        val cursorLastEdited = sharedPreferences.getLong(cursorLastEditedKey(entityType), 0L)
+        return Checkpoint(BigInteger(since), SyncCursor(cursorLastEdited, cursorId))
+    }
+
+    fun save(entityType: String, checkpoint: Checkpoint) {
+        sharedPreferences.edit(commit = true) {
+            putString(sinceKey(entityType), checkpoint.since.toString())
+            putString(cursorIdKey(entityType), checkpoint.cursor.id)
+            putLong(cursorLastEditedKey(entityType), checkpoint.cursor.lastEdited)
+        }
+    }
+
+    fun clear(entityType: String) {
+        sharedPreferences.edit(commit = true) {
+            remove(sinceKey(entityType))
+            remove(cursorIdKey(entityType))
+            remove(cursorLastEditedKey(entityType))
+        }
+    }
+
+    fun clearAll() {
+        ALL_ENTITY_TYPES.forEach { clear(it) }
+    }
+
+    private fun sinceKey(entityType: String) = "$KEY_PREFIX${entityType}Since"
+    private fun cursorIdKey(entityType: String) = "$KEY_PREFIX${entityType}CursorId"
+    private fun cursorLastEditedKey(entityType: String) = "$KEY_PREFIX${entityType}CursorLastEdited"
+
+    companion object {
+        private const val KEY_PREFIX = "syncCheckpoint"
+
+        const val READINGS = "Readings"
+
+        private val ALL_ENTITY_TYPES = listOf(READINGS)
+    }
+}
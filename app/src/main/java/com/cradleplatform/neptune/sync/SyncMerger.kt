@@ -0,0 +1,251 @@
+package com.cradleplatform.neptune.sync
+
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.Patient
+import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.model.SyncConflict
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.NullNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import kotlin.reflect.KMutableProperty1
+
+/**
+ * Merges entities downloaded during a sync into the local copies that still have changes waiting
+ * to be uploaded, instead of overwriting them (and losing an edit made offline or while the sync
+ * was running).
+ *
+ * A local copy whose edited fields are tracked (see [Patient.dirtyFields]) is merged field by
+ * field against the last synced values of those fields ([Patient.dirtyFieldBase]):
+ * - a field that only the server changed takes the server's value;
+ * - a field that only this device changed keeps the local value, and is still uploaded;
+ * - a field that both changed to the same value needs nothing more;
+ * - a field that both changed to different values is a real conflict: the server's value is
+ *   saved and the local value is queued as a [SyncConflict] for the user to resolve.
+ *
+ * A local copy without tracked fields (e.g., one that was created offline) is kept as a whole if
+ * it was edited after the server's copy, so that it is uploaded again by the next sync.
+ *
+ * @param T The type of the entities, with a [Spec] describing how to merge them.
+ */
+internal class SyncMerger<T : Any>(private val spec: Spec<T>) {
+
+    /**
+     * How to merge one type of entity.
+     *
+     * @property entityClass The class to read the entities' JSON back into.
+     * @property fields The properties that are merged field by field, keyed by the JSON fields they
+     * are serialized to. A property serialized to several JSON fields is merged as a whole. Other
+     * JSON fields, such as timestamps, always take the server's value.
+     * @property keepPending Marks the merged entity as still having changes to upload. Called with
+     * the merged entity and the local copy.
+     */
+    class Spec<T : Any>(
+        val type: OutboxEntityType,
+        val entityClass: Class<T>,
+        val id: (T) -> String,
+        val lastEdited: (T) -> Long?,
+        val dirtyFields: KMutableProperty1<T, List<String>>,
+        val dirtyFieldBase: KMutableProperty1<T, ObjectNode>,
+        val fields: Map<String, KMutableProperty1<T, *>>,
+        val keepPending: (merged: T, local: T) -> Unit
+    )
+
+    class Result<T>(val entity: T, val conflicts: List<SyncConflict>)
+
+    class BatchResult<T>(val entities: List<T>, val conflicts: List<SyncConflict>)
+
+    /**
+     * Merges a batch of entities downloaded from the server. Only the local copies that have
+     * changes waiting to be uploaded need to be merged, so they are looked up for the whole batch
+     * at once with [getPendingLocal], which returns the ones among the given ids. The rest of the
+     * batch is returned as is.
+     *
+     * @param detectedAt Unix timestamp (seconds) to record conflicts with
+     * @return the entities to save in place of the batch, in the same order, and the conflicts found
+     */
+    suspend fun mergeBatch(
+        serverEntities: List<T>,
+        detectedAt: Long,
+        getPendingLocal: suspend (ids: List<String>) -> List<T>
+    ): BatchResult<T> {
+        if (serverEntities.isEmpty()) {
+            return BatchResult(serverEntities, emptyList())
+        }
+        val pendingLocal = getPendingLocal(serverEntities.map(spec.id)).associateBy(spec.id)
+        if (pendingLocal.isEmpty()) {
+            return BatchResult(serverEntities, emptyList())
+        }
+
+        val conflicts = mutableListOf<SyncConflict>()
+        val entities = serverEntities.map { server ->
+            val local = pendingLocal[spec.id(server)] ?: return@map server
+            val result = merge(local, server, detectedAt)
+            conflicts.addAll(result.conflicts)
+            result.entity
+        }
+        return BatchResult(entities, conflicts)
+    }
+
+    /**
+     * Merges the [server] copy of an entity into its [local] copy, which has changes waiting to be
+     * uploaded.
+     */
+    fun merge(local: T, server: T, detectedAt: Long): Result<T> {
+        val dirtyFields = spec.dirtyFields.get(local)
+        if (dirtyFields.isEmpty()) {
+            return if ((spec.lastEdited(local) ?: 0L) > (spec.lastEdited(server) ?: 0L)) {
+                Result(local, emptyList())
+            } else {
+                Result(server, emptyList())
+            }
+        }
+
+        val localTree = toTree(local)
+        val serverTree = toTree(server)
+        if (localTree == null || serverTree == null) {
+            // Without the JSON values, the fields can't be compared, so keep the local edits.
+            return Result(local, emptyList())
+        }
+        val base = spec.dirtyFieldBase.get(local)
+
+        val remainingDirtyFields = mutableListOf<String>()
+        val remainingBase = JacksonMapper.mapper.createObjectNode()
+        val conflicts = mutableListOf<SyncConflict>()
+        dirtyFields.mapNotNull { spec.fields[it] }.distinct().forEach { property ->
+            val fieldNames = spec.fields.filterValues { it == property }.keys
+            val localValues = fieldNames.map { localTree.valueOf(it) }
+            val serverValues = fieldNames.map { serverTree.valueOf(it) }
+            // Fields that weren't edited locally still have their last synced value.
+            val baseValues = fieldNames.map {
+                if (it in dirtyFields) (base.get(it) ?: NullNode.instance).toString() else localTree.valueOf(it)
+            }
+
+            when {
+                serverValues == localValues -> Unit
+                serverValues == baseValues -> {
+                    copyProperty(property, from = local, to = server)
+                    fieldNames.filter { it in dirtyFields }.forEach {
+                        remainingDirtyFields.add(it)
+                        remainingBase.set<JsonNode>(it, base.get(it) ?: NullNode.instance)
+                    }
+                }
+                else -> fieldNames.forEachIndexed { i, field ->
+                    if (localValues[i] != serverValues[i]) {
+                        conflicts.add(
+                            SyncConflict(
+                                entityType = spec.type,
+                                entityId = spec.id(server),
+                                field = field,
+                                localValue = localValues[i],
+                                serverValue = serverValues[i],
+                                detectedAt = detectedAt
+                            )
+                        )
+                    }
+                }
+            }
+        }
+
+        spec.dirtyFields.set(server, remainingDirtyFields)
+        spec.dirtyFieldBase.set(server, remainingBase)
+        if (remainingDirtyFields.isNotEmpty()) {
+            spec.keepPending(server, local)
+        }
+        return Result(server, conflicts)
+    }
+
+    /**
+     * Sets the [field] of [entity] to the JSON [value], e.g. to apply the local value of a
+     * [SyncConflict] that the user decided to keep. The other fields serialized from the same
+     * property keep their current values.
+     *
+     * @return false if the field isn't merged field by field or the value can't be read
+     */
+    fun applyValue(entity: T, field: String, value: String): Boolean {
+        val property = spec.fields[field] ?: return false
+        val tree = toTree(entity) as? ObjectNode ?: return false
+        return try {
+            tree.set<JsonNode>(field, JacksonMapper.mapper.readTree(value))
+            val parsed = JacksonMapper.mapper.treeToValue(tree, spec.entityClass)
+            copyProperty(property, from = parsed, to = entity)
+            true
+        } catch (e: JsonProcessingException) {
+            false
+        }
+    }
+
+    private fun toTree(entity: T): JsonNode? = try {
+        JacksonMapper.mapper.valueToTree<JsonNode>(entity)
+    } catch (e: IllegalArgumentException) {
+        // e.g., a required field is missing, so the entity can't be serialized
+        null
+    }
+
+    /**
+     * JSON values are compared as text, since numbers read back from the database can have a
+     * different node type than the ones written by the serializer.
+     */
+    private fun JsonNode.valueOf(field: String): String = (get(field) ?: NullNode.instance).toString()
+
+    companion object {
+        @Suppress("UNCHECKED_CAST")
+        private fun <T : Any> copyProperty(property: KMutableProperty1<T, *>, from: T, to: T) {
+            (property as KMutableProperty1<T, Any?>).set(to, property.get(from))
+        }
+
+        val PATIENTS = SyncMerger(
+            Spec(
+                type = OutboxEntityType.PATIENT,
+                entityClass = Patient::class.java,
+                id = Patient::id,
+                lastEdited = Patient::lastEdited,
+                dirtyFields = Patient::dirtyFields,
+                dirtyFieldBase = Patient::dirtyFieldBase,
+                fields = Patient.MERGE_FIELDS,
+                keepPending = { merged, local ->
+                    // A patient needs uploading while it was edited after its last server update.
+                    merged.lastEdited = maxOf(
+                        local.lastEdited ?: 0L,
+                        merged.lastEdited ?: 0L,
+                        (merged.lastServerUpdate ?: 0L) + 1
+                    )
+                }
+            )
+        )
+
+        val READINGS = SyncMerger(
+            Spec(
+                type = OutboxEntityType.READING,
+                entityClass = Reading::class.java,
+                id = Reading::id,
+                lastEdited = Reading::lastEdited,
+                dirtyFields = Reading::dirtyFields,
+                dirtyFieldBase = Reading::dirtyFieldBase,
+                fields = Reading.MERGE_FIELDS,
+                keepPending = { merged, local ->
+                    merged.isUploadedToServer = false
+                    merged.lastEdited = maxOf(local.lastEdited, merged.lastEdited)
+                }
+            )
+        )
+
+        val REFERRALS = SyncMerger(
+            Spec(
+                type = OutboxEntityType.REFERRAL,
+                entityClass = Referral::class.java,
+                id = Referral::id,
+                lastEdited = Referral::lastEdited,
+                dirtyFields = Referral::dirtyFields,
+                dirtyFieldBase = Referral::dirtyFieldBase,
+                fields = Referral.MERGE_FIELDS,
+                keepPending = { merged, local ->
+                    merged.isUploadedToServer = false
+                    merged.lastEdited = maxOf(local.lastEdited, merged.lastEdited)
+                }
+            )
+        )
+    }
+}
@@ -9,6 +9,7 @@ import androidx.work.WorkInfo
 import androidx.work.WorkManager
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.daos.AssessmentDao
+import com.cradleplatform.neptune.database.daos.OutboxDao
 import com.cradleplatform.neptune.database.daos.PatientDao
 import com.cradleplatform.neptune.database.daos.ReadingDao
 import com.cradleplatform.neptune.database.daos.ReferralDao
@@ -39,7 +40,9 @@ class SyncStatusManager @Inject constructor(
     private val patientDao: PatientDao,
     private val readingDao: ReadingDao,
     private val referralDao: ReferralDao,
-    private val assessmentDao: AssessmentDao
+    private val assessmentDao: AssessmentDao,
+    private val outboxDao: OutboxDao,
+    private val periodicSyncer: PeriodicSyncer
 ) {
     private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
 
@@ -64,6 +67,8 @@ class SyncStatusManager @Inject constructor(
                 readingDao.getNumberOfUnUploadedReadings() +
                 referralDao.countReferralsToUpload() +
                 assessmentDao.countAssessmentsToUpload()
+            // Quarantined changes are still unsynced, but syncing more often won't upload them.
+            periodicSyncer.onBacklogChanged(outboxDao.countRetryable())
             val lastSucceeded = sharedPreferences.getBoolean(SyncAllWorker.LAST_SYNC_SUCCEEDED, true)
 
             val state = when {
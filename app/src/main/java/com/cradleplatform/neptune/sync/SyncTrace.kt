@@ -0,0 +1,51 @@
+package com.cradleplatform.neptune.sync
+
+/**
+ * Measurements of one sync, used to find out why a sync is slow on a particular device. Traces are
+ * kept by [SyncTraceStore], and can be viewed and exported as JSON from the sync screen.
+ *
+ * @property startedAt When the sync started, in milliseconds since the epoch
+ * @property wallMillis How long the whole sync took
+ * @property device The manufacturer and model of the device, so that traces from different classes
+ * of devices can be compared
+ * @property sdkInt The Android API level of the device
+ * @property phases The phases that ran, in the order they finished. Phases that ran concurrently
+ * overlap, so their times don't add up to [wallMillis].
+ */
+data class SyncTrace(
+    val startedAt: Long,
+    val wallMillis: Long,
+    val succeeded: Boolean,
+    val device: String,
+    val sdkInt: Int,
+    val phases: List<SyncPhaseTrace>,
+)
+
+/**
+ * Measurements of one phase of a sync (e.g., patients).
+ *
+ * @property wallMillis How long the phase took, from start to finish
+ * @property bytesSent Bytes of request bodies uploaded, after compression
+ * @property bytesReceived Bytes of response bodies downloaded, before decompression
+ * @property networkReadMillis Time spent waiting on the network while reading response bodies
+ * @property parseMillis Time spent parsing response bodies: the time it took to read them, minus the
+ * time waiting on the network and on the database writer
+ * @property dbWriteMillis Time spent writing downloaded rows to the database
+ * @property rowsWritten Rows written to the database
+ * @property rowsPerSecond Rows written per second of [dbWriteMillis]
+ * @property parserBlockedMillis Time the response parser spent waiting on the database writer
+ * @property writerBlockedMillis Time the database writer spent waiting on the response parser
+ */
+data class SyncPhaseTrace(
+    val phase: String,
+    val wallMillis: Long,
+    val bytesSent: Long,
+    val bytesReceived: Long,
+    val networkReadMillis: Long,
+    val parseMillis: Long,
+    val dbWriteMillis: Long,
+    val rowsWritten: Long,
+    val rowsPerSecond: Double,
+    val parserBlockedMillis: Long,
+    val writerBlockedMillis: Long,
+)
@@ -0,0 +1,52 @@
+package com.cradleplatform.neptune.sync
+
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.core.content.edit
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.module.kotlin.readValue
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Keeps the [SyncTrace]s of the most recent syncs. Only the last [MAX_TRACES] are kept, so that the
+ * traces stay small enough for SharedPreferences.
+ */
+@Singleton
+class SyncTraceStore @Inject constructor(private val sharedPreferences: SharedPreferences) {
+
+    /**
+     * Returns the stored traces, oldest first.
+     */
+    @Synchronized
+    fun getAll(): List<SyncTrace> {
+        val json = sharedPreferences.getString(KEY_TRACES, null) ?: return emptyList()
+        return try {
+            JacksonMapper.mapper.readValue(json)
+        } catch (e: JsonProcessingException) {
+            Log.w(TAG, "discarding unreadable sync traces", e)
+            emptyList()
+        }
+    }
+
+    @Synchronized
+    fun add(trace: SyncTrace) {
+        val traces = (getAll() + trace).takeLast(MAX_TRACES)
+        sharedPreferences.edit(commit = true) {
+            putString(KEY_TRACES, JacksonMapper.mapper.writeValueAsString(traces))
+        }
+    }
+
+    /**
+     * Returns the stored traces as a pretty-printed JSON array, for exporting.
+     */
+    fun exportJson(): String =
+        JacksonMapper.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(getAll())
+
+    companion object {
+        private const val TAG = "SyncTraceStore"
+        private const val KEY_TRACES = "syncTraces"
+        const val MAX_TRACES = 20
+    }
+}
@@ -1,8 +1,10 @@
 package com.cradleplatform.neptune.sync.views
 
+import android.content.Intent
 import android.content.SharedPreferences
 import android.os.Bundle
 import android.view.Menu
+import android.view.MenuItem
 import android.view.View
 import android.widget.Button
 import android.widget.ProgressBar
@@ -11,16 +13,22 @@ import android.widget.Toast
 import androidx.activity.viewModels
 import androidx.appcompat.app.AppCompatActivity
 import androidx.databinding.DataBindingUtil
+import androidx.lifecycle.lifecycleScope
 import androidx.work.WorkInfo
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.databinding.ActivitySyncBinding
+import com.cradleplatform.neptune.model.SyncConflict
 import com.cradleplatform.neptune.sync.SyncStatusManager
+import com.cradleplatform.neptune.sync.SyncTrace
+import com.cradleplatform.neptune.sync.SyncTraceStore
 import com.cradleplatform.neptune.sync.bindSyncStatusIndicator
 import com.cradleplatform.neptune.sync.views.viewmodels.SyncViewModel
 import com.cradleplatform.neptune.sync.workers.SyncAllWorker
 import com.cradleplatform.neptune.utilities.DateUtil
 import com.cradleplatform.neptune.utilities.notification.NotificationManagerCustom
+import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import dagger.hilt.android.AndroidEntryPoint
+import kotlinx.coroutines.launch
 import java.math.BigInteger
 import javax.inject.Inject
 
@@ -40,6 +48,9 @@ class SyncActivity : AppCompatActivity() {
     @Inject
     lateinit var syncStatusManager: SyncStatusManager
 
+    @Inject
+    lateinit var syncTraceStore: SyncTraceStore
+
     lateinit var notificationManager: NotificationManagerCustom
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -70,6 +81,8 @@ class SyncActivity : AppCompatActivity() {
         NotificationManagerCustom.createNotificationChannel(this)
 
         setupSyncButton()
+        setupRetryQuarantinedButton()
+        setupReviewConflictsButton()
         setupNetworkObserver()
         setupSyncStatusObserver()
     }
@@ -82,12 +95,140 @@ class SyncActivity : AppCompatActivity() {
         }
     }
 
+    private fun setupRetryQuarantinedButton() {
+        findViewById<Button>(R.id.retry_quarantined_button).setOnClickListener {
+            findViewById<Button>(R.id.sync_button).isEnabled = false
+            viewModel.retryQuarantined()
+        }
+    }
+
+    private fun setupReviewConflictsButton() {
+        findViewById<Button>(R.id.review_conflicts_button).setOnClickListener {
+            lifecycleScope.launch { showNextConflict() }
+        }
+    }
+
+    /**
+     * Asks the user which value to keep for the oldest conflict, then for the next one, until none
+     * are left or the user leaves the rest for later.
+     */
+    private suspend fun showNextConflict() {
+        val conflict = viewModel.getConflicts().firstOrNull() ?: return
+        MaterialAlertDialogBuilder(this)
+            .setTitle(R.string.sync_activity_conflict_title)
+            .setMessage(
+                getString(
+                    R.string.sync_activity_conflict_message,
+                    conflict.entityType.name.lowercase(),
+                    conflict.entityId,
+                    conflict.field,
+                    conflict.localValue,
+                    conflict.serverValue
+                )
+            )
+            .setPositiveButton(R.string.sync_activity_conflict_keep_local) { _, _ ->
+                resolveConflict(conflict, keepLocal = true)
+            }
+            .setNegativeButton(R.string.sync_activity_conflict_keep_server) { _, _ ->
+                resolveConflict(conflict, keepLocal = false)
+            }
+            .setNeutralButton(R.string.sync_activity_conflict_later, null)
+            .show()
+    }
+
+    private fun resolveConflict(conflict: SyncConflict, keepLocal: Boolean) {
+        lifecycleScope.launch {
+            if (!viewModel.resolveConflict(conflict, keepLocal)) {
+                Toast.makeText(
+                    this@SyncActivity,
+                    getString(R.string.sync_activity_conflict_local_not_kept),
+                    Toast.LENGTH_LONG
+                ).show()
+            }
+            showNextConflict()
+        }
+    }
+
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
         menuInflater.inflate(R.menu.menu_sync, menu)
         bindSyncStatusIndicator(syncStatusManager, menu.findItem(R.id.action_network_status))
         return true
     }
 
+    override fun onOptionsItemSelected(item: MenuItem): Boolean {
+        return when (item.itemId) {
+            R.id.action_view_sync_traces -> {
+                showSyncTraces()
+                true
+            }
+            R.id.action_export_sync_traces -> {
+                exportSyncTraces()
+                true
+            }
+            else -> super.onOptionsItemSelected(item)
+        }
+    }
+
+    private fun showSyncTraces() {
+        val traces = syncTraceStore.getAll()
+        val message = if (traces.isEmpty()) {
+            getString(R.string.sync_activity_traces_none)
+        } else {
+            traces.asReversed().joinToString(separator = "\n\n") { formatSyncTrace(it) }
+        }
+        MaterialAlertDialogBuilder(this)
+            .setTitle(R.string.sync_activity_traces_title)
+            .setMessage(message)
+            .setPositiveButton(android.R.string.ok, null)
+            .setNeutralButton(R.string.sync_activity_traces_export) { _, _ -> exportSyncTraces() }
+            .show()
+    }
+
+    private fun formatSyncTrace(trace: SyncTrace): String {
+        val outcome = if (trace.succeeded) {
+            R.string.sync_activity_trace_succeeded
+        } else {
+            R.string.sync_activity_trace_failed
+        }
+        val header = getString(
+            R.string.sync_activity_trace_header,
+            DateUtil.getConciseDateString(BigInteger.valueOf(trace.startedAt / MILLIS_PER_SECOND), false),
+            getString(outcome),
+            trace.wallMillis,
+            trace.device,
+            trace.sdkInt
+        )
+        val phases = trace.phases.map {
+            getString(
+                R.string.sync_activity_trace_phase,
+                it.phase,
+                it.wallMillis,
+                it.bytesSent,
+                it.bytesReceived,
+                it.networkReadMillis,
+                it.parseMillis,
+                it.dbWriteMillis,
+                it.rowsWritten,
+                it.rowsPerSecond,
+                it.parserBlockedMillis,
+                it.writerBlockedMillis
+            )
+        }
+        return (listOf(header) + phases).joinToString(separator = "\n")
+    }
+
+    /**
+     * Shares the stored sync traces as JSON, e.g. to compare them across devices.
+     */
+    private fun exportSyncTraces() {
+        val intent = Intent(Intent.ACTION_SEND).apply {
+            type = "application/json"
+            putExtra(Intent.EXTRA_SUBJECT, getString(R.string.sync_activity_traces_title))
+            putExtra(Intent.EXTRA_TEXT, syncTraceStore.exportJson())
+        }
+        startActivity(Intent.createChooser(intent, getString(R.string.sync_activity_traces_export)))
+    }
+
     private fun setupNetworkObserver() {
         // Only show toast when network state actually changes, not on initial observation or rotation
         viewModel.isConnectedToInternet.observe(this) { isConnected ->
@@ -215,6 +356,9 @@ class SyncActivity : AppCompatActivity() {
                     SyncAllWorker.State.DOWNLOADING_ASSESSMENTS -> getString(
                         R.string.sync_activity_status_downloading_assessments
                     )
+                    SyncAllWorker.State.SYNCING_RECORDS -> getString(
+                        R.string.sync_activity_status_syncing_records
+                    )
                     SyncAllWorker.State.DOWNLOADING_HEALTH_FACILITIES -> getString(
                         R.string.sync_activity_status_downloading_health_facilities
                     )
@@ -288,5 +432,6 @@ class SyncActivity : AppCompatActivity() {
         const val LAST_SYNC_RESULT_MESSAGE = "lastSyncResultMessage"
         private const val KEY_IS_INITIAL_NETWORK_OBSERVATION = "isInitialNetworkObservation"
         private const val KEY_LAST_NETWORK_STATE = "lastNetworkState"
+        private const val MILLIS_PER_SECOND = 1000L
     }
 }
@@ -18,10 +18,14 @@ import androidx.work.WorkInfo
 import androidx.work.WorkManager
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.daos.AssessmentDao
+import com.cradleplatform.neptune.database.daos.OutboxDao
 import com.cradleplatform.neptune.database.daos.PatientDao
 import com.cradleplatform.neptune.database.daos.ReadingDao
 import com.cradleplatform.neptune.database.daos.ReferralDao
 import com.cradleplatform.neptune.ext.setValueOnMainThread
+import com.cradleplatform.neptune.manager.SyncConflictManager
+import com.cradleplatform.neptune.model.OutboxEntry
+import com.cradleplatform.neptune.model.SyncConflict
 import com.cradleplatform.neptune.sync.workers.SyncAllWorker
 import com.cradleplatform.neptune.sync.views.SyncActivity
 import com.cradleplatform.neptune.utilities.connectivity.api24.NetworkStateManager
@@ -41,6 +45,8 @@ class SyncViewModel @Inject constructor(
     private val readingDao: ReadingDao,
     private val referralDao: ReferralDao,
     private val assessmentDao: AssessmentDao,
+    private val outboxDao: OutboxDao,
+    private val syncConflictManager: SyncConflictManager,
     private val sharedPreferences: SharedPreferences,
     private val workManager: WorkManager,
     private val networkStateManager: NetworkStateManager,
@@ -117,6 +123,52 @@ class SyncViewModel @Inject constructor(
         }
     }
 
+    /**
+     * The entities that failed to upload too many times, and that syncing no longer uploads until
+     * they are edited or [retryQuarantined] is called.
+     */
+    private val quarantinedEntries: LiveData<List<OutboxEntry>> = outboxDao.getQuarantinedLiveData()
+
+    val hasQuarantinedEntries: LiveData<Boolean> = quarantinedEntries.map { it.isNotEmpty() }
+
+    val quarantinedText: LiveData<String> = quarantinedEntries.map { entries ->
+        val count = context.resources.getQuantityString(
+            R.plurals.sync_activity_n_records_failed_to_upload,
+            entries.size,
+            entries.size
+        )
+        val lastError = entries.firstNotNullOfOrNull { it.lastError }?.let {
+            context.getString(R.string.sync_activity_last_upload_error_s, it)
+        }
+        listOfNotNull(count, lastError).joinToString(separator = "\n")
+    }
+
+    val hasConflicts: LiveData<Boolean> = syncConflictManager.conflictCount.map { it > 0 }
+
+    val conflictsText: LiveData<String> = syncConflictManager.conflictCount.map { count ->
+        context.resources.getQuantityString(R.plurals.sync_activity_n_conflicts, count, count)
+    }
+
+    suspend fun getConflicts(): List<SyncConflict> = syncConflictManager.getConflicts()
+
+    /**
+     * Resolves the [conflict] with the value edited on this device if [keepLocal], or with the
+     * server's value otherwise.
+     *
+     * @return false if the local value couldn't be kept, in which case the server's value is kept
+     */
+    suspend fun resolveConflict(conflict: SyncConflict, keepLocal: Boolean): Boolean {
+        if (!keepLocal) {
+            syncConflictManager.keepServerValue(conflict)
+            return true
+        }
+        return syncConflictManager.keepLocalValue(conflict).also { isApplied ->
+            if (!isApplied) {
+                Log.w(TAG, "Couldn't keep the local ${conflict.field} of ${conflict.entityType} ${conflict.entityId}")
+            }
+        }
+    }
+
     val isConnectedToInternet: LiveData<Boolean> =
         networkStateManager.getInternetConnectivityStatus()
 
@@ -133,6 +185,18 @@ class SyncViewModel @Inject constructor(
         Log.d(TAG, "Work ${workRequest.id} enqueued")
     }
 
+    /**
+     * Releases the quarantined entities and starts a sync, so that they are uploaded again.
+     */
+    @MainThread
+    fun retryQuarantined() {
+        viewModelScope.launch {
+            val released = outboxDao.releaseQuarantined()
+            Log.d(TAG, "Released $released quarantined entities")
+            startSyncing()
+        }
+    }
+
     companion object {
         private const val TAG = "SyncViewModel"
         private const val WORK_TAG =
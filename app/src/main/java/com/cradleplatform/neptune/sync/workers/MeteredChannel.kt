@@ -0,0 +1,82 @@
+package com.cradleplatform.neptune.sync.workers
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ChannelIterator
+import kotlinx.coroutines.channels.ChannelResult
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A [Channel] between the sync response parser (the producer) and the database writer (the
+ * consumer) that measures how long each side spends blocked on the other.
+ *
+ * With a rendezvous channel, the parser stops on every send until the writer has taken that single
+ * element. A buffered [capacity] lets the parser run up to [capacity] elements ahead of the
+ * writer, so that network reads, parsing, and SQLite writes overlap. The metrics show whether the
+ * buffer is the right size: a parser that is blocked for long is waiting on a slow writer, and a
+ * writer that is blocked for long is waiting on the network or the parser.
+ *
+ * @param capacity The buffer capacity; see [Channel] for the special values.
+ */
+class MeteredChannel<E> private constructor(
+    private val channel: Channel<E>
+) : Channel<E> by channel {
+
+    constructor(capacity: Int) : this(Channel(capacity))
+
+    private val sendBlockedNanos = AtomicLong()
+    private val receiveBlockedNanos = AtomicLong()
+
+    /** Total time the producer has spent suspended in [send] waiting for buffer space. */
+    val sendBlockedMillis: Long get() = TimeUnit.NANOSECONDS.toMillis(sendBlockedNanos.get())
+
+    /** Total time the consumer has spent suspended waiting for an element. */
+    val receiveBlockedMillis: Long get() = TimeUnit.NANOSECONDS.toMillis(receiveBlockedNanos.get())
+
+    override suspend fun send(element: E) {
+        // Only the slow path is timed, since there is usually room in the buffer.
+        if (channel.trySend(element).isSuccess) {
+            return
+        }
+        val startTime = System.nanoTime()
+        try {
+            channel.send(element)
+        } finally {
+            sendBlockedNanos.addAndGet(System.nanoTime() - startTime)
+        }
+    }
+
+    override suspend fun receive(): E {
+        val startTime = System.nanoTime()
+        try {
+            return channel.receive()
+        } finally {
+            receiveBlockedNanos.addAndGet(System.nanoTime() - startTime)
+        }
+    }
+
+    override suspend fun receiveCatching(): ChannelResult<E> {
+        val startTime = System.nanoTime()
+        try {
+            return channel.receiveCatching()
+        } finally {
+            receiveBlockedNanos.addAndGet(System.nanoTime() - startTime)
+        }
+    }
+
+    override fun iterator(): ChannelIterator<E> {
+        val iterator = channel.iterator()
+        return object : ChannelIterator<E> {
+            override suspend fun hasNext(): Boolean {
+                val startTime = System.nanoTime()
+                try {
+                    return iterator.hasNext()
+                } finally {
+                    receiveBlockedNanos.addAndGet(System.nanoTime() - startTime)
+                }
+            }
+
+            override fun next(): E = iterator.next()
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cradleplatform.neptune.sync.workers
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.util.Log
+import androidx.hilt.work.HiltWorker
+import androidx.work.CoroutineWorker
+import androidx.work.WorkerParameters
+import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
+import com.cradleplatform.neptune.manager.HealthFacilityManager
+import com.cradleplatform.neptune.manager.LoginManager
+import com.cradleplatform.neptune.manager.PatientManager
+import com.cradleplatform.neptune.model.PatientSummary
+import dagger.assisted.Assisted
+import dagger.assisted.AssistedInject
+import java.net.HttpURLConnection
+
+/**
+ * A Worker that prefetches the [PatientSummary]s of the patients the user is likely to open from
+ * the global patient search: the ones in the user's health facility and the health facilities the
+ * user selected, and the ones in the villages of the user's patients.
+ *
+ * It is scheduled by [com.cradleplatform.neptune.sync.PeriodicSyncer] to run only on an unmetered
+ * network, since the summaries aren't needed to work offline.
+ */
+@HiltWorker
+class PatientPrefetchWorker @AssistedInject constructor(
+    @Assisted context: Context,
+    @Assisted params: WorkerParameters,
+    private val patientManager: PatientManager,
+    private val healthFacilityManager: HealthFacilityManager,
+    private val sharedPreferences: SharedPreferences
+) : CoroutineWorker(context, params) {
+
+    override suspend fun doWork(): Result {
+        val healthFacilities = healthFacilityManager.getAllSelectedByUser().map { it.name }.toMutableSet()
+        sharedPreferences.getString(LoginManager.USER_HEALTH_FACILITY_KEY, null)
+            ?.takeIf { it.isNotBlank() }
+            ?.let { healthFacilities.add(it) }
+
+        return when (val result = patientManager.prefetchPatientSummaries(healthFacilities)) {
+            is NetworkResult.Success -> {
+                Log.d(TAG, "Prefetched ${result.value} patient summaries")
+                Result.success()
+            }
+            else -> {
+                Log.w(TAG, "Patient prefetch failed: ${result.getStatusMessage(applicationContext)}")
+                if (isRetryable(result)) Result.retry() else Result.failure()
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "PatientPrefetchWorker"
+
+        /**
+         * Whether a failed prefetch is worth retrying: the request didn't reach the server, or the
+         * server failed to handle it. A request the server rejected (4xx) fails the same way
+         * every time, so the prefetch waits for its next periodic run instead.
+         */
+        internal fun isRetryable(result: NetworkResult<*>): Boolean = when (result) {
+            is NetworkResult.Success -> false
+            is NetworkResult.Failure -> result.statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+            is NetworkResult.NetworkException -> true
+        }
+    }
+}
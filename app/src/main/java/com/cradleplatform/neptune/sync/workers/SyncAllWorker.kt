@@ -2,6 +2,7 @@ package com.cradleplatform.neptune.sync.workers
 
 import android.content.Context
 import android.content.SharedPreferences
+import android.os.Build
 import android.util.Log
 import androidx.core.content.edit
 import androidx.hilt.work.HiltWorker
@@ -13,16 +14,26 @@ import androidx.work.workDataOf
 import com.cradleplatform.neptune.R
 import com.cradleplatform.neptune.database.CradleDatabase
 import com.cradleplatform.neptune.ext.Field
+import com.cradleplatform.neptune.ext.consumeInBatchesInTransaction
 import com.cradleplatform.neptune.http_sms_service.http.AssessmentSyncResult
+import com.cradleplatform.neptune.http_sms_service.http.CombinedSyncChannels
+import com.cradleplatform.neptune.http_sms_service.http.CombinedSyncResult
+import com.cradleplatform.neptune.http_sms_service.http.CombinedSyncUpload
+import com.cradleplatform.neptune.http_sms_service.http.FormResponseSyncChange
 import com.cradleplatform.neptune.http_sms_service.http.FormResponseSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.FormSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.HealthFacilitySyncResult
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
 import com.cradleplatform.neptune.http_sms_service.http.PatientSyncResult
+import com.cradleplatform.neptune.http_sms_service.http.ReadingPageSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.ReadingSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.ReferralSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
+import com.cradleplatform.neptune.http_sms_service.http.SyncChangeCounts
+import com.cradleplatform.neptune.http_sms_service.http.SyncCursor
 import com.cradleplatform.neptune.http_sms_service.http.SyncException
+import com.cradleplatform.neptune.http_sms_service.http.SyncItemError
+import com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource
 import com.cradleplatform.neptune.manager.AssessmentManager
 import com.cradleplatform.neptune.manager.FormManager
 import com.cradleplatform.neptune.manager.FormResponseManager
@@ -32,21 +43,29 @@ import com.cradleplatform.neptune.manager.ReadingManager
 import com.cradleplatform.neptune.manager.ReferralManager
 import com.cradleplatform.neptune.model.Assessment
 import com.cradleplatform.neptune.model.FormClassification
-import com.cradleplatform.neptune.model.FormResponse
 import com.cradleplatform.neptune.model.HealthFacility
+import com.cradleplatform.neptune.model.OutboxEntityType
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.sync.PeriodicSyncer
+import com.cradleplatform.neptune.sync.SyncCheckpointStore
+import com.cradleplatform.neptune.sync.SyncTrace
+import com.cradleplatform.neptune.sync.SyncTraceStore
 import com.cradleplatform.neptune.utilities.Protocol
 import com.cradleplatform.neptune.utilities.RateLimitRunner
 import com.cradleplatform.neptune.utilities.UnixTimestamp
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.math.BigInteger
+import java.net.HttpURLConnection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * A Worker that syncs the local [Patient]s and [Reading]s (and [Referral]s sent by SMS) with
@@ -54,8 +73,10 @@ import java.math.BigInteger
  * new data from the server is downloaded. Syncing is done using a timestamp passed as a parameter
  * when accessing the API.
  *
- * TODO: Make sure that patients or readings can't be edited or created while syncing is in
- *  progress.
+ * Downloaded patients, readings and referrals are merged into the local ones that still have
+ * changes to upload (e.g., edits made while syncing), instead of overwriting them; see
+ * [com.cradleplatform.neptune.sync.SyncMerger].
+ *
  * TODO: Add unit test for SyncAllWorker.
  */
 @HiltWorker
@@ -71,7 +92,9 @@ class SyncAllWorker @AssistedInject constructor(
     private val formManager: FormManager,
     private val formResponseManager: FormResponseManager,
     private val sharedPreferences: SharedPreferences,
-    private val database: CradleDatabase
+    private val database: CradleDatabase,
+    private val checkpointStore: SyncCheckpointStore,
+    private val syncTraceStore: SyncTraceStore
 ) : CoroutineWorker(context, params) {
 
     enum class State {
@@ -100,6 +123,12 @@ class SyncAllWorker @AssistedInject constructor(
          */
         CHECKING_SERVER_ASSESSMENTS, UPLOADING_ASSESSMENTS, DOWNLOADING_ASSESSMENTS,
 
+        /**
+         * Syncing patients, readings, referrals, assessments and health facilities in a single
+         * request; see [syncCombined]
+         */
+        SYNCING_RECORDS,
+
         /**
          * Downloading Form Templates from server
          */
@@ -129,8 +158,14 @@ class SyncAllWorker @AssistedInject constructor(
         /** SharedPreferences key for last time assessments were synced */
         const val LAST_HEALTH_FACILITIES_SYNC = "lastSyncTimeHealthFacilities"
 
-        /** SharedPreferences key for last time form responses were synced */
-        const val LAST_FORM_RESPONSE_SYNC = "lastSyncTimeFormResponses"
+        /**
+         * SharedPreferences key for last time form responses were synced. Changed when form
+         * responses started being merged by server id, so that they are all downloaded again.
+         */
+        const val LAST_FORM_RESPONSE_SYNC = "lastSyncTimeFormResponsesById"
+
+        /** SharedPreferences key for last time form templates were synced */
+        const val LAST_FORM_TEMPLATE_SYNC = "lastSyncTimeFormTemplates"
 
         /** Default last sync timestamp. Note that using 0 will result in server rejecting param */
         const val LAST_SYNC_DEFAULT = "1"
@@ -144,6 +179,9 @@ class SyncAllWorker @AssistedInject constructor(
         /** SharedPreferences key for the timestamp of the most recent failed sync */
         const val LAST_FAILED_SYNC_TIME = "lastFailedSyncTime"
 
+        /** SharedPreferences key for the number of rows downloaded by the most recent successful sync */
+        const val LAST_SYNC_DOWNLOADED_ROWS = "lastSyncDownloadedRows"
+
         /** The key for current syncing state in the [WorkInfo] progress */
         private const val PROGRESS_CURRENT_STATE = "currentState"
 
@@ -153,9 +191,24 @@ class SyncAllWorker @AssistedInject constructor(
         /** The key for number to downloaded so far in the [WorkInfo] progress */
         private const val PROGRESS_NUMBER_SO_FAR = "number_so_far"
 
+        /** The key for the throughput of the most recent database batch in the [WorkInfo] progress */
+        private const val PROGRESS_ROWS_PER_SECOND = "rows_per_second"
+
         /** The key for result of the syncing stored in the finished[WorkInfo] */
         private const val RESULT_MESSAGE = "result_message"
 
+        /** The key for the total time parsers were blocked on database writers in the finished [WorkInfo] */
+        private const val RESULT_PARSER_BLOCKED_MILLIS = "parser_blocked_millis"
+
+        /** The key for the total time database writers were blocked on parsers in the finished [WorkInfo] */
+        private const val RESULT_WRITER_BLOCKED_MILLIS = "writer_blocked_millis"
+
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+
+        /** Result of a phase that was skipped because nothing changed; see [isUnchanged]. */
+        private val UNCHANGED_RESULT: NetworkResult<Unit> =
+            NetworkResult.Success(Unit, HttpURLConnection.HTTP_NOT_MODIFIED)
+
         /**
          * Given a [WorkInfo] instance from WorkManager's getWorkInfo* methods for observing
          * intermediate progress, it gets the current syncing state.
@@ -195,6 +248,25 @@ class SyncAllWorker @AssistedInject constructor(
         fun getSyncResultMessage(workInfo: WorkInfo): String? = workInfo.outputData.getString(
             RESULT_MESSAGE
         )
+
+        /**
+         * Get the number of rows per second written to the database by the most recent batch in
+         * the [workInfo]'s progress, or null if no batch has been written yet.
+         */
+        fun getRowsPerSecond(workInfo: WorkInfo): Double? =
+            workInfo.progress.getDouble(PROGRESS_ROWS_PER_SECOND, -1.0).takeIf { it >= 0 }
+
+        /**
+         * Given a *successfully finished* [WorkInfo] instance, gets the total time in milliseconds
+         * that the response parsers spent blocked waiting for the database writers (first) and
+         * that the database writers spent blocked waiting for the parsers (second), or null if
+         * the sync didn't succeed.
+         */
+        fun getChannelBlockedMillis(workInfo: WorkInfo): Pair<Long, Long>? {
+            val parserBlocked = workInfo.outputData.getLong(RESULT_PARSER_BLOCKED_MILLIS, -1L)
+            val writerBlocked = workInfo.outputData.getLong(RESULT_WRITER_BLOCKED_MILLIS, -1L)
+            return if (parserBlocked < 0 || writerBlocked < 0) null else parserBlocked to writerBlocked
+        }
     }
 
     /**
@@ -206,183 +278,426 @@ class SyncAllWorker @AssistedInject constructor(
 
     private var syncSucceeded = false
 
+    /**
+     * Number of downloaded entities that are written to the database at once. Writing in batches
+     * avoids a separate update + insert round trip for every single entity.
+     */
+    private val batchSize = context.resources.getInteger(R.integer.settings_sync_batch_size)
+
+    /** Throughput of the most recently written batch; reported along with download progress. */
+    @Volatile
+    private var lastBatchRowsPerSecond = -1.0
+
+    /** Whether readings are downloaded in checkpointed pages; see [syncReadingsResumable]. */
+    private val isResumableReadingSyncEnabled =
+        context.resources.getBoolean(R.bool.settings_resumable_reading_sync)
+
+    private val pageSize = context.resources.getInteger(R.integer.settings_sync_page_size)
+
+    private val isDeltaUploadEnabled = context.resources.getBoolean(R.bool.settings_delta_sync_upload)
+
+    /** Whether only new or changed form templates are downloaded; see [syncFormTemplates]. */
+    private val isIncrementalFormTemplateSyncEnabled =
+        context.resources.getBoolean(R.bool.settings_incremental_form_template_sync)
+
+    /** Whether records are synced in a single request instead of one per type; see [syncCombined]. */
+    private val isCombinedSyncEnabled = context.resources.getBoolean(R.bool.settings_combined_sync)
+
+    /** Whether urgent records are uploaded before the other phases; see [uploadUrgent]. */
+    private val isUrgentLaneEnabled = context.resources.getBoolean(R.bool.settings_sync_urgent_lane)
+
+    private val urgentRecheckWindowSeconds = TimeUnit.MINUTES.toSeconds(
+        context.resources.getInteger(R.integer.settings_sync_urgent_recheck_window_minutes).toLong()
+    )
+
+    private val urgentMaxItems = context.resources.getInteger(R.integer.settings_sync_urgent_max_items)
+
+    /** Backoff for entities that the server didn't accept; see [recordUploadAttempt]. */
+    private val retryBaseDelaySeconds =
+        context.resources.getInteger(R.integer.settings_sync_retry_base_delay_seconds).toLong()
+
+    private val retryMaxDelaySeconds =
+        context.resources.getInteger(R.integer.settings_sync_retry_max_delay_seconds).toLong()
+
+    private val maxUploadAttempts = context.resources.getInteger(R.integer.settings_sync_max_upload_attempts)
+
+    /** Whether phases with no local or remote changes are skipped; see [fetchRemoteChangeCounts]. */
+    private val isConditionalSyncEnabled =
+        context.resources.getBoolean(R.bool.settings_conditional_sync)
+
+    /**
+     * How many downloaded entities the parser can get ahead of the database writer: the number of
+     * batches set by settings_sync_parse_ahead_batches. Buffering lets the next batch be parsed
+     * while the current one is being written. 0 makes the channels rendezvous channels.
+     */
+    private val channelCapacity =
+        batchSize * context.resources.getInteger(R.integer.settings_sync_parse_ahead_batches)
+
+    /** Time the response parsers spent waiting on database writers, summed over all channels. */
+    private val parserBlockedMillis = AtomicLong()
+
+    /** Time the database writers spent waiting on response parsers, summed over all channels. */
+    private val writerBlockedMillis = AtomicLong()
+
+    /** Rows written by [writeBatch]; used by [PeriodicSyncer] to decide when the next sync runs. */
+    private val downloadedRows = AtomicLong()
+
+    /** The recorders of the phases that ran, in the order they finished; see [tracePhase]. */
+    private val phaseRecorders = ConcurrentLinkedQueue<SyncPhaseRecorder>()
+
     override suspend fun doWork(): Result {
+        val startedAt = System.currentTimeMillis()
+        val startTime = System.nanoTime()
         val result = runSync()
         sharedPreferences.edit(commit = true) {
             putBoolean(LAST_SYNC_SUCCEEDED, syncSucceeded)
-            if (!syncSucceeded) {
+            if (syncSucceeded) {
+                putLong(LAST_SYNC_DOWNLOADED_ROWS, downloadedRows.get())
+            } else {
                 putString(LAST_FAILED_SYNC_TIME, UnixTimestamp.now.toString())
             }
         }
+        syncTraceStore.add(
+            SyncTrace(
+                startedAt = startedAt,
+                wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                succeeded = syncSucceeded,
+                device = "${Build.MANUFACTURER} ${Build.MODEL}",
+                sdkInt = Build.VERSION.SDK_INT,
+                phases = phaseRecorders.map { it.toTrace() }
+            )
+        )
         return result
     }
 
+    /**
+     * Runs the [task] of a sync [phase] with a [SyncPhaseRecorder] in its context, so that the
+     * phase's network traffic, parsing and database writes are measured for the [SyncTrace].
+     */
+    private suspend fun tracePhase(phase: SyncPhase, task: suspend () -> Boolean): Boolean {
+        val recorder = SyncPhaseRecorder(phase.name)
+        try {
+            return withContext(recorder + recorder.traffic.asContextElement()) { task() }
+        } finally {
+            recorder.stop()
+            phaseRecorders.add(recorder)
+        }
+    }
+
+    /**
+     * The phases of a sync. Used as the nodes of the [SyncTaskScheduler] in [runSync].
+     */
+    private enum class SyncPhase {
+        PATIENTS, HEALTH_FACILITIES, READINGS, REFERRALS, ASSESSMENTS, FORM_TEMPLATES,
+        FORM_RESPONSES,
+
+        /** Replaces the patient to assessment phases when combined sync is enabled. */
+        RECORDS,
+
+        /** Uploads urgent records before every other phase starts; see [uploadUrgent]. */
+        URGENT
+    }
+
     private suspend fun runSync(): Result {
         Log.d(TAG, "doWork()")
         setProgress(workDataOf(PROGRESS_CURRENT_STATE to State.STARTING.name))
 
-        val lastPatientSyncTime = BigInteger(
-            sharedPreferences.getString(
-                LAST_PATIENT_SYNC, LAST_SYNC_DEFAULT
-            )!!
-        )
         // We only use the timestamp right before the internet call is made.
         // We do not use the timestamp after syncing is done; there could be a case where someone
         // edits a patient or adds a reading etc. during the sync; those changes will never the
         // phone if we only use a timestamp after the sync.
         val syncTimestampToSave: BigInteger = UnixTimestamp.now
 
-        val patientsToUpload: List<Patient> = patientManager.getPatientsToUpload()
-        val patientResult = syncPatients(patientsToUpload, lastPatientSyncTime)
-        val patientsLeftToUpload = patientManager.getNumberOfPatientsToUpload()
-        if (patientsLeftToUpload > 0) {
-            patientResult.totalPatientsUploaded -= patientsLeftToUpload
+        var patientResult: PatientSyncResult? = null
+        var healthFacilitiesResult: HealthFacilitySyncResult? = null
+        var readingResult: ReadingSyncResult? = null
+        var referralResult: ReferralSyncResult? = null
+        var assessmentResult: AssessmentSyncResult? = null
+        var formTemplateResult: FormSyncResult? = null
+
+        val remoteChanges = fetchRemoteChangeCounts()
+
+        // Phases that don't depend on each other are run concurrently so that their round trips
+        // overlap. Readings, referrals and assessments need their patients to exist locally, and
+        // referrals need the health facilities (HealthFacility.name is a foreign key in referral).
+        // A phase is skipped if one of its dependencies fails, and, as when the phases ran one
+        // after another, no phase starts once one has failed.
+        val scheduler = SyncTaskScheduler<SyncPhase>(stopOnFailure = true) { phase, task -> tracePhase(phase, task) }
+
+        // The last sync times are only saved once every phase has finished, for the phases before
+        // the first one that failed in the order they used to run sequentially. A phase that was
+        // already running when another failed still finishes, but it is repeated by the next sync.
+        val stagedSyncTimeKeys = ConcurrentHashMap<SyncPhase, MutableSet<String>>()
+        fun stageLastSyncTime(phase: SyncPhase, networkResult: NetworkResult<Unit>, key: String): Boolean {
+            if (networkResult !is NetworkResult.Success) {
+                return false
+            }
+            stagedSyncTimeKeys.computeIfAbsent(phase) { ConcurrentHashMap.newKeySet() }.add(key)
+            return true
         }
 
-        if (patientResult.networkResult is NetworkResult.Success) {
-            sharedPreferences.edit(commit = true) {
-                putString(LAST_PATIENT_SYNC, syncTimestampToSave.toString())
+        // Every other phase waits for the urgent records, so that they don't have to share the
+        // connection. Failing to upload them does not fail the sync, since the bulk phases upload
+        // whatever is left.
+        val afterUrgent = setOf(SyncPhase.URGENT)
+        scheduler.add(SyncPhase.URGENT) {
+            if (isUrgentLaneEnabled && !uploadUrgent(syncTimestampToSave)) {
+                Log.w(TAG, "urgent upload failed; leaving the urgent records to the bulk phases")
             }
-            Log.d(TAG, "Patient sync is a success, moving on to syncing readings")
-        } else {
-            return Result.failure(
-                workDataOf(RESULT_MESSAGE to getResultErrorMessage(patientResult.networkResult))
-            )
+            true
         }
 
-        // Downloading for HealthFacilities
-        //
-        // HealthFacilities needs to be downloaded before referrals due to HealthFacility.name being
-        // a foreign key in referral in the schema
-        val lastHealthFacilitiesDownloadTime = BigInteger(
-            sharedPreferences.getString(
-                LAST_HEALTH_FACILITIES_SYNC, LAST_SYNC_DEFAULT
-            )!!
-        )
-        val healthFacilitiesResult = syncHealthFacilities(
-            healthFacilityManager.getAllFacilities(), lastHealthFacilitiesDownloadTime
-        )
+        if (isCombinedSyncEnabled) {
+            scheduler.add(SyncPhase.RECORDS, dependsOn = afterUrgent) {
+                val lastSyncTimes = mapOf(
+                    SyncChangeCounts.PATIENTS to getLastSyncTime(LAST_PATIENT_SYNC),
+                    SyncChangeCounts.READINGS to getLastSyncTime(LAST_READING_SYNC),
+                    SyncChangeCounts.REFERRALS to getLastSyncTime(LAST_REFERRAL_SYNC),
+                    SyncChangeCounts.ASSESSMENTS to getLastSyncTime(LAST_ASSESSMENT_SYNC),
+                    SyncChangeCounts.HEALTH_FACILITIES to getLastSyncTime(LAST_HEALTH_FACILITIES_SYNC),
+                )
+                val upload = CombinedSyncUpload(
+                    patients = patientManager.getPatientsToUploadSource(batchSize),
+                    readings = readingManager.getUnUploadedReadingsSource(batchSize),
+                    referrals = referralManager.getReferralsToUpload(),
+                    assessments = assessmentManager.getAssessmentsToUpload(),
+                )
+                val localChanges = upload.patients.size + upload.readings.size +
+                    upload.referrals.size + upload.assessments.size
+                val isAllUnchanged = lastSyncTimes.keys.all { isUnchanged(remoteChanges, it, localChanges) }
+                val attemptStartedAt = UnixTimestamp.now.toLong()
+                val result = if (isAllUnchanged) {
+                    CombinedSyncResult(UNCHANGED_RESULT, emptyMap(), emptyMap(), null)
+                } else {
+                    syncCombined(upload, lastSyncTimes)
+                }
+                val leftToUpload = if (isAllUnchanged) {
+                    emptyMap()
+                } else {
+                    OutboxEntityType.values().associateWith { type ->
+                        recordUploadAttempt(type, attemptStartedAt, result.networkResult, result.itemErrors)
+                    }
+                }
+                fun uploaded(type: String, entityType: OutboxEntityType) =
+                    result.uploaded(type) - leftToUpload.getOrDefault(entityType, 0)
+
+                val networkResult = result.networkResult
+                patientResult = PatientSyncResult(
+                    networkResult,
+                    uploaded(SyncChangeCounts.PATIENTS, OutboxEntityType.PATIENT),
+                    result.downloaded(SyncChangeCounts.PATIENTS),
+                    result.errors
+                )
+                healthFacilitiesResult = HealthFacilitySyncResult(
+                    networkResult, result.downloaded(SyncChangeCounts.HEALTH_FACILITIES)
+                )
+                readingResult = ReadingSyncResult(
+                    networkResult,
+                    uploaded(SyncChangeCounts.READINGS, OutboxEntityType.READING),
+                    result.downloaded(SyncChangeCounts.READINGS)
+                )
+                referralResult = ReferralSyncResult(
+                    networkResult,
+                    uploaded(SyncChangeCounts.REFERRALS, OutboxEntityType.REFERRAL),
+                    result.downloaded(SyncChangeCounts.REFERRALS),
+                    null
+                )
+                assessmentResult = AssessmentSyncResult(
+                    networkResult,
+                    uploaded(SyncChangeCounts.ASSESSMENTS, OutboxEntityType.ASSESSMENT),
+                    result.downloaded(SyncChangeCounts.ASSESSMENTS),
+                    null
+                )
 
-        val lastReadingSyncTime = BigInteger(
-            sharedPreferences.getString(
-                LAST_READING_SYNC, LAST_SYNC_DEFAULT
-            )!!
-        )
-        val readingsToUpload = readingManager.getUnUploadedReadings()
-        val readingResult = syncReadings(readingsToUpload, lastReadingSyncTime)
-        val readingsLeftToUpload = readingManager.getUnUploadedReadings().size
-        if (readingsLeftToUpload > 0) {
-            readingResult.totalReadingsUploaded -= readingsLeftToUpload
-
-            Log.wtf(
-                TAG, "There are $readingsLeftToUpload readings left to upload"
-            )
-            if (readingResult.networkResult is NetworkResult.Success) {
-                Log.wtf(TAG, "successful reading sync but still readings left unsynced")
-                // https://csil-git1.cs.surrey.sfu.ca/415-cradle/cradle-platform/-/blob/master/server/api/resources/sync.py#L97-103
-                //  The only reasons why a reading might still not be uploaded but the response from
-                //  server is still successful is that:
-                //  The server will skip readings that are for non-existent patients.
-                //  although we should note this usually never happens, because it requires
-                //  the Android client to somehow upload a because patients on Android are
-                //  synced first before reading sync. Also, any patients that are sent
-                //  through SMS are still treated as unuploaded in case the SMS did not
-                //  actually reach the server.
+                listOf(
+                    LAST_PATIENT_SYNC,
+                    LAST_READING_SYNC,
+                    LAST_REFERRAL_SYNC,
+                    LAST_ASSESSMENT_SYNC,
+                    LAST_HEALTH_FACILITIES_SYNC
+                ).map { stageLastSyncTime(SyncPhase.RECORDS, networkResult, it) }.all { it }
             }
-        }
+        } else {
+            scheduler.add(SyncPhase.PATIENTS, dependsOn = afterUrgent) {
+                val lastPatientSyncTime = getLastSyncTime(LAST_PATIENT_SYNC)
+                val patientsToUpload = patientManager.getPatientsToUploadSource(batchSize)
+                if (isUnchanged(remoteChanges, SyncChangeCounts.PATIENTS, patientsToUpload.size)) {
+                    patientResult = PatientSyncResult(UNCHANGED_RESULT, 0, 0, null)
+                    return@add stageLastSyncTime(SyncPhase.PATIENTS, UNCHANGED_RESULT, LAST_PATIENT_SYNC)
+                }
+                val attemptStartedAt = UnixTimestamp.now.toLong()
+                val result = syncPatients(patientsToUpload, lastPatientSyncTime)
+                patientResult = result
+                val patientsLeftToUpload = recordUploadAttempt(
+                    OutboxEntityType.PATIENT, attemptStartedAt, result.networkResult, result.itemErrors
+                )
+                if (patientsLeftToUpload > 0) {
+                    result.totalPatientsUploaded -= patientsLeftToUpload
+                }
 
-        if (readingResult.networkResult is NetworkResult.Success) {
-            sharedPreferences.edit(commit = true) {
-                putString(LAST_READING_SYNC, syncTimestampToSave.toString())
+                stageLastSyncTime(SyncPhase.PATIENTS, result.networkResult, LAST_PATIENT_SYNC)
             }
-        } else {
-            return Result.failure(
-                workDataOf(RESULT_MESSAGE to getResultErrorMessage(readingResult.networkResult))
-            )
-        }
 
-        // for referrals
-        val lastReferralSyncTime = BigInteger(
-            sharedPreferences.getString(
-                LAST_REFERRAL_SYNC, LAST_SYNC_DEFAULT
-            )!!
-        )
+            // Failing to download health facilities does not fail the sync.
+            scheduler.add(SyncPhase.HEALTH_FACILITIES, dependsOn = afterUrgent) {
+                val result = if (isUnchanged(remoteChanges, SyncChangeCounts.HEALTH_FACILITIES, localChanges = 0)) {
+                    HealthFacilitySyncResult(UNCHANGED_RESULT, 0)
+                } else {
+                    syncHealthFacilities(
+                        healthFacilityManager.getAllFacilities(),
+                        getLastSyncTime(LAST_HEALTH_FACILITIES_SYNC)
+                    )
+                }
+                healthFacilitiesResult = result
+                stageLastSyncTime(SyncPhase.HEALTH_FACILITIES, result.networkResult, LAST_HEALTH_FACILITIES_SYNC)
+                true
+            }
 
-        val referralsToUpload = referralManager.getReferralsToUpload()
-        val referralResult = syncReferrals(referralsToUpload, lastReferralSyncTime)
-        val referralsLeftToUpload = referralManager.getReferralsToUpload().size
-        if (referralsLeftToUpload > 0) {
-            referralResult.totalReferralsUploaded -= referralsLeftToUpload
+            scheduler.add(SyncPhase.READINGS, dependsOn = setOf(SyncPhase.PATIENTS)) {
+                val lastReadingSyncTime = getLastSyncTime(LAST_READING_SYNC)
+                val readingsToUpload = readingManager.getUnUploadedReadingsSource(batchSize)
+                if (isUnchanged(remoteChanges, SyncChangeCounts.READINGS, readingsToUpload.size)) {
+                    readingResult = ReadingSyncResult(UNCHANGED_RESULT, 0, 0)
+                    return@add stageLastSyncTime(SyncPhase.READINGS, UNCHANGED_RESULT, LAST_READING_SYNC)
+                }
+                val attemptStartedAt = UnixTimestamp.now.toLong()
+                val result = if (isResumableReadingSyncEnabled) {
+                    syncReadingsResumable(readingsToUpload, lastReadingSyncTime)
+                } else {
+                    syncReadings(readingsToUpload, lastReadingSyncTime)
+                }
+                readingResult = result
+                val readingsLeftToUpload =
+                    recordUploadAttempt(OutboxEntityType.READING, attemptStartedAt, result.networkResult)
+                if (readingsLeftToUpload > 0) {
+                    result.totalReadingsUploaded -= readingsLeftToUpload
+
+                    Log.wtf(
+                        TAG, "There are $readingsLeftToUpload readings left to upload"
+                    )
+                    if (result.networkResult is NetworkResult.Success) {
+                        Log.wtf(TAG, "successful reading sync but still readings left unsynced")
+                        // https://csil-git1.cs.surrey.sfu.ca/415-cradle/cradle-platform/-/blob/master/server/api/resources/sync.py#L97-103
+                        //  The only reasons why a reading might still not be uploaded but the response from
+                        //  server is still successful is that:
+                        //  The server will skip readings that are for non-existent patients.
+                        //  although we should note this usually never happens, because it requires
+                        //  the Android client to somehow upload a because patients on Android are
+                        //  synced first before reading sync. Also, any patients that are sent
+                        //  through SMS are still treated as unuploaded in case the SMS did not
+                        //  actually reach the server.
+                    }
+                }
 
-            Log.wtf(
-                TAG, "There are $referralsLeftToUpload referrals left to upload"
-            )
-        }
+                stageLastSyncTime(SyncPhase.READINGS, result.networkResult, LAST_READING_SYNC)
+            }
+
+            scheduler.add(
+                SyncPhase.REFERRALS,
+                dependsOn = setOf(SyncPhase.PATIENTS, SyncPhase.HEALTH_FACILITIES)
+            ) {
+                val lastReferralSyncTime = getLastSyncTime(LAST_REFERRAL_SYNC)
+                val referralsToUpload = referralManager.getReferralsToUpload()
+                if (isUnchanged(remoteChanges, SyncChangeCounts.REFERRALS, referralsToUpload.size)) {
+                    referralResult = ReferralSyncResult(UNCHANGED_RESULT, 0, 0, null)
+                    return@add stageLastSyncTime(SyncPhase.REFERRALS, UNCHANGED_RESULT, LAST_REFERRAL_SYNC)
+                }
+                val attemptStartedAt = UnixTimestamp.now.toLong()
+                val result = syncReferrals(referralsToUpload, lastReferralSyncTime)
+                referralResult = result
+                val referralsLeftToUpload = recordUploadAttempt(
+                    OutboxEntityType.REFERRAL, attemptStartedAt, result.networkResult, result.itemErrors
+                )
+                if (referralsLeftToUpload > 0) {
+                    result.totalReferralsUploaded -= referralsLeftToUpload
 
-        if (referralResult.networkResult is NetworkResult.Success) {
-            sharedPreferences.edit(commit = true) {
-                putString(LAST_REFERRAL_SYNC, syncTimestampToSave.toString())
+                    Log.wtf(
+                        TAG, "There are $referralsLeftToUpload referrals left to upload"
+                    )
+                }
+
+                stageLastSyncTime(SyncPhase.REFERRALS, result.networkResult, LAST_REFERRAL_SYNC)
             }
-        } else {
-            return Result.failure(
-                workDataOf(RESULT_MESSAGE to getResultErrorMessage(referralResult.networkResult))
-            )
-        }
 
-        // for assessments
-        val lastAssessmentSyncTime = BigInteger(
-            sharedPreferences.getString(
-                LAST_ASSESSMENT_SYNC, LAST_SYNC_DEFAULT
-            )!!
-        )
-        val assessmentsToUpload = assessmentManager.getAssessmentsToUpload()
-        val assessmentResult = syncAssessments(assessmentsToUpload, lastAssessmentSyncTime)
-        val assessmentsLeftToUpload = assessmentManager.getAssessmentsToUpload().size
-        if (assessmentsLeftToUpload > 0) {
-            assessmentResult.totalAssessmentsUploaded -= assessmentsLeftToUpload
-
-            Log.wtf(
-                TAG, "There are $assessmentsLeftToUpload assessments left to upload"
-            )
+            scheduler.add(SyncPhase.ASSESSMENTS, dependsOn = setOf(SyncPhase.PATIENTS)) {
+                val lastAssessmentSyncTime = getLastSyncTime(LAST_ASSESSMENT_SYNC)
+                val assessmentsToUpload = assessmentManager.getAssessmentsToUpload()
+                if (isUnchanged(remoteChanges, SyncChangeCounts.ASSESSMENTS, assessmentsToUpload.size)) {
+                    assessmentResult = AssessmentSyncResult(UNCHANGED_RESULT, 0, 0, null)
+                    return@add stageLastSyncTime(SyncPhase.ASSESSMENTS, UNCHANGED_RESULT, LAST_ASSESSMENT_SYNC)
+                }
+                val attemptStartedAt = UnixTimestamp.now.toLong()
+                val result = syncAssessments(assessmentsToUpload, lastAssessmentSyncTime)
+                assessmentResult = result
+                val assessmentsLeftToUpload = recordUploadAttempt(
+                    OutboxEntityType.ASSESSMENT, attemptStartedAt, result.networkResult, result.itemErrors
+                )
+                if (assessmentsLeftToUpload > 0) {
+                    result.totalAssessmentsUploaded -= assessmentsLeftToUpload
+
+                    Log.wtf(
+                        TAG, "There are $assessmentsLeftToUpload assessments left to upload"
+                    )
+                }
+
+                stageLastSyncTime(SyncPhase.ASSESSMENTS, result.networkResult, LAST_ASSESSMENT_SYNC)
+            }
         }
 
-        if (assessmentResult.networkResult is NetworkResult.Success) {
-            sharedPreferences.edit(commit = true) {
-                putString(LAST_ASSESSMENT_SYNC, syncTimestampToSave.toString())
+        scheduler.add(SyncPhase.FORM_TEMPLATES, dependsOn = afterUrgent) {
+            val result = if (isUnchanged(remoteChanges, SyncChangeCounts.FORM_TEMPLATES, localChanges = 0)) {
+                FormSyncResult(UNCHANGED_RESULT, 0)
+            } else {
+                syncFormTemplates()
             }
-        } else {
-            return Result.failure(
-                workDataOf(RESULT_MESSAGE to getResultErrorMessage(assessmentResult.networkResult))
-            )
+            formTemplateResult = result
+            stageLastSyncTime(SyncPhase.FORM_TEMPLATES, result.networkResult, LAST_FORM_TEMPLATE_SYNC)
         }
 
-        val formTemplateResult = syncFormTemplates()
-        if (formTemplateResult.networkResult !is NetworkResult.Success) {
-            return Result.failure(
-                workDataOf(RESULT_MESSAGE to getResultErrorMessage(formTemplateResult.networkResult))
-            )
+        // Non-fatal: if form response sync fails, continue and log but don't fail the whole sync
+        scheduler.add(SyncPhase.FORM_RESPONSES, dependsOn = setOf(SyncPhase.FORM_TEMPLATES)) {
+            if (isUnchanged(remoteChanges, SyncChangeCounts.FORM_RESPONSES, localChanges = 0)) {
+                stageLastSyncTime(SyncPhase.FORM_RESPONSES, UNCHANGED_RESULT, LAST_FORM_RESPONSE_SYNC)
+                return@add true
+            }
+            val lastFormResponseSyncTime = getLastSyncTime(LAST_FORM_RESPONSE_SYNC)
+            val formResponseResult = syncFormResponses(lastFormResponseSyncTime)
+            stageLastSyncTime(SyncPhase.FORM_RESPONSES, formResponseResult.networkResult, LAST_FORM_RESPONSE_SYNC)
+            true
         }
 
-        val lastFormResponseSyncTime = BigInteger(
-            sharedPreferences.getString(LAST_FORM_RESPONSE_SYNC, LAST_SYNC_DEFAULT)!!
+        val outcomes = scheduler.run()
+        Log.d(TAG, "sync phase outcomes: $outcomes")
+        saveLastSyncTimes(
+            SyncTaskScheduler.succeededBeforeFirstFailure(outcomes).flatMap { stagedSyncTimeKeys[it].orEmpty() },
+            syncTimestampToSave
         )
-        val formResponseResult = syncFormResponses(lastFormResponseSyncTime)
-        if (formResponseResult.networkResult is NetworkResult.Success) {
-            sharedPreferences.edit(commit = true) {
-                putString(LAST_FORM_RESPONSE_SYNC, syncTimestampToSave.toString())
-            }
+
+        // Report the first failure in the same order the phases used to run sequentially.
+        val firstFailure = listOf(
+            patientResult?.networkResult,
+            readingResult?.networkResult,
+            referralResult?.networkResult,
+            assessmentResult?.networkResult,
+            formTemplateResult?.networkResult
+        ).firstOrNull { it != null && it !is NetworkResult.Success }
+        if (firstFailure != null) {
+            return Result.failure(
+                workDataOf(RESULT_MESSAGE to getResultErrorMessage(firstFailure))
+            )
         }
-        // Non-fatal: if form response sync fails, continue and log but don't fail the whole sync
 
         val syncResult = workDataOf(
             RESULT_MESSAGE to getResultSuccessMessage(
-                patientResult,
-                healthFacilitiesResult,
-                readingResult,
-                referralResult,
-                assessmentResult,
-                formTemplateResult
-            )
+                patientResult!!,
+                healthFacilitiesResult!!,
+                readingResult!!,
+                referralResult!!,
+                assessmentResult!!,
+                formTemplateResult!!
+            ),
+            RESULT_PARSER_BLOCKED_MILLIS to parserBlockedMillis.get(),
+            RESULT_WRITER_BLOCKED_MILLIS to writerBlockedMillis.get()
         )
 
         sharedPreferences.edit(commit = true) {
@@ -395,8 +710,168 @@ class SyncAllWorker @AssistedInject constructor(
         )
     }
 
+    private fun getLastSyncTime(key: String) =
+        BigInteger(sharedPreferences.getString(key, LAST_SYNC_DEFAULT)!!)
+
+    /**
+     * If conditional sync is enabled, asks the server how many entities of each type changed since
+     * they were last synced. Returns null if conditional sync is disabled or the server couldn't
+     * answer (e.g., it doesn't support the probe yet), in which case every phase is synced.
+     */
+    private suspend fun fetchRemoteChangeCounts(): SyncChangeCounts? {
+        if (!isConditionalSyncEnabled) {
+            return null
+        }
+        val sinceByType = mapOf(
+            SyncChangeCounts.PATIENTS to getLastSyncTime(LAST_PATIENT_SYNC),
+            SyncChangeCounts.READINGS to getLastSyncTime(LAST_READING_SYNC),
+            SyncChangeCounts.REFERRALS to getLastSyncTime(LAST_REFERRAL_SYNC),
+            SyncChangeCounts.ASSESSMENTS to getLastSyncTime(LAST_ASSESSMENT_SYNC),
+            SyncChangeCounts.HEALTH_FACILITIES to getLastSyncTime(LAST_HEALTH_FACILITIES_SYNC),
+            SyncChangeCounts.FORM_TEMPLATES to getLastSyncTime(LAST_FORM_TEMPLATE_SYNC),
+            SyncChangeCounts.FORM_RESPONSES to getLastSyncTime(LAST_FORM_RESPONSE_SYNC),
+        )
+        return when (val result = restApi.getSyncChangeCounts(sinceByType)) {
+            is NetworkResult.Success -> result.value
+            else -> {
+                Log.i(TAG, "sync change probe failed, so syncing everything: $result")
+                null
+            }
+        }
+    }
+
+    /**
+     * Whether a phase can be skipped because nothing of the given [type] changed: there are no
+     * [localChanges] to upload, and [remoteChanges] found nothing to download. Nothing is skipped
+     * without [remoteChanges].
+     */
+    private fun isUnchanged(remoteChanges: SyncChangeCounts?, type: String, localChanges: Int): Boolean {
+        val isUnchanged = remoteChanges != null && localChanges == 0 && !remoteChanges.hasChanges(type)
+        if (isUnchanged) {
+            Log.d(TAG, "skipping $type sync: nothing changed locally or on the server")
+        }
+        return isUnchanged
+    }
+
+    /**
+     * Saves [syncTimestamp] as the last sync time under each of the [keys].
+     */
+    private fun saveLastSyncTimes(keys: List<String>, syncTimestamp: BigInteger) {
+        sharedPreferences.edit(commit = true) {
+            keys.forEach { putString(it, syncTimestamp.toString()) }
+        }
+    }
+
+    /**
+     * Records a failed upload attempt for the entities of [type] that were due in the outbox when
+     * the upload started at [attemptStartedAt] and are still there, i.e., that the server accepted
+     * the request but didn't send them back. They are retried with backoff and eventually
+     * quarantined, so that a record the server keeps rejecting isn't resent by every sync. The
+     * reasons given in [itemErrors] are stored with the entries.
+     *
+     * Nothing is recorded if the request itself failed ([networkResult] isn't a success): then
+     * the entities weren't rejected, and the next sync simply sends them again.
+     *
+     * @return the number of entities the upload sent that are still waiting to be uploaded, so
+     * that they can be taken out of the uploaded total. Entities that weren't due, because they
+     * were waiting for a retry or quarantined, weren't sent and aren't counted.
+     */
+    private suspend fun recordUploadAttempt(
+        type: OutboxEntityType,
+        attemptStartedAt: Long,
+        networkResult: NetworkResult<Unit>,
+        itemErrors: List<SyncItemError> = emptyList()
+    ): Int {
+        val outboxDao = database.outboxDao()
+        if (networkResult !is NetworkResult.Success) return outboxDao.countNotUploaded(type, attemptStartedAt)
+        val failed = database.withTransaction {
+            itemErrors.forEach { itemError ->
+                itemError.id?.let { outboxDao.setLastError(type, it, itemError.message) }
+            }
+            outboxDao.recordFailedAttempt(
+                type, attemptStartedAt, retryBaseDelaySeconds, retryMaxDelaySeconds, maxUploadAttempts
+            )
+        }
+        if (failed > 0) {
+            Log.w(
+                TAG,
+                "$failed entities of type $type were not accepted by the server and will be retried later; " +
+                    "${outboxDao.countQuarantined()} entities are quarantined"
+            )
+        }
+        return failed
+    }
+
+    /**
+     * The urgent lane of a sync: uploads the most urgent readings and referrals that are waiting
+     * to be uploaded (see [UrgentUploads]), along with their patients if those have to be uploaded
+     * too, in small requests of their own before the bulk phases. This keeps the time it takes
+     * clinical emergencies to reach the server short even with a large backlog on a slow link.
+     *
+     * The requests download changes since [syncTimestamp] only, so they return little more than
+     * the server's copies of the uploaded records, which marks them as uploaded like in the bulk
+     * phases. With combined sync, everything goes in a single request.
+     *
+     * @return whether the urgent records were uploaded
+     */
+    private suspend fun uploadUrgent(syncTimestamp: BigInteger): Boolean {
+        val nowSeconds = syncTimestamp.toLong()
+        val readings = UrgentUploads.mostUrgentFirst(
+            readingManager.getUrgentReadingsToUpload(nowSeconds, urgentRecheckWindowSeconds),
+            nowSeconds,
+            urgentRecheckWindowSeconds,
+            urgentMaxItems
+        )
+        val referrals = referralManager.getReferralsToUpload()
+            .filter { UrgentUploads.isUrgent(it) }
+            .sortedBy { it.dateReferred }
+            .take(urgentMaxItems)
+        if (readings.isEmpty() && referrals.isEmpty()) {
+            return true
+        }
+        val patients = patientManager.getPatientsToUpload(
+            (readings.map { it.patientId } + referrals.map { it.patientId }).distinct()
+        )
+        Log.i(
+            TAG,
+            "uploading ${patients.size} patients, ${readings.size} readings and " +
+                "${referrals.size} referrals ahead of the rest of the sync"
+        )
+
+        if (isCombinedSyncEnabled) {
+            val upload = CombinedSyncUpload(
+                patients = SyncUploadSource.of(patients),
+                readings = SyncUploadSource.of(readings),
+                referrals = referrals,
+                assessments = emptyList()
+            )
+            val since = mapOf(
+                SyncChangeCounts.PATIENTS to syncTimestamp,
+                SyncChangeCounts.READINGS to syncTimestamp,
+                SyncChangeCounts.REFERRALS to syncTimestamp,
+                SyncChangeCounts.ASSESSMENTS to syncTimestamp,
+                SyncChangeCounts.HEALTH_FACILITIES to syncTimestamp,
+            )
+            return syncCombined(upload, since).networkResult is NetworkResult.Success
+        }
+
+        // Readings and referrals are only accepted once their patients are on the server.
+        if (patients.isNotEmpty() &&
+            syncPatients(SyncUploadSource.of(patients), syncTimestamp).networkResult !is NetworkResult.Success
+        ) {
+            return false
+        }
+        if (readings.isNotEmpty() &&
+            syncReadings(SyncUploadSource.of(readings), syncTimestamp).networkResult !is NetworkResult.Success
+        ) {
+            return false
+        }
+        return referrals.isEmpty() ||
+            syncReferrals(referrals, syncTimestamp).networkResult is NetworkResult.Success
+    }
+
     private suspend fun syncPatients(
-        patientsToUpload: List<Patient>,
+        patientsToUpload: SyncUploadSource<Patient>,
         lastSyncTime: BigInteger
     ): PatientSyncResult = withContext(Dispatchers.Default) {
         setProgress(
@@ -407,13 +882,11 @@ class SyncAllWorker @AssistedInject constructor(
             }
         )
         Log.d(TAG, "preparing to upload ${patientsToUpload.size} patients")
-        val channel = Channel<Patient>()
+        val channel = createSyncChannel<Patient>()
         launch {
             try {
-                database.withTransaction {
-                    for (patient in channel) {
-                        patientManager.add(patient)
-                    }
+                channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    writeBatch(batch) { patientManager.addAllFromServer(it) }
                 }
             } catch (e: SyncException) {
                 // Need to switch context, since Dispatchers.Default doesn't do logging
@@ -421,6 +894,7 @@ class SyncAllWorker @AssistedInject constructor(
                     Log.e(TAG, "patients sync failed", e)
                 }
             }
+            recordChannelMetrics("patients", channel)
             withContext(Dispatchers.Main) { Log.d(TAG, "patients job done") }
         }
 
@@ -428,7 +902,8 @@ class SyncAllWorker @AssistedInject constructor(
             patientsToUpload,
             lastSyncTimestamp = lastSyncTime,
             patientChannel = channel,
-            Protocol.HTTP
+            Protocol.HTTP,
+            useDeltaUpload = isDeltaUploadEnabled
         ) { current, total ->
             reportProgress(
                 state = State.DOWNLOADING_PATIENTS,
@@ -439,7 +914,7 @@ class SyncAllWorker @AssistedInject constructor(
     }
 
     private suspend fun syncReadings(
-        readingsToUpload: List<Reading>,
+        readingsToUpload: SyncUploadSource<Reading>,
         lastSyncTime: BigInteger
     ): ReadingSyncResult = withContext(Dispatchers.Default) {
         Log.d(TAG, "preparing to upload ${readingsToUpload.size} readings")
@@ -451,14 +926,12 @@ class SyncAllWorker @AssistedInject constructor(
             }
         )
 
-        val readingChannel = Channel<Reading>()
+        val readingChannel = createSyncChannel<Reading>()
 
         launch {
             try {
-                database.withTransaction {
-                    for (reading in readingChannel) {
-                        readingManager.addReading(reading, isReadingFromServer = true)
-                    }
+                readingChannel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    writeBatch(batch) { readingManager.addReadingsFromServer(it) }
                 }
             } catch (e: SyncException) {
                 // Need to switch context, since Dispatchers.Default doesn't do logging
@@ -466,10 +939,15 @@ class SyncAllWorker @AssistedInject constructor(
                     Log.e(TAG, "reading sync failed", e)
                 }
             }
+            recordChannelMetrics("readings", readingChannel)
         }
 
         restApi.syncReadings(
-            readingsToUpload, lastSyncTimestamp = lastSyncTime, readingChannel, Protocol.HTTP
+            readingsToUpload,
+            lastSyncTimestamp = lastSyncTime,
+            readingChannel,
+            Protocol.HTTP,
+            useDeltaUpload = isDeltaUploadEnabled
         ) { current, total ->
             reportProgress(
                 State.DOWNLOADING_READINGS,
@@ -479,6 +957,104 @@ class SyncAllWorker @AssistedInject constructor(
         }
     }
 
+    /**
+     * Resumable variant of [syncReadings]. Readings are downloaded in pages of [pageSize], each
+     * page is committed in its own transaction, and a checkpoint is saved after every committed
+     * page. If a previous sync from the same [lastSyncTime] was interrupted, downloading resumes
+     * after the last reading it committed instead of starting over.
+     *
+     * Resuming with the current sync timestamp is safe: pages are ordered by lastEdited, so any
+     * reading edited after the interrupted sync sorts after the checkpoint and is still downloaded.
+     */
+    private suspend fun syncReadingsResumable(
+        readingsToUpload: SyncUploadSource<Reading>,
+        lastSyncTime: BigInteger
+    ): ReadingSyncResult {
+        Log.d(TAG, "preparing to upload ${readingsToUpload.size} readings (paged)")
+        setProgress(
+            if (readingsToUpload.isEmpty()) {
+                workDataOf(PROGRESS_CURRENT_STATE to State.CHECKING_SERVER_READINGS.name)
+            } else {
+                workDataOf(PROGRESS_CURRENT_STATE to State.UPLOADING_READINGS.name)
+            }
+        )
+
+        var cursor = checkpointStore.get(SyncCheckpointStore.READINGS)
+            ?.takeIf { it.since == lastSyncTime }
+            ?.cursor
+        if (cursor != null) {
+            Log.d(TAG, "resuming reading sync after reading ${cursor.id}")
+        }
+
+        // Only the first page request carries the upload; later pages just download.
+        var pageUpload = readingsToUpload
+        var totalReadingsDownloaded = 0
+        while (true) {
+            val pageResult = syncReadingsPage(
+                pageUpload, lastSyncTime, cursor, downloadedSoFar = totalReadingsDownloaded
+            )
+            if (pageResult.networkResult !is NetworkResult.Success) {
+                // The checkpoint stays at the last committed page.
+                return ReadingSyncResult(
+                    pageResult.networkResult, readingsToUpload.size, totalReadingsDownloaded
+                )
+            }
+
+            totalReadingsDownloaded += pageResult.totalReadingsDownloaded
+            val lastReading = pageResult.lastReading
+            if (pageResult.isLastPage || lastReading == null) {
+                checkpointStore.clear(SyncCheckpointStore.READINGS)
+                return ReadingSyncResult(
+                    pageResult.networkResult, readingsToUpload.size, totalReadingsDownloaded
+                )
+            }
+
+            pageUpload = SyncUploadSource.empty()
+            cursor = lastReading
+            checkpointStore.save(
+                SyncCheckpointStore.READINGS,
+                SyncCheckpointStore.Checkpoint(lastSyncTime, lastReading)
+            )
+        }
+    }
+
+    /**
+     * Downloads and commits a single page of readings for [syncReadingsResumable]. This only
+     * returns once the page's transaction has finished.
+     */
+    private suspend fun syncReadingsPage(
+        readingsToUpload: SyncUploadSource<Reading>,
+        lastSyncTime: BigInteger,
+        after: SyncCursor?,
+        downloadedSoFar: Int
+    ): ReadingPageSyncResult = withContext(Dispatchers.Default) {
+        val readingChannel = createSyncChannel<Reading>()
+        val writeJob = launch {
+            try {
+                readingChannel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    writeBatch(batch) { readingManager.addReadingsFromServer(it) }
+                }
+            } catch (e: SyncException) {
+                withContext(Dispatchers.Main) {
+                    Log.e(TAG, "reading page sync failed", e)
+                }
+            }
+            recordChannelMetrics("readings page", readingChannel)
+        }
+
+        val pageResult = restApi.syncReadingsPage(
+            readingsToUpload, lastSyncTime, after, pageSize, readingChannel, isDeltaUploadEnabled
+        ) { current, _ ->
+            reportProgress(
+                State.DOWNLOADING_READINGS,
+                progress = downloadedSoFar + current,
+                total = downloadedSoFar + current,
+            )
+        }
+        writeJob.join()
+        pageResult
+    }
+
     private suspend fun syncReferrals(
         referralsToUpload: List<Referral>,
         lastSyncTime: BigInteger
@@ -491,13 +1067,11 @@ class SyncAllWorker @AssistedInject constructor(
             }
         )
         Log.d(TAG, "preparing to upload ${referralsToUpload.size} referrals")
-        val channel = Channel<Referral>()
+        val channel = createSyncChannel<Referral>()
         launch {
             try {
-                database.withTransaction {
-                    for (referral in channel) {
-                        referralManager.addReferral(referral, true)
-                    }
+                channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    writeBatch(batch) { referralManager.addReferralsFromServer(it) }
                 }
             } catch (e: SyncException) {
                 // Need to switch context, since Dispatchers.Default doesn't do logging
@@ -505,6 +1079,7 @@ class SyncAllWorker @AssistedInject constructor(
                     Log.e(TAG, "referrals sync failed", e)
                 }
             }
+            recordChannelMetrics("referrals", channel)
             withContext(Dispatchers.Main) { Log.d(TAG, "referrals job done") }
         }
 
@@ -512,7 +1087,8 @@ class SyncAllWorker @AssistedInject constructor(
             referralsToUpload,
             lastSyncTimestamp = lastSyncTime,
             referralChannel = channel,
-            Protocol.HTTP
+            Protocol.HTTP,
+            useDeltaUpload = isDeltaUploadEnabled
         ) { current, total ->
             reportProgress(
                 state = State.DOWNLOADING_REFERRALS,
@@ -534,13 +1110,11 @@ class SyncAllWorker @AssistedInject constructor(
             }
         )
         Log.d(TAG, "preparing to upload ${assessmentsToUpload.size} assessments")
-        val channel = Channel<Assessment>()
+        val channel = createSyncChannel<Assessment>()
         launch {
             try {
-                database.withTransaction {
-                    for (assessment in channel) {
-                        assessmentManager.addAssessment(assessment, true)
-                    }
+                channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    writeBatch(batch) { assessmentManager.addAssessments(it, true) }
                 }
             } catch (e: SyncException) {
                 // Need to switch context, since Dispatchers.Default doesn't do logging
@@ -548,6 +1122,7 @@ class SyncAllWorker @AssistedInject constructor(
                     Log.e(TAG, "assessments sync failed", e)
                 }
             }
+            recordChannelMetrics("assessments", channel)
             withContext(Dispatchers.Main) { Log.d(TAG, "assessments job done") }
         }
 
@@ -570,26 +1145,9 @@ class SyncAllWorker @AssistedInject constructor(
         lastSyncTime: BigInteger
     ): HealthFacilitySyncResult = withContext(Dispatchers.Default) {
 
-        val currentHealthFacilitiesNames = currentHealthFacilities.map { it.name }
-        val channel = Channel<HealthFacility>()
+        val channel = createSyncChannel<HealthFacility>()
         launch {
-            try {
-                database.withTransaction {
-                    for (healthFacility in channel) {
-
-                        if (!currentHealthFacilitiesNames.contains(healthFacility.name)) {
-                            // new facility to be added, selects by default
-                            healthFacility.isUserSelected = true
-                            healthFacilityManager.add(healthFacility)
-                        } else {
-                            // facility already exists in local database
-                        }
-                    }
-                }
-            } catch (e: SyncException) {
-                Log.e(TAG, "Failed to add health facility during Sync, with error:\n $e")
-            }
-            withContext(Dispatchers.Main) { Log.d(TAG, "health facilities sync job is done") }
+            writeHealthFacilities(channel, currentHealthFacilities.map { it.name })
         }
 
         restApi.syncHealthFacilities(
@@ -603,24 +1161,135 @@ class SyncAllWorker @AssistedInject constructor(
         }
     }
 
+    /**
+     * Adds the downloaded health facilities in the [channel] that aren't stored yet (i.e., whose
+     * names aren't in [currentHealthFacilitiesNames]).
+     */
+    private suspend fun writeHealthFacilities(
+        channel: MeteredChannel<HealthFacility>,
+        currentHealthFacilitiesNames: List<String>
+    ) {
+        try {
+            channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                for (healthFacility in batch) {
+
+                    if (!currentHealthFacilitiesNames.contains(healthFacility.name)) {
+                        // new facility to be added, selects by default
+                        healthFacility.isUserSelected = true
+                        timedWrite(rows = 1) { healthFacilityManager.add(healthFacility) }
+                    } else {
+                        // facility already exists in local database
+                    }
+                }
+            }
+        } catch (e: SyncException) {
+            Log.e(TAG, "Failed to add health facility during Sync, with error:\n $e")
+        }
+        recordChannelMetrics("health facilities", channel)
+        withContext(Dispatchers.Main) { Log.d(TAG, "health facilities sync job is done") }
+    }
+
+    /**
+     * Syncs patients, readings, referrals and assessments, and downloads health facilities, in a
+     * single request (see [RestApi.syncCombined]), which saves a round trip per type. The sections
+     * of the response arrive one after the other, so a single writer stores them in the same
+     * order, in a transaction per type. That order also keeps the foreign keys satisfied, like
+     * the dependencies between the separate phases do.
+     */
+    private suspend fun syncCombined(
+        upload: CombinedSyncUpload,
+        lastSyncTimes: Map<String, BigInteger>
+    ): CombinedSyncResult = withContext(Dispatchers.Default) {
+        setProgress(workDataOf(PROGRESS_CURRENT_STATE to State.SYNCING_RECORDS.name))
+        Log.d(
+            TAG,
+            "preparing to upload ${upload.patients.size} patients, ${upload.readings.size} readings, " +
+                "${upload.referrals.size} referrals and ${upload.assessments.size} assessments"
+        )
+        val currentHealthFacilitiesNames = healthFacilityManager.getAllFacilities().map { it.name }
+        val healthFacilityChannel = createSyncChannel<HealthFacility>()
+        val patientChannel = createSyncChannel<Patient>()
+        val readingChannel = createSyncChannel<Reading>()
+        val referralChannel = createSyncChannel<Referral>()
+        val assessmentChannel = createSyncChannel<Assessment>()
+        launch {
+            writeHealthFacilities(healthFacilityChannel, currentHealthFacilitiesNames)
+            writeInBatches("patients", patientChannel) { patientManager.addAllFromServer(it) }
+            writeInBatches("readings", readingChannel) { readingManager.addReadingsFromServer(it) }
+            writeInBatches("referrals", referralChannel) { referralManager.addReferralsFromServer(it) }
+            writeInBatches("assessments", assessmentChannel) { assessmentManager.addAssessments(it, true) }
+        }
+
+        restApi.syncCombined(
+            upload,
+            lastSyncTimes,
+            CombinedSyncChannels(
+                healthFacilities = healthFacilityChannel,
+                patients = patientChannel,
+                readings = readingChannel,
+                referrals = referralChannel,
+                assessments = assessmentChannel
+            ),
+            useDeltaUpload = isDeltaUploadEnabled
+        ) { current, total ->
+            reportProgress(
+                state = State.SYNCING_RECORDS,
+                progress = current,
+                total = total,
+            )
+        }
+    }
+
+    /**
+     * Writes the entities in the [channel] to the database in batches using [write], in a single
+     * transaction.
+     */
+    private suspend fun <T> writeInBatches(
+        name: String,
+        channel: MeteredChannel<T>,
+        write: suspend (List<T>) -> Unit
+    ) {
+        try {
+            channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                writeBatch(batch) { write(it) }
+            }
+        } catch (e: SyncException) {
+            withContext(Dispatchers.Main) {
+                Log.e(TAG, "$name sync failed", e)
+            }
+        }
+        recordChannelMetrics(name, channel)
+    }
+
+    /**
+     * Downloads form templates. With incremental form template sync, the versions of the stored
+     * templates are sent along, so that unchanged templates (which can be large, since they hold
+     * every language) aren't downloaded and rewritten on every sync.
+     */
     private suspend fun syncFormTemplates(): FormSyncResult = withContext(Dispatchers.Default) {
-        val channel = Channel<FormClassification>()
+        val knownVersions = if (isIncrementalFormTemplateSyncEnabled) {
+            formManager.getFormTemplateVersions()
+        } else {
+            null
+        }
+        val channel = createSyncChannel<FormClassification>()
         launch {
             try {
-                database.withTransaction {
-                    for (formClassification in channel) {
-                        formManager.addFormByClassification(formClassification)
+                channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    for (formClassification in batch) {
+                        timedWrite(rows = 1) { formManager.addFormByClassification(formClassification) }
                     }
                 }
             } catch (e: SyncException) {
                 Log.e(TAG, "Failed to add form template during Sync, with error:\n $e")
             }
+            recordChannelMetrics("form templates", channel)
             withContext(Dispatchers.Main) { Log.d(TAG, "form template sync job is done") }
         }
 
-        restApi.getAllFormTemplates(channel, Protocol.HTTP) { current, total ->
+        restApi.getAllFormTemplates(channel, Protocol.HTTP, knownVersions) { current, total ->
             reportProgress(
-                state = State.DOWNLOADING_HEALTH_FACILITIES,
+                state = State.DOWNLOADING_FORM_TEMPLATES,
                 progress = current,
                 total = total,
             )
@@ -632,21 +1301,44 @@ class SyncAllWorker @AssistedInject constructor(
     ): FormResponseSyncResult = withContext(Dispatchers.Default) {
         setProgress(workDataOf(PROGRESS_CURRENT_STATE to State.DOWNLOADING_FORM_RESPONSES.name))
 
-        val channel = Channel<FormResponse>()
+        val channel = createSyncChannel<FormResponseSyncChange>()
         launch {
             try {
-                database.withTransaction {
-                    // Replace all previously synced submitted forms with the fresh server data
-                    formResponseManager.deleteAllSubmittedForms()
-                    for (formResponse in channel) {
-                        formResponseManager.updateOrInsertIfNotExistsFormResponse(formResponse)
+                var changedRows = 0
+                var hasDeletedSubmittedForms = false
+                channel.consumeInBatchesInTransaction(database, batchSize) { batch ->
+                    for (change in batch) {
+                        val isChanged = timedWrite(rows = 1) {
+                            when (change) {
+                                is FormResponseSyncChange.Deletion ->
+                                    formResponseManager.deleteSyncedFormResponse(change.serverFormId)
+
+                                is FormResponseSyncChange.Update -> if (change.formResponse.serverFormId != null) {
+                                    formResponseManager.mergeSyncedFormResponse(change.formResponse)
+                                } else {
+                                    // Without server ids, form responses can't be merged, so replace
+                                    // all previously synced submitted forms like older versions did.
+                                    if (!hasDeletedSubmittedForms) {
+                                        formResponseManager.deleteAllSubmittedForms()
+                                        hasDeletedSubmittedForms = true
+                                    }
+                                    formResponseManager.updateOrInsertIfNotExistsFormResponse(change.formResponse)
+                                    true
+                                }
+                            }
+                        }
+                        if (isChanged) {
+                            changedRows++
+                        }
                     }
                 }
+                withContext(Dispatchers.Main) { Log.d(TAG, "form responses sync changed $changedRows rows") }
             } catch (e: SyncException) {
                 withContext(Dispatchers.Main) {
                     Log.e(TAG, "form responses sync failed", e)
                 }
             }
+            recordChannelMetrics("form responses", channel)
             withContext(Dispatchers.Main) { Log.d(TAG, "form responses sync job done") }
         }
 
@@ -663,6 +1355,53 @@ class SyncAllWorker @AssistedInject constructor(
         }
     }
 
+    /**
+     * Creates the channel between a sync response parser and its database writer. The parser can
+     * run up to [channelCapacity] entities ahead of the writer.
+     */
+    private fun <T> createSyncChannel() = MeteredChannel<T>(channelCapacity)
+
+    /**
+     * Logs how long each side of a finished [channel] was blocked, and adds it to the totals that
+     * are reported in the result of the sync and to the current phase's [SyncPhaseRecorder]. Must
+     * only be called once the channel is consumed.
+     */
+    private suspend fun recordChannelMetrics(name: String, channel: MeteredChannel<*>) {
+        parserBlockedMillis.addAndGet(channel.sendBlockedMillis)
+        writerBlockedMillis.addAndGet(channel.receiveBlockedMillis)
+        SyncPhaseRecorder.current()?.recordChannel(channel)
+        Log.d(
+            TAG,
+            "$name channel: parser blocked for ${channel.sendBlockedMillis} ms, " +
+                "database writer blocked for ${channel.receiveBlockedMillis} ms"
+        )
+    }
+
+    /**
+     * Writes a [batch] of downloaded entities using [write] and records the rows per second of the
+     * write, so that it is sent along with the next [reportProgress] update.
+     */
+    private suspend inline fun <T> writeBatch(batch: List<T>, write: (List<T>) -> Unit) {
+        val startTime = System.nanoTime()
+        timedWrite(batch.size) { write(batch) }
+        downloadedRows.addAndGet(batch.size.toLong())
+        val elapsedSeconds = (System.nanoTime() - startTime) / NANOS_PER_SECOND
+        if (elapsedSeconds > 0) {
+            lastBatchRowsPerSecond = batch.size / elapsedSeconds
+        }
+    }
+
+    /**
+     * Runs a database [write] of the given number of [rows], and records how long it took in the
+     * current phase's [SyncPhaseRecorder].
+     */
+    private suspend inline fun <R> timedWrite(rows: Int, write: () -> R): R {
+        val startTime = System.nanoTime()
+        val result = write()
+        SyncPhaseRecorder.current()?.recordWrite(rows, System.nanoTime() - startTime)
+        return result
+    }
+
     private suspend fun reportProgress(
         state: State,
         progress: Int,
@@ -674,7 +1413,8 @@ class SyncAllWorker @AssistedInject constructor(
                 workDataOf(
                     PROGRESS_CURRENT_STATE to state.name,
                     PROGRESS_NUMBER_SO_FAR to progress,
-                    PROGRESS_TOTAL_NUMBER to total
+                    PROGRESS_TOTAL_NUMBER to total,
+                    PROGRESS_ROWS_PER_SECOND to lastBatchRowsPerSecond
                 )
             )
         } else {
@@ -683,7 +1423,8 @@ class SyncAllWorker @AssistedInject constructor(
                     workDataOf(
                         PROGRESS_CURRENT_STATE to state.name,
                         PROGRESS_NUMBER_SO_FAR to progress,
-                        PROGRESS_TOTAL_NUMBER to total
+                        PROGRESS_TOTAL_NUMBER to total,
+                        PROGRESS_ROWS_PER_SECOND to lastBatchRowsPerSecond
                     )
                 )
             }
@@ -786,3 +1527,21 @@ enum class ReferralSyncField(override val text: String) : Field {
 enum class AssessmentSyncField(override val text: String) : Field {
     ASSESSMENTS("assessments"), ERRORS("errors")
 }
+
+/**
+ * The fields of a combined sync response (see [RestApi.syncCombined]). The sections are sent by
+ * the server in the order of [SECTIONS], so that referrals come after the patients and health
+ * facilities that they reference, and so on.
+ */
+enum class CombinedSyncField(override val text: String) : Field {
+    HEALTH_FACILITIES(SyncChangeCounts.HEALTH_FACILITIES),
+    PATIENTS(SyncChangeCounts.PATIENTS),
+    READINGS(SyncChangeCounts.READINGS),
+    REFERRALS(SyncChangeCounts.REFERRALS),
+    ASSESSMENTS(SyncChangeCounts.ASSESSMENTS),
+    ERRORS("errors");
+
+    companion object {
+        val SECTIONS = listOf(HEALTH_FACILITIES, PATIENTS, READINGS, REFERRALS, ASSESSMENTS)
+    }
+}
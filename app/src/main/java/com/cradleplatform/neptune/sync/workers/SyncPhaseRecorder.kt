@@ -0,0 +1,73 @@
+package com.cradleplatform.neptune.sync.workers
+
+import com.cradleplatform.neptune.http_sms_service.http.TrafficCounter
+import com.cradleplatform.neptune.sync.SyncPhaseTrace
+import kotlinx.coroutines.currentCoroutineContext
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Collects the measurements of one phase of a sync for its [SyncPhaseTrace].
+ *
+ * The recorder is added to the coroutine context of the phase, along with its [traffic] counter,
+ * so that the HTTP calls made by the phase are counted and code running in the phase (such as the
+ * database writers) can find the recorder with [current].
+ */
+internal class SyncPhaseRecorder(private val phase: String) : AbstractCoroutineContextElement(Key) {
+
+    val traffic = TrafficCounter()
+
+    private val startTime = System.nanoTime()
+
+    @Volatile
+    private var endTime = 0L
+
+    private val dbWriteNanos = AtomicLong()
+    private val rowsWritten = AtomicLong()
+    private val parserBlockedMillis = AtomicLong()
+    private val writerBlockedMillis = AtomicLong()
+
+    fun recordWrite(rows: Int, elapsedNanos: Long) {
+        rowsWritten.addAndGet(rows.toLong())
+        dbWriteNanos.addAndGet(elapsedNanos)
+    }
+
+    /** Must only be called once the [channel] is consumed. */
+    fun recordChannel(channel: MeteredChannel<*>) {
+        parserBlockedMillis.addAndGet(channel.sendBlockedMillis)
+        writerBlockedMillis.addAndGet(channel.receiveBlockedMillis)
+    }
+
+    fun stop() {
+        endTime = System.nanoTime()
+    }
+
+    fun toTrace(): SyncPhaseTrace {
+        val wallNanos = (if (endTime == 0L) System.nanoTime() else endTime) - startTime
+        val writeNanos = dbWriteNanos.get()
+        val rows = rowsWritten.get()
+        val parseMillis = traffic.responseBodyMillis - traffic.networkReadMillis - parserBlockedMillis.get()
+        return SyncPhaseTrace(
+            phase = phase,
+            wallMillis = TimeUnit.NANOSECONDS.toMillis(wallNanos),
+            bytesSent = traffic.totalBytesSent,
+            bytesReceived = traffic.totalBytesReceived,
+            networkReadMillis = traffic.networkReadMillis,
+            parseMillis = parseMillis.coerceAtLeast(0L),
+            dbWriteMillis = TimeUnit.NANOSECONDS.toMillis(writeNanos),
+            rowsWritten = rows,
+            rowsPerSecond = if (writeNanos > 0) rows * NANOS_PER_SECOND / writeNanos else 0.0,
+            parserBlockedMillis = parserBlockedMillis.get(),
+            writerBlockedMillis = writerBlockedMillis.get(),
+        )
+    }
+
+    companion object Key : CoroutineContext.Key<SyncPhaseRecorder> {
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+
+        /** The recorder of the phase that the calling coroutine is part of, if any. */
+        suspend fun current(): SyncPhaseRecorder? = currentCoroutineContext()[Key]
+    }
+}
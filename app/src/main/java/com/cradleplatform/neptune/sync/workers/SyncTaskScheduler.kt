@@ -0,0 +1,106 @@
+package com.cradleplatform.neptune.sync.workers
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Runs a small DAG of sync tasks. Each task starts once all of the tasks it depends on have
+ * succeeded, and tasks that don't depend on each other run concurrently (e.g., downloading health
+ * facilities while patients are being synced). If a task fails, every task that depends on it,
+ * directly or transitively, is skipped.
+ *
+ * An exception thrown by a task cancels the remaining tasks and is rethrown from [run].
+ *
+ * @param K The type used to identify tasks, usually an enum.
+ * @param stopOnFailure Whether a failed task also skips every task that hasn't started yet, like a
+ * sequential run that stops at the first failure. Tasks that are already running still finish.
+ * @param around Runs each task given its key, e.g. to measure the task. It must call the task and
+ * return its result.
+ */
+class SyncTaskScheduler<K : Any>(
+    private val stopOnFailure: Boolean = false,
+    private val around: suspend (key: K, task: suspend () -> Boolean) -> Boolean = { _, task -> task() }
+) {
+
+    enum class Outcome { SUCCEEDED, FAILED, SKIPPED }
+
+    private class Task<K>(val dependencies: Set<K>, val block: suspend () -> Boolean)
+
+    private val tasks = LinkedHashMap<K, Task<K>>()
+
+    /**
+     * Adds a task identified by [key] that will run after all tasks in [dependsOn] succeed.
+     * The [block] returns whether the task succeeded.
+     *
+     * @throws IllegalArgumentException if a task with the same [key] was already added
+     */
+    fun add(key: K, dependsOn: Set<K> = emptySet(), block: suspend () -> Boolean) {
+        require(key !in tasks) { "task $key was already added" }
+        tasks[key] = Task(dependsOn, block)
+    }
+
+    /**
+     * Runs all of the tasks and suspends until every one of them has either finished or been
+     * skipped.
+     *
+     * @return the [Outcome] of every task, in the order they were added
+     * @throws IllegalArgumentException if a dependency is missing or the dependencies have a cycle
+     */
+    suspend fun run(): Map<K, Outcome> {
+        validate()
+
+        val outcomes = tasks.keys.associateWith { CompletableDeferred<Outcome>() }
+        val hasFailed = AtomicBoolean(false)
+        coroutineScope {
+            tasks.forEach { (key, task) ->
+                launch {
+                    val dependenciesSucceeded = task.dependencies.all {
+                        outcomes.getValue(it).await() == Outcome.SUCCEEDED
+                    }
+                    val outcome = when {
+                        !dependenciesSucceeded -> Outcome.SKIPPED
+                        stopOnFailure && hasFailed.get() -> Outcome.SKIPPED
+                        around(key, task.block) -> Outcome.SUCCEEDED
+                        else -> Outcome.FAILED
+                    }
+                    if (outcome == Outcome.FAILED) {
+                        hasFailed.set(true)
+                    }
+                    outcomes.getValue(key).complete(outcome)
+                }
+            }
+        }
+        return outcomes.mapValues { it.value.await() }
+    }
+
+    private fun validate() {
+        tasks.forEach { (key, task) ->
+            task.dependencies.forEach {
+                require(it in tasks) { "task $key depends on $it, which was never added" }
+            }
+        }
+
+        val visited = HashSet<K>()
+        val onStack = HashSet<K>()
+        fun visit(key: K) {
+            if (key in visited) return
+            require(onStack.add(key)) { "dependency cycle involving task $key" }
+            tasks.getValue(key).dependencies.forEach { visit(it) }
+            onStack.remove(key)
+            visited.add(key)
+        }
+        tasks.keys.forEach { visit(it) }
+    }
+
+    companion object {
+        /**
+         * Returns the tasks that succeeded before the first one, in the order they were added, that
+         * didn't. For a sequential run that stops at the first failure, these are the tasks whose
+         * results can be kept.
+         */
+        fun <K> succeededBeforeFirstFailure(outcomes: Map<K, Outcome>): List<K> =
+            outcomes.entries.takeWhile { it.value == Outcome.SUCCEEDED }.map { it.key }
+    }
+}
@@ -0,0 +1,54 @@
+package com.cradleplatform.neptune.sync.workers
+
+import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.Referral
+
+/**
+ * Picks the records that are uploaded in the urgent lane of a sync, ahead of the bulk phases (see
+ * [SyncAllWorker.uploadUrgent]), so that clinical emergencies reach the server quickly even when
+ * there is a large backlog on a slow link.
+ */
+internal object UrgentUploads {
+
+    /**
+     * Whether a [reading] is urgent: its vitals are in the red, it refers the patient to a health
+     * facility, or its vitals recheck is due within [recheckWindowSeconds] of [nowSeconds].
+     */
+    fun isUrgent(reading: Reading, nowSeconds: Long, recheckWindowSeconds: Long): Boolean =
+        urgencyOf(reading, nowSeconds, recheckWindowSeconds) != null
+
+    /**
+     * Whether a [referral] is urgent, i.e., it still needs to be acted on. Referrals that were
+     * cancelled, assessed or not attended can wait for the bulk phases.
+     */
+    fun isUrgent(referral: Referral): Boolean =
+        !referral.isCancelled && !referral.isAssessed && !referral.notAttended
+
+    /**
+     * Returns at most [maxReadings] of the urgent [readings], most urgent first: red readings,
+     * then referrals, then due rechecks. Readings that are equally urgent are ordered by when they
+     * were taken, oldest first. Readings that aren't urgent are left out.
+     */
+    fun mostUrgentFirst(
+        readings: List<Reading>,
+        nowSeconds: Long,
+        recheckWindowSeconds: Long,
+        maxReadings: Int
+    ): List<Reading> = readings
+        .mapNotNull { reading -> urgencyOf(reading, nowSeconds, recheckWindowSeconds)?.let { reading to it } }
+        .sortedWith(compareBy({ it.second }, { it.first.dateTaken }))
+        .take(maxReadings)
+        .map { it.first }
+
+    private enum class Urgency { RED, REFERRED, RECHECK_DUE }
+
+    private fun urgencyOf(reading: Reading, nowSeconds: Long, recheckWindowSeconds: Long): Urgency? {
+        val dateRetestNeeded = reading.dateRetestNeeded
+        return when {
+            reading.bloodPressure.analysis.isRed -> Urgency.RED
+            reading.isReferredToHealthFacility -> Urgency.REFERRED
+            dateRetestNeeded != null && dateRetestNeeded - nowSeconds <= recheckWindowSeconds -> Urgency.RECHECK_DUE
+            else -> null
+        }
+    }
+}
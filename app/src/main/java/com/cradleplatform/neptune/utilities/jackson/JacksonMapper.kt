@@ -1,6 +1,11 @@
 package com.cradleplatform.neptune.utilities.jackson
 
+import com.cradleplatform.neptune.http_sms_service.sms.utils.SmsJsonData
+import com.cradleplatform.neptune.model.Answer
 import com.cradleplatform.neptune.model.Assessment
+import com.cradleplatform.neptune.model.DecryptedSmsResponse
+import com.cradleplatform.neptune.model.FormClassification
+import com.cradleplatform.neptune.model.FormResponse
 import com.cradleplatform.neptune.model.FormTemplate
 import com.cradleplatform.neptune.model.GestationalAge
 import com.cradleplatform.neptune.model.GlobalPatient
@@ -8,27 +13,51 @@ import com.cradleplatform.neptune.model.HealthFacility
 import com.cradleplatform.neptune.model.Patient
 import com.cradleplatform.neptune.model.PatientAndReadings
 import com.cradleplatform.neptune.model.PatientAndReferrals
+import com.cradleplatform.neptune.model.PatientSummary
+import com.cradleplatform.neptune.model.QuestionResponse
 import com.cradleplatform.neptune.model.Reading
 import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.RelayPhoneNumberResponse
 import com.cradleplatform.neptune.model.SmsKeyResponse
+import com.fasterxml.jackson.core.type.TypeReference
 import com.fasterxml.jackson.databind.ObjectReader
 import com.fasterxml.jackson.databind.ObjectWriter
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import java.util.concurrent.ConcurrentHashMap
 
 internal object JacksonMapper {
     /**
      * Stores one mapper to use for the entire app.
      * https://stackoverflow.com/questions/3907929/
      * should-i-declare-jacksons-objectmapper-as-a-static-field#comment26559628_16197551
+     *
+     * The models parsed during sync and login have their own streaming deserializers (see, e.g.,
+     * [Referral.Deserializer]), so the Kotlin module's reflective constructor binding is only a
+     * fallback for the rest.
      */
     val mapper by lazy {
         jacksonObjectMapper()
     }
 
-    inline fun <reified T> createReader(): ObjectReader = mapper.readerFor(T::class.java)
+    private val readers = ConcurrentHashMap<Class<*>, ObjectReader>()
 
-    inline fun <reified T> createWriter(): ObjectWriter = mapper.writerFor(T::class.java)
+    private val writers = ConcurrentHashMap<Class<*>, ObjectWriter>()
+
+    /**
+     * The reader for [T], which is built on first use and then shared, since readers are
+     * immutable and thread-safe. Generic types are erased, so use a reader built with a
+     * [TypeReference] for those instead.
+     */
+    inline fun <reified T> createReader(): ObjectReader = readerFor(T::class.java)
+
+    /**
+     * The writer for [T], which is built on first use and then shared; see [createReader].
+     */
+    inline fun <reified T> createWriter(): ObjectWriter = writerFor(T::class.java)
+
+    fun readerFor(type: Class<*>): ObjectReader = readers.getOrPut(type) { mapper.readerFor(type) }
+
+    fun writerFor(type: Class<*>): ObjectWriter = writers.getOrPut(type) { mapper.writerFor(type) }
 
     val readerForPatientAndReadings: ObjectReader by lazy {
         mapper.readerFor(PatientAndReadings::class.java)
@@ -54,6 +83,28 @@ internal object JacksonMapper {
 
     val writerForm: ObjectWriter by lazy { mapper.writerFor(FormTemplate::class.java) }
 
+    val readerForFormClassification: ObjectReader by lazy {
+        mapper.readerFor(FormClassification::class.java)
+    }
+
+    val writerForFormResponse: ObjectWriter by lazy { mapper.writerFor(FormResponse::class.java) }
+
+    val readerForAnswers: ObjectReader by lazy {
+        mapper.readerFor(object : TypeReference<Map<String, Answer>>() {})
+    }
+
+    val writerForAnswers: ObjectWriter by lazy {
+        mapper.writerFor(object : TypeReference<Map<String, Answer>>() {})
+    }
+
+    val readerForQuestionResponses: ObjectReader by lazy {
+        mapper.readerForListOf(QuestionResponse::class.java)
+    }
+
+    val writerForQuestionResponses: ObjectWriter by lazy {
+        mapper.writerFor(object : TypeReference<List<QuestionResponse>>() {})
+    }
+
     val readerForGestAge: ObjectReader by lazy { mapper.readerFor(GestationalAge::class.java) }
 
     val writerForGestAge: ObjectWriter by lazy { mapper.writerFor(GestationalAge::class.java) }
@@ -74,6 +125,16 @@ internal object JacksonMapper {
         mapper.readerFor(SmsKeyResponse::class.java)
     }
 
+    val readerForDecryptedSmsResponse: ObjectReader by lazy {
+        mapper.readerFor(DecryptedSmsResponse::class.java)
+    }
+
+    val writerForSmsJsonData: ObjectWriter by lazy { mapper.writerFor(SmsJsonData::class.java) }
+
     fun createGlobalPatientsListReader(): ObjectReader =
         mapper.readerForListOf(GlobalPatient::class.java)
+
+    val readerForPatientSummaryList: ObjectReader by lazy {
+        mapper.readerForListOf(PatientSummary::class.java)
+    }
 }
@@ -0,0 +1,97 @@
+package com.cradleplatform.neptune.utilities.jackson
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.NullNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+
+/**
+ * Field-level change tracking for entities that are uploaded during sync. Entities that already
+ * exist on the server remember which of their JSON fields were edited locally, so that only those
+ * fields need to be uploaded as a JSON merge patch (RFC 7386) instead of the whole entity.
+ *
+ * Field names are the names used by the entity's Jackson serializer, so that the patch lines up
+ * with what the server would receive for a full upload.
+ */
+internal object JsonMergePatch {
+
+    /**
+     * @return the names of the top-level fields whose values differ between [old] and [new],
+     * including fields that only appear in one of them.
+     */
+    fun changedFields(old: JsonNode, new: JsonNode): Set<String> {
+        val fieldNames = LinkedHashSet<String>()
+        old.fieldNames().forEach { fieldNames.add(it) }
+        new.fieldNames().forEach { fieldNames.add(it) }
+        return fieldNames.filterTo(LinkedHashSet()) { old.get(it) != new.get(it) }
+    }
+
+    /**
+     * Computes the dirty fields to store for an [edited] entity, given the currently [stored]
+     * version of it (null if it isn't in the database yet).
+     *
+     * An entity that has never been on the server is uploaded in full anyway, so nothing is
+     * tracked for it. Otherwise, the fields changed by this edit are added to the
+     * [storedDirtyFields] from earlier edits that haven't been uploaded yet.
+     *
+     * @param isStoredOnServer whether the [stored] version is known to exist on the server
+     */
+    fun <T : Any> trackEdit(
+        stored: T?,
+        edited: T,
+        storedDirtyFields: List<String>,
+        isStoredOnServer: Boolean
+    ): List<String> {
+        if (stored == null || (!isStoredOnServer && storedDirtyFields.isEmpty())) {
+            return emptyList()
+        }
+        val mapper = JacksonMapper.mapper
+        val changed = changedFields(
+            mapper.valueToTree<JsonNode>(stored),
+            mapper.valueToTree<JsonNode>(edited)
+        )
+        return (storedDirtyFields + changed).distinct()
+    }
+
+    /**
+     * Computes the last synced values of the [dirtyFields] of an edited entity, given the
+     * currently [stored] version of it, so that a later download can tell which fields the server
+     * changed (see [com.cradleplatform.neptune.sync.SyncMerger]). Fields that were already dirty
+     * keep the value in [storedBase] from before their first edit; a field the serializer didn't
+     * write is stored as null.
+     */
+    fun <T : Any> trackBase(stored: T?, dirtyFields: List<String>, storedBase: ObjectNode): ObjectNode {
+        val base = JacksonMapper.mapper.createObjectNode()
+        if (dirtyFields.isEmpty() || stored == null) {
+            return base
+        }
+        val storedTree = JacksonMapper.mapper.valueToTree<JsonNode>(stored)
+        dirtyFields.forEach { field ->
+            base.set<JsonNode>(field, storedBase.get(field) ?: storedTree.get(field) ?: NullNode.instance)
+        }
+        return base
+    }
+
+    /**
+     * Creates a merge patch for [entity] containing only its [dirtyFields], plus the
+     * [alwaysIncluded] fields that the server needs to identify the entity and resolve conflicts.
+     * A dirty field that the serializer no longer writes (e.g. an optional value that was cleared)
+     * is set to null, which removes it according to the merge patch rules.
+     */
+    fun createPatch(
+        entity: Any,
+        dirtyFields: Collection<String>,
+        alwaysIncluded: Collection<String>
+    ): ObjectNode {
+        val full = JacksonMapper.mapper.valueToTree<ObjectNode>(entity)
+        val patch = JacksonMapper.mapper.createObjectNode()
+        (alwaysIncluded + dirtyFields).distinct().forEach { field ->
+            val value = full.get(field)
+            if (value != null) {
+                patch.set<JsonNode>(field, value)
+            } else if (field in dirtyFields) {
+                patch.putNull(field)
+            }
+        }
+        return patch
+    }
+}
@@ -206,7 +206,7 @@ class EditPatientViewModel @Inject constructor(
                 }
             }
         } else {
-            patientManager.add(patient)
+            patientManager.saveLocalEdit(patient)
             SaveResult.SavedOffline
         }
     }
@@ -256,7 +256,7 @@ class EditPregnancyViewModel @Inject constructor(
                 }
             }
         } else {
-            patientManager.add(patient)
+            patientManager.saveLocalEdit(patient)
             return SaveResult.SavedOffline
         }
     }
@@ -285,7 +285,7 @@ class EditPregnancyViewModel @Inject constructor(
                 }
             }
         } else {
-            patientManager.add(patient)
+            patientManager.saveLocalEdit(patient)
             SaveResult.SavedOffline
         }
     }
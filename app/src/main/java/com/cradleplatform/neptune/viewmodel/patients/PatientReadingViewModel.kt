@@ -1300,7 +1300,7 @@ class PatientReadingViewModel @Inject constructor(
      */
     suspend fun downloadAssociateAndSavePatient(
         patientId: String
-    ): NetworkResult<PatientAndReadings> = patientManager.downloadAssociateAndSavePatient(patientId)
+    ): NetworkResult<Patient> = patientManager.downloadAssociateAndSavePatient(patientId)
 
     private fun updateActionBarSubtitle(patientName: String?, patientId: String?) {
         val subtitle = if (patientName == null || patientId == null) {
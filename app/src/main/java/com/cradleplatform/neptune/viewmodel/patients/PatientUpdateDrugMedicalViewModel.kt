@@ -56,7 +56,7 @@ class PatientUpdateDrugMedicalViewModel @Inject constructor(
         } else {
             patient.medicalLastEdited = UnixTimestamp.now.toLong()
         }
-        patientManager.add(patient)
+        patientManager.saveLocalEdit(patient)
         return SaveResult.SavedOffline
     }
 }
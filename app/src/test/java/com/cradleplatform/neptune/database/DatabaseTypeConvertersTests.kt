@@ -1,6 +1,26 @@
 package com.cradleplatform.neptune.database
 
+import com.cradleplatform.neptune.model.Answer
+import com.cradleplatform.neptune.model.Assessment
+import com.cradleplatform.neptune.model.BloodPressure
+import com.cradleplatform.neptune.model.FormTemplate
+import com.cradleplatform.neptune.model.GestationalAgeWeeks
+import com.cradleplatform.neptune.model.McOption
+import com.cradleplatform.neptune.model.Question
+import com.cradleplatform.neptune.model.QuestionLangVersion
+import com.cradleplatform.neptune.model.QuestionResponse
+import com.cradleplatform.neptune.model.QuestionTypeEnum
+import com.cradleplatform.neptune.model.Referral
+import com.cradleplatform.neptune.model.UrineTest
+import com.cradleplatform.neptune.model.VisibleCondition
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
+import java.math.BigInteger
 
 class DatabaseTypeConvertersTests {
     private val typeConverter = DatabaseTypeConverters()
@@ -41,4 +61,255 @@ class DatabaseTypeConvertersTests {
 
     private fun runStringListConversion(list: List<String>?): List<String>? =
         typeConverter.toStringList(typeConverter.fromStringList(list))
-}
\ No newline at end of file
+
+    @Test
+    fun `string list is compact but JSON is still read`() {
+        val list = listOf("~", "1:2", "", "Zoë ✓")
+        val stored = typeConverter.fromStringList(list)!!
+
+        assertTrue(CompactColumnEncoding.isEncoded(stored))
+        assertEquals(list, typeConverter.toStringList(stored))
+        assertEquals(list, typeConverter.toStringList(JacksonMapper.mapper.writeValueAsString(list)))
+        assertEquals(emptyList<String>(), typeConverter.toStringList("[]"))
+    }
+
+    @Test
+    fun `reading objects are preserved and JSON is still read`() {
+        val bloodPressure = BloodPressure(systolic = 120, diastolic = 80, heartRate = 75)
+        val urineTest = UrineTest("+", "++", "-", "NAD", "NAD")
+        val referral = Referral(
+            id = "345",
+            comment = null,
+            healthFacilityName = "H2230",
+            dateReferred = 1595645675L,
+            userId = null,
+            patientId = "5414842504",
+            actionTaken = "Rest: 2 days",
+            cancelReason = null,
+            notAttendReason = null,
+            isAssessed = true,
+            isCancelled = false,
+            notAttended = false,
+            lastEdited = 1595645675L
+        )
+        val assessment = Assessment(
+            id = "4535",
+            dateAssessed = 1595745946L,
+            healthcareWorkerId = 2,
+            patientId = "5414842504",
+            diagnosis = "~",
+            treatment = null,
+            medicationPrescribed = "",
+            specialInvestigations = null,
+            followUpNeeded = null,
+            followUpInstructions = null
+        )
+
+        typeConverter.run {
+            assertEquals(bloodPressure, toBloodPressure(fromBloodPressure(bloodPressure)))
+            assertEquals(urineTest, toUrineTest(fromUrineTest(urineTest)))
+            assertEquals(referral, toReferral(fromReferral(referral)))
+            assertEquals(assessment, toFollowUp(fromFollowUp(assessment)))
+
+            val mapper = JacksonMapper.mapper
+            assertEquals(bloodPressure, toBloodPressure(mapper.writeValueAsString(bloodPressure)))
+            assertEquals(urineTest, toUrineTest(mapper.writeValueAsString(urineTest)))
+            assertEquals(referral, toReferral(mapper.writeValueAsString(referral)))
+            assertNull(toReferral(null))
+            assertNull(fromFollowUp(null))
+        }
+    }
+
+    @Test
+    fun `gestational age keeps its timestamp`() {
+        val gestationalAge = GestationalAgeWeeks(BigInteger.valueOf(1604883648L))
+
+        val stored = typeConverter.gestationalAgeToString(gestationalAge)
+
+        assertEquals(gestationalAge.timestamp, typeConverter.stringToGestationalAge(stored)!!.timestamp)
+        assertEquals(
+            gestationalAge.timestamp,
+            typeConverter.stringToGestationalAge("{\"pregnancyStartDate\":\"1604883648\"}")!!.timestamp
+        )
+    }
+
+    @Test
+    fun `form template written by Gson is still read`() {
+        listOf(legacyGson(), legacyGson { serializeNulls() }).forEach { gson ->
+            assertEquals(formTemplate, typeConverter.toFormTemplate(gson.toJson(formTemplate)))
+        }
+        assertNull(typeConverter.toFormTemplate(null))
+    }
+
+    @Test
+    fun `form response answers written by Gson are still read`() {
+        val answers = mapOf(
+            "decimal" to Answer.createNumericAnswer(5.0),
+            "integer" to Answer.createNumericAnswer(7L, comment = "estimated"),
+            "text" to Answer.createTextAnswer("Dr. Smith"),
+            "mc" to Answer.createMcAnswer(listOf(0, 2)),
+            "empty" to Answer.createEmptyAnswer()
+        )
+
+        listOf(legacyGson(), legacyGson { serializeNulls() }).forEach { gson ->
+            val json = gson.toJson(answers)
+            // Gson writes a Number as it is, so a decimal answer is stored as 5.0.
+            assertTrue(json.contains("\"number\":5.0"), json)
+
+            val read = typeConverter.toFormResponseAnswers(json)!!
+            assertEquals(answers.keys, read.keys)
+            assertEquals(5.0, read.getValue("decimal").numericAnswer!!.toDouble())
+            assertEquals(7.0, read.getValue("integer").numericAnswer!!.toDouble())
+            assertEquals("estimated", read.getValue("integer").comment)
+            assertEquals("Dr. Smith", read.getValue("text").textAnswer)
+            assertNull(read.getValue("text").numericAnswer)
+            assertEquals(listOf(0, 2), read.getValue("mc").mcIdArrayAnswer)
+            assertNull(read.getValue("mc").textAnswer)
+            read.getValue("empty").run {
+                assertNull(numericAnswer)
+                assertNull(textAnswer)
+                assertNull(mcIdArrayAnswer)
+                assertEquals("", comment)
+            }
+        }
+    }
+
+    @Test
+    fun `question responses written by Gson are still read`() {
+        val questionResponses = listOf(
+            QuestionResponse(
+                questionType = QuestionTypeEnum.DECIMAL,
+                hasCommentAttached = true,
+                answers = Answer.createNumericAnswer(36.6, comment = "fever"),
+                required = true,
+                visibleCondition = listOf(VisibleCondition(0, "EQUAL_TO", Answer.createMcAnswer(listOf(1)))),
+                isBlank = false,
+                formTemplateId = "form-template-id",
+                mcOptions = emptyList(),
+                questionIndex = 1,
+                languageSpecificText = "Temperature"
+            ),
+            QuestionResponse(
+                questionType = QuestionTypeEnum.MULTIPLE_CHOICE,
+                hasCommentAttached = false,
+                answers = Answer.createMcAnswer(listOf(1)),
+                required = false,
+                visibleCondition = emptyList(),
+                formTemplateId = "form-template-id",
+                mcOptions = listOf(McOption(mcId = 0, opt = "No"), McOption(mcId = 1, opt = "Yes")),
+                questionIndex = 0,
+                languageSpecificText = "Has symptoms"
+            )
+        )
+
+        listOf(legacyGson(), legacyGson { serializeNulls() }).forEach { gson ->
+            val read = typeConverter.toQuestionResponseList(gson.toJson(questionResponses))!!
+
+            assertEquals(questionResponses.size, read.size)
+            questionResponses.zip(read).forEach { (expected, actual) ->
+                assertEquals(expected.questionType, actual.questionType)
+                assertEquals(expected.hasCommentAttached, actual.hasCommentAttached)
+                assertEquals(expected.answers.numericAnswer?.toDouble(), actual.answers.numericAnswer?.toDouble())
+                assertEquals(expected.answers.mcIdArrayAnswer, actual.answers.mcIdArrayAnswer)
+                assertEquals(expected.answers.comment, actual.answers.comment)
+                assertEquals(expected.required, actual.required)
+                assertEquals(expected.visibleCondition, actual.visibleCondition)
+                assertEquals(expected.isBlank, actual.isBlank)
+                assertEquals(expected.formTemplateId, actual.formTemplateId)
+                assertEquals(expected.mcOptions, actual.mcOptions)
+                assertEquals(expected.questionIndex, actual.questionIndex)
+                assertEquals(expected.languageSpecificText, actual.languageSpecificText)
+            }
+        }
+    }
+
+    private val formTemplate = FormTemplate(
+        version = "V1",
+        archived = false,
+        dateCreated = 1660000000L,
+        id = "form-template-id",
+        formClassId = "form-classification-id",
+        formClassName = "Referral form",
+        questions = listOf(
+            Question(
+                id = "question-1",
+                allowPastDates = null,
+                allowFutureDates = null,
+                visibleCondition = emptyList(),
+                isBlank = true,
+                formTemplateId = "form-template-id",
+                questionIndex = 0,
+                numMin = null,
+                numMax = null,
+                stringMaxLength = null,
+                stringMaxLines = null,
+                questionType = QuestionTypeEnum.MULTIPLE_CHOICE,
+                hasCommentAttached = false,
+                required = true,
+                languageVersions = listOf(
+                    QuestionLangVersion(
+                        language = "English",
+                        parentId = "question-1",
+                        questionText = "Has symptoms",
+                        questionTextId = 1,
+                        mcOptions = listOf(McOption(mcId = 0, opt = "No"), McOption(mcId = 1, opt = "Yes"))
+                    )
+                )
+            ),
+            Question(
+                id = "question-2",
+                allowPastDates = true,
+                allowFutureDates = false,
+                visibleCondition = listOf(VisibleCondition(0, "EQUAL_TO", Answer.createMcAnswer(listOf(1)))),
+                isBlank = true,
+                formTemplateId = "form-template-id",
+                questionIndex = 1,
+                numMin = 30.0,
+                numMax = 45.5,
+                stringMaxLength = null,
+                stringMaxLines = null,
+                questionType = QuestionTypeEnum.DECIMAL,
+                hasCommentAttached = true,
+                required = false,
+                languageVersions = listOf(
+                    QuestionLangVersion(
+                        language = "English",
+                        parentId = "question-2",
+                        questionText = "Temperature",
+                        questionTextId = 2,
+                        mcOptions = emptyList()
+                    )
+                )
+            )
+        )
+    )
+
+    /**
+     * A [Gson] that writes the form classes the way the Gson type converters of older versions did.
+     * Their field names came from @SerializedName annotations, which have since been replaced by
+     * @JsonProperty.
+     */
+    private fun legacyGson(configure: GsonBuilder.() -> Unit = {}): Gson = GsonBuilder()
+        .setFieldNamingStrategy { field ->
+            LEGACY_FIELD_NAMES["${field.declaringClass.simpleName}.${field.name}"] ?: field.name
+        }
+        .apply(configure)
+        .create()
+
+    companion object {
+        /** The @SerializedName values that differed from the field names. */
+        private val LEGACY_FIELD_NAMES = mapOf(
+            "FormTemplate.formClassId" to "formClassificationId",
+            "FormTemplate.formClassName" to "formClassificationName",
+            "Question.languageVersions" to "langVersions",
+            "QuestionLangVersion.language" to "lang",
+            "QuestionLangVersion.parentId" to "questionId",
+            "QuestionLangVersion.questionTextId" to "id",
+            "VisibleCondition.answerCondition" to "answers",
+            "Answer.numericAnswer" to "number",
+            "Answer.textAnswer" to "text",
+            "Answer.mcIdArrayAnswer" to "mcIdArray",
+            "QuestionResponse.languageSpecificText" to "questionText",
+        )
+    }
+}
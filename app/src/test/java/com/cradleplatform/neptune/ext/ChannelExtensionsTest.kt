@@ -0,0 +1,72 @@
+package com.cradleplatform.neptune.ext
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+
+internal class ChannelExtensionsTest {
+
+    @Test
+    fun `consumeInBatches splits elements into full chunks and a final partial chunk`() {
+        val batches = mutableListOf<List<Int>>()
+        runBlocking {
+            val channel = Channel<Int>()
+            launch {
+                for (i in 1..7) channel.send(i)
+                channel.close()
+            }
+            channel.consumeInBatches(batchSize = 3) { batches.add(it) }
+        }
+
+        assertEquals(listOf(listOf(1, 2, 3), listOf(4, 5, 6), listOf(7)), batches)
+    }
+
+    @Test
+    fun `consumeInBatches never emits an empty batch`() {
+        val batches = mutableListOf<List<Int>>()
+        runBlocking {
+            val channel = Channel<Int>()
+            launch {
+                for (i in 1..4) channel.send(i)
+                channel.close()
+            }
+            channel.consumeInBatches(batchSize = 2) { batches.add(it) }
+
+            val emptyChannel = Channel<Int>()
+            emptyChannel.close()
+            emptyChannel.consumeInBatches(batchSize = 2) { batches.add(it) }
+        }
+
+        assertEquals(listOf(listOf(1, 2), listOf(3, 4)), batches)
+        assertTrue(batches.none { it.isEmpty() })
+    }
+
+    @Test
+    fun `consumeInBatches rethrows close cause and drops the partial batch`() {
+        val batches = mutableListOf<List<Int>>()
+        assertThrows<IOException> {
+            runBlocking {
+                val channel = Channel<Int>()
+                launch {
+                    for (i in 1..3) channel.send(i)
+                    channel.close(IOException("failed"))
+                }
+                channel.consumeInBatches(batchSize = 2) { batches.add(it) }
+            }
+        }
+
+        assertEquals(listOf(listOf(1, 2)), batches)
+    }
+
+    @Test
+    fun `consumeInBatches rejects non-positive batch size`() {
+        assertThrows<IllegalArgumentException> {
+            runBlocking { Channel<Int>().consumeInBatches(batchSize = 0) { } }
+        }
+    }
+}
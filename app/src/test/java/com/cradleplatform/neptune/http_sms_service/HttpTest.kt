@@ -6,6 +6,7 @@ import android.util.Log
 import androidx.preference.PreferenceManager.getDefaultSharedPreferences
 import com.cradleplatform.neptune.http_sms_service.http.Http
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
+import com.cradleplatform.neptune.http_sms_service.http.buildJsonRequestBody
 import com.cradleplatform.neptune.testutils.MockDependencyUtils.createMockSharedPreferences
 import com.fasterxml.jackson.databind.exc.MismatchedInputException
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
@@ -19,10 +20,12 @@ import okhttp3.mockwebserver.MockWebServer
 import okhttp3.mockwebserver.RecordedRequest
 import org.json.JSONObject
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.fail
 import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
 
 internal class HttpTest {
     data class ServerResponse(val message: String)
@@ -240,4 +243,77 @@ tortor rutrum mauris. Morbi pellentesque ex.
             assert(testRequest.cause is MismatchedInputException)
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `gzip request compression compresses large JSON bodies`() {
+        MockWebServer().use { server ->
+            server.enqueue(MockResponse().setResponseCode(200))
+            server.enqueue(MockResponse().setResponseCode(200))
+            val (_, mockSharedPrefs) = createMockSharedPreferences()
+            val http = Http(mockSharedPrefs, gzipRequestThreshold = 100L)
+
+            val largeJson = "[" + (1..50).joinToString(",") { """{"id": "$it"}""" } + "]"
+            val smallJson = """{"id": "1"}"""
+            runBlocking {
+                http.makeRequest(
+                    method = Http.Method.POST,
+                    url = server.url("/api/large").toString(),
+                    requestBody = buildJsonRequestBody(largeJson.toByteArray()),
+                    inputStreamReader = {}
+                )
+                http.makeRequest(
+                    method = Http.Method.POST,
+                    url = server.url("/api/small").toString(),
+                    requestBody = buildJsonRequestBody(smallJson.toByteArray()),
+                    inputStreamReader = {}
+                )
+            }
+
+            val largeRequest = server.takeRequest()
+            assertEquals("gzip", largeRequest.getHeader("Content-Encoding"))
+            val decompressed = GZIPInputStream(largeRequest.body.inputStream()).readBytes().decodeToString()
+            assertEquals(largeJson, decompressed)
+
+            val smallRequest = server.takeRequest()
+            assertNull(smallRequest.getHeader("Content-Encoding"))
+            assertEquals(smallJson, smallRequest.body.readUtf8())
+        }
+    }
+
+    @Test
+    fun `gzip request compression falls back to plain bodies when rejected`() {
+        MockWebServer().use { server ->
+            server.dispatcher = object : Dispatcher() {
+                override fun dispatch(request: RecordedRequest): MockResponse =
+                    if (request.getHeader("Content-Encoding") == "gzip") {
+                        MockResponse().setResponseCode(415)
+                    } else {
+                        MockResponse().setResponseCode(200)
+                    }
+            }
+            val (_, mockSharedPrefs) = createMockSharedPreferences()
+            val http = Http(mockSharedPrefs, gzipRequestThreshold = 0L)
+
+            val json = """{"id": "1"}"""
+            val results = runBlocking {
+                (1..2).map {
+                    http.makeRequest(
+                        method = Http.Method.POST,
+                        url = server.url("/api/test").toString(),
+                        requestBody = buildJsonRequestBody(json.toByteArray()),
+                        inputStreamReader = {}
+                    )
+                }
+            }
+            results.forEach { check(it is NetworkResult.Success) { "expected Success, but got $it" } }
+
+            // The first request is retried uncompressed; the second isn't compressed at all.
+            assertEquals(3, server.requestCount)
+            assertEquals("gzip", server.takeRequest().getHeader("Content-Encoding"))
+            assertEquals(json, server.takeRequest().body.readUtf8())
+            val secondRequest = server.takeRequest()
+            assertNull(secondRequest.getHeader("Content-Encoding"))
+            assertEquals(json, secondRequest.body.readUtf8())
+        }
+    }
+}
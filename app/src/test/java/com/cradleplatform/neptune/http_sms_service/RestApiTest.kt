@@ -1,23 +1,44 @@
 package com.cradleplatform.neptune.http_sms_service
 
 import android.util.Log
+import com.cradleplatform.neptune.http_sms_service.http.CombinedSyncChannels
+import com.cradleplatform.neptune.http_sms_service.http.CombinedSyncUpload
+import com.cradleplatform.neptune.http_sms_service.http.FormResponseSyncChange
 import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
+import com.cradleplatform.neptune.http_sms_service.http.ReadingPageSyncResult
 import com.cradleplatform.neptune.http_sms_service.http.RestApi
+import com.cradleplatform.neptune.http_sms_service.http.SyncChangeCounts
+import com.cradleplatform.neptune.http_sms_service.http.SyncCursor
+import com.cradleplatform.neptune.http_sms_service.http.SyncException
+import com.cradleplatform.neptune.http_sms_service.http.SyncItemError
+import com.cradleplatform.neptune.http_sms_service.http.SyncUploadSource
 import com.cradleplatform.neptune.manager.LoginResponse
 import com.cradleplatform.neptune.manager.LoginResponseUser
 import com.cradleplatform.neptune.manager.SmsKey
+import com.cradleplatform.neptune.model.Assessment
+import com.cradleplatform.neptune.model.FormClassification
+import com.cradleplatform.neptune.model.FormTemplateVersion
 import com.cradleplatform.neptune.model.GestationalAgeWeeks
+import com.cradleplatform.neptune.model.HealthFacility
 import com.cradleplatform.neptune.model.Patient
+import com.cradleplatform.neptune.model.PatientSummary
+import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.Referral
 import com.cradleplatform.neptune.model.Sex
 import com.cradleplatform.neptune.testutils.MockWebServerUtils
 import com.cradleplatform.neptune.utilities.Protocol
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
 import io.mockk.every
 import io.mockk.mockkStatic
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.toList
 import kotlinx.coroutines.runBlocking
 import okhttp3.mockwebserver.Dispatcher
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
 import okhttp3.mockwebserver.RecordedRequest
+import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
 import org.junit.jupiter.api.AfterEach
@@ -264,6 +285,423 @@ internal class RestApiTest {
         server.shutdown()
     }
 
+    private fun pagedReadingJson(id: String, lastEdited: Long) = """
+        {
+            "id": "$id",
+            "systolicBloodPressure": 119,
+            "diastolicBloodPressure": 98,
+            "heartRate": 87,
+            "symptoms": ["NONE"],
+            "dateTaken": $lastEdited,
+            "lastEdited": $lastEdited,
+            "retestOfPreviousReadingIds": "",
+            "patientId": "123456",
+            "isFlaggedForFollowUp": false,
+            "referral": null,
+            "followUp": null,
+            "urineTests": null,
+            "userId": 12
+        }
+    """.trimIndent()
+
+    /**
+     * Runs [RestApi.syncReadingsPage] while collecting the readings sent through the channel.
+     */
+    private fun RestApi.syncReadingsPageCollecting(
+        after: SyncCursor?,
+        pageSize: Int
+    ): Pair<ReadingPageSyncResult, List<Reading>> = runBlocking {
+        val channel = Channel<Reading>()
+        val received = async {
+            val readings = mutableListOf<Reading>()
+            try {
+                for (reading in channel) readings.add(reading)
+            } catch (e: SyncException) {
+                // The page failed; the caller checks the returned network result.
+            }
+            readings
+        }
+        val result = syncReadingsPage(
+            SyncUploadSource.empty(), BigInteger.ONE, after, pageSize, channel
+        ) { _, _ -> }
+        result to received.await()
+    }
+
+    @Test
+    fun syncReadingsPage_followsCursorAcrossPages() {
+        val readings = listOf(
+            pagedReadingJson("reading-1", 100),
+            pagedReadingJson("reading-2", 200),
+            pagedReadingJson("reading-3", 300),
+        )
+        val (api, server) = MockWebServerUtils.createRestApiWithServerBlock {
+            dispatcher = object : Dispatcher() {
+                override fun dispatch(request: RecordedRequest): MockResponse {
+                    val url = request.requestUrl!!
+                    val limit = url.queryParameter("limit")!!.toInt()
+                    val start = when (url.queryParameter("afterId")) {
+                        null -> 0
+                        "reading-1" -> 1
+                        "reading-2" -> 2
+                        else -> readings.size
+                    }
+                    val page = readings.drop(start).take(limit)
+                    return MockResponse().setResponseCode(200)
+                        .setBody("""{"readings": [${page.joinToString(",")}]}""")
+                }
+            }
+        }
+
+        val (firstPage, firstReadings) = api.syncReadingsPageCollecting(after = null, pageSize = 2)
+        check(firstPage.networkResult is NetworkResult.Success) { "got $firstPage" }
+        assertEquals(listOf("reading-1", "reading-2"), firstReadings.map { it.id })
+        assertEquals(SyncCursor(200, "reading-2"), firstPage.lastReading)
+        assertFalse(firstPage.isLastPage)
+
+        val (secondPage, secondReadings) = api.syncReadingsPageCollecting(
+            after = firstPage.lastReading, pageSize = 2
+        )
+        check(secondPage.networkResult is NetworkResult.Success) { "got $secondPage" }
+        assertEquals(listOf("reading-3"), secondReadings.map { it.id })
+        assertEquals(SyncCursor(300, "reading-3"), secondPage.lastReading)
+        assertTrue(secondPage.isLastPage)
+
+        server.takeRequest()
+        val secondRequestUrl = server.takeRequest().requestUrl!!
+        assertEquals("/api/sync/readings", secondRequestUrl.encodedPath)
+        assertEquals("1", secondRequestUrl.queryParameter("since"))
+        assertEquals("200", secondRequestUrl.queryParameter("afterLastEdited"))
+        assertEquals("reading-2", secondRequestUrl.queryParameter("afterId"))
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncReadingsPage_serverIgnoringPaging_isLastPage() {
+        val body = listOf(
+            pagedReadingJson("reading-1", 100),
+            pagedReadingJson("reading-2", 200),
+            pagedReadingJson("reading-3", 300),
+        ).joinToString(",", prefix = """{"readings": [""", postfix = "]}")
+        val (api, server) = restApiCapturing(body)
+
+        val (page, readings) = api.syncReadingsPageCollecting(after = null, pageSize = 2)
+        check(page.networkResult is NetworkResult.Success) { "got $page" }
+        assertEquals(3, readings.size)
+        assertTrue(page.isLastPage)
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncReadingsPage_malformedPage_isNotSuccess() {
+        val body = """{"readings": [${pagedReadingJson("reading-1", 100)}, {"id": """
+        val (api, server) = restApiCapturing(body)
+
+        val (page, _) = api.syncReadingsPageCollecting(after = null, pageSize = 2)
+        check(page.networkResult is NetworkResult.NetworkException) { "got $page" }
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncPatients_streamsUploadFromEveryPage() {
+        val (api, server) = restApiCapturing("""{"patients": []}""")
+        val patients = (1..5).map { sampleEditablePatient().copy(id = "patient-$it") }
+        val pagesRead = mutableListOf<String>()
+        val source = SyncUploadSource(
+            size = patients.size,
+            pageSize = 2,
+            idOf = { it.id },
+            readPage = { afterId, limit ->
+                pagesRead.add(afterId)
+                patients.filter { it.id > afterId }.take(limit)
+            }
+        )
+
+        val result = runBlocking {
+            api.syncPatients(source, BigInteger.ONE, Channel(Channel.UNLIMITED), Protocol.HTTP) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.Success) { "got $result" }
+        assertEquals(5, result.totalPatientsUploaded)
+        assertEquals(listOf("", "patient-2", "patient-4"), pagesRead)
+
+        val body = JSONArray(server.takeRequest().body.readString(Charsets.UTF_8))
+        assertEquals(patients.map { it.id }, (0 until body.length()).map { body.getJSONObject(it).getString("id") })
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncPatients_parsesErrorsIntoPerItemResults() {
+        val body = """
+            {
+                "patients": [],
+                "errors": [
+                    {"patientId": "patient-1", "message": "invalid date of birth"},
+                    {"id": 42, "errors": {"sex": "required"}},
+                    "something went wrong"
+                ]
+            }
+        """.trimIndent()
+        val (api, server) = restApiCapturing(body)
+
+        val result = runBlocking {
+            api.syncPatients(
+                SyncUploadSource.of(listOf(sampleEditablePatient())),
+                BigInteger.ONE,
+                Channel(Channel.UNLIMITED),
+                Protocol.HTTP
+            ) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.Success) { "got $result" }
+        assertEquals(
+            listOf(
+                SyncItemError("patient-1", "invalid date of birth"),
+                SyncItemError("42", """{"sex":"required"}"""),
+                SyncItemError(null, "something went wrong")
+            ),
+            result.itemErrors
+        )
+
+        server.shutdown()
+    }
+
+    @Test
+    fun getPatientStreaming_sendsHeaderBeforeReadingsAndReturnsCompletePatient() {
+        val patientJson = JacksonMapper.mapper.writeValueAsString(sampleEditablePatient())
+        // The zone is sent again after the readings, so only the complete patient has it.
+        val body = patientJson.removeSuffix("}") +
+            """, "readings": [${pagedReadingJson("reading-1", 100)}, ${pagedReadingJson("reading-2", 200)}],""" +
+            """ "zone": "99"}"""
+        val (api, server) = restApiCapturing(body)
+        val readings = Channel<Reading>(Channel.UNLIMITED)
+        var header: Patient? = null
+
+        val result = runBlocking {
+            api.getPatientStreaming("123456", readings) { patient ->
+                assertTrue(readings.tryReceive().isFailure) { "header must come before the readings" }
+                header = patient
+            }
+        }
+        check(result is NetworkResult.Success) { "got $result" }
+        assertEquals("37", header?.zone)
+        assertEquals("99", result.value.zone)
+        assertEquals("Test Patient", result.value.name)
+        assertEquals(listOf("reading-1", "reading-2"), runBlocking { readings.toList() }.map { it.id })
+        assertEquals("/api/patients/123456", server.takeRequest().path)
+
+        server.shutdown()
+    }
+
+    @Test
+    fun getPatientSummaries_repeatsFiltersAndParsesSummaries() {
+        val body = """
+            [
+                {"id": "1", "name": "A", "sex": "FEMALE", "villageNumber": "5", "healthFacilityName": "H 1",
+                    "isPregnant": false, "lastEdited": 100},
+                {"id": "2", "name": "B", "sex": "MALE", "zone": "9", "lastEdited": 200}
+            ]
+        """.trimIndent()
+        val (api, server) = restApiCapturing(body)
+
+        val result = runBlocking { api.getPatientSummaries(listOf("H 1", "H&2"), listOf("5")) }
+        check(result is NetworkResult.Success) { "got $result" }
+        assertEquals(
+            listOf(
+                PatientSummary(
+                    id = "1", name = "A", sex = Sex.FEMALE, villageNumber = "5", healthFacilityName = "H 1",
+                    lastEdited = 100
+                ),
+                PatientSummary(id = "2", name = "B", sex = Sex.MALE, zone = "9", lastEdited = 200)
+            ),
+            result.value
+        )
+        assertEquals(
+            "/api/patients/summaries?healthFacility=H+1&healthFacility=H%262&villageNumber=5",
+            server.takeRequest().path
+        )
+
+        server.shutdown()
+    }
+
+    private class CombinedSyncTestChannels {
+        val healthFacilities = Channel<HealthFacility>(Channel.UNLIMITED)
+        val patients = Channel<Patient>(Channel.UNLIMITED)
+        val readings = Channel<Reading>(Channel.UNLIMITED)
+        val referrals = Channel<Referral>(Channel.UNLIMITED)
+        val assessments = Channel<Assessment>(Channel.UNLIMITED)
+
+        fun toCombinedSyncChannels() =
+            CombinedSyncChannels(healthFacilities, patients, readings, referrals, assessments)
+    }
+
+    @Test
+    fun syncCombined_uploadsEveryTypeInOneRequestAndSplitsTheResponseSections() {
+        val body = """
+            {
+                "healthFacilities": [{"name": "H0000", "location": "Mumbai"}],
+                "patients": [],
+                "readings": [${pagedReadingJson("reading-1", 100)}, ${pagedReadingJson("reading-2", 200)}],
+                "assessments": [],
+                "errors": []
+            }
+        """.trimIndent()
+        val (api, server) = restApiCapturing(body)
+        val channels = CombinedSyncTestChannels()
+        val upload = CombinedSyncUpload(
+            patients = SyncUploadSource.of(listOf(sampleEditablePatient())),
+            readings = SyncUploadSource.empty(),
+            referrals = emptyList(),
+            assessments = emptyList()
+        )
+
+        val result = runBlocking {
+            api.syncCombined(
+                upload,
+                mapOf(
+                    SyncChangeCounts.PATIENTS to BigInteger.valueOf(100),
+                    SyncChangeCounts.READINGS to BigInteger.TEN
+                ),
+                channels.toCombinedSyncChannels()
+            ) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.Success) { "got $result" }
+        assertEquals(1, result.uploaded(SyncChangeCounts.PATIENTS))
+        assertEquals(1, result.downloaded(SyncChangeCounts.HEALTH_FACILITIES))
+        assertEquals(2, result.downloaded(SyncChangeCounts.READINGS))
+        assertEquals(0, result.downloaded(SyncChangeCounts.REFERRALS))
+
+        runBlocking {
+            assertEquals(listOf("H0000"), channels.healthFacilities.toList().map { it.name })
+            assertEquals(listOf("reading-1", "reading-2"), channels.readings.toList().map { it.id })
+            // Every channel is closed, including the one for the section the server left out.
+            assertTrue(channels.patients.toList().isEmpty())
+            assertTrue(channels.referrals.toList().isEmpty())
+            assertTrue(channels.assessments.toList().isEmpty())
+        }
+
+        val request = server.takeRequest()
+        assertEquals("POST", request.method)
+        assertEquals("/api/sync/all?patients=100&readings=10", request.path)
+        val requestBody = JSONObject(request.body.readString(Charsets.UTF_8))
+        assertEquals("123456", requestBody.getJSONArray("patients").getJSONObject(0).getString("id"))
+        assertEquals(0, requestBody.getJSONArray("readings").length())
+        assertEquals(0, requestBody.getJSONArray("referrals").length())
+        assertEquals(0, requestBody.getJSONArray("assessments").length())
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncCombined_sectionOutOfOrder_failsEveryChannel() {
+        val body = """{"readings": [${pagedReadingJson("reading-1", 100)}], "patients": []}"""
+        val (api, server) = restApiCapturing(body)
+        val channels = CombinedSyncTestChannels()
+        val upload = CombinedSyncUpload(SyncUploadSource.empty(), SyncUploadSource.empty(), emptyList(), emptyList())
+
+        val result = runBlocking {
+            api.syncCombined(upload, emptyMap(), channels.toCombinedSyncChannels()) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.NetworkException) { "got $result" }
+        assertThrows(SyncException::class.java) {
+            runBlocking { channels.assessments.receive() }
+        }
+
+        server.shutdown()
+    }
+
+    @Test
+    fun getSyncChangeCounts_parsesCountsPerType() {
+        val (api, server) = restApiCapturing("""{"patients": 0, "readings": 3}""")
+
+        val result = runBlocking {
+            api.getSyncChangeCounts(
+                mapOf(
+                    SyncChangeCounts.PATIENTS to BigInteger.valueOf(100),
+                    SyncChangeCounts.READINGS to BigInteger.valueOf(200),
+                    SyncChangeCounts.REFERRALS to BigInteger.valueOf(300),
+                )
+            )
+        }
+        check(result is NetworkResult.Success) { "got $result" }
+        assertFalse(result.value.hasChanges(SyncChangeCounts.PATIENTS))
+        assertTrue(result.value.hasChanges(SyncChangeCounts.READINGS))
+        // Types the server didn't report on are never treated as unchanged.
+        assertTrue(result.value.hasChanges(SyncChangeCounts.REFERRALS))
+
+        val request = server.takeRequest()
+        assertEquals("GET", request.method)
+        assertEquals("/api/sync/changes?patients=100&readings=200&referrals=300", request.path)
+
+        server.shutdown()
+    }
+
+    @Test
+    fun getAllFormTemplates_withKnownVersions_postsThemAndParsesChangedTemplates() {
+        val changedTemplate = """
+            {"id": "template-2", "version": "V2", "archived": false, "dateCreated": 1,
+             "formClassificationId": "class-1", "classification": {"id": "class-1", "name": "Intake"},
+             "questions": []}
+        """.trimIndent()
+        val (api, server) = restApiCapturing("[$changedTemplate]")
+        val knownVersions = listOf(
+            FormTemplateVersion("class-1", "template-1", "V1"),
+            FormTemplateVersion("class-2", "template-5", "V3")
+        )
+        val channel = Channel<FormClassification>(Channel.UNLIMITED)
+
+        val result = runBlocking {
+            api.getAllFormTemplates(channel, Protocol.HTTP, knownVersions) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.Success) { "got $result" }
+        assertEquals(1, result.totalFormClassDownloaded)
+        val downloaded = runBlocking { channel.receive() }
+        assertEquals("class-1", downloaded.formClassId)
+        assertEquals("template-2", downloaded.templateId)
+        assertEquals("V2", downloaded.templateVersion)
+
+        val request = server.takeRequest()
+        assertEquals("POST", request.method)
+        assertEquals("/api/forms/classifications/summary/changes", request.path)
+        val body = JSONArray(request.body.readString(Charsets.UTF_8))
+        assertEquals(2, body.length())
+        assertEquals("class-1", body.getJSONObject(0).getString("classificationId"))
+        assertEquals("template-1", body.getJSONObject(0).getString("templateId"))
+        assertEquals("V1", body.getJSONObject(0).getString("version"))
+
+        server.shutdown()
+    }
+
+    @Test
+    fun syncFormResponses_parsesUpdatesAndTombstones() {
+        val body = """
+            [
+                {"id": "form-1", "patient_id": "patient-1", "form_classification_id": "class-1",
+                 "lang": "English", "last_edited": 1700000000, "date_created": 1690000000,
+                 "classification": {"name": "Intake"}},
+                {"id": "form-2", "deleted": true}
+            ]
+        """.trimIndent()
+        val (api, server) = restApiCapturing(body)
+        val channel = Channel<FormResponseSyncChange>(Channel.UNLIMITED)
+
+        val result = runBlocking {
+            api.syncFormResponses(BigInteger.ONE, channel, Protocol.HTTP) { _, _ -> }
+        }
+        check(result.networkResult is NetworkResult.Success) { "got $result" }
+        assertEquals(2, result.totalFormResponsesDownloaded)
+
+        val changes = runBlocking { listOf(channel.receive(), channel.receive()) }
+        val update = changes[0] as FormResponseSyncChange.Update
+        assertEquals("form-1", update.formResponse.serverFormId)
+        assertEquals("patient-1", update.formResponse.patientId)
+        assertEquals(1700000000L * 1000L, update.formResponse.dateEdited)
+        assertEquals(FormResponseSyncChange.Deletion("form-2"), changes[1])
+
+        server.shutdown()
+    }
+
     /*
     @Test
     fun getAllPatientsStreaming() {
@@ -0,0 +1,66 @@
+package com.cradleplatform.neptune.manager
+
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.databind.exc.MismatchedInputException
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+internal class LoginResponseTests {
+
+    private val smsKey = SmsKey(
+        key = "sms-key",
+        message = "NORMAL",
+        expiryDate = "2200-01-01 00:00:00",
+        staleDate = "2100-01-01 00:00:00"
+    )
+
+    @Test
+    fun smsKey_serializeAndDeserialize() {
+        val json = JacksonMapper.createWriter<SmsKey>().writeValueAsString(smsKey)
+
+        assertEquals(smsKey, JacksonMapper.createReader<SmsKey>().readValue<SmsKey>(json))
+    }
+
+    @Test
+    fun loginResponse_skipsUnknownFields() {
+        val json = """
+            {
+                "accessToken": "token",
+                "refreshToken": "ignored",
+                "user": {
+                    "id": 3,
+                    "username": "vht",
+                    "email": "vht@example.com",
+                    "role": "VHT",
+                    "name": null,
+                    "healthFacilityName": "H0000",
+                    "phoneNumbers": ["+1-604-715-2845"],
+                    "supervises": [1, 2],
+                    "smsKey": {
+                        "key": "sms-key",
+                        "message": "NORMAL",
+                        "expiryDate": "2200-01-01 00:00:00",
+                        "staleDate": "2100-01-01 00:00:00"
+                    }
+                }
+            }
+        """.trimIndent()
+
+        val response = JacksonMapper.createReader<LoginResponse>().readValue<LoginResponse>(json)
+
+        assertEquals("token", response.accessToken)
+        assertEquals(3, response.user.id)
+        assertNull(response.user.name)
+        assertEquals(listOf("+1-604-715-2845"), response.user.phoneNumbers)
+        assertEquals(smsKey, response.user.smsKey)
+    }
+
+    @Test
+    fun loginResponse_missingRequiredField_throwsMismatchedInput() {
+        assertThrows<MismatchedInputException> {
+            JacksonMapper.createReader<LoginResponse>().readValue<LoginResponse>("""{"accessToken": "token"}""")
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.cradleplatform.neptune.model
+
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable
+import java.lang.management.ManagementFactory
+
+/**
+ * Compares the streaming [PatientAndReadings] deserializer against first reading every patient
+ * into a [JsonNode] tree, as the deserializers used to do. The tree baseline only builds each tree
+ * once, so it is a lower bound for the old deserializers, which also rebuilt a tree for every
+ * nested reading, referral and assessment.
+ *
+ * Only runs when the `CRADLE_BENCHMARK` environment variable is `true`:
+ * ```
+ * CRADLE_BENCHMARK=true ./gradlew testDebugUnitTest --tests '*DeserializerBenchmark*'
+ * ```
+ * The timings are published as report entries of the test.
+ */
+@EnabledIfEnvironmentVariable(named = "CRADLE_BENCHMARK", matches = "true")
+class DeserializerBenchmark {
+    private val reader = JacksonMapper.readerForPatientAndReadings
+
+    private val json: String = run {
+        val patient = JacksonMapper.mapper
+            .readTree(CommonPatientReadingJsons.patientWithReferralAndFollowup.first) as ObjectNode
+        val array = JacksonMapper.mapper.createArrayNode()
+        repeat(PATIENTS) { i -> array.add(patient.deepCopy().put("id", (i + 1).toString())) }
+        array.toString()
+    }
+
+    @Test
+    fun streamingVersusTree(testReporter: TestReporter) {
+        val streaming = measure {
+            reader.readValues<PatientAndReadings>(json).readAll().size
+        }
+        val tree = measure {
+            JacksonMapper.mapper.readTree(json).map { reader.readValue<PatientAndReadings>(it) }.size
+        }
+        testReporter.publishEntry(mapOf("streaming" to streaming.toString(), "tree" to tree.toString()))
+        assertTrue(streaming.bytesPerPatient < tree.bytesPerPatient) {
+            "streaming: $streaming, tree: $tree"
+        }
+    }
+
+    private class Result(val nanosPerPatient: Long, val bytesPerPatient: Long) {
+        override fun toString() = "$nanosPerPatient ns/patient, $bytesPerPatient B/patient"
+    }
+
+    private fun measure(parseAll: () -> Int): Result {
+        repeat(WARMUP_ROUNDS) { assertEquals(PATIENTS, parseAll()) }
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val bytesBefore = threads.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        repeat(ROUNDS) { parseAll() }
+        val nanos = System.nanoTime() - start
+        val bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore
+
+        return Result(nanos / (ROUNDS * PATIENTS), bytes / (ROUNDS * PATIENTS))
+    }
+
+    companion object {
+        private const val PATIENTS = 2000
+        private const val WARMUP_ROUNDS = 5
+        private const val ROUNDS = 20
+    }
+}
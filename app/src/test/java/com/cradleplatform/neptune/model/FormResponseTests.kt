@@ -0,0 +1,87 @@
+package com.cradleplatform.neptune.model
+
+import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class FormResponseTests {
+
+    private val formTemplateJson = """
+        {
+            "version": "V1",
+            "archived": false,
+            "dateCreated": 1660000000,
+            "id": "form-template-id",
+            "formClassificationId": "form-classification-id",
+            "formClassificationName": "Referral form",
+            "someNewServerField": "ignored",
+            "questions": [
+                {
+                    "id": "question-1",
+                    "allowPastDates": true,
+                    "allowFutureDates": true,
+                    "visibleCondition": [],
+                    "isBlank": true,
+                    "formTemplateId": "form-template-id",
+                    "questionIndex": 0,
+                    "numMin": null,
+                    "numMax": null,
+                    "stringMaxLength": null,
+                    "stringMaxLines": null,
+                    "questionType": "STRING",
+                    "hasCommentAttached": false,
+                    "required": true,
+                    "langVersions": [
+                        {
+                            "lang": "English",
+                            "questionId": "question-1",
+                            "questionText": "Referred by",
+                            "id": 1,
+                            "mcOptions": []
+                        }
+                    ]
+                }
+            ]
+        }
+    """.trimIndent()
+
+    @Test
+    fun formTemplate_readsFromServerJson() {
+        val template = JacksonMapper.readerForm.readValue<FormTemplate>(formTemplateJson)
+
+        assertTrue(template.verifyIntegrity())
+        assertEquals("form-classification-id", template.formClassId)
+        val question = template.questions!!.single()
+        assertEquals(true, question.isBlank)
+        assertEquals(QuestionTypeEnum.STRING, question.questionType)
+        assertEquals("Referred by", question.languageVersions!!.single().questionText)
+    }
+
+    @Test
+    fun formResponse_writesOnlyTheFieldsSentToTheServer() {
+        val template = JacksonMapper.readerForm.readValue<FormTemplate>(formTemplateJson)
+        val formResponse = FormResponse(
+            patientId = "patient-id",
+            formTemplate = template,
+            language = "English",
+            answers = mapOf("question-1" to Answer.createTextAnswer("Dr. Smith"))
+        )
+
+        val json = JacksonMapper.mapper.readTree(JacksonMapper.writerForFormResponse.writeValueAsString(formResponse))
+
+        assertEquals(
+            setOf("archived", "formClassificationId", "dateCreated", "lang", "questions", "patientId"),
+            json.fieldNames().asSequence().toSet()
+        )
+        assertEquals("patient-id", json["patientId"].asText())
+        assertEquals("English", json["lang"].asText())
+        val question = json["questions"].single()
+        assertFalse(question["isBlank"].asBoolean())
+        assertEquals("Referred by", question["questionText"].asText())
+        assertEquals("Dr. Smith", question["answers"]["text"].asText())
+        // Answers that aren't given are left out, not written as null.
+        assertFalse(question["answers"].has("number"))
+    }
+}
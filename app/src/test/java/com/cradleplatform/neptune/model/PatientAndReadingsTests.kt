@@ -1,6 +1,8 @@
 package com.cradleplatform.neptune.model
 
 import com.cradleplatform.neptune.utilities.jackson.JacksonMapper
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.module.kotlin.readValue
 
 import org.junit.jupiter.api.Assertions.assertEquals
@@ -100,4 +102,26 @@ class PatientAndReadingsTests {
             assertEquals(deserializedPatientAndReadings, parsedPatientAndReadings)
         }
     }
+
+    @Test
+    fun `deserialize skips unknown fields and doesn't depend on field order`() {
+        val (jsonString, expected) = CommonPatientReadingJsons.patientWithReferralAndFollowup
+        val original = JacksonMapper.mapper.readTree(jsonString) as ObjectNode
+
+        // Readings first, then the patient's fields in reverse, with unknown fields in between
+        // that contain known field names.
+        val reordered = JacksonMapper.mapper.createObjectNode()
+        reordered.set<JsonNode>("readings", original.get("readings"))
+        reordered.putObject("unknownObject").put("id", "not the id").putArray("readings").add(1)
+        original.fieldNames().asSequence().toList().reversed()
+            .filter { it != "readings" }
+            .forEach { reordered.set<JsonNode>(it, original.get(it)) }
+        reordered.putArray("unknownArray").addObject().put("name", "not the name")
+        reordered.putNull("unknownNull")
+
+        val deserialize = JacksonMapper.createReader<PatientAndReadings>()
+            .readValue<PatientAndReadings>(reordered.toString())
+        assertEquals(expected.patient, deserialize.patient)
+        assertEquals(expected.readings, deserialize.readings)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package com.cradleplatform.neptune.model
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+
+internal class PatientSummaryFtsTest {
+    @Test
+    fun `matchQuery prefix matches every word`() {
+        assertEquals("mar* 12*", PatientSummaryFts.matchQuery("Mar 12"))
+        assertEquals("anna*", PatientSummaryFts.matchQuery("  anna  "))
+    }
+
+    @Test
+    fun `matchQuery treats FTS syntax as word separators`() {
+        assertEquals("a* or* b*", PatientSummaryFts.matchQuery("\"a\" OR -b*"))
+        assertEquals("zoë* o* brien*", PatientSummaryFts.matchQuery("Zoë O'Brien"))
+    }
+
+    @Test
+    fun `matchQuery without words is null`() {
+        assertNull(PatientSummaryFts.matchQuery(""))
+        assertNull(PatientSummaryFts.matchQuery(" * - \" "))
+    }
+}
@@ -0,0 +1,68 @@
+package com.cradleplatform.neptune.sync
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class PeriodicSyncerTest {
+
+    private fun schedule(unsyncedCount: Int, lastDownloadedRows: Long) = PeriodicSyncer.computeSchedule(
+        baseIntervalMinutes = BASE_MINUTES,
+        unsyncedCount = unsyncedCount,
+        backlogThreshold = BACKLOG_THRESHOLD,
+        lastDownloadedRows = lastDownloadedRows,
+        largeDownloadRows = LARGE_DOWNLOAD_ROWS
+    )
+
+    @Test
+    fun computeSchedule_backlogShortensInterval() {
+        assertEquals(BASE_MINUTES / 2, schedule(unsyncedCount = 1, lastDownloadedRows = 10).intervalMinutes)
+        assertEquals(
+            BASE_MINUTES / 4,
+            schedule(unsyncedCount = BACKLOG_THRESHOLD, lastDownloadedRows = 10).intervalMinutes
+        )
+    }
+
+    @Test
+    fun computeSchedule_nothingChangedStretchesInterval() {
+        assertEquals(BASE_MINUTES * 2, schedule(unsyncedCount = 0, lastDownloadedRows = 0).intervalMinutes)
+        assertEquals(BASE_MINUTES, schedule(unsyncedCount = 0, lastDownloadedRows = 10).intervalMinutes)
+        // No successful sync yet.
+        assertEquals(BASE_MINUTES, schedule(unsyncedCount = 0, lastDownloadedRows = -1).intervalMinutes)
+    }
+
+    @Test
+    fun computeSchedule_neverGoesBelowWorkManagerMinimum() {
+        val schedule = PeriodicSyncer.computeSchedule(
+            baseIntervalMinutes = 20,
+            unsyncedCount = BACKLOG_THRESHOLD,
+            backlogThreshold = BACKLOG_THRESHOLD,
+            lastDownloadedRows = 0,
+            largeDownloadRows = LARGE_DOWNLOAD_ROWS
+        )
+        assertEquals(15L, schedule.intervalMinutes)
+    }
+
+    @Test
+    fun computeSchedule_largeDownloadWaitsForUnmeteredAndCharging_unlessThereIsABacklog() {
+        assertTrue(
+            schedule(unsyncedCount = 0, lastDownloadedRows = LARGE_DOWNLOAD_ROWS.toLong())
+                .requiresUnmeteredAndCharging
+        )
+        assertFalse(
+            schedule(unsyncedCount = 1, lastDownloadedRows = LARGE_DOWNLOAD_ROWS.toLong())
+                .requiresUnmeteredAndCharging
+        )
+        assertFalse(
+            schedule(unsyncedCount = 0, lastDownloadedRows = LARGE_DOWNLOAD_ROWS - 1L)
+                .requiresUnmeteredAndCharging
+        )
+    }
+
+    companion object {
+        private const val BASE_MINUTES = 24 * 60L
+        private const val BACKLOG_THRESHOLD = 20
+        private const val LARGE_DOWNLOAD_ROWS = 5000
+    }
+}
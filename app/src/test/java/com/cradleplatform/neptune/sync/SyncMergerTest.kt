@@ -0,0 +1,116 @@
+package com.cradleplatform.neptune.sync
+
+import com.cradleplatform.neptune.model.CommonPatientReadingJsons
+import com.cradleplatform.neptune.model.OutboxEntityType
+import com.cradleplatform.neptune.model.Patient
+import com.cradleplatform.neptune.utilities.jackson.JsonMergePatch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class SyncMergerTest {
+
+    private val syncedPatient = CommonPatientReadingJsons.patientNoGestAgeJsonAndExpected.second.patient
+        .copy(name = "Synced name", zone = "1", allergy = "none", lastEdited = 1605687954L)
+
+    private val detectedAt = 1605800000L
+
+    /**
+     * Tracks [edited] as a local edit of [stored], like PatientManager.saveLocalEdit does.
+     */
+    private fun localEdit(stored: Patient, edited: Patient): Patient = edited.apply {
+        dirtyFields = JsonMergePatch.trackEdit(
+            stored = stored,
+            edited = edited,
+            storedDirtyFields = stored.dirtyFields,
+            isStoredOnServer = true
+        )
+        dirtyFieldBase = JsonMergePatch.trackBase(stored, dirtyFields, stored.dirtyFieldBase)
+    }
+
+    @Test
+    fun merge_differentFieldsEdited_keepsBothEditsAndLocalStaysPending() {
+        val local = localEdit(syncedPatient, syncedPatient.copy(name = "Local name", lastEdited = 1605700000L))
+        val server = syncedPatient.copy(zone = "2", lastEdited = 1605750000L, lastServerUpdate = 1605750000L)
+
+        val result = SyncMerger.PATIENTS.merge(local, server, detectedAt)
+
+        assertTrue(result.conflicts.isEmpty())
+        assertEquals("Local name", result.entity.name)
+        assertEquals("2", result.entity.zone)
+        assertEquals(listOf("name"), result.entity.dirtyFields)
+        assertEquals("\"Synced name\"", result.entity.dirtyFieldBase.get("name").toString())
+        assertTrue(result.entity.lastEdited!! > result.entity.lastServerUpdate!!)
+    }
+
+    @Test
+    fun merge_sameFieldEditedToSameValue_isNotAConflict() {
+        val local = localEdit(syncedPatient, syncedPatient.copy(allergy = "penicillin"))
+        val server = syncedPatient.copy(allergy = "penicillin", lastServerUpdate = 1605750000L)
+
+        val result = SyncMerger.PATIENTS.merge(local, server, detectedAt)
+
+        assertTrue(result.conflicts.isEmpty())
+        assertEquals("penicillin", result.entity.allergy)
+        assertTrue(result.entity.dirtyFields.isEmpty())
+    }
+
+    @Test
+    fun merge_sameFieldEditedToDifferentValues_queuesConflictAndKeepsServerValue() {
+        val local = localEdit(syncedPatient, syncedPatient.copy(allergy = "penicillin"))
+        val server = syncedPatient.copy(allergy = "latex", lastServerUpdate = 1605750000L)
+
+        val result = SyncMerger.PATIENTS.merge(local, server, detectedAt)
+
+        assertEquals("latex", result.entity.allergy)
+        assertTrue(result.entity.dirtyFields.isEmpty())
+        val conflict = result.conflicts.single()
+        assertEquals(OutboxEntityType.PATIENT, conflict.entityType)
+        assertEquals(syncedPatient.id, conflict.entityId)
+        assertEquals("allergy", conflict.field)
+        assertEquals("\"penicillin\"", conflict.localValue)
+        assertEquals("\"latex\"", conflict.serverValue)
+        assertEquals(detectedAt, conflict.detectedAt)
+    }
+
+    @Test
+    fun merge_untrackedLocalCopy_newerCopyWins() {
+        val local = syncedPatient.copy(name = "Created offline", lastEdited = 1605760000L)
+        val olderServer = syncedPatient.copy(lastEdited = 1605750000L)
+        val newerServer = syncedPatient.copy(lastEdited = 1605770000L)
+
+        assertSame(local, SyncMerger.PATIENTS.merge(local, olderServer, detectedAt).entity)
+        assertSame(newerServer, SyncMerger.PATIENTS.merge(local, newerServer, detectedAt).entity)
+    }
+
+    @Test
+    fun mergeBatch_onlyLooksUpAndMergesPendingLocalCopies() {
+        val other = syncedPatient.copy(id = "other")
+        val local = localEdit(syncedPatient, syncedPatient.copy(name = "Local name"))
+        val requestedIds = mutableListOf<String>()
+
+        val result = runBlocking {
+            SyncMerger.PATIENTS.mergeBatch(listOf(syncedPatient.copy(), other), detectedAt) { ids ->
+                requestedIds.addAll(ids)
+                listOf(local)
+            }
+        }
+
+        assertEquals(listOf(syncedPatient.id, "other"), requestedIds)
+        assertEquals("Local name", result.entities[0].name)
+        assertSame(other, result.entities[1])
+        assertTrue(result.conflicts.isEmpty())
+    }
+
+    @Test
+    fun applyValue_setsFieldFromJsonValue() {
+        val patient = syncedPatient.copy()
+
+        assertTrue(SyncMerger.PATIENTS.applyValue(patient, "allergy", "\"penicillin\""))
+        assertEquals("penicillin", patient.allergy)
+        assertFalse(SyncMerger.PATIENTS.applyValue(patient, "lastEdited", "1"))
+    }
+}
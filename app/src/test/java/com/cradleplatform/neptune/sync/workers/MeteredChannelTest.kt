@@ -0,0 +1,91 @@
+package com.cradleplatform.neptune.sync.workers
+
+import com.cradleplatform.neptune.ext.consumeInBatches
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class MeteredChannelTest {
+
+    @Test
+    fun `producer runs ahead of the consumer up to the capacity`() {
+        val channel = MeteredChannel<Int>(capacity = 3)
+        runBlocking {
+            withTimeout(TIMEOUT_MILLIS) {
+                // No consumer yet, so these would suspend forever if the channel had no buffer.
+                repeat(3) { channel.send(it) }
+            }
+        }
+        channel.close()
+
+        val received = runBlocking { channel.drain() }
+        assertEquals(listOf(0, 1, 2), received)
+        assertEquals(0L, channel.sendBlockedMillis)
+    }
+
+    @Test
+    fun `time waiting for a slow producer is counted against the consumer`() {
+        val channel = MeteredChannel<Int>(capacity = 0)
+        val received = mutableListOf<Int>()
+        runBlocking {
+            withTimeout(TIMEOUT_MILLIS) {
+                launch {
+                    channel.consumeInBatches(batchSize = 1) { batch ->
+                        received.addAll(batch)
+                    }
+                }
+                delay(BLOCKED_MILLIS)
+                repeat(2) { channel.send(it) }
+                channel.close()
+            }
+        }
+
+        assertEquals(listOf(0, 1), received)
+        // The consumer was waiting for the producer's delay before the first element arrived.
+        assertTrue(channel.receiveBlockedMillis >= MIN_MEASURED_MILLIS) {
+            "expected consumer to be blocked for at least $MIN_MEASURED_MILLIS ms, " +
+                "but was ${channel.receiveBlockedMillis} ms"
+        }
+    }
+
+    @Test
+    fun `time waiting for a slow consumer is counted against the producer`() {
+        val channel = MeteredChannel<Int>(capacity = 1)
+        runBlocking {
+            withTimeout(TIMEOUT_MILLIS) {
+                launch {
+                    // Fills the buffer, then waits for the consumer below to take an element.
+                    repeat(2) { channel.send(it) }
+                    channel.close()
+                }
+                delay(BLOCKED_MILLIS)
+                assertEquals(listOf(0, 1), channel.drain())
+            }
+        }
+
+        assertTrue(channel.sendBlockedMillis >= MIN_MEASURED_MILLIS) {
+            "expected producer to be blocked for at least $MIN_MEASURED_MILLIS ms, " +
+                "but was ${channel.sendBlockedMillis} ms"
+        }
+    }
+
+    private suspend fun <E> MeteredChannel<E>.drain(): List<E> {
+        val list = mutableListOf<E>()
+        for (element in this) {
+            list.add(element)
+        }
+        return list
+    }
+
+    companion object {
+        private const val TIMEOUT_MILLIS = 5_000L
+        private const val BLOCKED_MILLIS = 100L
+
+        /** Leaves some slack for when the blocked side starts waiting. */
+        private const val MIN_MEASURED_MILLIS = BLOCKED_MILLIS / 2
+    }
+}
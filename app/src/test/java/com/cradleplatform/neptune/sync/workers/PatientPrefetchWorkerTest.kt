@@ -0,0 +1,31 @@
+package com.cradleplatform.neptune.sync.workers
+
+import com.cradleplatform.neptune.http_sms_service.http.NetworkResult
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.IOException
+
+internal class PatientPrefetchWorkerTest {
+
+    private fun failure(statusCode: Int) = NetworkResult.Failure<Int>(ByteArray(0), statusCode)
+
+    @Test
+    fun `network errors and server errors are retried`() {
+        assertTrue(PatientPrefetchWorker.isRetryable(NetworkResult.NetworkException<Int>(IOException("timeout"))))
+        assertTrue(PatientPrefetchWorker.isRetryable(failure(500)))
+        assertTrue(PatientPrefetchWorker.isRetryable(failure(503)))
+    }
+
+    @Test
+    fun `rejected requests are not retried`() {
+        assertFalse(PatientPrefetchWorker.isRetryable(failure(400)))
+        assertFalse(PatientPrefetchWorker.isRetryable(failure(401)))
+        assertFalse(PatientPrefetchWorker.isRetryable(failure(404)))
+    }
+
+    @Test
+    fun `successes are not retried`() {
+        assertFalse(PatientPrefetchWorker.isRetryable(NetworkResult.Success(10, 200)))
+    }
+}
@@ -0,0 +1,192 @@
+package com.cradleplatform.neptune.sync.workers
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.Collections
+
+internal class SyncTaskSchedulerTest {
+
+    private enum class TestPhase { A, B, C, D }
+
+    @Test
+    fun `independent tasks run concurrently`() {
+        val aStarted = CompletableDeferred<Unit>()
+        val bStarted = CompletableDeferred<Unit>()
+        val scheduler = SyncTaskScheduler<TestPhase>().apply {
+            // Each of these can only finish if the other one is running at the same time.
+            add(TestPhase.A) {
+                aStarted.complete(Unit)
+                bStarted.await()
+                true
+            }
+            add(TestPhase.B) {
+                bStarted.complete(Unit)
+                aStarted.await()
+                true
+            }
+        }
+
+        val outcomes = runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+
+        assertEquals(SyncTaskScheduler.Outcome.SUCCEEDED, outcomes[TestPhase.A])
+        assertEquals(SyncTaskScheduler.Outcome.SUCCEEDED, outcomes[TestPhase.B])
+    }
+
+    @Test
+    fun `tasks run after their dependencies`() {
+        val order = Collections.synchronizedList(mutableListOf<TestPhase>())
+        val scheduler = SyncTaskScheduler<TestPhase>().apply {
+            add(TestPhase.C, dependsOn = setOf(TestPhase.A, TestPhase.B)) {
+                order.add(TestPhase.C)
+                true
+            }
+            add(TestPhase.A) {
+                order.add(TestPhase.A)
+                true
+            }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) {
+                order.add(TestPhase.B)
+                true
+            }
+        }
+
+        runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+
+        assertEquals(listOf(TestPhase.A, TestPhase.B, TestPhase.C), order)
+    }
+
+    @Test
+    fun `failed task skips its dependents but not unrelated tasks`() {
+        val ran = Collections.synchronizedSet(mutableSetOf<TestPhase>())
+        val scheduler = SyncTaskScheduler<TestPhase>().apply {
+            add(TestPhase.A) {
+                ran.add(TestPhase.A)
+                false
+            }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) {
+                ran.add(TestPhase.B)
+                true
+            }
+            add(TestPhase.C, dependsOn = setOf(TestPhase.B)) {
+                ran.add(TestPhase.C)
+                true
+            }
+            add(TestPhase.D) {
+                ran.add(TestPhase.D)
+                true
+            }
+        }
+
+        val outcomes = runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+
+        assertEquals(setOf(TestPhase.A, TestPhase.D), ran)
+        assertEquals(
+            mapOf(
+                TestPhase.A to SyncTaskScheduler.Outcome.FAILED,
+                TestPhase.B to SyncTaskScheduler.Outcome.SKIPPED,
+                TestPhase.C to SyncTaskScheduler.Outcome.SKIPPED,
+                TestPhase.D to SyncTaskScheduler.Outcome.SUCCEEDED,
+            ),
+            outcomes
+        )
+    }
+
+    @Test
+    fun `stopOnFailure skips unrelated tasks that start after a failure`() {
+        val ran = Collections.synchronizedSet(mutableSetOf<TestPhase>())
+        val scheduler = SyncTaskScheduler<TestPhase>(stopOnFailure = true).apply {
+            add(TestPhase.A) {
+                ran.add(TestPhase.A)
+                true
+            }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) {
+                ran.add(TestPhase.B)
+                false
+            }
+            // Unrelated to B, but only starts after B has failed.
+            add(TestPhase.C, dependsOn = setOf(TestPhase.A, TestPhase.D)) {
+                ran.add(TestPhase.C)
+                true
+            }
+            add(TestPhase.D, dependsOn = setOf(TestPhase.B)) { true }
+        }
+
+        val outcomes = runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+
+        assertEquals(setOf(TestPhase.A, TestPhase.B), ran)
+        assertEquals(SyncTaskScheduler.Outcome.SKIPPED, outcomes[TestPhase.C])
+        assertEquals(listOf(TestPhase.A), SyncTaskScheduler.succeededBeforeFirstFailure(outcomes))
+    }
+
+    @Test
+    fun `succeededBeforeFirstFailure keeps the tasks before the first failure in order`() {
+        val outcomes = linkedMapOf(
+            TestPhase.A to SyncTaskScheduler.Outcome.SUCCEEDED,
+            TestPhase.B to SyncTaskScheduler.Outcome.SUCCEEDED,
+            TestPhase.C to SyncTaskScheduler.Outcome.FAILED,
+            TestPhase.D to SyncTaskScheduler.Outcome.SUCCEEDED,
+        )
+
+        assertEquals(
+            listOf(TestPhase.A, TestPhase.B),
+            SyncTaskScheduler.succeededBeforeFirstFailure(outcomes)
+        )
+        assertEquals(
+            emptyList<TestPhase>(),
+            SyncTaskScheduler.succeededBeforeFirstFailure(outcomes + (TestPhase.A to SyncTaskScheduler.Outcome.SKIPPED))
+        )
+    }
+
+    @Test
+    fun `cycles and missing dependencies are rejected`() {
+        val cyclic = SyncTaskScheduler<TestPhase>().apply {
+            add(TestPhase.A, dependsOn = setOf(TestPhase.B)) { true }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) { true }
+        }
+        assertThrows<IllegalArgumentException> { runBlocking { cyclic.run() } }
+
+        val missing = SyncTaskScheduler<TestPhase>().apply {
+            add(TestPhase.A, dependsOn = setOf(TestPhase.D)) { true }
+        }
+        assertThrows<IllegalArgumentException> { runBlocking { missing.run() } }
+    }
+
+    @Test
+    fun `exception in a task is rethrown`() {
+        val scheduler = SyncTaskScheduler<TestPhase>().apply {
+            add(TestPhase.A) { throw IllegalStateException("boom") }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) { true }
+        }
+        val exception = assertThrows<IllegalStateException> {
+            runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+        }
+        assertTrue(exception.message == "boom")
+    }
+
+    @Test
+    fun `around wraps every task that runs and sees its result`() {
+        val wrapped = Collections.synchronizedList(mutableListOf<Pair<TestPhase, Boolean>>())
+        val scheduler = SyncTaskScheduler<TestPhase> { phase, task ->
+            task().also { wrapped.add(phase to it) }
+        }.apply {
+            add(TestPhase.A) { false }
+            add(TestPhase.B, dependsOn = setOf(TestPhase.A)) { true }
+            add(TestPhase.C) { true }
+        }
+
+        val outcomes = runBlocking { withTimeout(TIMEOUT_MILLIS) { scheduler.run() } }
+
+        assertEquals(SyncTaskScheduler.Outcome.SKIPPED, outcomes[TestPhase.B])
+        // B is skipped, so it never runs and isn't wrapped.
+        assertEquals(setOf(TestPhase.A to false, TestPhase.C to true), wrapped.toSet())
+    }
+
+    companion object {
+        private const val TIMEOUT_MILLIS = 5_000L
+    }
+}
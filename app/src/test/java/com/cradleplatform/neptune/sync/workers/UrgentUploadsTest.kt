@@ -0,0 +1,97 @@
+package com.cradleplatform.neptune.sync.workers
+
+import com.cradleplatform.neptune.model.BloodPressure
+import com.cradleplatform.neptune.model.Reading
+import com.cradleplatform.neptune.model.Referral
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class UrgentUploadsTest {
+
+    private fun reading(
+        id: String,
+        bloodPressure: BloodPressure = BloodPressure(110, 70, 65),
+        referral: Referral? = null,
+        dateRetestNeeded: Long? = null,
+        dateTaken: Long = NOW
+    ) = Reading(
+        id = id,
+        patientId = "patient-$id",
+        dateTaken = dateTaken,
+        bloodPressure = bloodPressure,
+        urineTest = null,
+        symptoms = emptyList(),
+        referral = referral,
+        followUp = null,
+        dateRetestNeeded = dateRetestNeeded,
+        isFlaggedForFollowUp = false,
+        lastEdited = dateTaken,
+        userId = 1
+    )
+
+    private fun referral(
+        isAssessed: Boolean = false,
+        isCancelled: Boolean = false,
+        notAttended: Boolean = false
+    ) = Referral(
+        comment = null,
+        healthFacilityName = "H0000",
+        dateReferred = NOW,
+        patientId = "patient-1",
+        userId = 1,
+        isAssessed = isAssessed,
+        actionTaken = null,
+        cancelReason = null,
+        isCancelled = isCancelled,
+        lastEdited = NOW,
+        notAttendReason = null,
+        notAttended = notAttended
+    )
+
+    @Test
+    fun isUrgent_redReferredOrRecheckDueSoon() {
+        assertTrue(UrgentUploads.isUrgent(reading("1", BloodPressure(170, 80, 70)), NOW, WINDOW))
+        assertTrue(UrgentUploads.isUrgent(reading("2", referral = referral()), NOW, WINDOW))
+        assertTrue(UrgentUploads.isUrgent(reading("3", dateRetestNeeded = NOW + WINDOW), NOW, WINDOW))
+
+        assertFalse(UrgentUploads.isUrgent(reading("4"), NOW, WINDOW))
+        assertFalse(UrgentUploads.isUrgent(reading("5", dateRetestNeeded = NOW + WINDOW + 1), NOW, WINDOW))
+        // Yellow readings are not urgent.
+        assertFalse(UrgentUploads.isUrgent(reading("6", BloodPressure(145, 80, 70)), NOW, WINDOW))
+    }
+
+    @Test
+    fun isUrgent_onlyReferralsThatStillNeedAction() {
+        assertTrue(UrgentUploads.isUrgent(referral()))
+        assertFalse(UrgentUploads.isUrgent(referral(isAssessed = true)))
+        assertFalse(UrgentUploads.isUrgent(referral(isCancelled = true)))
+        assertFalse(UrgentUploads.isUrgent(referral(notAttended = true)))
+    }
+
+    @Test
+    fun mostUrgentFirst_ordersByUrgencyThenAgeAndLimits() {
+        val readings = listOf(
+            reading("routine"),
+            reading("recheck", dateRetestNeeded = NOW),
+            reading("referred", referral = referral()),
+            reading("red-new", BloodPressure(170, 80, 70), dateTaken = NOW),
+            reading("red-old", BloodPressure(120, 115, 70), dateTaken = NOW - 100),
+        )
+
+        assertEquals(
+            listOf("red-old", "red-new", "referred", "recheck"),
+            UrgentUploads.mostUrgentFirst(readings, NOW, WINDOW, maxReadings = 10).map { it.id }
+        )
+        assertEquals(
+            listOf("red-old", "red-new"),
+            UrgentUploads.mostUrgentFirst(readings, NOW, WINDOW, maxReadings = 2).map { it.id }
+        )
+    }
+
+    companion object {
+        private const val NOW = 1_700_000_000L
+        private const val WINDOW = 60 * 60L
+    }
+}
@@ -0,0 +1,84 @@
+package com.cradleplatform.neptune.utilities.jackson
+
+import com.cradleplatform.neptune.model.CommonPatientReadingJsons
+import com.cradleplatform.neptune.model.Patient
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class JsonMergePatchTest {
+
+    private val syncedPatient = CommonPatientReadingJsons.patientNoGestAgeJsonAndExpected.second.patient
+
+    @Test
+    fun changedFields_includesChangedAddedAndRemovedFields() {
+        val old = JacksonMapper.mapper.readTree("""{"a": 1, "b": "same", "c": true}""")
+        val new = JacksonMapper.mapper.readTree("""{"a": 2, "b": "same", "d": null}""")
+
+        assertEquals(setOf("a", "c", "d"), JsonMergePatch.changedFields(old, new))
+    }
+
+    @Test
+    fun trackEdit_patientOnServer_accumulatesEditedFields() {
+        val firstEdit = syncedPatient.copy(name = "New name", lastEdited = 1605690000L)
+        val firstDirtyFields = JsonMergePatch.trackEdit(
+            stored = syncedPatient,
+            edited = firstEdit,
+            storedDirtyFields = emptyList(),
+            isStoredOnServer = true
+        )
+        assertEquals(listOf("name", "lastEdited"), firstDirtyFields)
+
+        val secondEdit = firstEdit.copy(villageNumber = null, lastEdited = 1605700000L)
+        val secondDirtyFields = JsonMergePatch.trackEdit(
+            stored = firstEdit,
+            edited = secondEdit,
+            storedDirtyFields = firstDirtyFields,
+            isStoredOnServer = true
+        )
+        assertEquals(listOf("name", "lastEdited", "villageNumber"), secondDirtyFields)
+    }
+
+    @Test
+    fun trackEdit_newOrUnsyncedPatient_tracksNothing() {
+        val edited = syncedPatient.copy(name = "New name")
+
+        assertTrue(
+            JsonMergePatch.trackEdit<Patient>(
+                stored = null,
+                edited = edited,
+                storedDirtyFields = emptyList(),
+                isStoredOnServer = false
+            ).isEmpty()
+        )
+        assertTrue(
+            JsonMergePatch.trackEdit(
+                stored = syncedPatient,
+                edited = edited,
+                storedDirtyFields = emptyList(),
+                isStoredOnServer = false
+            ).isEmpty()
+        )
+    }
+
+    @Test
+    fun createPatch_containsOnlyKeyAndDirtyFields() {
+        val edited = syncedPatient.copy(name = "New name", villageNumber = null)
+
+        val patch = JsonMergePatch.createPatch(
+            edited,
+            dirtyFields = listOf("name", "villageNumber"),
+            alwaysIncluded = Patient.MERGE_PATCH_KEY_FIELDS
+        )
+
+        assertEquals(
+            setOf("id", "lastEdited", "base", "name", "villageNumber"),
+            patch.fieldNames().asSequence().toSet()
+        )
+        assertEquals("123456", patch["id"].asText())
+        assertEquals(1605687954L, patch["lastEdited"].asLong())
+        assertEquals(1605687954L, patch["base"].asLong())
+        assertEquals("New name", patch["name"].asText())
+        assertTrue(patch["villageNumber"].isNull)
+    }
+}